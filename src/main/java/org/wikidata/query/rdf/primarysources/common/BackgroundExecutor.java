@@ -0,0 +1,118 @@
+package org.wikidata.query.rdf.primarysources.common;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * A named and bounded pool of daemon threads for background work, e.g., cache maintenance.
+ * Use it instead of {@link java.util.concurrent.ForkJoinPool#commonPool()} for blocking I/O:
+ * the common pool is sized for CPU work and shared with the whole JVM, so blocking tasks can starve it.
+ * <p>
+ * Tasks beyond the queue capacity are handed over to the rejection policy and counted, see {@link #metrics()}.
+ * The shutdown lets running and queued tasks complete within a timeout, then interrupts them, see {@link #shutdown(long, TimeUnit)}.
+ *
+ * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
+ * @since 0.2.5 - created on Jun 22, 2018.
+ */
+final class BackgroundExecutor {
+
+    private static final Logger log = LoggerFactory.getLogger(BackgroundExecutor.class);
+
+    private final String name;
+    private final int capacity;
+    private final ThreadPoolExecutor pool;
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param name     the pool name, also the prefix of the thread names.
+     * @param threads  the maximum number of threads.
+     * @param capacity the maximum number of queued tasks.
+     * @param policy   what to do with a task when the queue is full, or after the shutdown,
+     *                 e.g., {@link ThreadPoolExecutor.AbortPolicy} to throw a {@link RejectedExecutionException},
+     *                 or {@link ThreadPoolExecutor.CallerRunsPolicy} to push back on the caller.
+     */
+    BackgroundExecutor(String name, int threads, int capacity, RejectedExecutionHandler policy) {
+        this.name = name;
+        this.capacity = capacity;
+        this.pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(capacity),
+            new ThreadFactoryBuilder().setNameFormat(name + "-%d").setDaemon(true).build(), (task, executor) -> {
+            rejected.incrementAndGet();
+            log.warn("The {} pool is {}, rejecting a task. Queued tasks: {}", name, executor.isShutdown() ? "shut down" : "saturated",
+                executor.getQueue().size());
+            policy.rejectedExecution(task, executor);
+        });
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @param task the task to run.
+     * @throws RejectedExecutionException if the task is rejected, depending on the policy.
+     */
+    void execute(Runnable task) {
+        pool.execute(task);
+    }
+
+    /**
+     * @param task the task to run.
+     * @return the pending result.
+     * @throws RejectedExecutionException if the task is rejected, depending on the policy.
+     */
+    Future<?> submit(Runnable task) {
+        return pool.submit(task);
+    }
+
+    /**
+     * @param task the task to run.
+     * @param <T>  the result type.
+     * @return the pending result.
+     * @throws RejectedExecutionException if the task is rejected, depending on the policy.
+     */
+    <T> Future<T> submit(Callable<T> task) {
+        return pool.submit(task);
+    }
+
+    /**
+     * @return the thread and queue usage, with the counters of completed and rejected tasks.
+     */
+    JSONObject metrics() {
+        JSONObject metrics = new JSONObject();
+        metrics.put("threads", pool.getMaximumPoolSize());
+        metrics.put("active", pool.getActiveCount());
+        metrics.put("queued", pool.getQueue().size());
+        metrics.put("capacity", capacity);
+        metrics.put("completed", pool.getCompletedTaskCount());
+        metrics.put("rejected", rejected.get());
+        return metrics;
+    }
+
+    /**
+     * Stop accepting tasks, wait for the running and queued ones, and interrupt them if they don't complete in time.
+     *
+     * @param timeout the maximum time to wait.
+     * @param unit    the time unit of the timeout.
+     * @return <i>true</i> if all the tasks completed, <i>false</i> if some were interrupted or dropped.
+     */
+    boolean shutdown(long timeout, TimeUnit unit) {
+        pool.shutdown();
+        try {
+            if (pool.awaitTermination(timeout, unit)) return true;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        int dropped = pool.shutdownNow().size();
+        log.warn("The {} pool did not complete its tasks in {} {}: interrupted the running ones, dropped {} queued ones", name, timeout, unit, dropped);
+        return false;
+    }
+}
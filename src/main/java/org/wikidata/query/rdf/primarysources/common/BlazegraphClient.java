@@ -0,0 +1,360 @@
+package org.wikidata.query.rdf.primarysources.common;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The single HTTP client of the Wikidata primary sources tool towards Blazegraph.
+ * <p>
+ * It keeps 2 separate pools of persistent connections:
+ * <ul>
+ * <li><i>reads</i>, for SPARQL queries, see {@link Utils#runSparqlQuery(String)};</li>
+ * <li><i>writes</i>, for SPARQL updates and data loads, see the curation and ingestion services.</li>
+ * </ul>
+ * This way, a burst of heavy uploads cannot starve the curation gadget queries, and vice versa.
+ * Pool sizes and timeouts are set through environment variables, see {@link Config}.
+ * <p>
+ * Callers <b>must</b> close the returned responses, ideally after consuming the entity, so that connections go back to the pool.
+ * <p>
+ * Callers wait for a free connection on a fair {@link Semaphore} in front of each pool, rather than inside the HTTP client,
+ * whose connection release code holds monitors around socket operations.
+ * This keeps the client safe for virtual threads, see {@link RequestExecutor}: a waiting virtual thread never pins its carrier,
+ * and no more threads than connections ever enter the HTTP client.
+ * <p>
+ * Every call goes through a {@link CircuitBreaker}, which sheds the least important traffic first when Blazegraph gets slow or fails,
+ * and through the bulkhead of its Web service, which bounds the connections a single service can hold,
+ * so that, e.g., a burst of searches cannot starve curation.
+ * Bulkhead sizes are set through environment variables, see {@link Config}.
+ * Shed calls fail with a {@link BlazegraphUnavailableException}, and so do calls that wait too long for a free connection:
+ * a saturated pool says nothing about the health of Blazegraph, so they don't count as failures for the circuit breaker.
+ *
+ * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
+ * @since 0.2.5 - created on Jun 04, 2018.
+ */
+public final class BlazegraphClient {
+
+    private static final Logger log = LoggerFactory.getLogger(BlazegraphClient.class);
+
+    private static final Pool READS = new Pool("reads", Config.BLAZEGRAPH_READ_MAX_CONNECTIONS, Config.BLAZEGRAPH_READ_SOCKET_TIMEOUT);
+    private static final Pool WRITES = new Pool("writes", Config.BLAZEGRAPH_WRITE_MAX_CONNECTIONS, Config.BLAZEGRAPH_WRITE_SOCKET_TIMEOUT);
+    private static final CircuitBreaker BREAKER = new CircuitBreaker(Config.BLAZEGRAPH_BREAKER_WINDOW, Config.BLAZEGRAPH_BREAKER_MIN_CALLS,
+        Config.BLAZEGRAPH_BREAKER_FAILURE_RATE / 100.0, Config.BLAZEGRAPH_BREAKER_OPEN_TIME, System::nanoTime);
+    private static final Map<Endpoint, Bulkhead> BULKHEADS = new EnumMap<>(Endpoint.class);
+    private static final Bulkhead CACHE_UPDATE_BULKHEAD = new Bulkhead("cache_update", Config.BLAZEGRAPH_CACHE_UPDATE_BULKHEAD);
+    private static final long SLOW_CALL = TimeUnit.MILLISECONDS.toNanos(Config.BLAZEGRAPH_SLOW_CALL);
+
+    static {
+        for (Map.Entry<Endpoint, Integer> entry : Config.BLAZEGRAPH_BULKHEADS.entrySet()) {
+            BULKHEADS.put(entry.getKey(), new Bulkhead(entry.getKey().toString(), entry.getValue()));
+        }
+    }
+
+    private BlazegraphClient() {
+    }
+
+    /**
+     * Build the URI of a Blazegraph service, e.g., {@link Config#BLAZEGRAPH_SPARQL_ENDPOINT}.
+     *
+     * @param endpoint the service endpoint name.
+     * @return a URI builder, to be completed with eventual request parameters.
+     */
+    public static URIBuilder endpoint(String endpoint) {
+        return new URIBuilder()
+            .setScheme("http")
+            .setHost(Config.HOST)
+            .setPort(Config.PORT)
+            .setPath(Config.CONTEXT + endpoint);
+    }
+
+    /**
+     * Execute a read-only request, typically a SPARQL query, through the reads pool.
+     *
+     * @param request the HTTP request.
+     * @return the Blazegraph response, which must be closed.
+     * @throws IOException in case of connection troubles.
+     * @throws BlazegraphUnavailableException if the call is shed, or if the pool is saturated for too long.
+     */
+    public static CloseableHttpResponse read(HttpUriRequest request) throws IOException {
+        return READS.execute(request, true);
+    }
+
+    /**
+     * Execute a request that changes the database, typically a SPARQL update or a data load, through the writes pool.
+     *
+     * @param request the HTTP request.
+     * @return the Blazegraph response, which must be closed.
+     * @throws IOException in case of connection troubles.
+     * @throws BlazegraphUnavailableException if the call is shed, or if the pool is saturated for too long.
+     */
+    public static CloseableHttpResponse write(HttpUriRequest request) throws IOException {
+        return WRITES.execute(request, true);
+    }
+
+    /**
+     * Execute a request that acts on Blazegraph itself, typically a query cancellation, through the writes pool.
+     * It bypasses the circuit breaker and the bulkheads, since it relieves Blazegraph rather than loading it.
+     *
+     * @param request the HTTP request.
+     * @return the Blazegraph response, which must be closed.
+     * @throws IOException in case of connection troubles.
+     * @throws BlazegraphUnavailableException if the call is shed, or if the pool is saturated for too long.
+     */
+    static CloseableHttpResponse control(HttpUriRequest request) throws IOException {
+        return WRITES.execute(request, false);
+    }
+
+    /**
+     * Let a call in, as per the circuit breaker and the bulkhead of the Web service running it, see {@link QueryDeadline#getEndpoint()}.
+     *
+     * @return the code to run when the call is over.
+     * @throws BlazegraphUnavailableException if the call is shed.
+     */
+    private static Runnable admit() {
+        Endpoint endpoint = QueryDeadline.current().getEndpoint();
+        CircuitBreaker.Priority priority = CircuitBreaker.Priority.of(endpoint);
+        if (!BREAKER.allows(priority)) {
+            throw new BlazegraphUnavailableException("Blazegraph is struggling, shedding " + priority + " traffic", BREAKER.retryAfter());
+        }
+        Bulkhead bulkhead = endpoint == null ? CACHE_UPDATE_BULKHEAD : BULKHEADS.get(endpoint);
+        bulkhead.acquire();
+        return bulkhead.permits::release;
+    }
+
+    private static void record(boolean good) {
+        QueryDeadline deadline = QueryDeadline.current();
+        // Calls aborted because the request was cancelled or ran out of time say nothing about Blazegraph
+        if (!deadline.isCancelled() && !deadline.isExpired()) BREAKER.record(good);
+    }
+
+    /**
+     * Get a snapshot of the pools usage.
+     * The {@code saturation} value is the ratio of leased connections over the maximum ones:
+     * when it stays at {@code 1.0} with a growing number of {@code pending} requests, the pool is too small or Blazegraph is too slow.
+     * The {@code lease_timeouts} value counts the calls shed because no connection was available in time.
+     * The {@code breaker} key holds the circuit breaker state and shed calls, see {@link CircuitBreaker#metrics()},
+     * and the {@code bulkheads} key holds the usage of each bulkhead.
+     *
+     * @return a JSON object with one key per pool, plus the circuit breaker and the bulkheads.
+     */
+    public static JSONObject metrics() {
+        JSONObject metrics = new JSONObject();
+        metrics.put(READS.name, READS.metrics());
+        metrics.put(WRITES.name, WRITES.metrics());
+        metrics.put("breaker", BREAKER.metrics());
+        JSONObject bulkheads = new JSONObject();
+        for (Bulkhead bulkhead : BULKHEADS.values()) bulkheads.put(bulkhead.name, bulkhead.metrics());
+        bulkheads.put(CACHE_UPDATE_BULKHEAD.name, CACHE_UPDATE_BULKHEAD.metrics());
+        metrics.put("bulkheads", bulkheads);
+        return metrics;
+    }
+
+    /**
+     * Close both pools, together with their connections.
+     * Called when the Web application is shut down, see {@link CacheUpdater#contextDestroyed(javax.servlet.ServletContextEvent)}.
+     */
+    public static void shutdown() {
+        READS.close();
+        WRITES.close();
+    }
+
+    private static final class Pool {
+        private final String name;
+        private final PoolingHttpClientConnectionManager connectionManager;
+        private final CloseableHttpClient client;
+        private final Semaphore gate;
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong leaseTimeouts = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+
+        private Pool(String name, int maxConnections, int socketTimeout) {
+            this.name = name;
+            gate = new Semaphore(maxConnections, true);
+            connectionManager = new PoolingHttpClientConnectionManager();
+            // Every request goes to the same Blazegraph host, so a single route can use the whole pool
+            connectionManager.setMaxTotal(maxConnections);
+            connectionManager.setDefaultMaxPerRoute(maxConnections);
+            // Check connections that stayed idle for a while, since Blazegraph may have closed them in the meanwhile
+            connectionManager.setValidateAfterInactivity(2000);
+            RequestConfig config = RequestConfig.custom()
+                .setConnectTimeout(Config.BLAZEGRAPH_CONNECT_TIMEOUT)
+                .setConnectionRequestTimeout(Config.BLAZEGRAPH_LEASE_TIMEOUT)
+                .setSocketTimeout(socketTimeout)
+                .build();
+            ConnectionKeepAliveStrategy keepAlive = (response, context) -> {
+                long fromServer = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                return fromServer > 0 ? fromServer : Config.BLAZEGRAPH_KEEP_ALIVE;
+            };
+            client = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(config)
+                .setKeepAliveStrategy(keepAlive)
+                .evictExpiredConnections()
+                .evictIdleConnections((long) Config.BLAZEGRAPH_KEEP_ALIVE, TimeUnit.MILLISECONDS)
+                .setUserAgent("primary-sources-tool")
+                .build();
+            log.info("Blazegraph {} connection pool ready. Maximum connections: {}; socket timeout: {} ms", name, maxConnections, socketTimeout);
+        }
+
+        private CloseableHttpResponse execute(HttpUriRequest request, boolean guarded) throws IOException {
+            Runnable done = guarded ? admit() : () -> { };
+            requests.incrementAndGet();
+            try {
+                acquire();
+            } catch (IOException | BlazegraphUnavailableException e) {
+                done.run();
+                throw e;
+            }
+            long start = System.nanoTime();
+            CloseableHttpResponse response;
+            try {
+                response = client.execute(request);
+            } catch (ConnectionPoolTimeoutException cpte) {
+                gate.release();
+                done.run();
+                throw leaseTimeout("Stats: " + connectionManager.getTotalStats());
+            } catch (IOException | RuntimeException e) {
+                gate.release();
+                done.run();
+                if (guarded) record(false);
+                failures.incrementAndGet();
+                throw e;
+            }
+            if (guarded) record(response.getStatusLine().getStatusCode() < 500 && (SLOW_CALL == 0 || System.nanoTime() - start < SLOW_CALL));
+            return releasingOnClose(response, done);
+        }
+
+        private void acquire() throws ConnectionPoolTimeoutException {
+            boolean acquired;
+            try {
+                acquired = BlazegraphClient.acquire(gate);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new ConnectionPoolTimeoutException("Interrupted while waiting for a Blazegraph " + name + " connection");
+            }
+            if (!acquired) throw leaseTimeout("Waiting threads: " + gate.getQueueLength());
+        }
+
+        /**
+         * Shed a call that waited too long for a free connection, like a full bulkhead does.
+         */
+        private BlazegraphUnavailableException leaseTimeout(String stats) {
+            leaseTimeouts.incrementAndGet();
+            log.warn("The Blazegraph {} connection pool is saturated: no connection available after {} ms. {}", name, Config.BLAZEGRAPH_LEASE_TIMEOUT,
+                stats);
+            return new BlazegraphUnavailableException("No Blazegraph " + name + " connection available", 1);
+        }
+
+        /**
+         * Wrap the response, so that closing it also lets the next caller in.
+         */
+        private CloseableHttpResponse releasingOnClose(CloseableHttpResponse response, Runnable done) {
+            AtomicBoolean released = new AtomicBoolean();
+            return (CloseableHttpResponse) Proxy.newProxyInstance(CloseableHttpResponse.class.getClassLoader(), new Class<?>[] {CloseableHttpResponse.class},
+                (proxy, method, args) -> {
+                    try {
+                        return method.invoke(response, args);
+                    } catch (InvocationTargetException ite) {
+                        throw ite.getCause();
+                    } finally {
+                        if (method.getName().equals("close") && released.compareAndSet(false, true)) {
+                            gate.release();
+                            done.run();
+                        }
+                    }
+                });
+        }
+
+        private JSONObject metrics() {
+            PoolStats stats = connectionManager.getTotalStats();
+            JSONObject metrics = new JSONObject();
+            metrics.put("max", stats.getMax());
+            metrics.put("leased", stats.getLeased());
+            metrics.put("available", stats.getAvailable());
+            metrics.put("pending", stats.getPending() + gate.getQueueLength());
+            metrics.put("saturation", stats.getMax() == 0 ? 0.0 : (double) stats.getLeased() / stats.getMax());
+            metrics.put("requests", requests.get());
+            metrics.put("lease_timeouts", leaseTimeouts.get());
+            metrics.put("failures", failures.get());
+            return metrics;
+        }
+
+        private void close() {
+            try {
+                client.close();
+            } catch (IOException ioe) {
+                log.warn("Something went wrong while closing the Blazegraph " + name + " connection pool", ioe);
+            }
+        }
+    }
+
+    /**
+     * Wait for a permit, up to the connection lease timeout, see {@link Config}.
+     */
+    private static boolean acquire(Semaphore permits) throws InterruptedException {
+        if (Config.BLAZEGRAPH_LEASE_TIMEOUT > 0) return permits.tryAcquire(Config.BLAZEGRAPH_LEASE_TIMEOUT, TimeUnit.MILLISECONDS);
+        permits.acquire();
+        return true;
+    }
+
+    /**
+     * The maximum number of concurrent Blazegraph calls of a Web service, across both pools.
+     */
+    private static final class Bulkhead {
+        private final String name;
+        private final int max;
+        private final Semaphore permits;
+        private final AtomicLong rejected = new AtomicLong();
+
+        private Bulkhead(String name, int max) {
+            this.name = name;
+            this.max = max;
+            this.permits = new Semaphore(max, true);
+        }
+
+        private void acquire() {
+            boolean acquired;
+            try {
+                acquired = BlazegraphClient.acquire(permits);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                acquired = false;
+            }
+            if (!acquired) {
+                rejected.incrementAndGet();
+                log.warn("The Blazegraph bulkhead of {} is full: {} calls in flight for more than {} ms", name, max, Config.BLAZEGRAPH_LEASE_TIMEOUT);
+                throw new BlazegraphUnavailableException("Too many concurrent Blazegraph calls for " + name, 1);
+            }
+        }
+
+        private JSONObject metrics() {
+            JSONObject metrics = new JSONObject();
+            metrics.put("max", max);
+            metrics.put("in_use", max - permits.availablePermits());
+            metrics.put("waiting", permits.getQueueLength());
+            metrics.put("rejected", rejected.get());
+            return metrics;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package org.wikidata.query.rdf.primarysources.common;
+
+/**
+ * Thrown when a call to Blazegraph is shed, either by the circuit breaker or by a full bulkhead, see {@link BlazegraphClient}.
+ * {@link RequestExecutor} turns it into a HTTP 503 response with a {@code Retry-After} header.
+ *
+ * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
+ * @since 0.2.5 - created on Jun 18, 2018.
+ */
+public class BlazegraphUnavailableException extends RuntimeException {
+
+    private final long retryAfter;
+
+    /**
+     * @param message    why the call was shed.
+     * @param retryAfter how long the caller should wait before trying again, in seconds.
+     */
+    public BlazegraphUnavailableException(String message, long retryAfter) {
+        super(message);
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * @return how long the caller should wait before trying again, in seconds.
+     */
+    public long getRetryAfter() {
+        return retryAfter;
+    }
+}
@@ -3,6 +3,7 @@ package org.wikidata.query.rdf.primarysources.common;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
@@ -14,6 +15,11 @@ import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
  * A scheduler to periodically update entity and datasets statistics cache files.
+ * <p>
+ * When the Web application starts, and before it accepts any request, the last persisted caches are validated and loaded in memory,
+ * so that Web services can serve them right away. The periodic updates then start after {@code CACHE_UPDATE_INITIAL_DELAY}.
+ * A cache that could not be loaded is rather built at once in the background, and its periodic updates start one interval later,
+ * so that a cold start doesn't rebuild it twice in a row. Until both caches are loaded, the instance is not ready, see {@link ReadinessServlet}.
  *
  * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
  * @since 0.2.5 - created on Dec 12, 2017.
@@ -25,35 +31,59 @@ public class CacheUpdater implements ServletContextListener {
     private ScheduledExecutorService entitiesService;
     private ScheduledExecutorService datasetsStatsService;
 
-    private static ScheduledExecutorService scheduleEntitiesUpdate() {
+    private static ScheduledExecutorService scheduleEntitiesUpdate(boolean loaded) {
         ThreadFactory tf = new ThreadFactoryBuilder().setNameFormat("entities-cache-update-scheduler-%d").build();
         ScheduledExecutorService service = Executors.newSingleThreadScheduledExecutor(tf);
-        service.scheduleAtFixedRate(EntitiesCache::dumpAllEntities, Config.CACHE_UPDATE_INITIAL_DELAY, Config.CACHE_UPDATE_INTERVAL, Config
-            .CACHE_UPDATE_TIME_UNIT);
-        log.info("Primary sources tool entities cache update scheduled: will run every {} {}, {} {} after the server starts.",
-            Config.CACHE_UPDATE_INTERVAL, Config.CACHE_UPDATE_TIME_UNIT, Config.CACHE_UPDATE_INITIAL_DELAY, Config.CACHE_UPDATE_TIME_UNIT);
+        // Changes made through the Web services are applied right away, so the full update is a rare reconciliation
+        long initialDelay = schedule(service, EntitiesCache::dumpAllEntities, loaded, Config.ENTITIES_CACHE_RECONCILIATION_INTERVAL);
+        log.info("Primary sources tool entities cache reconciliation scheduled: will run every {} {}, {} {} after the server starts.",
+            Config.ENTITIES_CACHE_RECONCILIATION_INTERVAL, Config.CACHE_UPDATE_TIME_UNIT, initialDelay, Config.CACHE_UPDATE_TIME_UNIT);
         return service;
     }
 
-    private static ScheduledExecutorService scheduleDatasetsStatsUpdate() {
+    private static ScheduledExecutorService scheduleDatasetsStatsUpdate(boolean loaded) {
         ThreadFactory tf = new ThreadFactoryBuilder().setNameFormat("datasets-statistics-cache-update-scheduler-%d").build();
         ScheduledExecutorService service = Executors.newSingleThreadScheduledExecutor(tf);
-        service.scheduleAtFixedRate(DatasetsStatisticsCache::dumpStatistics, Config.CACHE_UPDATE_INITIAL_DELAY, Config.CACHE_UPDATE_INTERVAL, Config
-            .CACHE_UPDATE_TIME_UNIT);
+        long initialDelay = schedule(service, DatasetsStatisticsCache::dumpStatistics, loaded, Config.CACHE_UPDATE_INTERVAL);
         log.info("Primary sources tool dataset statistics cache update scheduled: will run every {} {}, {} {} after the server starts.",
-            Config.CACHE_UPDATE_INTERVAL, Config.CACHE_UPDATE_TIME_UNIT, Config.CACHE_UPDATE_INITIAL_DELAY, Config.CACHE_UPDATE_TIME_UNIT);
+            Config.CACHE_UPDATE_INTERVAL, Config.CACHE_UPDATE_TIME_UNIT, initialDelay, Config.CACHE_UPDATE_TIME_UNIT);
         return service;
     }
 
+    /**
+     * Schedule the periodic updates of a cache, with a first one at once if it could not be loaded.
+     *
+     * @return the delay of the first periodic update.
+     */
+    private static long schedule(ScheduledExecutorService service, Runnable update, boolean loaded, long interval) {
+        long initialDelay = Config.CACHE_UPDATE_INITIAL_DELAY;
+        if (!loaded) {
+            service.execute(update);
+            initialDelay = Math.max(initialDelay, interval);
+        }
+        service.scheduleAtFixedRate(update, initialDelay, interval, Config.CACHE_UPDATE_TIME_UNIT);
+        return initialDelay;
+    }
+
     @Override
     public void contextInitialized(ServletContextEvent event) {
-        entitiesService = scheduleEntitiesUpdate();
-        datasetsStatsService = scheduleDatasetsStatsUpdate();
+        long start = System.nanoTime();
+        boolean entities = EntitiesCache.warmUp();
+        boolean statistics = DatasetsStatisticsCache.warmUp();
+        log.info("Primary sources tool caches warmed up in {} ms. Entities loaded: {}, datasets statistics loaded: {}",
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), entities, statistics);
+        entitiesService = scheduleEntitiesUpdate(entities);
+        datasetsStatsService = scheduleDatasetsStatsUpdate(statistics);
     }
 
     @Override
     public void contextDestroyed(ServletContextEvent event) {
         entitiesService.shutdownNow();
         datasetsStatsService.shutdownNow();
+        EntitiesCache.shutdown();
+        RandomSubjects.shutdown();
+        RandomSuggestions.shutdown();
+        RequestExecutor.shutdown();
+        BlazegraphClient.shutdown();
     }
 }
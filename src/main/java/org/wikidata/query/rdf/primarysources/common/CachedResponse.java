@@ -0,0 +1,176 @@
+package org.wikidata.query.rdf.primarysources.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.json.simple.JSONStreamAware;
+
+import com.google.common.hash.Hashing;
+
+/**
+ * A JSON response body serialized once, in both identity and gzip encodings, with a strong entity tag.
+ * Build it once per cache snapshot, see {@link EntitiesCache.Snapshot#response(String, java.util.function.Supplier)},
+ * so that serving a cached document costs a single buffer write, or nothing at all on a conditional request.
+ * <p>
+ * The entity tag is a hash of the body, so it only changes when the content does:
+ * it holds across restarts and across changes to other datasets.
+ * The gzip representation gets its own tag, as required for strong validators.
+ *
+ * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
+ * @since 0.2.5 - created on Jun 23, 2018.
+ */
+public final class CachedResponse {
+
+    private static final String GZIP = "gzip";
+
+    private final byte[] identity;
+    // Null if compressed on demand, see #sendOnce
+    private final byte[] gzip;
+    private final String identityTag;
+    private final String gzipTag;
+
+    private CachedResponse(byte[] identity, byte[] gzip, String hash) {
+        this.identity = identity;
+        this.gzip = gzip;
+        this.identityTag = "\"" + hash + "\"";
+        this.gzipTag = "\"" + hash + "-" + GZIP + "\"";
+    }
+
+    /**
+     * @param json the response body.
+     * @return the serialized and compressed body.
+     */
+    public static CachedResponse of(JSONStreamAware json) {
+        byte[] identity = serialize(json);
+        return new CachedResponse(identity, compress(identity), hash(identity));
+    }
+
+    /**
+     * Same as {@link #send(HttpServletRequest, HttpServletResponse)}, for a body built per request, e.g., partly live:
+     * the body is only compressed if the client accepts gzip and doesn't have it already.
+     *
+     * @param json     the response body.
+     * @param request  the client request, with the eventual {@code Accept-Encoding} and {@code If-None-Match} headers.
+     * @param response the response to write.
+     * @throws IOException if the body can't be written.
+     */
+    public static void sendOnce(JSONStreamAware json, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        byte[] identity = serialize(json);
+        new CachedResponse(identity, null, hash(identity)).send(request, response);
+    }
+
+    private static byte[] serialize(JSONStreamAware json) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (Writer writer = new OutputStreamWriter(bytes, StandardCharsets.UTF_8)) {
+            json.writeJSONString(writer);
+        } catch (IOException ioe) {
+            // In-memory streams don't fail
+            throw new UncheckedIOException(ioe);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] compress(byte[] identity) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(identity.length / 4 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(identity);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+        return compressed.toByteArray();
+    }
+
+    private static String hash(byte[] identity) {
+        return Hashing.murmur3_128().hashBytes(identity).toString();
+    }
+
+    /**
+     * @return the size of the identity-encoded body, in bytes.
+     */
+    public int size() {
+        return identity.length;
+    }
+
+    /**
+     * @return the entity tag of the identity-encoded body.
+     */
+    String tag() {
+        return identityTag;
+    }
+
+    /**
+     * Send the body, gzipped if the client accepts it, or a <i>304 Not Modified</i> if the client already has it.
+     *
+     * @param request  the client request, with the eventual {@code Accept-Encoding} and {@code If-None-Match} headers.
+     * @param response the response to write.
+     * @throws IOException if the body can't be written.
+     */
+    public void send(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        boolean gzipped = acceptsGzip(request.getHeader("Accept-Encoding"));
+        response.setHeader("ETag", gzipped ? gzipTag : identityTag);
+        response.setHeader("Vary", "Accept-Encoding");
+        if (matches(request.getHeader("If-None-Match"))) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        byte[] body = identity;
+        if (gzipped) body = gzip != null ? gzip : compress(identity);
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType(ApiParameters.DEFAULT_IO_CONTENT_TYPE);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        if (gzipped) response.setHeader("Content-Encoding", GZIP);
+        response.setContentLength(body.length);
+        try (OutputStream out = response.getOutputStream()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * Weak comparison, as required for {@code If-None-Match}: either representation validates the other, since they hold the same content.
+     */
+    private boolean matches(String ifNoneMatch) {
+        if (ifNoneMatch == null) return false;
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) tag = tag.substring(2);
+            if (tag.equals("*") || tag.equals(identityTag) || tag.equals(gzipTag)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * An explicit {@code gzip} coding takes precedence over the {@code *} wildcard, e.g., {@code gzip;q=0, *} refuses gzip.
+     */
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) return false;
+        Boolean explicit = null;
+        boolean wildcard = false;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim().toLowerCase(Locale.ENGLISH);
+            boolean accepted = true;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (!parameter.startsWith("q=")) continue;
+                try {
+                    accepted = Double.parseDouble(parameter.substring(2)) > 0;
+                } catch (NumberFormatException nfe) {
+                    accepted = false;
+                }
+            }
+            if (name.equals(GZIP) || name.equals("x-" + GZIP)) explicit = explicit == null ? accepted : explicit || accepted;
+            else if (name.equals("*")) wildcard = accepted;
+        }
+        return explicit != null ? explicit : wildcard;
+    }
+}
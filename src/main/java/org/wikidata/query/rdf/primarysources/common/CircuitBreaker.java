@@ -0,0 +1,245 @@
+package org.wikidata.query.rdf.primarysources.common;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Protect Blazegraph from the Web services when it gets slow or fails, and shed the least important traffic first.
+ * <p>
+ * The breaker tracks the outcome of the latest Blazegraph calls: failures and calls slower than a threshold count as bad ones.
+ * As the bad call rate grows, traffic is shed by {@link Priority}, lowest first:
+ * <ol>
+ * <li>{@link Priority#CACHE_UPDATE} at a quarter of the opening rate;</li>
+ * <li>{@link Priority#SEARCH} at half of it;</li>
+ * <li>{@link Priority#RANDOM} at three quarters of it;</li>
+ * <li>everything else but {@link Priority#CURATION} once the breaker opens.</li>
+ * </ol>
+ * An open breaker lets only curation through for a while, then turns half-open: regular traffic is let in again,
+ * and a run of good calls closes the breaker, while a single bad one opens it again.
+ * Curation writes are never shed, since they are what curators are waiting for.
+ * <p>
+ * Shed calls add no outcomes, so a shed priority could stay shed for good on a quiet instance, e.g., cache updates with no other traffic.
+ * A priority that didn't reach Blazegraph for as long as the breaker stays open gets a call through as a probe, whose outcome counts as any other.
+ * <p>
+ * The thresholds are set through environment variables, see {@link Config} and {@link BlazegraphClient}.
+ *
+ * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
+ * @since 0.2.5 - created on Jun 18, 2018.
+ */
+final class CircuitBreaker {
+
+    private static final Logger log = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    private final boolean[] window;
+    private final int minCalls;
+    private final double openRate;
+    private final long openNanos;
+    private final LongSupplier clock;
+    private final Map<Priority, AtomicLong> shed = new EnumMap<>(Priority.class);
+
+    // Guarded by this
+    private int next;
+    private int calls;
+    private int bad;
+    private State state = State.CLOSED;
+    private long openedAt;
+    private int goodProbes;
+    // When each priority last reached Blazegraph, by ordinal
+    private final long[] lastAllowed = new long[Priority.values().length];
+
+    /**
+     * @param windowSize the number of latest calls to compute the bad call rate.
+     * @param minCalls   the minimum number of calls before shedding, and the run of good calls that closes a half-open breaker.
+     * @param openRate   the bad call rate that opens the breaker, between 0 and 1.
+     * @param openTime   how long the breaker stays open, in milliseconds.
+     * @param clock      the time source, in nanoseconds, e.g., {@link System#nanoTime()}.
+     */
+    CircuitBreaker(int windowSize, int minCalls, double openRate, long openTime, LongSupplier clock) {
+        this.window = new boolean[windowSize];
+        this.minCalls = Math.min(minCalls, windowSize);
+        this.openRate = openRate;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openTime);
+        this.clock = clock;
+        for (Priority priority : Priority.values()) shed.put(priority, new AtomicLong());
+        Arrays.fill(lastAllowed, clock.getAsLong());
+    }
+
+    /**
+     * The state of the breaker.
+     */
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * The importance of the traffic towards Blazegraph, lowest first.
+     */
+    enum Priority {
+        /**
+         * Periodic and post-ingestion full scans, see {@link CacheUpdater} and {@link EntitiesCache}.
+         */
+        CACHE_UPDATE,
+        /**
+         * {@link Endpoint#SEARCH}.
+         */
+        SEARCH,
+        /**
+         * {@link Endpoint#RANDOM}.
+         */
+        RANDOM,
+        /**
+         * The other Web services.
+         */
+        REGULAR,
+        /**
+         * {@link Endpoint#CURATE}.
+         */
+        CURATION;
+
+        /**
+         * @param endpoint the Web service, or <i>null</i> if the traffic does not come from a Web service request.
+         * @return the priority of the traffic.
+         */
+        static Priority of(Endpoint endpoint) {
+            if (endpoint == null) return CACHE_UPDATE;
+            switch (endpoint) {
+            case SEARCH:
+                return SEARCH;
+            case RANDOM:
+                return RANDOM;
+            case CURATE:
+                return CURATION;
+            default:
+                return REGULAR;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return name().toLowerCase(Locale.ENGLISH);
+        }
+    }
+
+    /**
+     * @param priority the priority of the traffic.
+     * @return <i>true</i> if a call with the given priority can go to Blazegraph, <i>false</i> if it must be shed.
+     */
+    synchronized boolean allows(Priority priority) {
+        if (priority == Priority.CURATION) return true;
+        long now = clock.getAsLong();
+        if (state == State.OPEN && now - openedAt >= openNanos) {
+            state = State.HALF_OPEN;
+            goodProbes = 0;
+            log.info("Blazegraph circuit breaker half-open: letting regular traffic in again");
+        }
+        boolean allowed;
+        switch (state) {
+        case OPEN:
+            allowed = false;
+            break;
+        case HALF_OPEN:
+            allowed = priority == Priority.REGULAR;
+            break;
+        default:
+            allowed = calls < minCalls || badRate() < shedRate(priority);
+        }
+        if (!allowed && state != State.OPEN && now - lastAllowed[priority.ordinal()] >= openNanos) {
+            log.debug("Letting a {} call through as a probe", priority);
+            allowed = true;
+        }
+        if (allowed) lastAllowed[priority.ordinal()] = now;
+        else shed.get(priority).incrementAndGet();
+        return allowed;
+    }
+
+    private double shedRate(Priority priority) {
+        switch (priority) {
+        case CACHE_UPDATE:
+            return openRate / 4;
+        case SEARCH:
+            return openRate / 2;
+        case RANDOM:
+            return openRate * 3 / 4;
+        default:
+            return openRate;
+        }
+    }
+
+    /**
+     * Record the outcome of a Blazegraph call.
+     *
+     * @param good <i>false</i> if the call failed or was too slow.
+     */
+    synchronized void record(boolean good) {
+        if (window[next] && calls == window.length) bad--;
+        window[next] = !good;
+        if (!good) bad++;
+        next = (next + 1) % window.length;
+        if (calls < window.length) calls++;
+        switch (state) {
+        case HALF_OPEN:
+            if (!good) open();
+            else if (++goodProbes >= minCalls) close();
+            break;
+        case CLOSED:
+            if (calls >= minCalls && badRate() >= openRate) open();
+            break;
+        default:
+            // Late outcomes of calls started before opening
+        }
+    }
+
+    private double badRate() {
+        return calls == 0 ? 0 : (double) bad / calls;
+    }
+
+    private void open() {
+        log.warn("Blazegraph circuit breaker open: {} bad calls out of the latest {}. Only curation will go through for {} ms", bad, calls, TimeUnit
+            .NANOSECONDS.toMillis(openNanos));
+        state = State.OPEN;
+        openedAt = clock.getAsLong();
+    }
+
+    private void close() {
+        log.info("Blazegraph circuit breaker closed after {} good calls", goodProbes);
+        state = State.CLOSED;
+        next = 0;
+        calls = 0;
+        bad = 0;
+    }
+
+    /**
+     * @return how long callers should wait before trying again, in seconds, at least 1.
+     */
+    synchronized long retryAfter() {
+        if (state != State.OPEN) return 1;
+        return Math.max(1, TimeUnit.NANOSECONDS.toSeconds(openNanos - (clock.getAsLong() - openedAt)));
+    }
+
+    synchronized State state() {
+        return state;
+    }
+
+    /**
+     * @return the state, the bad call rate over the latest calls, and the counters of shed calls per priority.
+     */
+    synchronized JSONObject metrics() {
+        JSONObject metrics = new JSONObject();
+        metrics.put("state", state.toString().toLowerCase(Locale.ENGLISH));
+        metrics.put("calls", calls);
+        metrics.put("bad_rate", badRate());
+        JSONObject shedCounters = new JSONObject();
+        for (Map.Entry<Priority, AtomicLong> entry : shed.entrySet()) shedCounters.put(entry.getKey().toString(), entry.getValue().get());
+        metrics.put("shed", shedCounters);
+        return metrics;
+    }
+}
@@ -2,6 +2,10 @@ package org.wikidata.query.rdf.primarysources.common;
 
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -18,6 +22,87 @@ import java.util.concurrent.TimeUnit;
  * <li>{@code CACHE_UPDATE_TIME_UNIT}: the {@link TimeUnit} for the above values, e.g., {@code HOURS} (<i>must</i> be all caps).</li>
  * </ul>
  * For instance, the {@code CACHE_UPDATE_*} example values above would schedule the cache update every <i>24 hours, 1 hour after the server starts</i>.
+ * <p>
+ * The following optional variables tune the Blazegraph connection pools, see {@link BlazegraphClient}.
+ * Timeouts are in milliseconds, and {@code 0} means no timeout.
+ * <ul>
+ * <li>{@code BLAZEGRAPH_READ_MAX_CONNECTIONS}: maximum connections for SPARQL queries, defaults to {@code 20};</li>
+ * <li>{@code BLAZEGRAPH_WRITE_MAX_CONNECTIONS}: maximum connections for SPARQL updates and data loads, defaults to {@code 4};</li>
+ * <li>{@code BLAZEGRAPH_CONNECT_TIMEOUT}: time to establish a connection, defaults to {@code 5000};</li>
+ * <li>{@code BLAZEGRAPH_LEASE_TIMEOUT}: time to wait for a free connection in a saturated pool, defaults to {@code 10000};</li>
+ * <li>{@code BLAZEGRAPH_READ_SOCKET_TIMEOUT}: inactivity time when reading query results, defaults to {@code 0};</li>
+ * <li>{@code BLAZEGRAPH_WRITE_SOCKET_TIMEOUT}: inactivity time when waiting for update responses, defaults to {@code 0};</li>
+ * <li>{@code BLAZEGRAPH_KEEP_ALIVE}: how long an idle connection is kept open, unless Blazegraph says otherwise, defaults to {@code 30000};</li>
+ * <li>{@code BLAZEGRAPH_RESULT_FORMAT}: preferred format of streamed SPARQL results, one of {@code binary}, {@code tsv}, {@code json},
+ * defaults to {@code binary}, see {@link SparqlResultFormat}.</li>
+ * </ul>
+ * The following optional variables tune the circuit breaker and the bulkheads around Blazegraph, see {@link CircuitBreaker}.
+ * <ul>
+ * <li>{@code BLAZEGRAPH_BREAKER_WINDOW}: number of latest calls to compute the bad call rate, defaults to {@code 100};</li>
+ * <li>{@code BLAZEGRAPH_BREAKER_MIN_CALLS}: calls needed before shedding, and good calls needed to close a half-open breaker, defaults to {@code 20};</li>
+ * <li>{@code BLAZEGRAPH_BREAKER_FAILURE_RATE}: percentage of bad calls that opens the breaker, defaults to {@code 50};</li>
+ * <li>{@code BLAZEGRAPH_BREAKER_OPEN_TIME}: milliseconds the breaker stays open, defaults to {@code 30000};</li>
+ * <li>{@code BLAZEGRAPH_SLOW_CALL}: milliseconds after which a call counts as a bad one, even if it succeeds, defaults to {@code QUERY_TIMEOUT},
+ * so that queries within their deadline don't trip the breaker, and {@code 0} disables it;</li>
+ * <li>{@code BLAZEGRAPH_BULKHEAD_<SERVICE>}: maximum concurrent Blazegraph calls of a Web service, e.g., {@code BLAZEGRAPH_BULKHEAD_SEARCH},
+ * see {@link Endpoint} for the names. Defaults to the write maximum connections for curation, half of them for ingestion,
+ * a quarter of the read maximum connections for search and random, and half of them for the other services;</li>
+ * <li>{@code BLAZEGRAPH_BULKHEAD_CACHE_UPDATE}: same as above, for cache updates, defaults to a quarter of the read maximum connections.</li>
+ * </ul>
+ * The following optional variables tune the maintenance of the entities cache, see {@link EntitiesCache}.
+ * <ul>
+ * <li>{@code ENTITIES_CACHE_RECONCILIATION_INTERVAL}: interval between each full rebuild, in {@code CACHE_UPDATE_TIME_UNIT}.
+ * Changes made through the Web services are applied right away, so the rebuild only reconciles the rest. Defaults to 7 times {@code CACHE_UPDATE_INTERVAL};</li>
+ * <li>{@code ENTITIES_CACHE_WORKERS}: datasets and entity types fetched in parallel, defaults to the cache update bulkhead above;</li>
+ * <li>{@code ENTITIES_CACHE_PAGE_SIZE}: maximum rows returned by a single entities query, defaults to {@code 100000};</li>
+ * <li>{@code ENTITIES_CACHE_PERSIST_DELAY}: milliseconds between a change and the write of the binary cache files, so that the changes made
+ * in the meantime are written together, defaults to {@code 2000};</li>
+ * <li>{@code CACHE_MAINTENANCE_QUEUE_SIZE}: tasks waiting for each background pool, e.g., the cache writer, before rejecting new ones,
+ * defaults to {@code 1000}, see {@link BackgroundExecutor}.</li>
+ * </ul>
+ * The following optional variables bound the in-process caches of SPARQL query results.
+ * <ul>
+ * <li>{@code RESULT_CACHE_MAX_ENTRIES}: maximum number of cached query results, see {@link QueryResultCache}, defaults to {@code 10000},
+ * {@code 0} disables the cache;</li>
+ * <li>{@code SUGGESTION_CACHE_MAX_MEGABYTES}: maximum estimated memory of the cached suggestions per subject item, see {@link SuggestionCache},
+ * defaults to {@code 64}, {@code 0} disables the cache.</li>
+ * </ul>
+ * The following optional variables tune the async handling of Web service requests, see {@link RequestExecutor}.
+ * <ul>
+ * <li>{@code REQUEST_EXECUTION_MODE}: either {@code platform}, for a bounded pool of platform threads,
+ * or {@code virtual}, for a virtual thread per request on Java 21 or later, defaults to {@code platform}, also used for unknown values;</li>
+ * <li>{@code REQUEST_WORKERS}: platform threads handling requests, defaults to the sum of the Blazegraph read and write maximum connections;</li>
+ * <li>{@code REQUEST_QUEUE_SIZE}: requests waiting for a free thread, before rejecting new ones, defaults to {@code 10000}.
+ * The maximum number of requests in flight is {@code REQUEST_WORKERS + REQUEST_QUEUE_SIZE} in both modes.</li>
+ * </ul>
+ * The following optional variables tune the random subject items served for curation, see {@link RandomSubjects}.
+ * <ul>
+ * <li>{@code RANDOM_DATASET_PRIORITIES}: space-separated {@code <dataset URI>=<priority>} pairs,
+ * e.g., {@code http://chuck-berry/new=2 http://ella/new=0.5}.
+ * A dataset is drawn in proportion to its priority, a finite non-negative number, times its statements to be curated. Defaults to a priority of {@code 1} for all datasets;</li>
+ * <li>{@code RANDOM_EXCLUSION_WINDOW}: subject items served to a user that are not served again to the same user, defaults to {@code 50},
+ * {@code 0} disables the exclusion;</li>
+ * <li>{@code RANDOM_EXCLUSION_USERS}: users whose latest subject items are remembered, the least recent ones are forgotten first,
+ * defaults to {@code 10000};</li>
+ * <li>{@code RANDOM_PREFETCH_SIZE}: subject items per dataset whose suggestions are fetched ahead of the requests, see {@link RandomSuggestions},
+ * defaults to {@code 16}, {@code 0} disables the prefetching.</li>
+ * </ul>
+ * The following optional variables tune the batch suggestions of many subject items, see {@link Utils#getBatchSuggestions(String, java.util.Collection, Endpoint)}.
+ * <ul>
+ * <li>{@code SUGGEST_BATCH_MAX_QIDS}: maximum subject items in a single request, defaults to {@code 5000};</li>
+ * <li>{@code SUGGEST_BATCH_CHUNK_SIZE}: subject items bound by a single SPARQL query, defaults to {@code 200},
+ * so that the query URI stays within the usual HTTP limits;</li>
+ * <li>{@code SUGGEST_BATCH_PARALLELISM}: chunk queries a single request runs at once, calling thread included, defaults to half the {@code SUGGEST} bulkhead,
+ * so that a big batch doesn't starve the single subject requests;</li>
+ * <li>{@code SUGGEST_BATCH_WORKERS}: threads running the chunk queries in parallel, shared by all requests, defaults to half the {@code SUGGEST} bulkhead.</li>
+ * </ul>
+ * The following optional variables set the deadline of the SPARQL queries run by each Web service request, see {@link QueryDeadline}.
+ * Timeouts are in milliseconds, and {@code 0} means no timeout.
+ * <ul>
+ * <li>{@code QUERY_TIMEOUT}: default for all Web services, defaults to {@code 30000};</li>
+ * <li>{@code QUERY_TIMEOUT_<SERVICE>}: override for a given Web service, e.g., {@code QUERY_TIMEOUT_SEARCH}, see {@link Endpoint} for the names.
+ * The ingestion services {@code UPLOAD} and {@code UPDATE} default to {@code 0}, since they load whole datasets.</li>
+ * </ul>
  *
  * <b>Important:</b> integration tests need access to parameter values: remember to export them before building or testing.
  *
@@ -45,6 +130,121 @@ public final class Config {
     static final long CACHE_UPDATE_INTERVAL = Long.parseLong(System.getenv("CACHE_UPDATE_INTERVAL"));
     static final String ENTITIES_CACHE = System.getenv("ENTITIES_CACHE");
 
+    /* Blazegraph connection pools */
+    static final int BLAZEGRAPH_READ_MAX_CONNECTIONS = intFromEnvironment("BLAZEGRAPH_READ_MAX_CONNECTIONS", 20);
+    static final int BLAZEGRAPH_WRITE_MAX_CONNECTIONS = intFromEnvironment("BLAZEGRAPH_WRITE_MAX_CONNECTIONS", 4);
+    static final int BLAZEGRAPH_CONNECT_TIMEOUT = intFromEnvironment("BLAZEGRAPH_CONNECT_TIMEOUT", 5000);
+    static final int BLAZEGRAPH_LEASE_TIMEOUT = intFromEnvironment("BLAZEGRAPH_LEASE_TIMEOUT", 10000);
+    static final int BLAZEGRAPH_READ_SOCKET_TIMEOUT = intFromEnvironment("BLAZEGRAPH_READ_SOCKET_TIMEOUT", 0);
+    static final int BLAZEGRAPH_WRITE_SOCKET_TIMEOUT = intFromEnvironment("BLAZEGRAPH_WRITE_SOCKET_TIMEOUT", 0);
+    static final int BLAZEGRAPH_KEEP_ALIVE = intFromEnvironment("BLAZEGRAPH_KEEP_ALIVE", 30000);
+    static final SparqlResultFormat BLAZEGRAPH_RESULT_FORMAT = SparqlResultFormat.forName(System.getenv().getOrDefault("BLAZEGRAPH_RESULT_FORMAT",
+        "binary"));
+
+    /* SPARQL query deadlines, before the breaker that depends on them */
+    static final int QUERY_TIMEOUT = intFromEnvironment("QUERY_TIMEOUT", 30000);
+    static final Map<Endpoint, Integer> QUERY_TIMEOUTS = queryTimeouts();
+
+    /* Blazegraph circuit breaker and bulkheads */
+    static final int BLAZEGRAPH_BREAKER_WINDOW = intFromEnvironment("BLAZEGRAPH_BREAKER_WINDOW", 100);
+    static final int BLAZEGRAPH_BREAKER_MIN_CALLS = intFromEnvironment("BLAZEGRAPH_BREAKER_MIN_CALLS", 20);
+    static final int BLAZEGRAPH_BREAKER_FAILURE_RATE = intFromEnvironment("BLAZEGRAPH_BREAKER_FAILURE_RATE", 50);
+    static final int BLAZEGRAPH_BREAKER_OPEN_TIME = intFromEnvironment("BLAZEGRAPH_BREAKER_OPEN_TIME", 30000);
+    static final int BLAZEGRAPH_SLOW_CALL = intFromEnvironment("BLAZEGRAPH_SLOW_CALL", QUERY_TIMEOUT);
+    static final Map<Endpoint, Integer> BLAZEGRAPH_BULKHEADS = bulkheads();
+    static final int BLAZEGRAPH_CACHE_UPDATE_BULKHEAD = intFromEnvironment("BLAZEGRAPH_BULKHEAD_CACHE_UPDATE", Math.max(1,
+        BLAZEGRAPH_READ_MAX_CONNECTIONS / 4));
+
+    /* Entities cache maintenance */
+    static final long ENTITIES_CACHE_RECONCILIATION_INTERVAL = longFromEnvironment("ENTITIES_CACHE_RECONCILIATION_INTERVAL", CACHE_UPDATE_INTERVAL * 7);
+    static final int ENTITIES_CACHE_WORKERS = intFromEnvironment("ENTITIES_CACHE_WORKERS", BLAZEGRAPH_CACHE_UPDATE_BULKHEAD);
+    static final int ENTITIES_CACHE_PAGE_SIZE = intFromEnvironment("ENTITIES_CACHE_PAGE_SIZE", 100000);
+    static final int ENTITIES_CACHE_PERSIST_DELAY = intFromEnvironment("ENTITIES_CACHE_PERSIST_DELAY", 2000);
+    static final int CACHE_MAINTENANCE_QUEUE_SIZE = intFromEnvironment("CACHE_MAINTENANCE_QUEUE_SIZE", 1000);
+
+    /* SPARQL query results cache */
+    static final int RESULT_CACHE_MAX_ENTRIES = intFromEnvironment("RESULT_CACHE_MAX_ENTRIES", 10000);
+    static final long SUGGESTION_CACHE_MAX_BYTES = longFromEnvironment("SUGGESTION_CACHE_MAX_MEGABYTES", 64) << 20;
+
+    /* Async request handling */
+    static final RequestExecutor.Mode REQUEST_EXECUTION_MODE = RequestExecutor.Mode.forName(System.getenv().getOrDefault("REQUEST_EXECUTION_MODE",
+        "platform"));
+    static final int REQUEST_WORKERS = intFromEnvironment("REQUEST_WORKERS", BLAZEGRAPH_READ_MAX_CONNECTIONS + BLAZEGRAPH_WRITE_MAX_CONNECTIONS);
+    static final int REQUEST_QUEUE_SIZE = intFromEnvironment("REQUEST_QUEUE_SIZE", 10000);
+
+    /* Random subject items */
+    static final Map<String, Double> RANDOM_DATASET_PRIORITIES = datasetPriorities();
+    static final int RANDOM_EXCLUSION_WINDOW = intFromEnvironment("RANDOM_EXCLUSION_WINDOW", 50);
+    static final int RANDOM_EXCLUSION_USERS = intFromEnvironment("RANDOM_EXCLUSION_USERS", 10000);
+    static final int RANDOM_PREFETCH_SIZE = intFromEnvironment("RANDOM_PREFETCH_SIZE", 16);
+
+    /* Batch suggestions */
+    public static final int SUGGEST_BATCH_MAX_QIDS = intFromEnvironment("SUGGEST_BATCH_MAX_QIDS", 5000);
+    static final int SUGGEST_BATCH_CHUNK_SIZE = Math.max(1, intFromEnvironment("SUGGEST_BATCH_CHUNK_SIZE", 200));
+    static final int SUGGEST_BATCH_PARALLELISM = Math.max(1, intFromEnvironment("SUGGEST_BATCH_PARALLELISM", BLAZEGRAPH_BULKHEADS.get(Endpoint.SUGGEST) / 2));
+    static final int SUGGEST_BATCH_WORKERS = Math.max(1, intFromEnvironment("SUGGEST_BATCH_WORKERS", BLAZEGRAPH_BULKHEADS.get(Endpoint.SUGGEST) / 2));
+
     private Config() {
     }
+
+    private static Map<Endpoint, Integer> bulkheads() {
+        Map<Endpoint, Integer> bulkheads = new EnumMap<>(Endpoint.class);
+        for (Endpoint endpoint : Endpoint.values()) {
+            int defaultValue;
+            switch (endpoint) {
+            case CURATE:
+                defaultValue = BLAZEGRAPH_WRITE_MAX_CONNECTIONS;
+                break;
+            case UPLOAD:
+            case UPDATE:
+                // Leave room for curation in the writes pool
+                defaultValue = Math.max(1, BLAZEGRAPH_WRITE_MAX_CONNECTIONS / 2);
+                break;
+            case SEARCH:
+            case RANDOM:
+                defaultValue = Math.max(1, BLAZEGRAPH_READ_MAX_CONNECTIONS / 4);
+                break;
+            default:
+                defaultValue = Math.max(1, BLAZEGRAPH_READ_MAX_CONNECTIONS / 2);
+            }
+            bulkheads.put(endpoint, intFromEnvironment("BLAZEGRAPH_BULKHEAD_" + endpoint.name(), defaultValue));
+        }
+        return Collections.unmodifiableMap(bulkheads);
+    }
+
+    private static Map<Endpoint, Integer> queryTimeouts() {
+        Map<Endpoint, Integer> timeouts = new EnumMap<>(Endpoint.class);
+        for (Endpoint endpoint : Endpoint.values()) {
+            int defaultValue = endpoint == Endpoint.UPLOAD || endpoint == Endpoint.UPDATE ? 0 : QUERY_TIMEOUT;
+            timeouts.put(endpoint, intFromEnvironment("QUERY_TIMEOUT_" + endpoint.name(), defaultValue));
+        }
+        return Collections.unmodifiableMap(timeouts);
+    }
+
+    private static Map<String, Double> datasetPriorities() {
+        Map<String, Double> priorities = new HashMap<>();
+        String value = System.getenv("RANDOM_DATASET_PRIORITIES");
+        if (value == null || value.trim().isEmpty()) return Collections.emptyMap();
+        for (String pair : value.trim().split("\\s+")) {
+            // Dataset URIs may contain '=', the priority may not
+            int separator = pair.lastIndexOf('=');
+            if (separator <= 0) throw new IllegalArgumentException("Invalid dataset priority: '" + pair + "'. Expected '<dataset URI>=<priority>'");
+            double priority = Double.parseDouble(pair.substring(separator + 1));
+            if (!Double.isFinite(priority) || priority < 0) {
+                throw new IllegalArgumentException("Invalid dataset priority: '" + pair + "'. Expected a finite, non-negative number");
+            }
+            priorities.put(pair.substring(0, separator), priority);
+        }
+        return Collections.unmodifiableMap(priorities);
+    }
+
+    private static int intFromEnvironment(String variable, int defaultValue) {
+        String value = System.getenv(variable);
+        return value == null || value.isEmpty() ? defaultValue : Integer.parseInt(value);
+    }
+
+    private static long longFromEnvironment(String variable, long defaultValue) {
+        String value = System.getenv(variable);
+        return value == null || value.isEmpty() ? defaultValue : Long.parseLong(value);
+    }
 }
@@ -1,10 +1,15 @@
 package org.wikidata.query.rdf.primarysources.common;
 
-import java.io.BufferedWriter;
+import java.io.BufferedReader;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
 import org.openrdf.query.BindingSet;
 import org.openrdf.query.QueryEvaluationException;
 import org.openrdf.query.TupleQueryResult;
@@ -24,6 +29,9 @@ import org.slf4j.LoggerFactory;
  * &nbsp;&nbsp;&nbsp;&nbsp; "total_references": 1269 <br>
  * &nbsp;&nbsp; } <br>
  * }</code>
+ * <p>
+ * The Statistics API reads the statistics from memory, see {@link #getDatasetStatistics(String)}.
+ * They are loaded when the Web application starts, see {@link CacheUpdater}, and reloaded whenever the cache file changes.
  *
  * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
  * @since 0.2.5 - created on Dec 20, 2017.
@@ -31,10 +39,71 @@ import org.slf4j.LoggerFactory;
 public final class DatasetsStatisticsCache {
 
     private static final Logger log = LoggerFactory.getLogger(DatasetsStatisticsCache.class);
+    private static final AtomicReference<Loaded> LOADED = new AtomicReference<>();
 
     private DatasetsStatisticsCache() {
     }
 
+    /**
+     * Get the cached statistics of a dataset.
+     * Only checks the modification time of the cache file, which is parsed again only if it changed since the last call.
+     *
+     * @param dataset the dataset URI.
+     * @return a fresh copy of the dataset statistics, empty if there are none, or <i>null</i> if the cache can't be loaded.
+     */
+    public static JSONObject getDatasetStatistics(String dataset) {
+        JSONObject statistics = load();
+        if (statistics == null) return null;
+        Object datasetStatistics = statistics.get(dataset);
+        return datasetStatistics == null ? new JSONObject() : new JSONObject((JSONObject) datasetStatistics);
+    }
+
+    /**
+     * Load the cache file in memory, when the Web application starts, see {@link CacheUpdater}.
+     *
+     * @return <i>true</i> if the statistics are loaded, see {@link #isReady()}.
+     */
+    static boolean warmUp() {
+        JSONObject statistics = load();
+        if (statistics == null) log.warn("No datasets statistics yet, they will be available after the first cache update");
+        else log.info("Datasets statistics cache loaded: {} datasets", statistics.size());
+        return statistics != null;
+    }
+
+    /**
+     * @return <i>true</i> if the statistics were loaded at least once.
+     */
+    static boolean isReady() {
+        return LOADED.get() != null;
+    }
+
+    private static JSONObject load() {
+        FileTime modified;
+        try {
+            modified = Files.getLastModifiedTime(Config.DATASETS_CACHE);
+        } catch (NoSuchFileException nsfe) {
+            log.debug("No datasets statistics cache file yet: '{}'", Config.DATASETS_CACHE);
+            return null;
+        } catch (IOException ioe) {
+            log.error("Failed to check the datasets cache file: '" + Config.DATASETS_CACHE + "'", ioe);
+            return null;
+        }
+        Loaded loaded = LOADED.get();
+        if (loaded != null && loaded.modified.equals(modified)) return loaded.statistics;
+        JSONParser parser = new JSONParser();
+        try (BufferedReader reader = Files.newBufferedReader(Config.DATASETS_CACHE)) {
+            JSONObject statistics = (JSONObject) parser.parse(reader);
+            LOADED.set(new Loaded(modified, statistics));
+            return statistics;
+        } catch (ParseException pe) {
+            log.error("Malformed JSON datasets statistics. Parse error at index {}. Please check {}", pe.getPosition(), Config.DATASETS_CACHE);
+        } catch (IOException ioe) {
+            log.error("Failed to load the datasets cache file: {}. Reason: {}", Config.DATASETS_CACHE, ioe.getClass().getSimpleName());
+        }
+        // Better stale statistics than none
+        return loaded == null ? null : loaded.statistics;
+    }
+
     /**
      * Dump datasets statistics to a cache file.
      * <p>
@@ -54,18 +123,22 @@ public final class DatasetsStatisticsCache {
                 if (referencesValue == null) referencesStats.put(key, statementsStats.get(key));
                 else referencesValue.putAll(statementsValue);
             }
-            try (BufferedWriter writer = Files.newBufferedWriter(Config.DATASETS_CACHE)) {
-                referencesStats.writeJSONString(writer);
+            try {
+                Utils.writeJsonAtomically(Config.DATASETS_CACHE, referencesStats);
             } catch (IOException ioe) {
                 log.error("Something went wrong when dumping datasets statistics to '" + Config.DATASETS_CACHE + "'.", ioe);
                 return;
             }
+            // Ready right away on a fresh installation, see ReadinessServlet
+            load();
+        } catch (BlazegraphUnavailableException bue) {
+            log.warn("Skipped caching datasets statistics, will try again at the next update: {}", bue.getMessage());
+            return;
         } catch (Throwable t) {
             log.error("Something went wrong while caching datasets statistics", t);
             return;
         }
         log.info("Successfully cached datasets statistics");
-
     }
 
     private static JSONObject fetchStatistics(String statementsOrReferences) {
@@ -120,4 +193,17 @@ public final class DatasetsStatisticsCache {
         }
         return finalStats;
     }
+
+    /**
+     * The statistics as of the given cache file modification time. Never modified once loaded.
+     */
+    private static final class Loaded {
+        private final FileTime modified;
+        private final JSONObject statistics;
+
+        private Loaded(FileTime modified, JSONObject statistics) {
+            this.modified = modified;
+            this.statistics = statistics;
+        }
+    }
 }
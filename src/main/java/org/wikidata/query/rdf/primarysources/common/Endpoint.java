@@ -0,0 +1,61 @@
+package org.wikidata.query.rdf.primarysources.common;
+
+import java.util.Locale;
+
+/**
+ * The Web services of the Wikidata primary sources tool that talk to Blazegraph or to its caches.
+ * Used to break down runtime metrics, see {@link MetricsServlet}.
+ *
+ * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
+ * @since 0.2.5 - created on Jun 11, 2018.
+ */
+public enum Endpoint {
+    /**
+     * {@link org.wikidata.query.rdf.primarysources.curation.CurateServlet}.
+     */
+    CURATE,
+    /**
+     * {@link org.wikidata.query.rdf.primarysources.curation.SuggestServlet}.
+     */
+    SUGGEST,
+    /**
+     * {@link org.wikidata.query.rdf.primarysources.curation.RandomServlet}.
+     */
+    RANDOM,
+    /**
+     * {@link org.wikidata.query.rdf.primarysources.curation.SearchServlet}.
+     */
+    SEARCH,
+    /**
+     * {@link org.wikidata.query.rdf.primarysources.curation.DatasetsServlet}.
+     */
+    DATASETS,
+    /**
+     * {@link org.wikidata.query.rdf.primarysources.statistics.StatisticsServlet}.
+     */
+    STATISTICS,
+    /**
+     * {@link org.wikidata.query.rdf.primarysources.statistics.PropertiesServlet}.
+     */
+    PROPERTIES,
+    /**
+     * {@link org.wikidata.query.rdf.primarysources.statistics.ValuesServlet}.
+     */
+    VALUES,
+    /**
+     * {@link org.wikidata.query.rdf.primarysources.ingestion.UploadServlet}.
+     */
+    UPLOAD,
+    /**
+     * {@link org.wikidata.query.rdf.primarysources.ingestion.UpdateServlet}.
+     */
+    UPDATE;
+
+    /**
+     * @return the lower case name, as used in the service path and in metrics.
+     */
+    @Override
+    public String toString() {
+        return name().toLowerCase(Locale.ENGLISH);
+    }
+}
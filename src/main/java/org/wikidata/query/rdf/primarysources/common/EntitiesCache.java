@@ -1,33 +1,51 @@
 package org.wikidata.query.rdf.primarysources.common;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.ForkJoinPool;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
+import org.json.simple.JSONStreamAware;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
-import org.openrdf.query.BindingSet;
-import org.openrdf.query.QueryEvaluationException;
-import org.openrdf.query.TupleQueryResult;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.wikidata.query.rdf.common.uri.RDF;
 import org.wikidata.query.rdf.common.uri.WikibaseUris;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 /**
  * A caching system for entities: subjects, properties and value items.
  * It stores all the available QIDs or PIDs per dataset.
@@ -43,6 +61,24 @@ import org.wikidata.query.rdf.common.uri.WikibaseUris;
  * &nbsp;&nbsp;&nbsp;&nbsp; ... <br>
  * &nbsp;&nbsp; ] <br>
  * }</code>
+ * <p>
+ * Web services read the entities from an immutable in-memory {@link Snapshot}, see {@link #snapshot()}, without any file I/O.
+ * The snapshot is loaded from the cache files when the class is initialized, and swapped atomically each time a refresh completes.
+ * The cache files are only the persistence format: refreshes and changes write them.
+ * <p>
+ * The entities are persisted in a memory-mapped binary format, see {@link EntitiesCacheFile}:
+ * the snapshot reads them straight from the mapped files, so loading is instant and takes next to no heap.
+ * The JSON files above are written alongside by full rebuilds, as a human-readable export for debugging, and only read if there is no binary file yet.
+ * <p>
+ * The cache is maintained by changes: Web services that write to a dataset emit an {@link EntityChange}, which updates the affected entities right away,
+ * see {@link #applyChange(EntityChange)}. A full rebuild only reconciles the cache with changes made elsewhere, e.g., directly in Blazegraph,
+ * so it runs rarely, see {@link Config#ENTITIES_CACHE_RECONCILIATION_INTERVAL}.
+ * <p>
+ * Rebuilds and changes run one at a time on a single writer thread, so they never overwrite each other's entries.
+ * Changes emitted while the writer is busy are applied together in a single batch.
+ * A batch swaps the snapshot right away, but the binary files are written a bit later, see {@link Config#ENTITIES_CACHE_PERSIST_DELAY},
+ * so that a burst of changes is written once. Changes not written when the Web application dies are caught up by the full rebuild at startup.
+ * Cache files are replaced atomically, see {@link Utils#writeJsonAtomically(Path, org.json.simple.JSONStreamAware)}.
  *
  * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
  * @since 0.2.5 - created on Dec 07, 2017.
@@ -61,141 +97,554 @@ public final class EntitiesCache {
      * @see Config
      */
     public static final Path VALUES_CACHE_FILE = Paths.get(Config.ENTITIES_CACHE, "values.json");
+    /**
+     * @see EntitiesCacheFile
+     */
+    public static final Path SUBJECTS_BINARY_CACHE_FILE = Paths.get(Config.ENTITIES_CACHE, "subjects.bin");
+    /**
+     * @see EntitiesCacheFile
+     */
+    public static final Path PROPERTIES_BINARY_CACHE_FILE = Paths.get(Config.ENTITIES_CACHE, "properties.bin");
+    /**
+     * @see EntitiesCacheFile
+     */
+    public static final Path VALUES_BINARY_CACHE_FILE = Paths.get(Config.ENTITIES_CACHE, "values.bin");
     private static final Logger log = LoggerFactory.getLogger(EntitiesCache.class);
+    private static final String[] ENTITY_TYPES = {"subject", "property", "value"};
+    // Whether all entity types are loaded, either from the cache files or by a full refresh
+    private static final AtomicBoolean READY = new AtomicBoolean();
+    private static final AtomicReference<Snapshot> SNAPSHOT = new AtomicReference<>(loadSnapshot());
+    // Change batches are collapsed, see applyChange(), so the queue only grows with full rebuilds
+    private static final BackgroundExecutor WRITER = new BackgroundExecutor("entities-cache-writer", 1, Config.CACHE_MAINTENANCE_QUEUE_SIZE,
+        new ThreadPoolExecutor.AbortPolicy());
+    // Changes waiting for the writer, and whether a batch is already queued to apply them
+    private static final Queue<EntityChange> PENDING_CHANGES = new ConcurrentLinkedQueue<>();
+    private static final AtomicBoolean CHANGES_QUEUED = new AtomicBoolean();
+    // Changes emitted but not applied yet, either pending or in the running batch
+    private static final AtomicInteger UNAPPLIED_CHANGES = new AtomicInteger();
+    // Entity types changed since their cache files were written, only touched by the writer, and whether a write is scheduled
+    private static final Set<String> UNPERSISTED = new HashSet<>();
+    private static final AtomicBoolean PERSIST_SCHEDULED = new AtomicBoolean();
+    private static final ScheduledExecutorService PERSIST_TIMER = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setNameFormat("entities-cache-persist-%d").setDaemon(true).build());
+    /*
+     Touched entities are checked one by one with an ASK query.
+     Beyond this number per dataset, e.g., after a big update, it is cheaper to fetch all the dataset entities again.
+     */
+    private static final int MAX_CHECKED_ENTITIES = 1000;
+    // Fetch the entities of each dataset and entity type in parallel, but within the cache update bulkhead, see BlazegraphClient
+    // When saturated, the writer fetches the entities itself, which slows down the submission of the other fetches
+    private static final BackgroundExecutor REBUILDERS = new BackgroundExecutor("entities-cache-rebuild", Config.ENTITIES_CACHE_WORKERS,
+        Config.CACHE_MAINTENANCE_QUEUE_SIZE, new ThreadPoolExecutor.CallerRunsPolicy());
+    private static final Map<String, Progress> PROGRESS = new ConcurrentHashMap<>();
+    // Start of the running full rebuild in nanoseconds, 0 if none
+    private static final AtomicLong REBUILD_STARTED = new AtomicLong();
+    private static final AtomicLong REBUILD_DURATION = new AtomicLong(-1);
+    private static final AtomicLong CHANGES_APPLIED = new AtomicLong();
+    private static final AtomicLong ENTITIES_CHECKED = new AtomicLong();
+    private static final AtomicLong DATASETS_REFETCHED = new AtomicLong();
+    private static final AtomicLong LAST_BATCH_DURATION = new AtomicLong(-1);
+    // Seconds given to each pool to complete its tasks at shutdown
+    private static final long SHUTDOWN_TIMEOUT = 10;
 
     private EntitiesCache() {
     }
 
     /**
-     * Dump dataset-specific entities (subjects, properties, item values) to separate cache files.
+     * Get the current entities, as of the latest completed refresh.
+     * Cheap enough to be called on every request: just hold the returned snapshot for the duration of the request.
+     *
+     * @return the current snapshot, never <i>null</i>.
+     */
+    public static Snapshot snapshot() {
+        return SNAPSHOT.get();
+    }
+
+    /**
+     * Load the persisted entities in memory, when the Web application starts, see {@link CacheUpdater}.
+     * Binary cache files are validated while mapping them, see {@link EntitiesCacheFile#read(Path)}.
+     *
+     * @return <i>true</i> if all the entity types are loaded, see {@link #isReady()}.
+     */
+    static boolean warmUp() {
+        // Loading happens when the class is initialized
+        return isReady();
+    }
+
+    /**
+     * @return <i>true</i> if all the entity types were loaded from the cache files or by a full refresh,
+     * <i>false</i> if some are still missing, typically until the first full refresh of a fresh installation.
+     */
+    static boolean isReady() {
+        return READY.get();
+    }
+
+    /**
+     * @return <i>true</i> if the cache is ready, see {@link #isReady()}, and all the changes made through this instance are applied,
+     * i.e., the cache reflects the database, except for changes made elsewhere.
+     */
+    static boolean isUpToDate() {
+        return READY.get() && UNAPPLIED_CHANGES.get() == 0;
+    }
+
+    private static Snapshot loadSnapshot() {
+        Snapshot snapshot = Snapshot.EMPTY;
+        JSONParser parser = new JSONParser();
+        int loaded = 0;
+        for (String entityType : ENTITY_TYPES) {
+            Map<String, EntityIdSet> mapped = readBinaryCache(entityType);
+            if (mapped != null) {
+                snapshot = snapshot.with(entityType, mapped);
+                loaded++;
+                continue;
+            }
+            Path cache = getCachePath(entityType);
+            if (!Files.exists(cache)) {
+                log.info("No {} cache file yet: '{}'. Those entities will be available after the first cache update", entityType, cache);
+                continue;
+            }
+            try (BufferedReader reader = Files.newBufferedReader(cache)) {
+                snapshot = snapshot.with(entityType, fromJSON((JSONObject) parser.parse(reader)));
+                loaded++;
+            } catch (ParseException pe) {
+                log.error("The {} cache is malformed JSON. Parse error at index {}. Please check '{}'", entityType, pe.getPosition(), cache);
+            } catch (ClassCastException cce) {
+                log.error("The {} cache is not a JSON object of entity arrays per dataset. Please check '{}'", entityType, cache);
+            } catch (IOException ioe) {
+                log.error("Failed to load the " + entityType + " cache file: '" + cache + "'", ioe);
+            }
+        }
+        log.info("Entities cache loaded: {}", snapshot);
+        READY.set(loaded == ENTITY_TYPES.length);
+        return snapshot;
+    }
+
+    /**
+     * @return the entities per dataset URI of a JSON cache file.
+     * @throws ClassCastException if the JSON object doesn't hold arrays of entity strings.
+     */
+    private static Map<String, List<String>> fromJSON(JSONObject json) {
+        Map<String, List<String>> entities = new HashMap<>();
+        for (Object entry : json.entrySet()) {
+            Map.Entry<?, ?> dataset = (Map.Entry<?, ?>) entry;
+            List<String> datasetEntities = new ArrayList<>();
+            for (Object entity : (List<?>) dataset.getValue()) datasetEntities.add((String) entity);
+            entities.put((String) dataset.getKey(), datasetEntities);
+        }
+        return entities;
+    }
+
+    private static Map<String, EntityIdSet> readBinaryCache(String entityType) {
+        Path binary = getBinaryCachePath(entityType);
+        if (binary == null || !Files.exists(binary)) return null;
+        try {
+            return EntitiesCacheFile.read(binary);
+        } catch (IOException ioe) {
+            log.warn("Failed to map the " + entityType + " cache file: '" + binary + "'. It will be rewritten at the next update", ioe);
+            return null;
+        }
+    }
+
+    /**
+     * Write the binary cache file, then swap the snapshot with the entities mapped from it,
+     * so that the freshly fetched ones can be garbage collected. Finally, export them as JSON if asked, i.e., on full rebuilds.
+     */
+    private static void persist(String entityType, Map<String, EntityIdSet> entities, boolean export) {
+        Path binary = getBinaryCachePath(entityType);
+        Path json = getCachePath(entityType);
+        if (binary == null || json == null) return;
+        log.info("Caching {} entities. File: '{}'", entityType, binary);
+        Map<String, EntityIdSet> mapped = entities;
+        try {
+            EntitiesCacheFile.write(binary, prefixOf(entityType), entities);
+            mapped = EntitiesCacheFile.read(binary);
+        } catch (IOException ioe) {
+            log.error("Something went wrong when dumping " + entityType + " entities to '" + binary + "'. They will be served from the heap", ioe);
+        }
+        swap(entityType, mapped);
+        if (!export) return;
+        try {
+            Utils.writeJsonAtomically(json, new JSONObject(mapped));
+        } catch (IOException ioe) {
+            log.error("Something went wrong when exporting " + entityType + " entities to '" + json + "'", ioe);
+        }
+    }
+
+    private static void swap(String entityType, Map<String, ? extends Collection<String>> entities) {
+        Snapshot swapped = SNAPSHOT.updateAndGet(current -> current.with(entityType, entities));
+        log.debug("Entities cache swapped: {}", swapped);
+    }
+
+    /**
+     * Update the cached entities of a dataset after a successful write to Blazegraph.
      * <p>
-     * Runs when a change to a dataset is made through the ingestion API,
+     * Runs when a change to a dataset is made through the ingestion or curation APIs,
      * see {@link org.wikidata.query.rdf.primarysources.ingestion.UploadServlet#doPost(HttpServletRequest, HttpServletResponse)}.
+     * The change is queued to the cache writer, and applied together with the other ones waiting there, see {@link EntityChange}.
      *
-     * @param dataset the dataset URI.
+     * @param change the entities added or touched by the write.
      */
-    public static void cacheDatasetEntities(String dataset) {
-        ExecutorService service = ForkJoinPool.commonPool();
-        service.submit(() -> dumpDatasetEntities(dataset));
+    public static void applyChange(EntityChange change) {
+        if (change.isEmpty()) return;
+        RandomSuggestions.changed(change);
+        UNAPPLIED_CHANGES.incrementAndGet();
+        PENDING_CHANGES.add(change);
+        if (!CHANGES_QUEUED.compareAndSet(false, true)) return;
+        try {
+            WRITER.execute(EntitiesCache::applyPendingChanges);
+        } catch (RejectedExecutionException ree) {
+            // The change stays pending: the next one will queue a batch again
+            CHANGES_QUEUED.set(false);
+        }
     }
 
     /**
      * Dump all entities (subjects, properties, item values) to separate cache files.
      * <p>
+     * The entities of each dataset and entity type are fetched in parallel by a bounded pool of workers, see {@link Config#ENTITIES_CACHE_WORKERS},
+     * with paged queries, see {@link Config#ENTITIES_CACHE_PAGE_SIZE}. The progress is exposed per dataset, see {@link #metrics()}.
+     * If the entities of a dataset can't be fetched, the cached ones are kept until the next update.
+     * <p>
      * The task runs on an independent thread, see {@link CacheUpdater#scheduleEntitiesUpdate()}.
+     * It is queued to the cache writer, and this method returns when it completes.
      * Log anything that may be thrown to avoid a silent death if something goes wrong.
      */
     public static void dumpAllEntities() {
+        Future<?> dump;
+        try {
+            dump = WRITER.submit(EntitiesCache::dumpAllEntitiesNow);
+        } catch (RejectedExecutionException ree) {
+            log.warn("Skipped caching all the entities, the cache writer is busy or shut down. Will try again at the next update");
+            return;
+        }
+        try {
+            dump.get();
+        } catch (InterruptedException ie) {
+            dump.cancel(true);
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ee) {
+            log.error("Something went wrong while caching all the entities", ee.getCause());
+        }
+    }
+
+    /**
+     * Stop the cache maintenance, when the Web application stops, see {@link CacheUpdater}.
+     * The writer gets some time to complete its running and queued tasks, then the rebuild workers are stopped.
+     * Changes not applied by then are dropped: the next full refresh will catch up.
+     */
+    static void shutdown() {
+        PERSIST_TIMER.shutdownNow();
+        // Write the changes not written yet, after the queued ones
+        try {
+            WRITER.execute(EntitiesCache::persistChanges);
+        } catch (RejectedExecutionException ree) {
+            log.warn("Failed writing the latest changes to the entities cache files. The full rebuild at startup will catch up");
+        }
+        WRITER.shutdown(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS);
+        // The writer waits for the rebuild workers, so stop them last
+        REBUILDERS.shutdown(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS);
+        log.info("Entities cache maintenance stopped. Changes not applied: {}", UNAPPLIED_CHANGES.get());
+    }
+
+    /**
+     * Get the progress of the entities cache maintenance: the latest full rebuild, the applied changes, the usage of the maintenance pools
+     * and, per dataset, the latest fetch of its entities.
+     *
+     * @return a JSON object with the {@code rebuild}, {@code changes}, {@code executors} and {@code datasets} keys.
+     */
+    static JSONObject metrics() {
+        JSONObject metrics = new JSONObject();
+        JSONObject rebuild = new JSONObject();
+        long started = REBUILD_STARTED.get();
+        rebuild.put("running", started != 0);
+        if (started != 0) rebuild.put("elapsed_ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+        rebuild.put("last_duration_ms", REBUILD_DURATION.get());
+        rebuild.put("workers", Config.ENTITIES_CACHE_WORKERS);
+        rebuild.put("page_size", Config.ENTITIES_CACHE_PAGE_SIZE);
+        metrics.put("rebuild", rebuild);
+        JSONObject changes = new JSONObject();
+        changes.put("unapplied", UNAPPLIED_CHANGES.get());
+        changes.put("applied", CHANGES_APPLIED.get());
+        changes.put("entities_checked", ENTITIES_CHECKED.get());
+        changes.put("datasets_refetched", DATASETS_REFETCHED.get());
+        changes.put("last_batch_duration_ms", LAST_BATCH_DURATION.get());
+        metrics.put("changes", changes);
+        JSONObject executors = new JSONObject();
+        executors.put("writer", WRITER.metrics());
+        executors.put("rebuilders", REBUILDERS.metrics());
+        metrics.put("executors", executors);
+        JSONObject datasets = new JSONObject();
+        for (Map.Entry<String, Progress> entry : PROGRESS.entrySet()) datasets.put(entry.getKey(), entry.getValue().metrics());
+        metrics.put("datasets", datasets);
+        return metrics;
+    }
+
+    private static void dumpAllEntitiesNow() {
+        long start = System.nanoTime();
+        REBUILD_STARTED.set(start);
         try {
-            String subject = "subject";
-            String property = "property";
-            String value = "value";
-            JSONObject subjects = fetchAllEntitiesPerType(subject);
-            if (subjects != null) dumpAllEntitiesPerType(subject, subjects);
-            JSONObject properties = fetchAllEntitiesPerType(property);
-            if (properties != null) dumpAllEntitiesPerType(property, properties);
-            JSONObject values = fetchAllEntitiesPerType(value);
-            if (values != null) dumpAllEntitiesPerType(value, values);
+            Set<String> datasets = fetchDatasets();
+            if (datasets == null) return;
+            PROGRESS.keySet().retainAll(datasets);
+            Map<String, Map<String, EntityIdSet>> fetched = fetchEntities(datasets);
+            boolean complete = true;
+            for (String entityType : ENTITY_TYPES) {
+                // Keep the cached entities of a dataset that failed, rather than dropping them until the next update
+                Map<String, EntityIdSet> previous = snapshot().of(entityType);
+                Map<String, EntityIdSet> entities = new HashMap<>();
+                for (String dataset : datasets) {
+                    Map<String, EntityIdSet> fetchedPerType = fetched.get(entityType);
+                    if (!fetchedPerType.containsKey(dataset)) {
+                        complete = false;
+                        if (previous.containsKey(dataset)) entities.put(dataset, previous.get(dataset));
+                        continue;
+                    }
+                    EntityIdSet datasetEntities = fetchedPerType.get(dataset);
+                    if (!datasetEntities.isEmpty()) entities.put(dataset, datasetEntities);
+                }
+                UNPERSISTED.remove(entityType);
+                persist(entityType, entities, true);
+            }
+            READY.set(true);
+            RandomSubjects.refresh(snapshot().subjects().keySet());
+            if (complete) log.info("Successfully cached all the entities in the database");
+            else log.warn("Cached the entities in the database, except for some datasets that failed. They will be cached at the next update");
+        } catch (InterruptedException ie) {
+            log.info("Interrupted while caching all the entities");
+            Thread.currentThread().interrupt();
+        } catch (BlazegraphUnavailableException bue) {
+            log.warn("Skipped caching all the entities, will try again at the next update: {}", bue.getMessage());
         } catch (Throwable t) {
             log.error("Something went wrong while caching all the entities", t);
-            return;
+        } finally {
+            REBUILD_DURATION.set(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            REBUILD_STARTED.set(0);
         }
-        log.info("Successfully cached all the entities in the database");
     }
 
-    private static void dumpAllEntitiesPerType(String entityType, JSONObject entities) {
-        Path cache = getCachePath(entityType);
-        if (cache == null) return;
-        log.info("Caching {} entities. File: '{}'", entityType, cache);
-        try (BufferedWriter writer = Files.newBufferedWriter(cache)) {
-            entities.writeJSONString(writer);
-        } catch (IOException ioe) {
-            log.error("Something went wrong when dumping all " + entityType + " entities to '" + Config.ENTITIES_CACHE + "'.", ioe);
+    private static Set<String> fetchDatasets() {
+        Set<String> datasets = new TreeSet<>();
+        boolean ok = Utils.runSparqlQuery(SparqlQueries.NEW_DATASETS_QUERY, SparqlResultFormat.TSV, result -> datasets.add(result.get("dataset")));
+        if (!ok) {
+            log.error("Failed evaluating the SPARQL query that fetches the datasets. The entities cache will not be updated. Query: '{}'",
+                SparqlQueries.NEW_DATASETS_QUERY);
+            return null;
         }
+        return datasets;
     }
 
-    private static JSONObject fetchAllEntitiesPerType(String entityType) {
-        String query;
-        int namespaceIndex;
+    /**
+     * Fetch the entities of each dataset and entity type on the rebuild workers, and wait for all of them.
+     *
+     * @return the entities per entity type and dataset. A dataset is missing if its fetch failed.
+     */
+    private static Map<String, Map<String, EntityIdSet>> fetchEntities(Collection<String> datasets) throws InterruptedException {
+        Map<String, Map<String, Future<EntityIdSet>>> tasks = new HashMap<>();
+        for (String dataset : datasets) {
+            Progress progress = PROGRESS.computeIfAbsent(dataset, k -> new Progress());
+            progress.start();
+            for (String entityType : ENTITY_TYPES) {
+                tasks.computeIfAbsent(entityType, k -> new HashMap<>()).put(dataset, REBUILDERS.submit(() -> fetchDatasetEntities(entityType, dataset,
+                    progress)));
+            }
+        }
+        Map<String, Map<String, EntityIdSet>> fetched = new HashMap<>();
+        try {
+            for (String entityType : ENTITY_TYPES) {
+                Map<String, EntityIdSet> entities = new HashMap<>();
+                for (Map.Entry<String, Future<EntityIdSet>> task : tasks.getOrDefault(entityType, Collections.emptyMap()).entrySet()) {
+                    EntityIdSet datasetEntities = task.getValue().get();
+                    if (datasetEntities != null) entities.put(task.getKey(), datasetEntities);
+                }
+                fetched.put(entityType, entities);
+            }
+        } catch (ExecutionException ee) {
+            // Not expected, fetches catch anything
+            throw new IllegalStateException(ee.getCause());
+        } finally {
+            for (Map<String, Future<EntityIdSet>> perType : tasks.values()) {
+                for (Future<EntityIdSet> task : perType.values()) task.cancel(true);
+            }
+        }
+        return fetched;
+    }
+
+    private static void applyPendingChanges() {
+        // A change emitted from now on needs another batch
+        CHANGES_QUEUED.set(false);
+        List<EntityChange> batch = new ArrayList<>();
+        for (EntityChange change = PENDING_CHANGES.poll(); change != null; change = PENDING_CHANGES.poll()) batch.add(change);
+        if (batch.isEmpty()) return;
+        /*
+         The task runs on an indpendent thread, so prevent it from dying quietly if something goes wrong.
+         Log anything that may be thrown.
+          */
+        long start = System.nanoTime();
+        try {
+            // Entity type -> dataset -> identifiers
+            Map<String, Map<String, Set<String>>> added = new HashMap<>();
+            Map<String, Map<String, Set<String>>> touched = new HashMap<>();
+            Map<String, Integer> toBeChecked = new TreeMap<>();
+            // Datasets with new subject statements, e.g., uploads, whose weights are fetched again
+            Set<String> reweighted = new TreeSet<>();
+            for (EntityChange change : batch) {
+                String dataset = change.getDataset();
+                for (String entityType : ENTITY_TYPES) {
+                    added.computeIfAbsent(entityType, k -> new HashMap<>()).computeIfAbsent(dataset, k -> new HashSet<>()).addAll(change.added(entityType));
+                    touched.computeIfAbsent(entityType, k -> new HashMap<>()).computeIfAbsent(dataset, k -> new HashSet<>()).addAll(change.touched(entityType));
+                    toBeChecked.merge(dataset, change.touched(entityType).size(), Integer::sum);
+                }
+                if (!change.added("subject").isEmpty()) reweighted.add(dataset);
+            }
+            Set<String> refetched = new TreeSet<>();
+            for (Map.Entry<String, Integer> entry : toBeChecked.entrySet()) {
+                if (entry.getValue() > MAX_CHECKED_ENTITIES) refetched.add(entry.getKey());
+            }
+            Map<String, Map<String, EntityIdSet>> fetched = refetched.isEmpty() ? Collections.emptyMap() : fetchEntities(refetched);
+            DATASETS_REFETCHED.addAndGet(refetched.size());
+            for (String entityType : ENTITY_TYPES) {
+                Map<String, EntityIdSet> current = snapshot().of(entityType);
+                Map<String, EntityIdSet> updated = new HashMap<>(current);
+                boolean changed = false;
+                for (String dataset : toBeChecked.keySet()) {
+                    EntityIdSet before = current.getOrDefault(dataset, EntityIdSet.of(prefixOf(entityType), Collections.emptyList()));
+                    EntityIdSet after = refetched.contains(dataset) ? fetched.get(entityType).get(dataset) : null;
+                    if (after == null) {
+                        // Additions are certain, even if the refetch failed
+                        Set<String> datasetAdded = new HashSet<>(added.get(entityType).get(dataset));
+                        Set<String> datasetRemoved = new HashSet<>();
+                        if (!refetched.contains(dataset)) check(entityType, dataset, touched.get(entityType).get(dataset), datasetAdded, datasetRemoved);
+                        after = before.with(datasetAdded, datasetRemoved);
+                    }
+                    if (after == before) continue;
+                    changed = true;
+                    if (after.isEmpty()) updated.remove(dataset);
+                    else updated.put(dataset, after);
+                }
+                if (!changed) continue;
+                swap(entityType, updated);
+                UNPERSISTED.add(entityType);
+            }
+            schedulePersist();
+            reweighted.addAll(refetched);
+            RandomSubjects.refresh(reweighted);
+            CHANGES_APPLIED.addAndGet(batch.size());
+            log.info("Applied {} changes to the entities cache. Datasets: {}", batch.size(), toBeChecked.keySet());
+        } catch (InterruptedException ie) {
+            log.info("Interrupted while applying {} changes to the entities cache. The next full refresh will catch up", batch.size());
+            Thread.currentThread().interrupt();
+        } catch (Throwable t) {
+            log.error("Something went wrong while applying " + batch.size() + " changes to the entities cache. The next full refresh will catch up", t);
+        } finally {
+            UNAPPLIED_CHANGES.addAndGet(-batch.size());
+            LAST_BATCH_DURATION.set(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+    }
+
+    /**
+     * Write the changed entity types after a delay, unless a write is already scheduled: it will include the latest changes.
+     * The write is queued to the cache writer, so it never overlaps a batch or a rebuild.
+     */
+    private static void schedulePersist() {
+        if (UNPERSISTED.isEmpty() || !PERSIST_SCHEDULED.compareAndSet(false, true)) return;
+        try {
+            PERSIST_TIMER.schedule(() -> {
+                try {
+                    WRITER.execute(EntitiesCache::persistChanges);
+                } catch (RejectedExecutionException ree) {
+                    // The changes stay unpersisted: the next batch will schedule a write again
+                    PERSIST_SCHEDULED.set(false);
+                }
+            }, Config.ENTITIES_CACHE_PERSIST_DELAY, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ree) {
+            PERSIST_SCHEDULED.set(false);
+        }
+    }
+
+    private static void persistChanges() {
+        // A change applied from now on needs another write
+        PERSIST_SCHEDULED.set(false);
+        try {
+            for (String entityType : ENTITY_TYPES) {
+                if (UNPERSISTED.remove(entityType)) persist(entityType, snapshot().of(entityType), false);
+            }
+        } catch (Throwable t) {
+            log.error("Something went wrong while writing the changed entities to the cache files. The next full refresh will catch up", t);
+        }
+    }
+
+    /**
+     * Check whether each touched entity is still in the dataset: keep it if so, otherwise remove it.
+     * If the check fails, leave the entity as it is until the next full refresh.
+     */
+    private static void check(String entityType, String dataset, Set<String> touched, Set<String> added, Set<String> removed) {
+        for (String entity : touched) {
+            Boolean present = isInDataset(entityType, dataset, entity);
+            if (present == null) continue;
+            if (present) {
+                added.add(entity);
+            } else {
+                added.remove(entity);
+                removed.add(entity);
+            }
+        }
+    }
+
+    private static Boolean isInDataset(String entityType, String dataset, String entity) {
+        SparqlTemplate template;
+        SparqlTemplate.Slot slot;
         switch (entityType) {
         case "subject":
-            query = SparqlQueries.SUBJECTS_ALL_DATASETS_QUERY;
-            namespaceIndex = Utils.WIKIBASE_URIS.entity().length();
+            template = SparqlQueries.SUBJECT_IN_DATASET_TEMPLATE;
+            slot = SparqlTemplate.Slot.QID;
             break;
         case "property":
-            query = SparqlQueries.PROPERTIES_ALL_DATASETS_QUERY;
-            namespaceIndex = Utils.WIKIBASE_URIS.property(WikibaseUris.PropertyType.CLAIM).length();
+            template = SparqlQueries.PROPERTY_IN_DATASET_TEMPLATE;
+            slot = SparqlTemplate.Slot.PID;
             break;
         case "value":
-            query = SparqlQueries.VALUES_ALL_DATASETS_QUERY;
-            namespaceIndex = Utils.WIKIBASE_URIS.entity().length();
+            template = SparqlQueries.VALUE_IN_DATASET_TEMPLATE;
+            slot = SparqlTemplate.Slot.ITEM_VALUE;
             break;
         default:
-            log.error("Unexpected entity type '{}'. The cache for those entities will not be available", entityType);
+            log.error("Invalid entity type '{}'. Expected one of 'subject', 'property' or 'value'", entityType);
             return null;
         }
-        JSONObject entitiesJson = new JSONObject();
-        Map<String, Set<String>> entitiesMap = new HashMap<>();
-        TupleQueryResult results = Utils.runSparqlQuery(query);
-        if (results == null) return null;
+        ENTITIES_CHECKED.incrementAndGet();
         try {
-            while (results.hasNext()) {
-                BindingSet result = results.next();
-                String entity = result.getValue(entityType).stringValue();
-                if (entity.startsWith(RDF.TYPE)) continue;
-                String dataset = result.getValue("dataset").stringValue();
-                Set<String> datasetEntities = entitiesMap.getOrDefault(dataset, new HashSet<>());
-                datasetEntities.add(entity.substring(namespaceIndex));
-                entitiesMap.put(dataset, datasetEntities);
-            }
-        } catch (QueryEvaluationException qee) {
-            log.error("Failed evaluating the SPARQL query that fetches " + entityType + " items. " +
-                "The corresponding cache will not be available. Query: '" + query + "'", qee);
+            String query = template.bind()
+                .set(SparqlTemplate.Slot.DATASET, dataset)
+                .set(slot, entity)
+                .render();
+            Boolean present = Utils.runSparqlAskQuery(query);
+            if (present == null) log.warn("Failed checking whether {} {} is still in dataset <{}>. It will be checked at the next update", entityType,
+                entity, dataset);
+            return present;
+        } catch (BlazegraphUnavailableException bue) {
+            log.warn("Skipped checking whether {} {} is still in dataset <{}>: {}", entityType, entity, dataset, bue.getMessage());
+            return null;
+        } catch (IllegalArgumentException iae) {
+            log.warn("Can't check whether {} {} is still in dataset <{}>: {}", entityType, entity, dataset, iae.getMessage());
             return null;
         }
-        for (String dataset : entitiesMap.keySet()) {
-            // Lists are needed to properly serialize the JSON (invalid JSON with Sets)
-            entitiesJson.put(dataset, new ArrayList<>(entitiesMap.get(dataset)));
-        }
-        return entitiesJson;
     }
 
-    private static void dumpDatasetEntities(String dataset) {
-        /*
-         The task runs on an indpendent thread, so prevent it from dying quietly if something goes wrong.
-         Log anything that may be thrown.
-          */
-        try {
-            JSONParser parser = new JSONParser();
-            dumpDatasetEntitiesPerType("subject", dataset, parser);
-            dumpDatasetEntitiesPerType("property", dataset, parser);
-            dumpDatasetEntitiesPerType("value", dataset, parser);
-        } catch (Throwable t) {
-            log.error("Something went wrong while caching entities of dataset " + dataset, t);
-            return;
-        }
-        log.info("Successfully cached the entities of dataset <{}>", dataset);
+    private static char prefixOf(String entityType) {
+        return entityType.equals("property") ? 'P' : 'Q';
     }
 
-    private static void dumpDatasetEntitiesPerType(String entityType, String dataset, JSONParser parser) {
-        Path cache = getCachePath(entityType);
-        if (cache == null) return;
-        log.info("Caching {} entities. File: '{}'", entityType, cache);
-        Object parsed = null;
-        try (BufferedReader reader = Files.newBufferedReader(cache)) {
-            parsed = parser.parse(reader);
-        } catch (ParseException pe) {
-            log.warn("The {} cache is malformed JSON. Parse error at index {}. Will overwrite '{}'", entityType, pe.getPosition(), cache);
-        } catch (IOException ioe) {
-            log.warn("Something went wrong while loading the " + entityType + " cache. Will overwrite '" + cache + "'", ioe);
-        }
-        JSONObject oldEntities = parsed == null ? new JSONObject() : (JSONObject) parsed;
-        JSONObject newEntities = fetchDatasetEntities(entityType, dataset, oldEntities);
-        if (newEntities == null) return;
-        try (BufferedWriter writer = Files.newBufferedWriter(cache)) {
-            newEntities.writeJSONString(writer);
-        } catch (IOException ioe) {
-            log.error("Something went wrong when dumping " + entityType + " of dataset <" + dataset + "> to '" + cache + "'", ioe);
+    private static Path getBinaryCachePath(String entityType) {
+        switch (entityType) {
+        case "subject":
+            return SUBJECTS_BINARY_CACHE_FILE;
+        case "property":
+            return PROPERTIES_BINARY_CACHE_FILE;
+        case "value":
+            return VALUES_BINARY_CACHE_FILE;
+        default:
+            log.error("Invalid entity type '{}'. Expected one of 'subject', 'property' or 'value'. " +
+                "The cache for those entities will not be available", entityType);
+            return null;
         }
     }
 
@@ -219,43 +668,283 @@ public final class EntitiesCache {
         return cache;
     }
 
-    private static JSONObject fetchDatasetEntities(String entityType, String dataset, JSONObject oldEntities) {
-        Set<String> entitySet = new HashSet<>();
-        String query;
+    /**
+     * Fetch the entities of a dataset page by page, so that no single query exceeds {@link Config#ENTITIES_CACHE_PAGE_SIZE} rows.
+     * Runs on the rebuild workers: log anything that may be thrown.
+     *
+     * @return the entities, or <i>null</i> if something went wrong.
+     */
+    private static EntityIdSet fetchDatasetEntities(String entityType, String dataset, Progress progress) {
+        SparqlTemplate template;
         int namespaceIndex;
         switch (entityType) {
         case "subject":
-            query = SparqlQueries.SUBJECTS_ONE_DATASET_QUERY.replace(SparqlQueries.DATASET_PLACE_HOLDER, dataset);
+            template = SparqlQueries.SUBJECTS_ONE_DATASET_TEMPLATE;
             namespaceIndex = Utils.WIKIBASE_URIS.entity().length();
             break;
         case "property":
-            query = SparqlQueries.PROPERTIES_ONE_DATASET_QUERY.replace(SparqlQueries.DATASET_PLACE_HOLDER, dataset);
+            template = SparqlQueries.PROPERTIES_ONE_DATASET_TEMPLATE;
             namespaceIndex = Utils.WIKIBASE_URIS.property(WikibaseUris.PropertyType.CLAIM).length();
             break;
         case "value":
-            query = SparqlQueries.VALUES_ONE_DATASET_QUERY.replace(SparqlQueries.DATASET_PLACE_HOLDER, dataset);
+            template = SparqlQueries.VALUES_ONE_DATASET_TEMPLATE;
             namespaceIndex = Utils.WIKIBASE_URIS.entity().length();
             break;
         default:
             log.error("Invalid entity type '{}'. Expected one of 'subject', 'property' or 'value'. " +
                 "The cache for those entities will not be available", entityType);
+            progress.done(entityType, false);
             return null;
         }
-        TupleQueryResult results = Utils.runSparqlQuery(query);
-        if (results == null) return null;
+        EntityIdSet.Builder builder = new EntityIdSet.Builder(prefixOf(entityType), 1024);
+        int pageSize = Config.ENTITIES_CACHE_PAGE_SIZE;
+        boolean ok = false;
         try {
-            while (results.hasNext()) {
-                BindingSet result = results.next();
-                String entity = result.getValue(entityType).stringValue();
-                if (entity.startsWith(RDF.TYPE)) continue;
-                entitySet.add(entity.substring(namespaceIndex));
+            int rows = pageSize;
+            for (long offset = 0; rows == pageSize; offset += pageSize) {
+                String query = template.bind()
+                    .set(SparqlTemplate.Slot.DATASET, dataset)
+                    .set(SparqlTemplate.Slot.OFFSET, offset)
+                    .set(SparqlTemplate.Slot.LIMIT, pageSize)
+                    .render();
+                AtomicInteger pageRows = new AtomicInteger();
+                // Single-column result of URIs: TSV is the cheapest format
+                boolean pageOk = Utils.runSparqlQuery(query, SparqlResultFormat.TSV, result -> {
+                    pageRows.incrementAndGet();
+                    String entity = result.get(entityType);
+                    if (!entity.startsWith(RDF.TYPE)) builder.add(entity.substring(namespaceIndex));
+                });
+                if (!pageOk) {
+                    log.error("Failed evaluating the SPARQL query that fetches {} items: '{}'", entityType, query);
+                    return null;
+                }
+                rows = pageRows.get();
+                progress.page(rows);
             }
-        } catch (QueryEvaluationException qee) {
-            log.error("Failed evaluating the SPARQL query that fetches " + entityType + " items: '" + query + "'", qee);
+            ok = true;
+        } catch (BlazegraphUnavailableException bue) {
+            log.warn("Skipped fetching {} entities of dataset <{}>: {}", entityType, dataset, bue.getMessage());
+            return null;
+        } catch (RuntimeException re) {
+            log.error("Something went wrong while fetching " + entityType + " entities of dataset " + dataset, re);
             return null;
+        } finally {
+            progress.done(entityType, ok);
         }
-        oldEntities.put(dataset, new ArrayList<>(entitySet));
-        return oldEntities;
+        return builder.build();
     }
 
+    /**
+     * The progress of the latest fetch of a dataset entities, see {@link #metrics()}.
+     */
+    private static final class Progress {
+        // Guarded by this
+        private long started;
+        private long duration;
+        private long pages;
+        private long rows;
+        private int done;
+        private final Set<String> failed = new TreeSet<>();
+        private long lastSuccess;
+
+        synchronized void start() {
+            started = System.nanoTime();
+            duration = 0;
+            pages = 0;
+            rows = 0;
+            done = 0;
+            failed.clear();
+        }
+
+        synchronized void page(int pageRows) {
+            pages++;
+            rows += pageRows;
+        }
+
+        synchronized void done(String entityType, boolean ok) {
+            if (ok) done++;
+            else failed.add(entityType);
+            if (done + failed.size() < ENTITY_TYPES.length) return;
+            duration = System.nanoTime() - started;
+            if (failed.isEmpty()) lastSuccess = System.currentTimeMillis();
+        }
+
+        synchronized JSONObject metrics() {
+            boolean running = done + failed.size() < ENTITY_TYPES.length;
+            JSONObject metrics = new JSONObject();
+            metrics.put("state", running ? "running" : failed.isEmpty() ? "done" : "failed");
+            metrics.put("entity_types_done", done);
+            if (!failed.isEmpty()) {
+                JSONArray failedTypes = new JSONArray();
+                failedTypes.addAll(failed);
+                metrics.put("entity_types_failed", failedTypes);
+            }
+            metrics.put("pages", pages);
+            metrics.put("rows", rows);
+            metrics.put("duration_ms", TimeUnit.NANOSECONDS.toMillis(running ? System.nanoTime() - started : duration));
+            if (lastSuccess != 0) metrics.put("last_success", lastSuccess);
+            return metrics;
+        }
+    }
+
+    /**
+     * An immutable view of the cached entities: per dataset URI, the QIDs of subject items and value items, and the PIDs of properties.
+     * Dataset URIs follow the cache files, i.e., they include the state, e.g., {@code http://chuck-berry/new}.
+     * Identifiers are stored as compact {@link EntityIdSet}s, which serialize themselves as JSON arrays.
+     */
+    public static final class Snapshot {
+
+        private static final Snapshot EMPTY = new Snapshot(Collections.emptyMap(), Collections.emptyMap(), Collections.emptyMap());
+
+        private final Map<String, EntityIdSet> subjects;
+        private final Map<String, EntityIdSet> properties;
+        private final Map<String, EntityIdSet> values;
+        private final EntityIdSet allSubjects;
+        private final SubjectSampler subjectSampler;
+        // Serialized responses by entity type and dataset, see keepResponses()
+        private final Map<String, CachedResponse> responses = new ConcurrentHashMap<>();
+
+        private Snapshot(Map<String, EntityIdSet> subjects, Map<String, EntityIdSet> properties, Map<String, EntityIdSet> values) {
+            this(subjects, properties, values, EntityIdSet.union('Q', subjects.values()), new SubjectSampler(subjects));
+        }
+
+        private Snapshot(Map<String, EntityIdSet> subjects, Map<String, EntityIdSet> properties, Map<String, EntityIdSet> values,
+            EntityIdSet allSubjects, SubjectSampler subjectSampler) {
+            this.subjects = subjects;
+            this.properties = properties;
+            this.values = values;
+            this.allSubjects = allSubjects;
+            this.subjectSampler = subjectSampler;
+        }
+
+        private Snapshot with(String entityType, Map<String, ? extends Collection<String>> entities) {
+            char prefix = prefixOf(entityType);
+            Map<String, EntityIdSet> copy = new HashMap<>();
+            for (Map.Entry<String, ? extends Collection<String>> entry : entities.entrySet()) {
+                Collection<String> datasetEntities = entry.getValue();
+                copy.put(entry.getKey(), datasetEntities instanceof EntityIdSet ? (EntityIdSet) datasetEntities : EntityIdSet.of(prefix, datasetEntities));
+            }
+            Map<String, EntityIdSet> immutable = Collections.unmodifiableMap(copy);
+            Snapshot updated;
+            switch (entityType) {
+            case "subject":
+                updated = new Snapshot(immutable, properties, values);
+                break;
+            // The union and the sampler only depend on the subjects, so keep them
+            case "property":
+                updated = new Snapshot(subjects, immutable, values, allSubjects, subjectSampler);
+                break;
+            case "value":
+                updated = new Snapshot(subjects, properties, immutable, allSubjects, subjectSampler);
+                break;
+            default:
+                throw new IllegalArgumentException("Invalid entity type '" + entityType + "'. Expected one of 'subject', 'property' or 'value'");
+            }
+            return updated.keepResponses(this, entityType);
+        }
+
+        /**
+         * Carry over the responses that a swap of the given entity type leaves untouched: those of the other entity types,
+         * and those of the datasets that still hold the same entities, even if mapped from a cache file meanwhile.
+         * The response of all datasets only survives if none of them changed.
+         */
+        private Snapshot keepResponses(Snapshot previous, String entityType) {
+            Map<String, EntityIdSet> before = previous.of(entityType);
+            Map<String, EntityIdSet> after = of(entityType);
+            boolean allSame = before.size() == after.size() && before.entrySet().stream().allMatch(entry -> entry.getValue().sameAs(after.get(entry.getKey())));
+            for (Map.Entry<String, CachedResponse> entry : previous.responses.entrySet()) {
+                String[] typeAndDataset = entry.getKey().split(" ", 2);
+                String dataset = typeAndDataset[1];
+                boolean untouched = !typeAndDataset[0].equals(entityType) || (dataset.equals("all") ? allSame : sameEntities(before.get(dataset), after.get(dataset)));
+                if (untouched) responses.put(entry.getKey(), entry.getValue());
+            }
+            return this;
+        }
+
+        private static boolean sameEntities(EntityIdSet before, EntityIdSet after) {
+            return before == null ? after == null : before.sameAs(after);
+        }
+
+        private Map<String, EntityIdSet> of(String entityType) {
+            switch (entityType) {
+            case "subject":
+                return subjects;
+            case "property":
+                return properties;
+            case "value":
+                return values;
+            default:
+                throw new IllegalArgumentException("Invalid entity type '" + entityType + "'. Expected one of 'subject', 'property' or 'value'");
+            }
+        }
+
+        /**
+         * @return the subject item QIDs per dataset.
+         */
+        public Map<String, EntityIdSet> subjects() {
+            return subjects;
+        }
+
+        /**
+         * @return the distinct subject item QIDs of all datasets.
+         */
+        public EntityIdSet allSubjects() {
+            return allSubjects;
+        }
+
+        /**
+         * @return random subject item QIDs, overall or per dataset.
+         */
+        public SubjectSampler subjectSampler() {
+            return subjectSampler;
+        }
+
+        /**
+         * Exact membership, with a binary search per dataset: no false positives, unlike a Bloom filter, and no extra memory.
+         *
+         * @param qId a subject item QID.
+         * @return the URIs of the datasets with statements about the given subject, in no particular order.
+         */
+        public List<String> datasetsWithSubject(String qId) {
+            List<String> datasets = new ArrayList<>(1);
+            if (!allSubjects.contains(qId)) return datasets;
+            for (Map.Entry<String, EntityIdSet> entry : subjects.entrySet()) {
+                if (entry.getValue().contains(qId)) datasets.add(entry.getKey());
+            }
+            return datasets;
+        }
+
+        /**
+         * @return the property PIDs per dataset.
+         */
+        public Map<String, EntityIdSet> properties() {
+            return properties;
+        }
+
+        /**
+         * @return the value item QIDs per dataset.
+         */
+        public Map<String, EntityIdSet> values() {
+            return values;
+        }
+
+        /**
+         * Serialize a response body at most once per version of its entities: a swap of the cache only drops the responses of the datasets it changed.
+         * Concurrent requests for the same body wait for the first one to serialize it.
+         *
+         * @param entityType one of 'subject', 'property' or 'value'.
+         * @param dataset    a dataset URI, or 'all' for every dataset.
+         * @param body       the body to serialize, only called on the first request.
+         * @return the serialized body.
+         */
+        public CachedResponse response(String entityType, String dataset, Supplier<? extends JSONStreamAware> body) {
+            return responses.computeIfAbsent(entityType + " " + dataset, k -> CachedResponse.of(body.get()));
+        }
+
+        @Override
+        public String toString() {
+            return subjects.size() + " datasets with subjects (" + allSubjects.size() + " distinct), " + properties.size() + " with properties, "
+                + values.size() + " with values";
+        }
+    }
 }
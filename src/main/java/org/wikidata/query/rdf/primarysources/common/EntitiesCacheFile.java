@@ -0,0 +1,186 @@
+package org.wikidata.query.rdf.primarysources.common;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The binary on-disk format of the entities cache, see {@link EntitiesCache}.
+ * Files are memory-mapped, so they load instantly and the entities are read straight from the page cache, with next to no heap.
+ * <p>
+ * Layout, big-endian, with 4-byte aligned int arrays:
+ * <ol>
+ * <li>header: magic number {@code PSTE}, format version, identifier prefix, number of datasets, as ints;</li>
+ * <li>dataset directory, one entry per dataset: URI length (int) and UTF-8 bytes,
+ * offset (long) and size (int) of the identifiers array, offset (long) and size (int) of the other identifiers;</li>
+ * <li>per-dataset sorted arrays of the numeric parts of the identifiers, as ints;</li>
+ * <li>per-dataset identifiers that don't fit an int, each as its length (int) and UTF-8 bytes.</li>
+ * </ol>
+ * A file with another magic number or version is rejected: the caller should rebuild it.
+ * A single file can't exceed 2 GB, i.e., about 500 million entities.
+ *
+ * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
+ * @since 0.2.5 - created on Jun 20, 2018.
+ */
+final class EntitiesCacheFile {
+
+    /**
+     * Bump it at each incompatible change of the layout.
+     */
+    static final int VERSION = 1;
+    private static final int MAGIC = 0x50535445;
+    private static final int HEADER_SIZE = 16;
+    // Offset and size of both the identifiers and the others
+    private static final int DIRECTORY_ENTRY_SIZE = 8 + 4 + 8 + 4;
+
+    private EntitiesCacheFile() {
+    }
+
+    /**
+     * Atomically replace a cache file, see {@link Utils#writeAtomically(Path, Utils.FileContent)}.
+     *
+     * @param path     the cache file.
+     * @param prefix   the identifier prefix, e.g., {@code Q}.
+     * @param entities the entities per dataset URI.
+     * @throws IOException if the file can't be written.
+     */
+    static void write(Path path, char prefix, Map<String, EntityIdSet> entities) throws IOException {
+        List<byte[]> uris = new ArrayList<>(entities.size());
+        List<IntBuffer> ids = new ArrayList<>(entities.size());
+        List<List<byte[]>> others = new ArrayList<>(entities.size());
+        long directorySize = 0;
+        for (Map.Entry<String, EntityIdSet> entry : entities.entrySet()) {
+            EntityIdSet set = entry.getValue();
+            if (set.getPrefix() != prefix) {
+                throw new IllegalArgumentException("Can't write '" + set.getPrefix() + "' identifiers to a '" + prefix + "' cache");
+            }
+            byte[] uri = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            uris.add(uri);
+            ids.add(set.ids());
+            List<byte[]> datasetOthers = new ArrayList<>();
+            for (String other : set.others()) datasetOthers.add(other.getBytes(StandardCharsets.UTF_8));
+            others.add(datasetOthers);
+            directorySize += 4 + uri.length + DIRECTORY_ENTRY_SIZE;
+        }
+        // Pad the directory, so that int arrays are aligned
+        long padding = (4 - directorySize % 4) % 4;
+        long idsOffset = HEADER_SIZE + directorySize + padding;
+        long othersOffset = idsOffset;
+        for (IntBuffer datasetIds : ids) othersOffset += 4L * datasetIds.limit();
+        if (othersOffset > Integer.MAX_VALUE) throw new IOException("Too many entities to fit a single cache file: " + path);
+        long firstOthersOffset = othersOffset;
+        Utils.writeAtomically(path, stream -> {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(prefix);
+            out.writeInt(uris.size());
+            long nextIds = idsOffset;
+            long nextOthers = firstOthersOffset;
+            for (int i = 0; i < uris.size(); i++) {
+                byte[] uri = uris.get(i);
+                out.writeInt(uri.length);
+                out.write(uri);
+                out.writeLong(nextIds);
+                out.writeInt(ids.get(i).limit());
+                out.writeLong(nextOthers);
+                out.writeInt(others.get(i).size());
+                nextIds += 4L * ids.get(i).limit();
+                for (byte[] other : others.get(i)) nextOthers += 4 + other.length;
+            }
+            for (long i = 0; i < padding; i++) out.writeByte(0);
+            for (IntBuffer datasetIds : ids) {
+                for (int i = 0; i < datasetIds.limit(); i++) out.writeInt(datasetIds.get(i));
+            }
+            for (List<byte[]> datasetOthers : others) {
+                for (byte[] other : datasetOthers) {
+                    out.writeInt(other.length);
+                    out.write(other);
+                }
+            }
+            out.flush();
+        });
+    }
+
+    /**
+     * Map a cache file in memory. The mapping stays valid even if the file is replaced meanwhile.
+     *
+     * @param path the cache file.
+     * @return the entities per dataset URI, backed by the mapped file.
+     * @throws IOException if the file can't be read, is corrupted, or has another format version.
+     */
+    static Map<String, EntityIdSet> read(Path path) throws IOException {
+        MappedByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) throw new IOException("Cache file too big to be mapped: " + path);
+            if (size < HEADER_SIZE) throw new IOException("Corrupted cache file, no header: " + path);
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        ByteBuffer buffer = mapped.duplicate();
+        if (buffer.getInt() != MAGIC) throw new IOException("Not an entities cache file: " + path);
+        int version = buffer.getInt();
+        if (version != VERSION) throw new IOException("Unsupported entities cache file version " + version + ", expected " + VERSION + ": " + path);
+        char prefix = (char) buffer.getInt();
+        int datasets = buffer.getInt();
+        if (datasets < 0 || datasets > buffer.remaining() / (4 + DIRECTORY_ENTRY_SIZE)) {
+            throw new IOException("Corrupted cache file, " + datasets + " datasets in " + buffer.remaining() + " bytes: " + path);
+        }
+        Map<String, EntityIdSet> entities = new HashMap<>();
+        try {
+            for (int i = 0; i < datasets; i++) {
+                byte[] uri = readBytes(buffer);
+                long idsOffset = buffer.getLong();
+                int idsSize = buffer.getInt();
+                long othersOffset = buffer.getLong();
+                int othersSize = buffer.getInt();
+                IntBuffer ids = slice(mapped, idsOffset, 4L * idsSize).asIntBuffer();
+                entities.put(new String(uri, StandardCharsets.UTF_8), EntityIdSet.wrap(prefix, ids, readOthers(mapped, othersOffset, othersSize)));
+            }
+        } catch (RuntimeException re) {
+            throw new IOException("Corrupted cache file: " + path, re);
+        }
+        return Collections.unmodifiableMap(entities);
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, long offset, long length) throws IOException {
+        if (offset < 0 || length < 0 || offset + length > buffer.capacity()) throw new IOException("Cache file section out of bounds");
+        ByteBuffer view = buffer.duplicate();
+        view.position((int) offset);
+        view.limit((int) (offset + length));
+        return view.slice();
+    }
+
+    private static String[] readOthers(ByteBuffer buffer, long offset, int size) throws IOException {
+        // Each identifier takes at least its length
+        if (size < 0 || size > (buffer.capacity() - offset) / 4) throw new IOException("Cache file section of " + size + " identifiers out of bounds");
+        String[] others = new String[size];
+        if (size == 0) return others;
+        ByteBuffer view = slice(buffer, offset, buffer.capacity() - offset);
+        for (int i = 0; i < size; i++) others[i] = new String(readBytes(view), StandardCharsets.UTF_8);
+        return others;
+    }
+
+    /**
+     * Read a length and as many bytes, checking the length first, so that a corrupted one can't allocate a huge array.
+     */
+    private static byte[] readBytes(ByteBuffer buffer) throws IOException {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) throw new IOException("Cache file string of " + length + " bytes out of bounds");
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
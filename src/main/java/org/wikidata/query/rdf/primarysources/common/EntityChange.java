@@ -0,0 +1,157 @@
+package org.wikidata.query.rdf.primarysources.common;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.openrdf.model.Model;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.impl.URIImpl;
+import org.openrdf.model.vocabulary.RDF;
+import org.wikidata.query.rdf.common.uri.Ontology;
+import org.wikidata.query.rdf.common.uri.WikibaseUris;
+
+/**
+ * A change to the entities of a dataset, i.e., subjects, properties and item values, made through a Web service.
+ * Write services build it from the data they send to Blazegraph, and hand it over to the entities cache, see {@link EntitiesCache#applyChange(EntityChange)}.
+ * <p>
+ * Added entities are certain, since they come from the written data.
+ * Touched ones, i.e., removed or curated, may still be held by other statements of the dataset, so the cache checks them before dropping anything.
+ * A change is not thread-safe: don't modify it once it is handed over.
+ *
+ * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
+ * @since 0.2.5 - created on Jun 22, 2018.
+ */
+public final class EntityChange {
+
+    private static final URI ITEM = new URIImpl(Ontology.ITEM);
+    private static final String ENTITY_NAMESPACE = Utils.WIKIBASE_URIS.entity();
+    private static final String CLAIM_NAMESPACE = Utils.WIKIBASE_URIS.property(WikibaseUris.PropertyType.CLAIM);
+
+    private final String dataset;
+    // Entity type -> identifiers
+    private final Map<String, Set<String>> added = new HashMap<>();
+    private final Map<String, Set<String>> touched = new HashMap<>();
+
+    /**
+     * @param dataset the dataset URI, including the state, e.g., {@code http://chuck-berry/new}.
+     */
+    public EntityChange(String dataset) {
+        this.dataset = dataset;
+    }
+
+    /**
+     * Collect the entities of data added to the dataset.
+     * Subject items must be typed, see {@link Utils#addTypeToSubjectItems(Model, String)}.
+     *
+     * @param model the added data.
+     * @return this change.
+     */
+    public EntityChange added(Model model) {
+        collect(model, added);
+        return this;
+    }
+
+    /**
+     * Collect the entities of data removed from the dataset.
+     * Subject items must be typed, see {@link Utils#addTypeToSubjectItems(Model, String)}.
+     *
+     * @param model the removed data.
+     * @return this change.
+     */
+    public EntityChange removed(Model model) {
+        collect(model, touched);
+        return this;
+    }
+
+    /**
+     * Collect the entities of a curated statement, which moved out of the dataset.
+     *
+     * @param qId     the subject item QID.
+     * @param mainPId the main property PID.
+     * @param value   the curated value, only collected if it is an item.
+     * @return this change.
+     */
+    public EntityChange curated(String qId, String mainPId, Value value) {
+        put(touched, "subject", qId);
+        put(touched, "property", mainPId);
+        if (value instanceof URI && value.stringValue().startsWith(ENTITY_NAMESPACE + "Q")) {
+            put(touched, "value", value.stringValue().substring(ENTITY_NAMESPACE.length()));
+        }
+        return this;
+    }
+
+    /**
+     * Follow the patterns of the entities cache queries, see {@link SparqlQueries}:
+     * subjects are typed items, properties link them to statement nodes, and values are items linked to statement nodes.
+     */
+    private static void collect(Model model, Map<String, Set<String>> entities) {
+        Set<Resource> items = model.filter(null, RDF.TYPE, ITEM).subjects();
+        Set<Value> statementNodes = new HashSet<>();
+        for (Statement statement : model) {
+            Resource subject = statement.getSubject();
+            if (!items.contains(subject)) continue;
+            if (subject.stringValue().startsWith(ENTITY_NAMESPACE)) put(entities, "subject", subject.stringValue().substring(ENTITY_NAMESPACE.length()));
+            if (statement.getPredicate().equals(RDF.TYPE)) continue;
+            String property = statement.getPredicate().stringValue();
+            if (property.startsWith(CLAIM_NAMESPACE)) put(entities, "property", property.substring(CLAIM_NAMESPACE.length()));
+            statementNodes.add(statement.getObject());
+        }
+        for (Statement statement : model) {
+            if (!statementNodes.contains(statement.getSubject())) continue;
+            Value value = statement.getObject();
+            if (value instanceof URI && value.stringValue().startsWith(ENTITY_NAMESPACE + "Q")) {
+                put(entities, "value", value.stringValue().substring(ENTITY_NAMESPACE.length()));
+            }
+        }
+    }
+
+    private static void put(Map<String, Set<String>> entities, String entityType, String identifier) {
+        entities.computeIfAbsent(entityType, k -> new HashSet<>()).add(identifier);
+    }
+
+    /**
+     * @return the dataset URI, including the state.
+     */
+    public String getDataset() {
+        return dataset;
+    }
+
+    /**
+     * @param entityType one of {@code subject}, {@code property} or {@code value}.
+     * @return the identifiers of the added entities.
+     */
+    Set<String> added(String entityType) {
+        return added.getOrDefault(entityType, Collections.emptySet());
+    }
+
+    /**
+     * @param entityType one of {@code subject}, {@code property} or {@code value}.
+     * @return the identifiers of the entities that may have been removed.
+     */
+    Set<String> touched(String entityType) {
+        return touched.getOrDefault(entityType, Collections.emptySet());
+    }
+
+    /**
+     * @return <i>true</i> if no entity is added or touched.
+     */
+    public boolean isEmpty() {
+        return added.isEmpty() && touched.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        // Uploads may add millions of entities, so just count them
+        StringBuilder builder = new StringBuilder("dataset = ").append(dataset);
+        for (String entityType : new String[] {"subject", "property", "value"}) {
+            builder.append("; ").append(entityType).append(" = +").append(added(entityType).size()).append(" ?").append(touched(entityType).size());
+        }
+        return builder.toString();
+    }
+}
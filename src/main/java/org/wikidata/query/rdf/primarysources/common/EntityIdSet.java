@@ -0,0 +1,305 @@
+package org.wikidata.query.rdf.primarysources.common;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.IntBuffer;
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.RandomAccess;
+import java.util.TreeSet;
+
+import org.json.simple.JSONStreamAware;
+import org.json.simple.JSONValue;
+
+/**
+ * A compact, immutable and sorted set of Wikidata entity identifiers sharing the same prefix, e.g., QIDs of subject items or PIDs of properties.
+ * <p>
+ * The numeric part of each identifier is stored in a sorted array of primitive ints, i.e., 4 bytes per entity,
+ * instead of a string in a hash set, i.e., 60 to 80 bytes per entity.
+ * The array may also be a view over a memory-mapped cache file, see {@link EntitiesCacheFile}, and then takes next to no heap at all.
+ * The rare identifiers that don't fit, e.g., with a different prefix, are kept as sorted strings.
+ * Identifiers are turned back into strings only when read, typically when writing a response, see {@link #writeJSONString(Writer)}.
+ * <p>
+ * It is a read-only {@link java.util.List} of identifiers in ascending numeric order, with logarithmic {@link #contains(Object)}.
+ *
+ * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
+ * @since 0.2.5 - created on Jun 19, 2018.
+ */
+public final class EntityIdSet extends AbstractList<String> implements RandomAccess, JSONStreamAware {
+
+    private static final IntBuffer NO_IDS = IntBuffer.allocate(0);
+    private static final String[] NO_OTHERS = new String[0];
+
+    private final char prefix;
+    // Only absolute reads, so it can be shared across threads
+    private final IntBuffer ids;
+    private final String[] others;
+
+    private EntityIdSet(char prefix, IntBuffer ids, String[] others) {
+        this.prefix = prefix;
+        this.ids = ids;
+        this.others = others;
+    }
+
+    /**
+     * Wrap identifiers that are already sorted and distinct, typically read from a cache file.
+     *
+     * @param prefix the identifier prefix, e.g., {@code Q}.
+     * @param ids    the sorted and distinct numeric parts of the identifiers.
+     * @param others the sorted identifiers that don't fit an int.
+     * @return the set of the given identifiers.
+     */
+    static EntityIdSet wrap(char prefix, IntBuffer ids, String[] others) {
+        return new EntityIdSet(prefix, ids, others);
+    }
+
+    /**
+     * @param prefix      the identifier prefix, e.g., {@code Q}.
+     * @param identifiers the identifiers, in any order, possibly with duplicates.
+     * @return the set of the given identifiers.
+     */
+    public static EntityIdSet of(char prefix, Collection<String> identifiers) {
+        Builder builder = new Builder(prefix, identifiers.size());
+        for (String identifier : identifiers) builder.add(identifier);
+        return builder.build();
+    }
+
+    /**
+     * Merge sets of the same prefix. Sorted arrays are merged pairwise, so the cost is linear in the total size times the logarithm of the number of sets.
+     *
+     * @param prefix the identifier prefix, e.g., {@code Q}.
+     * @param sets   the sets to merge.
+     * @return the union of the given sets.
+     */
+    public static EntityIdSet union(char prefix, Collection<EntityIdSet> sets) {
+        Deque<IntBuffer> queue = new ArrayDeque<>(sets.size());
+        TreeSet<String> others = new TreeSet<>();
+        for (EntityIdSet set : sets) {
+            if (set.prefix != prefix) throw new IllegalArgumentException("Can't merge '" + set.prefix + "' identifiers into '" + prefix + "' ones");
+            queue.add(set.ids);
+            others.addAll(Arrays.asList(set.others));
+        }
+        if (queue.isEmpty()) return new EntityIdSet(prefix, NO_IDS, NO_OTHERS);
+        while (queue.size() > 1) queue.add(merge(queue.poll(), queue.poll()));
+        return new EntityIdSet(prefix, queue.poll(), others.toArray(NO_OTHERS));
+    }
+
+    /**
+     * Apply a small change, typically made through a Web service, see {@link EntityChange}.
+     * The cost is linear in the size of this set.
+     *
+     * @param added   the identifiers to add.
+     * @param removed the identifiers to remove. An identifier both added and removed is removed.
+     * @return the changed set, or this one if nothing changes.
+     */
+    public EntityIdSet with(Collection<String> added, Collection<String> removed) {
+        Builder toAdd = new Builder(prefix, added.size());
+        for (String identifier : added) {
+            if (!contains(identifier) && !removed.contains(identifier)) toAdd.add(identifier);
+        }
+        Builder toRemove = new Builder(prefix, removed.size());
+        for (String identifier : removed) {
+            if (contains(identifier)) toRemove.add(identifier);
+        }
+        EntityIdSet additions = toAdd.build();
+        EntityIdSet removals = toRemove.build();
+        if (additions.isEmpty() && removals.isEmpty()) return this;
+        IntBuffer changed = subtract(additions.ids.limit() == 0 ? ids : merge(ids, additions.ids), removals.ids);
+        TreeSet<String> changedOthers = new TreeSet<>(Arrays.asList(others));
+        changedOthers.addAll(Arrays.asList(additions.others));
+        changedOthers.removeAll(Arrays.asList(removals.others));
+        return new EntityIdSet(prefix, changed, changedOthers.toArray(NO_OTHERS));
+    }
+
+    /**
+     * Compare the identifiers without decoding them, e.g., a set freshly built on the heap with the same one mapped from a cache file.
+     *
+     * @param other another set, possibly null.
+     * @return whether both sets hold the same identifiers.
+     */
+    boolean sameAs(EntityIdSet other) {
+        return this == other || other != null && prefix == other.prefix && ids.equals(other.ids) && Arrays.equals(others, other.others);
+    }
+
+    private static IntBuffer subtract(IntBuffer a, IntBuffer b) {
+        int bLength = b.limit();
+        if (bLength == 0) return a;
+        int aLength = a.limit();
+        int[] kept = new int[aLength];
+        int j = 0;
+        int k = 0;
+        for (int i = 0; i < aLength; i++) {
+            int x = a.get(i);
+            while (j < bLength && b.get(j) < x) j++;
+            if (j < bLength && b.get(j) == x) continue;
+            kept[k++] = x;
+        }
+        return k == 0 ? NO_IDS : IntBuffer.wrap(k == kept.length ? kept : Arrays.copyOf(kept, k));
+    }
+
+    private static IntBuffer merge(IntBuffer a, IntBuffer b) {
+        int aLength = a.limit();
+        int bLength = b.limit();
+        int[] merged = new int[aLength + bLength];
+        int i = 0;
+        int j = 0;
+        int k = 0;
+        while (i < aLength && j < bLength) {
+            int x = a.get(i);
+            int y = b.get(j);
+            if (x < y) {
+                merged[k++] = x;
+                i++;
+            } else if (x > y) {
+                merged[k++] = y;
+                j++;
+            } else {
+                merged[k++] = x;
+                i++;
+                j++;
+            }
+        }
+        while (i < aLength) merged[k++] = a.get(i++);
+        while (j < bLength) merged[k++] = b.get(j++);
+        return IntBuffer.wrap(k == merged.length ? merged : Arrays.copyOf(merged, k));
+    }
+
+    private static int binarySearch(IntBuffer ids, int id) {
+        int low = 0;
+        int high = ids.limit() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int value = ids.get(middle);
+            if (value < id) low = middle + 1;
+            else if (value > id) high = middle - 1;
+            else return middle;
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * @param identifier an entity identifier, e.g., {@code Q5921}.
+     * @return the numeric part, or {@code -1} if the identifier has another prefix, a leading zero, or does not fit an int.
+     */
+    static int parse(char prefix, String identifier) {
+        int length = identifier.length();
+        if (length < 2 || length > 11 || identifier.charAt(0) != prefix || identifier.charAt(1) == '0') return -1;
+        long value = 0;
+        for (int i = 1; i < length; i++) {
+            char c = identifier.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            value = value * 10 + (c - '0');
+        }
+        return value > Integer.MAX_VALUE ? -1 : (int) value;
+    }
+
+    /**
+     * @return the identifier prefix.
+     */
+    public char getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * @return a read-only view of the sorted numeric parts of the identifiers.
+     */
+    IntBuffer ids() {
+        return ids.asReadOnlyBuffer();
+    }
+
+    /**
+     * @return the sorted identifiers that don't fit an int.
+     */
+    String[] others() {
+        return others.clone();
+    }
+
+    @Override
+    public String get(int index) {
+        int length = ids.limit();
+        if (index < length) return prefix + Integer.toString(ids.get(index));
+        return others[index - length];
+    }
+
+    @Override
+    public int size() {
+        return ids.limit() + others.length;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (!(o instanceof String)) return false;
+        String identifier = (String) o;
+        int id = parse(prefix, identifier);
+        return id >= 0 ? binarySearch(ids, id) >= 0 : Arrays.binarySearch(others, identifier) >= 0;
+    }
+
+    @Override
+    public void writeJSONString(Writer out) throws IOException {
+        out.write('[');
+        int length = ids.limit();
+        for (int i = 0; i < length; i++) {
+            if (i > 0) out.write(',');
+            out.write('"');
+            out.write(prefix);
+            out.write(Integer.toString(ids.get(i)));
+            out.write('"');
+        }
+        for (int i = 0; i < others.length; i++) {
+            if (i > 0 || length > 0) out.write(',');
+            out.write('"');
+            out.write(JSONValue.escape(others[i]));
+            out.write('"');
+        }
+        out.write(']');
+    }
+
+    /**
+     * Collect identifiers one by one, e.g., while streaming SPARQL query results, without keeping them as strings.
+     */
+    public static final class Builder {
+        private final char prefix;
+        private int[] ids;
+        private int size;
+        private final TreeSet<String> others = new TreeSet<>();
+
+        /**
+         * @param prefix       the identifier prefix, e.g., {@code Q}.
+         * @param expectedSize a hint of the number of identifiers.
+         */
+        public Builder(char prefix, int expectedSize) {
+            this.prefix = prefix;
+            this.ids = new int[Math.max(16, expectedSize)];
+        }
+
+        /**
+         * @param identifier an entity identifier, e.g., {@code Q5921}. Duplicates are fine.
+         * @return this builder.
+         */
+        public Builder add(String identifier) {
+            int id = parse(prefix, identifier);
+            if (id < 0) {
+                others.add(identifier);
+                return this;
+            }
+            if (size == ids.length) ids = Arrays.copyOf(ids, size + (size >> 1) + 1);
+            ids[size++] = id;
+            return this;
+        }
+
+        /**
+         * @return the set of the collected identifiers.
+         */
+        public EntityIdSet build() {
+            Arrays.sort(ids, 0, size);
+            int distinct = 0;
+            for (int i = 0; i < size; i++) {
+                if (distinct == 0 || ids[i] != ids[distinct - 1]) ids[distinct++] = ids[i];
+            }
+            return new EntityIdSet(prefix, distinct == 0 ? NO_IDS : IntBuffer.wrap(Arrays.copyOf(ids, distinct)), others.toArray(NO_OTHERS));
+        }
+    }
+}
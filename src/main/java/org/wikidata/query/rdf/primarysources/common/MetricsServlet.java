@@ -0,0 +1,53 @@
+package org.wikidata.query.rdf.primarysources.common;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Expose runtime metrics of the Wikidata primary sources tool back end as JSON, for monitoring purposes.
+ * <p>
+ * The {@code blazegraph} key holds the usage of the connection pools towards Blazegraph, see {@link BlazegraphClient#metrics()}.
+ * The {@code sparql_coalescing} key holds the counters of SPARQL queries sent to Blazegraph versus coalesced ones, see {@link QueryCoalescer}.
+ * The {@code requests} key holds the usage of the request workers, see {@link RequestExecutor}.
+ * The {@code result_cache} key holds the size, hit ratio and eviction counters of the SPARQL results cache per service, see {@link QueryResultCache},
+ * and the same for the suggestions cache, with its estimated memory, see {@link SuggestionCache}.
+ * The {@code entities_cache} key holds the progress and duration of the entities cache rebuild per dataset, see {@link EntitiesCache#metrics()}.
+ * The {@code random_subjects} key holds the weighted and uniform draws of random subjects, and the statements to be curated per dataset,
+ * see {@link RandomSubjects}.
+ * The {@code random_prefetch} key holds the hits, misses and queue sizes of the prefetched random suggestions, see {@link RandomSuggestions}.
+ *
+ * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
+ * @since 0.2.5 - created on Jun 04, 2018.
+ */
+public class MetricsServlet extends HttpServlet {
+
+    private static final Logger log = LoggerFactory.getLogger(MetricsServlet.class);
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        JSONObject metrics = new JSONObject();
+        metrics.put("blazegraph", BlazegraphClient.metrics());
+        metrics.put("sparql_coalescing", Utils.coalescingMetrics());
+        metrics.put("result_cache", Utils.resultCacheMetrics());
+        metrics.put("requests", RequestExecutor.metrics());
+        metrics.put("entities_cache", EntitiesCache.metrics());
+        metrics.put("random_subjects", RandomSubjects.metrics());
+        metrics.put("random_prefetch", RandomSuggestions.metrics());
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType(ApiParameters.DEFAULT_IO_CONTENT_TYPE);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        try (PrintWriter pw = response.getWriter()) {
+            metrics.writeJSONString(pw);
+        }
+        log.debug("GET /metrics successful");
+    }
+}
@@ -0,0 +1,166 @@
+package org.wikidata.query.rdf.primarysources.common;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Coalesce identical concurrent SPARQL reads, also known as <i>single flight</i>.
+ * <p>
+ * The first caller of a given query runs it against Blazegraph, while the callers that arrive with the same query
+ * before it completes just wait for its result, instead of sending a duplicate.
+ * Nothing is kept once the query completes: this is not a cache.
+ * <p>
+ * Results are shared among the waiting callers, so they must be either immutable or copied before being handed out.
+ *
+ * @param <V> the result type.
+ * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
+ * @since 0.2.5 - created on Jun 08, 2018.
+ */
+final class QueryCoalescer<V> {
+
+    private static final Logger log = LoggerFactory.getLogger(QueryCoalescer.class);
+    // Waiting callers check their deadline at least this often, so that they stop soon after their request is cancelled
+    private static final long CHECK_INTERVAL = 100;
+
+    private final String name;
+    private final ConcurrentMap<String, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong issued = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    QueryCoalescer(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Collapse whitespace outside of quoted literals, so that queries differing only in formatting share the same key.
+     *
+     * @param query the SPARQL query.
+     * @return the normalized query.
+     */
+    static String normalize(String query) {
+        StringBuilder normalized = new StringBuilder(query.length());
+        char quote = 0;
+        boolean pendingSpace = false;
+        for (int i = 0; i < query.length(); i++) {
+            char c = query.charAt(i);
+            if (quote == 0 && Character.isWhitespace(c)) {
+                pendingSpace = normalized.length() > 0;
+                continue;
+            }
+            if (pendingSpace) {
+                normalized.append(' ');
+                pendingSpace = false;
+            }
+            normalized.append(c);
+            if (quote == 0 && (c == '"' || c == '\'')) quote = c;
+            else if (quote != 0 && c == '\\' && i < query.length() - 1) normalized.append(query.charAt(++i));
+            else if (c == quote) quote = 0;
+        }
+        return normalized.toString();
+    }
+
+    /**
+     * Run the given query, unless an identical one is already in flight: in that case, wait for its result.
+     * If the first caller runs out of time or is cancelled, see {@link QueryDeadline}, waiting callers run the query again,
+     * unless the same happened to them. A waiting caller whose own request is cancelled stops waiting right away.
+     *
+     * @param query  the SPARQL query.
+     * @param loader the code that actually runs the query.
+     * @return the query result, as returned by the loader of the first caller.
+     */
+    V run(String query, Supplier<V> loader) {
+        return coalesce(normalize(query), loader);
+    }
+
+    /**
+     * Same as {@link #run(String, Supplier)}, but only join an identical query issued in the same epoch, e.g., the generation of a cache,
+     * see {@link QueryResultCache}. Bump the epoch after a write, so that new callers never join a query that started before it.
+     *
+     * @param query  the SPARQL query.
+     * @param epoch  the epoch of the caller.
+     * @param loader the code that actually runs the query.
+     * @return the query result, as returned by the loader of the first caller in the same epoch.
+     */
+    V run(String query, long epoch, Supplier<V> loader) {
+        return coalesce(epoch + " " + normalize(query), loader);
+    }
+
+    private V coalesce(String key, Supplier<V> loader) {
+        while (true) {
+            CompletableFuture<V> mine = new CompletableFuture<>();
+            CompletableFuture<V> running = inFlight.putIfAbsent(key, mine);
+            if (running == null) return issue(key, mine, loader);
+            coalesced.incrementAndGet();
+            log.debug("Identical {} query already in flight, will wait for its result: {}", name, key);
+            QueryDeadline deadline = QueryDeadline.current();
+            try {
+                return await(running, deadline);
+            } catch (QueryTimeoutException | CancellationException e) {
+                if (deadline.isExpired() || deadline.isCancelled()) throw e;
+                log.debug("Identical {} query stopped before completion, will run it again: {}", name, key);
+            }
+        }
+    }
+
+    private V issue(String key, CompletableFuture<V> mine, Supplier<V> loader) {
+        issued.incrementAndGet();
+        try {
+            V result = loader.get();
+            mine.complete(result);
+            return result;
+        } catch (RuntimeException | Error e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    private V await(CompletableFuture<V> running, QueryDeadline deadline) {
+        try {
+            while (true) {
+                long remaining = deadline.remainingMillis();
+                try {
+                    return running.get(remaining == 0 ? CHECK_INTERVAL : Math.min(remaining, CHECK_INTERVAL), TimeUnit.MILLISECONDS);
+                } catch (TimeoutException te) {
+                    deadline.check();
+                }
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            log.warn("Interrupted while waiting for an identical {} query", name);
+            return null;
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * @return the counters of queries actually sent to Blazegraph and of coalesced ones.
+     */
+    JSONObject metrics() {
+        JSONObject metrics = new JSONObject();
+        metrics.put("issued", issued.get());
+        metrics.put("coalesced", coalesced.get());
+        metrics.put("in_flight", inFlight.size());
+        return metrics;
+    }
+
+    String getName() {
+        return name;
+    }
+}
@@ -0,0 +1,239 @@
+package org.wikidata.query.rdf.primarysources.common;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * The time budget of the SPARQL queries run on behalf of a Web service request.
+ * <p>
+ * {@link RequestExecutor} starts a deadline for each request, as per the Web service query timeout, see {@link Config}.
+ * Every query run by the request through {@link Utils} then gets the remaining time, which is enforced on both sides:
+ * <ul>
+ * <li>Blazegraph stops evaluating the query once the time is over, through its {@code maxQueryTimeMillis} parameter;</li>
+ * <li>the HTTP request is aborted once the time is over, even if Blazegraph did not give up, e.g., while it streams a big result.</li>
+ * </ul>
+ * When the deadline is hit, the query fails with a {@link QueryTimeoutException}.
+ * When the container reports an async error for the request, e.g., a failed response write, the deadline is cancelled:
+ * running queries are aborted and cancelled on Blazegraph too, and fail with a {@link CancellationException}, see {@link RequestExecutor}.
+ * Client disconnects are not detected otherwise: queries are bound by the deadline alone.
+ * <p>
+ * Queries run outside of a Web service request, e.g., cache updates, have no deadline.
+ *
+ * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
+ * @since 0.2.5 - created on Jun 15, 2018.
+ */
+final class QueryDeadline {
+
+    /**
+     * No time limit, no cancellation.
+     */
+    static final QueryDeadline NONE = new QueryDeadline(null, 0);
+
+    private static final Logger log = LoggerFactory.getLogger(QueryDeadline.class);
+
+    private static final ThreadLocal<QueryDeadline> CURRENT = new ThreadLocal<>();
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setNameFormat("query-deadline-%d").setDaemon(true).build());
+    // Blazegraph query parameters
+    private static final String QUERY_ID_PARAMETER = "queryId";
+    private static final String MAX_QUERY_TIME_PARAMETER = "maxQueryTimeMillis";
+    private static final String CANCEL_QUERY_PARAMETER = "cancelQuery";
+
+    private final Endpoint endpoint;
+    private final long expiresAt;
+    private final Map<String, HttpRequestBase> running = new ConcurrentHashMap<>();
+    private volatile boolean cancelled;
+
+    private QueryDeadline(Endpoint endpoint, long timeout) {
+        this.endpoint = endpoint;
+        this.expiresAt = timeout > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout) : 0;
+    }
+
+    /**
+     * Start the deadline of a Web service request.
+     *
+     * @param endpoint the Web service.
+     * @return the deadline, or {@link #NONE} if the Web service has no query timeout.
+     */
+    static QueryDeadline start(Endpoint endpoint) {
+        return start(endpoint, Config.QUERY_TIMEOUTS.get(endpoint));
+    }
+
+    /**
+     * @param endpoint the Web service.
+     * @param timeout  the time limit in milliseconds, {@code 0} for none.
+     * @return the deadline.
+     */
+    static QueryDeadline start(Endpoint endpoint, long timeout) {
+        return new QueryDeadline(endpoint, timeout);
+    }
+
+    /**
+     * @return the deadline of the request handled by the calling thread, or {@link #NONE}.
+     */
+    static QueryDeadline current() {
+        QueryDeadline current = CURRENT.get();
+        return current == null ? NONE : current;
+    }
+
+    /**
+     * Make this the deadline of the queries run by the calling thread, until {@link #detach()}.
+     */
+    void attach() {
+        CURRENT.set(this);
+    }
+
+    /**
+     * Forget the deadline of the calling thread.
+     */
+    static void detach() {
+        CURRENT.remove();
+    }
+
+    /**
+     * @return the Web service, or <i>null</i> for {@link #NONE}.
+     */
+    Endpoint getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * @return the remaining milliseconds, at least 1, or {@code 0} if there is no time limit.
+     */
+    long remainingMillis() {
+        if (expiresAt == 0) return 0;
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(expiresAt - System.nanoTime()));
+    }
+
+    boolean isExpired() {
+        return expiresAt != 0 && System.nanoTime() - expiresAt >= 0;
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Start bounding a Blazegraph query by this deadline, see {@link Guard}.
+     * The returned guard <b>must</b> be closed when the query is done.
+     *
+     * @return the guard of the query.
+     */
+    Guard guard() {
+        return new Guard(UUID.randomUUID().toString());
+    }
+
+    /**
+     * Turn a query failure into a timeout or a cancellation, if that's what happened.
+     *
+     * @throws CancellationException if the request was cancelled.
+     * @throws QueryTimeoutException if the deadline is over.
+     */
+    void check() {
+        if (cancelled) throw new CancellationException("A request to " + endpoint + " was cancelled");
+        if (isExpired()) throw new QueryTimeoutException(endpoint);
+    }
+
+    /**
+     * The request failed, e.g., its response can't be written: abort the running queries and stop them on Blazegraph.
+     */
+    void cancel() {
+        if (this == NONE) return;
+        cancelled = true;
+        for (Map.Entry<String, HttpRequestBase> query : running.entrySet()) stop(query.getKey(), query.getValue(), "request cancelled");
+    }
+
+    private void stop(String queryId, HttpRequestBase request, String reason) {
+        if (running.remove(queryId) == null) return;
+        log.info("Stopping query {} of a request to {}: {}", queryId, endpoint, reason);
+        request.abort();
+        // Don't hold the timer, nor the caller
+        Cancellers.POOL.execute(() -> cancelOnBlazegraph(queryId));
+    }
+
+    private static void cancelOnBlazegraph(String queryId) {
+        HttpPost post;
+        try {
+            post = new HttpPost(BlazegraphClient.endpoint(Config.BLAZEGRAPH_SPARQL_ENDPOINT)
+                .setParameter(CANCEL_QUERY_PARAMETER, null)
+                .setParameter(QUERY_ID_PARAMETER, queryId)
+                .build());
+        } catch (URISyntaxException use) {
+            log.error("Failed building the URI to cancel a Blazegraph query: {}. Parse error at index {}", use.getInput(), use.getIndex());
+            return;
+        }
+        try (CloseableHttpResponse response = BlazegraphClient.control(post)) {
+            int status = response.getStatusLine().getStatusCode();
+            if (status != HttpStatus.SC_OK) log.warn("Failed cancelling query {} on Blazegraph. HTTP status {}", queryId, status);
+            EntityUtils.consume(response.getEntity());
+        } catch (IOException ioe) {
+            log.warn("Failed cancelling query {} on Blazegraph: {}", queryId, ioe.toString());
+        }
+    }
+
+    /**
+     * Tie a running query to its deadline: pass the Blazegraph query identifier and time limit with the query parameters,
+     * then watch the HTTP request, to abort it when the time is over or the request is cancelled.
+     */
+    final class Guard implements AutoCloseable {
+        private final String queryId;
+        private ScheduledFuture<?> timer;
+
+        private Guard(String queryId) {
+            this.queryId = queryId;
+        }
+
+        /**
+         * @param builder the URI builder of the query request, before building it.
+         */
+        void addParameters(URIBuilder builder) {
+            builder.setParameter(QUERY_ID_PARAMETER, queryId);
+            if (expiresAt != 0) builder.setParameter(MAX_QUERY_TIME_PARAMETER, Long.toString(remainingMillis()));
+        }
+
+        /**
+         * @param request the query request, built with {@link #addParameters(URIBuilder)}.
+         */
+        void watch(HttpRequestBase request) {
+            if (QueryDeadline.this == NONE) return;
+            running.put(queryId, request);
+            if (cancelled) stop(queryId, request, "request cancelled");
+            else if (expiresAt != 0) timer = TIMER.schedule(() -> stop(queryId, request, "deadline exceeded"), remainingMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void close() {
+            if (timer != null) timer.cancel(false);
+            running.remove(queryId);
+        }
+    }
+
+    /**
+     * Cancellations are blocking calls to Blazegraph, so keep them off the timer and the common pool.
+     * Lazily initialized, so that deadlines don't need the configuration until a query is stopped.
+     */
+    private static final class Cancellers {
+        private static final BackgroundExecutor POOL = new BackgroundExecutor("query-cancel", 2, Config.CACHE_MAINTENANCE_QUEUE_SIZE,
+            new ThreadPoolExecutor.DiscardPolicy());
+    }
+}
@@ -0,0 +1,218 @@
+package org.wikidata.query.rdf.primarysources.common;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongFunction;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalNotification;
+
+/**
+ * A bounded in-process cache of SPARQL query results, keyed by the rendered query.
+ * <p>
+ * Each entry is tagged with the named graphs its query touches, i.e., the ones in {@code GRAPH <...>} clauses.
+ * Queries over a variable graph, like {@code GRAPH ?dataset}, or over the default graph may read anything,
+ * so they are tagged with {@link #ALL_GRAPHS}.
+ * Services that write to Blazegraph must call {@link #invalidate(Collection)} with the graphs they modified:
+ * only the entries tagged with those graphs, plus the {@link #ALL_GRAPHS} ones, are evicted.
+ * <p>
+ * A query that was already running when an invalidation happens may hold a stale result, so it is not cached.
+ * Callers that coalesce identical queries must not join one started before the latest invalidation either,
+ * see {@link #get(String, Endpoint, LongFunction)}.
+ * Cached results are shared among callers, so they must be either immutable or copied before being handed out.
+ *
+ * @param <V> the result type.
+ * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
+ * @since 0.2.5 - created on Jun 11, 2018.
+ */
+final class QueryResultCache<V> {
+
+    /**
+     * Tag of entries whose query may read any graph.
+     */
+    static final String ALL_GRAPHS = "*";
+
+    private static final Logger log = LoggerFactory.getLogger(QueryResultCache.class);
+    // Either a constant graph URI (group 1) or a variable
+    private static final Pattern GRAPH = Pattern.compile("\\bGRAPH\\s*(?:<([^>]*)>|[?$]\\w+)", Pattern.CASE_INSENSITIVE);
+
+    private final String name;
+    private final Cache<String, Entry<V>> cache;
+    // Bumped by each invalidation, so that results loaded before it are not cached
+    private final AtomicLong generation = new AtomicLong();
+    private final Map<Endpoint, Counters> counters = new EnumMap<>(Endpoint.class);
+
+    /**
+     * @param name       the cache name, used in logs and metrics.
+     * @param maxEntries the maximum number of cached results; {@code 0} disables the cache.
+     */
+    QueryResultCache(String name, long maxEntries) {
+        this.name = name;
+        this.cache = maxEntries > 0 ? CacheBuilder.newBuilder().maximumSize(maxEntries).removalListener(this::onRemoval).build() : null;
+        for (Endpoint endpoint : Endpoint.values()) counters.put(endpoint, new Counters());
+    }
+
+    /**
+     * Extract the named graphs read by the given query.
+     *
+     * @param query the SPARQL query.
+     * @return the graph URIs, or a singleton with {@link #ALL_GRAPHS} if the query may read any graph.
+     */
+    static Set<String> graphs(String query) {
+        Set<String> graphs = new HashSet<>();
+        Matcher matcher = GRAPH.matcher(query);
+        while (matcher.find()) {
+            if (matcher.group(1) == null) return Collections.singleton(ALL_GRAPHS);
+            graphs.add(matcher.group(1));
+        }
+        return graphs.isEmpty() ? Collections.singleton(ALL_GRAPHS) : graphs;
+    }
+
+    /**
+     * Get the cached result of the given query, or run the loader and cache its result.
+     * Failures, i.e., <i>null</i> results, are not cached.
+     *
+     * @param query    the SPARQL query.
+     * @param endpoint the service asking for the result, for metrics.
+     * @param loader   the code that actually runs the query.
+     * @return the query result.
+     */
+    V get(String query, Endpoint endpoint, Supplier<V> loader) {
+        return get(query, endpoint, generation -> loader.get());
+    }
+
+    /**
+     * Same as {@link #get(String, Endpoint, Supplier)}, with a loader that gets the cache generation when it starts,
+     * e.g., to coalesce only queries started after the latest invalidation, see {@link QueryCoalescer#run(String, long, Supplier)}.
+     * Otherwise, a caller that arrives after an invalidation may join a query started before it, and cache its stale result.
+     *
+     * @param query    the SPARQL query.
+     * @param endpoint the service asking for the result, for metrics.
+     * @param loader   the code that actually runs the query, given the generation.
+     * @return the query result.
+     */
+    V get(String query, Endpoint endpoint, LongFunction<V> loader) {
+        if (cache == null) return loader.apply(generation.get());
+        Counters endpointCounters = counters.get(endpoint);
+        String key = QueryCoalescer.normalize(query);
+        Entry<V> cached = cache.getIfPresent(key);
+        if (cached != null) {
+            endpointCounters.hits.incrementAndGet();
+            log.debug("Cached {} result for query: {}", name, key);
+            return cached.value;
+        }
+        endpointCounters.misses.incrementAndGet();
+        long loadedAt = generation.get();
+        V value = loader.apply(loadedAt);
+        if (value == null || generation.get() != loadedAt) return value;
+        Entry<V> entry = new Entry<>(value, endpoint, graphs(key));
+        cache.put(key, entry);
+        endpointCounters.size.incrementAndGet();
+        // An invalidation may have slipped in between the check and the put
+        if (generation.get() != loadedAt) cache.asMap().remove(key, entry);
+        return value;
+    }
+
+    /**
+     * Evict the entries tagged with any of the given graphs, plus the ones that may read any graph.
+     *
+     * @param graphs the URIs of the modified named graphs.
+     * @return the number of evicted entries.
+     */
+    int invalidate(Collection<String> graphs) {
+        if (cache == null) return 0;
+        generation.incrementAndGet();
+        int[] evicted = new int[1];
+        cache.asMap().entrySet().removeIf(e -> {
+            Set<String> tags = e.getValue().graphs;
+            boolean stale = tags.contains(ALL_GRAPHS) || !Collections.disjoint(tags, graphs);
+            if (stale) evicted[0]++;
+            return stale;
+        });
+        cache.cleanUp();
+        log.debug("Evicted {} {} results after a write to graphs {}", evicted[0], name, graphs);
+        return evicted[0];
+    }
+
+    /**
+     * Same as {@link #invalidate(Collection)}.
+     *
+     * @param graphs the URIs of the modified named graphs.
+     * @return the number of evicted entries.
+     */
+    int invalidate(String... graphs) {
+        return invalidate(Arrays.asList(graphs));
+    }
+
+    private void onRemoval(RemovalNotification<String, Entry<V>> notification) {
+        Entry<V> entry = notification.getValue();
+        if (entry == null) return;
+        Counters endpointCounters = counters.get(entry.endpoint);
+        endpointCounters.size.decrementAndGet();
+        if (notification.wasEvicted()) endpointCounters.evictions.incrementAndGet();
+        else if (notification.getCause() != RemovalCause.REPLACED) endpointCounters.invalidations.incrementAndGet();
+    }
+
+    /**
+     * @return per endpoint, the number of cached entries, hits, misses, hit ratio,
+     * evictions due to the size bound, and evictions due to writes.
+     */
+    JSONObject metrics() {
+        JSONObject metrics = new JSONObject();
+        for (Map.Entry<Endpoint, Counters> entry : counters.entrySet()) {
+            Counters endpointCounters = entry.getValue();
+            long hits = endpointCounters.hits.get();
+            long requests = hits + endpointCounters.misses.get();
+            // Skip services that don't use this cache
+            if (requests == 0 && endpointCounters.size.get() == 0) continue;
+            JSONObject endpointMetrics = new JSONObject();
+            endpointMetrics.put("size", endpointCounters.size.get());
+            endpointMetrics.put("hits", hits);
+            endpointMetrics.put("misses", endpointCounters.misses.get());
+            endpointMetrics.put("hit_ratio", requests == 0 ? 0.0 : (double) hits / requests);
+            endpointMetrics.put("evictions", endpointCounters.evictions.get());
+            endpointMetrics.put("invalidations", endpointCounters.invalidations.get());
+            metrics.put(entry.getKey().toString(), endpointMetrics);
+        }
+        return metrics;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    private static final class Entry<V> {
+        private final V value;
+        private final Endpoint endpoint;
+        private final Set<String> graphs;
+
+        private Entry(V value, Endpoint endpoint, Set<String> graphs) {
+            this.value = value;
+            this.endpoint = endpoint;
+            this.graphs = graphs;
+        }
+    }
+
+    private static final class Counters {
+        private final AtomicLong size = new AtomicLong();
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final AtomicLong evictions = new AtomicLong();
+        private final AtomicLong invalidations = new AtomicLong();
+    }
+}
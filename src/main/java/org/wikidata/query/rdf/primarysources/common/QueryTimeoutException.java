@@ -0,0 +1,28 @@
+package org.wikidata.query.rdf.primarysources.common;
+
+/**
+ * Thrown when a SPARQL query run on behalf of a Web service request exceeds the request deadline, see {@link QueryDeadline}.
+ * {@link RequestExecutor} turns it into a HTTP 504 response.
+ *
+ * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
+ * @since 0.2.5 - created on Jun 15, 2018.
+ */
+public class QueryTimeoutException extends RuntimeException {
+
+    private final Endpoint endpoint;
+
+    /**
+     * @param endpoint the Web service whose deadline was exceeded.
+     */
+    public QueryTimeoutException(Endpoint endpoint) {
+        super("The SPARQL query of a request to " + endpoint + " exceeded the deadline of " + Config.QUERY_TIMEOUTS.get(endpoint) + " ms");
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * @return the Web service whose deadline was exceeded.
+     */
+    public Endpoint getEndpoint() {
+        return endpoint;
+    }
+}
@@ -0,0 +1,361 @@
+package org.wikidata.query.rdf.primarysources.common;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pick random subject items to be curated, see {@link org.wikidata.query.rdf.primarysources.curation.RandomServlet}.
+ * <p>
+ * A subject is drawn in proportion to its number of statements to be curated, so that curators don't keep landing on items with a single one,
+ * and a dataset in proportion to its priority, see {@link Config#RANDOM_DATASET_PRIORITIES}.
+ * The weights of each dataset are fetched after the entities cache loads it, see {@link EntitiesCache}, and the weight of a subject is counted again
+ * after each curated claim, see {@link #curated(String, String)}. Until then, the subjects of a dataset are drawn uniformly, see {@link SubjectSampler},
+ * and its statements are estimated with the average statements per subject of the weighted datasets, so that all datasets are drawn in the same unit.
+ * <p>
+ * The latest subjects served to a user are not served again to the same user, within a window, see {@link Config#RANDOM_EXCLUSION_WINDOW}.
+ *
+ * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
+ * @since 0.2.5 - created on Jun 24, 2018.
+ */
+public final class RandomSubjects {
+
+    private static final Logger log = LoggerFactory.getLogger(RandomSubjects.class);
+    // Draws before giving up on the exclusion window, e.g., when a user has seen most subjects of a small dataset
+    private static final int MAX_DRAWS = 8;
+    private static final Map<String, WeightedSubjects> WEIGHTS = new ConcurrentHashMap<>();
+    // Bumped on any change to the weights, so that the dataset masses are computed again
+    private static final AtomicLong WEIGHTS_VERSION = new AtomicLong();
+    private static volatile DatasetMasses masses;
+    // Weights are fetched on their own thread, so that draws never wait for them
+    private static final BackgroundExecutor FETCHER = new BackgroundExecutor("subject-weights", 1, Config.CACHE_MAINTENANCE_QUEUE_SIZE,
+        new ThreadPoolExecutor.AbortPolicy());
+    private static final Set<String> PENDING_FETCHES = ConcurrentHashMap.newKeySet();
+    // Dataset -> subjects to be counted again
+    private static final Map<String, Set<String>> PENDING_RECOUNTS = new ConcurrentHashMap<>();
+    // User name -> latest subjects, least recently served users first
+    private static final Map<String, RecentSubjects> RECENT = Collections.synchronizedMap(new LinkedHashMap<String, RecentSubjects>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, RecentSubjects> eldest) {
+            return size() > Config.RANDOM_EXCLUSION_USERS;
+        }
+    });
+    private static final AtomicLong WEIGHTED_DRAWS = new AtomicLong();
+    private static final AtomicLong UNIFORM_DRAWS = new AtomicLong();
+    private static final AtomicLong REPEATS_AVOIDED = new AtomicLong();
+    private static final AtomicInteger FAILED_FETCHES = new AtomicInteger();
+    // Seconds given to the fetcher to complete at shutdown
+    private static final long SHUTDOWN_TIMEOUT = 10;
+
+    private RandomSubjects() {
+    }
+
+    /**
+     * @param dataset the dataset URI, including the state, e.g., {@code http://chuck-berry/new}, or {@code all} for any dataset.
+     * @param user    the user name, or <i>null</i> to skip the exclusion window.
+     * @return a random subject item QID, or <i>null</i> if there are none.
+     */
+    public static String pick(String dataset, String user) {
+        EntitiesCache.Snapshot snapshot = EntitiesCache.snapshot();
+        RecentSubjects recent = recentOf(user);
+        String qId = null;
+        for (int draw = 0; draw < MAX_DRAWS; draw++) {
+            String drawnDataset = dataset.equals("all") ? drawDataset(snapshot) : dataset;
+            if (drawnDataset == null) return null;
+            String drawn = drawSubject(snapshot, drawnDataset);
+            if (drawn == null) {
+                // Nothing left in a single dataset, otherwise try another one
+                if (dataset.equals("all")) continue;
+                break;
+            }
+            qId = drawn;
+            if (recent == null || !recent.contains(qId)) break;
+            REPEATS_AVOIDED.incrementAndGet();
+        }
+        if (recent != null && qId != null) recent.add(qId);
+        return qId;
+    }
+
+    /**
+     * @param user the user name, or <i>null</i>.
+     * @param qId  a subject item QID.
+     * @return <i>true</i> if the subject is within the exclusion window of the user.
+     */
+    public static boolean recentlyServed(String user, String qId) {
+        RecentSubjects recent = recentOf(user);
+        return recent != null && recent.contains(qId);
+    }
+
+    /**
+     * Add a subject picked elsewhere, e.g., prefetched, see {@link RandomSuggestions}, to the exclusion window of a user.
+     *
+     * @param user the user name, or <i>null</i>.
+     * @param qId  a subject item QID.
+     */
+    public static void served(String user, String qId) {
+        RecentSubjects recent = recentOf(user);
+        if (recent != null) recent.add(qId);
+    }
+
+    private static RecentSubjects recentOf(String user) {
+        if (user == null || Config.RANDOM_EXCLUSION_WINDOW == 0) return null;
+        return RECENT.computeIfAbsent(user, k -> new RecentSubjects(Config.RANDOM_EXCLUSION_WINDOW));
+    }
+
+    /**
+     * The masses only change with the snapshot or the weights, so they are computed once per change, and each draw is a binary search.
+     */
+    private static String drawDataset(EntitiesCache.Snapshot snapshot) {
+        Map<String, EntityIdSet> subjects = snapshot.subjects();
+        // Read the version first: a concurrent change leaves a stale version behind, so the next draw computes the masses again
+        long version = WEIGHTS_VERSION.get();
+        DatasetMasses current = masses;
+        if (current == null || current.subjects != subjects || current.version != version) {
+            double statementsPerSubject = statementsPerSubject();
+            String[] datasets = new String[subjects.size()];
+            double[] datasetMasses = new double[subjects.size()];
+            int i = 0;
+            for (Map.Entry<String, EntityIdSet> entry : subjects.entrySet()) {
+                datasets[i] = entry.getKey();
+                datasetMasses[i++] = mass(entry.getKey(), entry.getValue(), statementsPerSubject);
+            }
+            current = new DatasetMasses(subjects, version, datasets, datasetMasses);
+            masses = current;
+        }
+        return current.draw();
+    }
+
+    /**
+     * @return the average statements to be curated per subject of the weighted datasets, or {@code 1} if there are none yet.
+     */
+    private static double statementsPerSubject() {
+        long statements = 0;
+        long subjects = 0;
+        for (WeightedSubjects weights : WEIGHTS.values()) {
+            statements += weights.total();
+            subjects += weights.size();
+        }
+        return subjects == 0 ? 1 : (double) statements / subjects;
+    }
+
+    /**
+     * @return the statements to be curated in the dataset, estimated if its weights are not fetched yet, times its priority.
+     */
+    private static double mass(String dataset, EntityIdSet subjects, double statementsPerSubject) {
+        WeightedSubjects weights = WEIGHTS.get(dataset);
+        double statements = weights == null ? subjects.size() * statementsPerSubject : weights.total();
+        return Config.RANDOM_DATASET_PRIORITIES.getOrDefault(dataset, 1.0) * statements;
+    }
+
+    private static String drawSubject(EntitiesCache.Snapshot snapshot, String dataset) {
+        WeightedSubjects weights = WEIGHTS.get(dataset);
+        if (weights == null) {
+            UNIFORM_DRAWS.incrementAndGet();
+            return snapshot.subjectSampler().sample(dataset);
+        }
+        WEIGHTED_DRAWS.incrementAndGet();
+        return weights.sample();
+    }
+
+    /**
+     * Account for a curated claim, so that its subject gets less likely to be drawn, and never once it has no claims left.
+     * The statements of the subject are counted again in the background: a SPARQL update succeeds even if it matched nothing,
+     * e.g., for a claim that another curator already handled, so the weight can't just be decremented.
+     *
+     * @param dataset the dataset URI, including the state, e.g., {@code http://chuck-berry/new}.
+     * @param qId     the subject item QID.
+     */
+    public static void curated(String dataset, String qId) {
+        if (!WEIGHTS.containsKey(dataset)) return;
+        // Already queued: the queued count will see the latest data
+        if (!PENDING_RECOUNTS.computeIfAbsent(dataset, d -> ConcurrentHashMap.newKeySet()).add(qId)) return;
+        try {
+            FETCHER.execute(() -> {
+                PENDING_RECOUNTS.get(dataset).remove(qId);
+                recount(dataset, qId);
+            });
+        } catch (RejectedExecutionException ree) {
+            PENDING_RECOUNTS.get(dataset).remove(qId);
+        }
+    }
+
+    /**
+     * Fetch the weights of the given datasets again, in the background, typically after the entities cache loads them.
+     * Weights of datasets that left the entities cache are dropped.
+     *
+     * @param datasets the dataset URIs, including the state, e.g., {@code http://chuck-berry/new}.
+     */
+    static void refresh(Collection<String> datasets) {
+        if (WEIGHTS.keySet().retainAll(EntitiesCache.snapshot().subjects().keySet())) WEIGHTS_VERSION.incrementAndGet();
+        for (String dataset : datasets) {
+            // Already queued: the queued fetch will see the latest data
+            if (!PENDING_FETCHES.add(dataset)) continue;
+            try {
+                FETCHER.execute(() -> {
+                    PENDING_FETCHES.remove(dataset);
+                    fetchWeights(dataset);
+                });
+            } catch (RejectedExecutionException ree) {
+                PENDING_FETCHES.remove(dataset);
+            }
+        }
+    }
+
+    /**
+     * Runs on the fetcher thread: log anything that may be thrown.
+     */
+    private static void fetchWeights(String dataset) {
+        long start = System.nanoTime();
+        WeightedSubjects.Builder builder = new WeightedSubjects.Builder();
+        int namespaceIndex = Utils.WIKIBASE_URIS.entity().length();
+        int pageSize = Config.ENTITIES_CACHE_PAGE_SIZE;
+        try {
+            int rows = pageSize;
+            for (long offset = 0; rows == pageSize; offset += pageSize) {
+                String query = SparqlQueries.SUBJECT_WEIGHTS_ONE_DATASET_TEMPLATE.bind()
+                    .set(SparqlTemplate.Slot.DATASET, dataset)
+                    .set(SparqlTemplate.Slot.OFFSET, offset)
+                    .set(SparqlTemplate.Slot.LIMIT, pageSize)
+                    .render();
+                AtomicInteger pageRows = new AtomicInteger();
+                boolean pageOk = Utils.runSparqlQuery(query, SparqlResultFormat.TSV, result -> {
+                    pageRows.incrementAndGet();
+                    String subject = result.get("subject");
+                    if (subject.length() > namespaceIndex) builder.add(subject.substring(namespaceIndex), Integer.parseInt(result.get("statements")));
+                });
+                if (!pageOk) {
+                    log.error("Failed evaluating the SPARQL query that fetches subject weights: '{}'. Subjects of dataset <{}> will be drawn as they are",
+                        query, dataset);
+                    FAILED_FETCHES.incrementAndGet();
+                    return;
+                }
+                rows = pageRows.get();
+            }
+        } catch (BlazegraphUnavailableException bue) {
+            log.warn("Skipped fetching the subject weights of dataset <{}>: {}", dataset, bue.getMessage());
+            FAILED_FETCHES.incrementAndGet();
+            return;
+        } catch (RuntimeException re) {
+            log.error("Something went wrong while fetching the subject weights of dataset " + dataset, re);
+            FAILED_FETCHES.incrementAndGet();
+            return;
+        }
+        WeightedSubjects weights = builder.build();
+        // The dataset may have left the cache meanwhile
+        if (EntitiesCache.snapshot().subjects().containsKey(dataset)) {
+            WEIGHTS.put(dataset, weights);
+            WEIGHTS_VERSION.incrementAndGet();
+        }
+        log.info("Fetched the weights of {} subjects of dataset <{}> in {} ms: {} statements to be curated", weights.size(), dataset,
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), weights.total());
+    }
+
+    /**
+     * Runs on the fetcher thread: log anything that may be thrown.
+     * If the count fails, the weight stays as it is until the next fetch of the dataset weights.
+     */
+    private static void recount(String dataset, String qId) {
+        WeightedSubjects weights = WEIGHTS.get(dataset);
+        if (weights == null) return;
+        try {
+            String query = SparqlQueries.SUBJECT_WEIGHT_TEMPLATE.bind()
+                .set(SparqlTemplate.Slot.DATASET, dataset)
+                .set(SparqlTemplate.Slot.QID, qId)
+                .render();
+            AtomicInteger statements = new AtomicInteger(-1);
+            boolean ok = Utils.runSparqlQuery(query, SparqlResultFormat.TSV, result -> statements.set(Integer.parseInt(result.get("statements"))));
+            if (!ok || statements.get() < 0) {
+                log.warn("Failed counting the statements of subject {} in dataset <{}>. Its weight will be fetched again with the dataset ones", qId,
+                    dataset);
+                FAILED_FETCHES.incrementAndGet();
+                return;
+            }
+            if (weights.set(qId, statements.get())) WEIGHTS_VERSION.incrementAndGet();
+        } catch (BlazegraphUnavailableException bue) {
+            log.warn("Skipped counting the statements of subject {} in dataset <{}>: {}", qId, dataset, bue.getMessage());
+            FAILED_FETCHES.incrementAndGet();
+        } catch (RuntimeException re) {
+            log.error("Something went wrong while counting the statements of subject " + qId + " in dataset " + dataset, re);
+            FAILED_FETCHES.incrementAndGet();
+        }
+    }
+
+    /**
+     * The datasets with their cumulative masses, for a given snapshot of the entities cache and version of the weights.
+     */
+    static final class DatasetMasses {
+
+        private final Map<String, EntityIdSet> subjects;
+        private final long version;
+        private final String[] datasets;
+        // Strictly increasing: datasets with no mass are left out
+        private final double[] cumulative;
+
+        DatasetMasses(Map<String, EntityIdSet> subjects, long version, String[] datasets, double[] masses) {
+            this.subjects = subjects;
+            this.version = version;
+            String[] kept = new String[datasets.length];
+            double[] sums = new double[datasets.length];
+            int size = 0;
+            double total = 0;
+            for (int i = 0; i < datasets.length; i++) {
+                if (!(masses[i] > 0)) continue;
+                total += masses[i];
+                kept[size] = datasets[i];
+                sums[size++] = total;
+            }
+            this.datasets = Arrays.copyOf(kept, size);
+            this.cumulative = Arrays.copyOf(sums, size);
+        }
+
+        /**
+         * @return a dataset URI, drawn with a probability proportional to its mass, or <i>null</i> if no dataset has any.
+         */
+        String draw() {
+            if (cumulative.length == 0) return null;
+            double remaining = ThreadLocalRandom.current().nextDouble(cumulative[cumulative.length - 1]);
+            int index = Arrays.binarySearch(cumulative, remaining);
+            // The first cumulative mass above the drawn one, rounding errors aside
+            index = index < 0 ? -index - 1 : index + 1;
+            return datasets[Math.min(index, datasets.length - 1)];
+        }
+    }
+
+    /**
+     * Stop fetching weights, when the Web application stops, see {@link CacheUpdater}.
+     */
+    static void shutdown() {
+        FETCHER.shutdown(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return the draw counters, the weighted datasets, and the usage of the weights fetcher.
+     */
+    static JSONObject metrics() {
+        JSONObject metrics = new JSONObject();
+        metrics.put("weighted_draws", WEIGHTED_DRAWS.get());
+        metrics.put("uniform_draws", UNIFORM_DRAWS.get());
+        metrics.put("repeats_avoided", REPEATS_AVOIDED.get());
+        metrics.put("tracked_users", RECENT.size());
+        JSONObject datasets = new JSONObject();
+        for (Map.Entry<String, WeightedSubjects> entry : WEIGHTS.entrySet()) datasets.put(entry.getKey(), entry.getValue().total());
+        metrics.put("statements_per_dataset", datasets);
+        metrics.put("failed_fetches", FAILED_FETCHES.get());
+        metrics.put("fetcher", FETCHER.metrics());
+        return metrics;
+    }
+}
@@ -0,0 +1,228 @@
+package org.wikidata.query.rdf.primarysources.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Random subject items with their suggestions already fetched and formatted, ready to be served by
+ * {@link org.wikidata.query.rdf.primarysources.curation.RandomServlet}.
+ * <p>
+ * Each dataset, and {@code all} datasets, has a bounded queue, see {@link Config#RANDOM_PREFETCH_SIZE}, created on the first request.
+ * A background worker refills a queue after each poll: it picks subjects, see {@link RandomSubjects}, and fetches their suggestions,
+ * see {@link Utils#getSuggestions(String, String, Endpoint)}. Subjects without suggestions are skipped there, so they never cost a request a 404.
+ * <p>
+ * A prefetched subject is stale if a change to its subject was applied since its suggestions were fetched, e.g., a curation,
+ * see {@link #changed(EntityChange)}, or if it is older than {@link #MAX_AGE_MINUTES} minutes, e.g., after a curation through another instance.
+ * Stale subjects are dropped when polled.
+ *
+ * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
+ * @since 0.2.5 - created on Jun 25, 2018.
+ */
+public final class RandomSuggestions {
+
+    private static final Logger log = LoggerFactory.getLogger(RandomSuggestions.class);
+    private static final long MAX_AGE_MINUTES = 10;
+    private static final long MAX_AGE = TimeUnit.MINUTES.toNanos(MAX_AGE_MINUTES);
+    // Beyond this number of touched subjects, e.g., after a big update, the whole dataset is stale
+    private static final int MAX_TRACKED_SUBJECTS = 1000;
+    private static final Map<String, BlockingQueue<Prefetched>> QUEUES = new ConcurrentHashMap<>();
+    private static final BackgroundExecutor REFILLER = new BackgroundExecutor("random-prefetch", 1, Config.CACHE_MAINTENANCE_QUEUE_SIZE,
+        new ThreadPoolExecutor.AbortPolicy());
+    private static final Set<String> PENDING_REFILLS = ConcurrentHashMap.newKeySet();
+    // QID -> System.nanoTime() of its latest change
+    private static final Map<String, Long> CHANGED_SUBJECTS = new ConcurrentHashMap<>();
+    // Dataset or "all" -> System.nanoTime() of its latest bulk change
+    private static final Map<String, Long> CHANGED_DATASETS = new ConcurrentHashMap<>();
+    private static final AtomicLong HITS = new AtomicLong();
+    private static final AtomicLong MISSES = new AtomicLong();
+    private static final AtomicLong STALE = new AtomicLong();
+    private static final AtomicLong PREFETCHED = new AtomicLong();
+    private static final AtomicLong EMPTY = new AtomicLong();
+    // Seconds given to the refiller to complete at shutdown
+    private static final long SHUTDOWN_TIMEOUT = 10;
+
+    private RandomSuggestions() {
+    }
+
+    /**
+     * Take a prefetched subject, and queue a refill.
+     *
+     * @param dataset the dataset URI, including the state, e.g., {@code http://chuck-berry/new}, or {@code all} for any dataset.
+     * @param user    the user name, or <i>null</i>. Subjects in the user exclusion window are left for other users, see {@link RandomSubjects}.
+     * @return a fresh prefetched subject, or <i>null</i> if none is ready: then pick and fetch one on the request path.
+     */
+    public static Prefetched poll(String dataset, String user) {
+        BlockingQueue<Prefetched> queue = queueOf(dataset);
+        if (queue == null) return null;
+        Prefetched served = null;
+        List<Prefetched> skipped = new ArrayList<>(0);
+        for (Prefetched prefetched = queue.poll(); prefetched != null; prefetched = queue.poll()) {
+            if (isStale(prefetched)) {
+                STALE.incrementAndGet();
+                continue;
+            }
+            if (RandomSubjects.recentlyServed(user, prefetched.qId)) {
+                skipped.add(prefetched);
+                continue;
+            }
+            served = prefetched;
+            break;
+        }
+        for (Prefetched prefetched : skipped) queue.offer(prefetched);
+        refill(dataset, queue);
+        if (served == null) {
+            MISSES.incrementAndGet();
+            return null;
+        }
+        HITS.incrementAndGet();
+        RandomSubjects.served(user, served.qId);
+        return served;
+    }
+
+    private static BlockingQueue<Prefetched> queueOf(String dataset) {
+        if (Config.RANDOM_PREFETCH_SIZE == 0) return null;
+        // Don't let unknown datasets create queues
+        if (!dataset.equals("all") && !EntitiesCache.snapshot().subjects().containsKey(dataset)) return null;
+        return QUEUES.computeIfAbsent(dataset, k -> new ArrayBlockingQueue<>(Config.RANDOM_PREFETCH_SIZE));
+    }
+
+    private static boolean isStale(Prefetched prefetched) {
+        long fetched = prefetched.fetched;
+        if (System.nanoTime() - fetched > MAX_AGE) return true;
+        Long subjectChange = CHANGED_SUBJECTS.get(prefetched.qId);
+        if (subjectChange != null && subjectChange - fetched >= 0) return true;
+        Long datasetChange = CHANGED_DATASETS.get(prefetched.dataset);
+        return datasetChange != null && datasetChange - fetched >= 0;
+    }
+
+    private static void refill(String dataset, BlockingQueue<Prefetched> queue) {
+        if (queue.remainingCapacity() == 0 || !PENDING_REFILLS.add(dataset)) return;
+        try {
+            REFILLER.execute(() -> {
+                try {
+                    fill(dataset, queue);
+                } finally {
+                    PENDING_REFILLS.remove(dataset);
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            PENDING_REFILLS.remove(dataset);
+        }
+    }
+
+    /**
+     * Runs on the refiller thread: log anything that may be thrown.
+     */
+    private static void fill(String dataset, BlockingQueue<Prefetched> queue) {
+        long now = System.nanoTime();
+        CHANGED_SUBJECTS.values().removeIf(changed -> now - changed > MAX_AGE);
+        CHANGED_DATASETS.values().removeIf(changed -> now - changed > MAX_AGE);
+        try {
+            // Give up after a while, e.g., when most subjects of a small dataset are already queued
+            for (int draw = 0; draw < 2 * Config.RANDOM_PREFETCH_SIZE && queue.remainingCapacity() > 0; draw++) {
+                String qId = RandomSubjects.pick(dataset, null);
+                if (qId == null) return;
+                if (queue.stream().anyMatch(prefetched -> prefetched.qId.equals(qId))) continue;
+                long fetched = System.nanoTime();
+                JSONArray suggestions = Utils.getSuggestions(dataset, qId, Endpoint.RANDOM);
+                // Something went wrong, the next poll will try again
+                if (suggestions == null) return;
+                if (suggestions.isEmpty()) {
+                    EMPTY.incrementAndGet();
+                    continue;
+                }
+                if (!queue.offer(new Prefetched(dataset, qId, suggestions, fetched))) return;
+                PREFETCHED.incrementAndGet();
+            }
+        } catch (RuntimeException re) {
+            log.warn("Stopped prefetching random suggestions of dataset {}, will try again at the next request: {}", dataset, re.toString());
+        }
+    }
+
+    /**
+     * Mark the prefetched subjects touched by a change as stale, see {@link EntitiesCache#applyChange(EntityChange)}.
+     * Additions, e.g., uploads, or big removals make the whole dataset stale.
+     *
+     * @param change the entities added or touched by a write.
+     */
+    static void changed(EntityChange change) {
+        long now = System.nanoTime();
+        Set<String> touched = change.touched("subject");
+        if (!change.added("subject").isEmpty() || touched.size() > MAX_TRACKED_SUBJECTS) {
+            CHANGED_DATASETS.put(change.getDataset(), now);
+            CHANGED_DATASETS.put("all", now);
+        } else {
+            for (String qId : touched) CHANGED_SUBJECTS.put(qId, now);
+        }
+    }
+
+    /**
+     * Stop prefetching, when the Web application stops, see {@link CacheUpdater}.
+     */
+    static void shutdown() {
+        REFILLER.shutdown(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return the hit and miss counters, the queue sizes, and the usage of the refiller.
+     */
+    static JSONObject metrics() {
+        JSONObject metrics = new JSONObject();
+        metrics.put("hits", HITS.get());
+        metrics.put("misses", MISSES.get());
+        metrics.put("stale", STALE.get());
+        metrics.put("prefetched", PREFETCHED.get());
+        metrics.put("skipped_without_suggestions", EMPTY.get());
+        metrics.put("capacity", Config.RANDOM_PREFETCH_SIZE);
+        JSONObject queues = new JSONObject();
+        for (Map.Entry<String, BlockingQueue<Prefetched>> entry : QUEUES.entrySet()) queues.put(entry.getKey(), entry.getValue().size());
+        metrics.put("queued", queues);
+        metrics.put("refiller", REFILLER.metrics());
+        return metrics;
+    }
+
+    /**
+     * A random subject item with its suggestions, as fetched at a given time.
+     */
+    public static final class Prefetched {
+        private final String dataset;
+        private final String qId;
+        private final JSONArray suggestions;
+        private final long fetched;
+
+        private Prefetched(String dataset, String qId, JSONArray suggestions, long fetched) {
+            this.dataset = dataset;
+            this.qId = qId;
+            this.suggestions = suggestions;
+            this.fetched = fetched;
+        }
+
+        /**
+         * @return the subject item QID.
+         */
+        public String getQId() {
+            return qId;
+        }
+
+        /**
+         * @return the formatted suggestions, never empty. They may be shared with the suggestions cache: don't modify them.
+         */
+        public JSONArray getSuggestions() {
+            return suggestions;
+        }
+    }
+}
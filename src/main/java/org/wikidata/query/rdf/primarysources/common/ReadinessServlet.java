@@ -0,0 +1,47 @@
+package org.wikidata.query.rdf.primarysources.common;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tell load balancers whether this instance of the Wikidata primary sources tool back end should get traffic.
+ * <p>
+ * The instance is ready with a HTTP 200 once both the entities and the datasets statistics caches are loaded in memory,
+ * see {@link EntitiesCache#isReady()} and {@link DatasetsStatisticsCache#isReady()}, and not ready with a HTTP 503 until then.
+ * This typically happens right at startup, see {@link CacheUpdater}, or after the first cache update of a fresh installation.
+ * The JSON body tells which cache is loaded.
+ *
+ * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
+ * @since 0.2.5 - created on Jun 21, 2018.
+ */
+public class ReadinessServlet extends HttpServlet {
+
+    private static final Logger log = LoggerFactory.getLogger(ReadinessServlet.class);
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        boolean entities = EntitiesCache.isReady();
+        boolean statistics = DatasetsStatisticsCache.isReady();
+        boolean ready = entities && statistics;
+        JSONObject readiness = new JSONObject();
+        readiness.put("ready", ready);
+        readiness.put("entities", entities);
+        readiness.put("statistics", statistics);
+        response.setStatus(ready ? HttpServletResponse.SC_OK : HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        response.setContentType(ApiParameters.DEFAULT_IO_CONTENT_TYPE);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        try (PrintWriter pw = response.getWriter()) {
+            readiness.writeJSONString(pw);
+        }
+        log.debug("GET /ready successful: {}", readiness);
+    }
+}
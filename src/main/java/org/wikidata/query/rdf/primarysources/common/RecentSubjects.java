@@ -0,0 +1,50 @@
+package org.wikidata.query.rdf.primarysources.common;
+
+/**
+ * The latest subject items served to a user, so that they are not served again too soon, see {@link RandomSubjects}.
+ * <p>
+ * A ring of the numeric parts of the QIDs: the window is small, so a linear scan is cheaper than any hash set, and takes 4 bytes per subject.
+ *
+ * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
+ * @since 0.2.5 - created on Jun 24, 2018.
+ */
+final class RecentSubjects {
+
+    // Guarded by this
+    private final int[] ring;
+    private int next;
+    private int size;
+
+    /**
+     * @param window how many subjects to remember.
+     */
+    RecentSubjects(int window) {
+        this.ring = new int[window];
+    }
+
+    /**
+     * @param qId a subject item QID.
+     * @return <i>true</i> if the subject is among the latest ones.
+     */
+    synchronized boolean contains(String qId) {
+        int id = EntityIdSet.parse('Q', qId);
+        if (id < 0) return false;
+        for (int i = 0; i < size; i++) {
+            if (ring[i] == id) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Remember a subject, and forget the oldest one if the window is full.
+     *
+     * @param qId a subject item QID.
+     */
+    synchronized void add(String qId) {
+        int id = EntityIdSet.parse('Q', qId);
+        if (id < 0 || ring.length == 0) return;
+        ring[next] = id;
+        next = (next + 1) % ring.length;
+        if (size < ring.length) size++;
+    }
+}
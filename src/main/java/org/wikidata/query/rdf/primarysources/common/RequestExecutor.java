@@ -0,0 +1,356 @@
+package org.wikidata.query.rdf.primarysources.common;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Run Web service requests with Servlet 3.1 async processing, so that the servlet container threads are not parked on Blazegraph I/O.
+ * <p>
+ * The container thread only starts the async processing and returns.
+ * The request is then handled by a worker and completed by a callback.
+ * Workers depend on the {@link Mode}:
+ * <ul>
+ * <li>{@link Mode#PLATFORM}: a bounded pool of platform threads, sized on the Blazegraph connection pools.
+ * Requests waiting for a worker are queued, so thousands of them can be in flight without holding a container thread each;</li>
+ * <li>{@link Mode#VIRTUAL}: one virtual thread per request, which can block on Blazegraph calls at almost no cost, see {@link BlazegraphClient}.
+ * Requires a Java 21 runtime, otherwise falls back to {@link Mode#PLATFORM}.</li>
+ * </ul>
+ * In both modes, the number of requests in flight is bounded: beyond it, requests are rejected straight away with HTTP 503.
+ * <p>
+ * Each request gets a deadline for its SPARQL queries, see {@link QueryDeadline}: requests exceeding it get HTTP 504,
+ * and requests the container reports an async error for, e.g., a failed response write, stop their queries.
+ * Client disconnects are not detected otherwise, so a request waiting on Blazegraph is bound by its deadline alone.
+ * Requests shed to protect Blazegraph get HTTP 503, see {@link BlazegraphClient}.
+ * <p>
+ * Servlets must support async processing, otherwise requests are handled synchronously as before:
+ * the Web services are annotated with {@code @WebServlet(asyncSupported = true)}, and a Web application descriptor that declares them
+ * must not set {@code <async-supported>false</async-supported>}.
+ * The execution mode, pool and queue sizes are set through environment variables, see {@link Config}.
+ *
+ * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
+ * @since 0.2.5 - created on Jun 13, 2018.
+ */
+public final class RequestExecutor {
+
+    private static final Logger log = LoggerFactory.getLogger(RequestExecutor.class);
+
+    private static final ExecutorService VIRTUAL_WORKERS = Config.REQUEST_EXECUTION_MODE == Mode.VIRTUAL ? newVirtualThreadPerTaskExecutor("request-") : null;
+    private static final Mode MODE = VIRTUAL_WORKERS == null ? Mode.PLATFORM : Mode.VIRTUAL;
+    private static final ThreadPoolExecutor PLATFORM_WORKERS = MODE == Mode.PLATFORM ? newPlatformWorkers() : null;
+    private static final ExecutorService WORKERS = MODE == Mode.PLATFORM ? PLATFORM_WORKERS : VIRTUAL_WORKERS;
+    // Running plus queued requests
+    private static final int MAX_IN_FLIGHT = Config.REQUEST_WORKERS + Config.REQUEST_QUEUE_SIZE;
+    private static final Semaphore ADMISSIONS = new Semaphore(MAX_IN_FLIGHT);
+    private static final Map<Endpoint, AtomicInteger> IN_FLIGHT = new EnumMap<>(Endpoint.class);
+    private static final AtomicLong REJECTED = new AtomicLong();
+    private static final AtomicLong SYNCHRONOUS = new AtomicLong();
+    private static final Map<Endpoint, AtomicLong> TIMEOUTS = new EnumMap<>(Endpoint.class);
+    private static final Map<Endpoint, AtomicLong> CANCELLED = new EnumMap<>(Endpoint.class);
+    private static final Map<Endpoint, AtomicLong> SHED = new EnumMap<>(Endpoint.class);
+
+    static {
+        for (Endpoint endpoint : Endpoint.values()) {
+            IN_FLIGHT.put(endpoint, new AtomicInteger());
+            TIMEOUTS.put(endpoint, new AtomicLong());
+            CANCELLED.put(endpoint, new AtomicLong());
+            SHED.put(endpoint, new AtomicLong());
+        }
+        if (Config.REQUEST_EXECUTION_MODE != MODE) log.warn("Virtual threads are not available in this Java runtime, falling back to platform threads");
+        log.info("Request execution mode: {}. Maximum requests in flight: {}", MODE, MAX_IN_FLIGHT);
+    }
+
+    private RequestExecutor() {
+    }
+
+    /**
+     * How requests are handled, set through the {@code REQUEST_EXECUTION_MODE} environment variable, see {@link Config}.
+     */
+    enum Mode {
+        /**
+         * A bounded pool of platform threads.
+         */
+        PLATFORM,
+        /**
+         * A virtual thread per request.
+         */
+        VIRTUAL;
+
+        /**
+         * Called while {@link Config} is initialized, so a typo must not fail it.
+         *
+         * @param name the mode name, case insensitive, e.g., <i>virtual</i>.
+         * @return the mode, or {@link #PLATFORM} if the name is unknown.
+         */
+        static Mode forName(String name) {
+            try {
+                return valueOf(name.trim().toUpperCase(Locale.ENGLISH));
+            } catch (IllegalArgumentException iae) {
+                // Not the outer class logger: initializing RequestExecutor here would read Config before it is ready
+                LoggerFactory.getLogger(RequestExecutor.class).warn("Unknown request execution mode '{}'. Expected one of 'platform' or 'virtual'. " +
+                    "Falling back to platform threads", name);
+                return PLATFORM;
+            }
+        }
+    }
+
+    /**
+     * The code that actually handles a request, i.e., the body of a servlet {@code doGet} or {@code doPost}.
+     */
+    @FunctionalInterface
+    public interface Handler {
+        /**
+         * @throws IOException if an input or output error is detected when handling the request.
+         */
+        void handle() throws IOException;
+    }
+
+    /**
+     * Handle a request asynchronously, if the servlet supports it, otherwise on the calling thread.
+     * Unexpected failures of the handler become HTTP 500 responses, unless the response was already committed.
+     *
+     * @param request  the servlet request.
+     * @param response the servlet response.
+     * @param endpoint the Web service, for metrics.
+     * @param handler  the request handling code.
+     * @throws IOException if the request is handled synchronously and the handler fails.
+     */
+    public static void execute(HttpServletRequest request, HttpServletResponse response, Endpoint endpoint, Handler handler) throws IOException {
+        QueryDeadline deadline = QueryDeadline.start(endpoint);
+        if (!request.isAsyncSupported()) {
+            SYNCHRONOUS.incrementAndGet();
+            log.debug("Async processing not supported for {}, will handle the request on the container thread", endpoint);
+            deadline.attach();
+            try {
+                handler.handle();
+            } catch (QueryTimeoutException qte) {
+                timeOut(response, endpoint, qte);
+            } catch (BlazegraphUnavailableException bue) {
+                shed(response, endpoint, bue);
+            } finally {
+                QueryDeadline.detach();
+            }
+            return;
+        }
+        AsyncContext async = request.startAsync();
+        // Slow queries are bounded by the query deadlines, not by the container
+        async.setTimeout(0);
+        async.addListener(new CancellingListener(deadline));
+        if (!ADMISSIONS.tryAcquire()) {
+            try {
+                reject(response, endpoint);
+            } finally {
+                async.complete();
+            }
+            return;
+        }
+        AtomicInteger inFlight = IN_FLIGHT.get(endpoint);
+        inFlight.incrementAndGet();
+        CompletableFuture<Void> handled;
+        try {
+            handled = CompletableFuture.runAsync(() -> {
+                deadline.attach();
+                try {
+                    handler.handle();
+                } catch (IOException ioe) {
+                    throw new CompletionException(ioe);
+                } finally {
+                    QueryDeadline.detach();
+                }
+            }, WORKERS);
+        } catch (RejectedExecutionException ree) {
+            // Only when shutting down
+            inFlight.decrementAndGet();
+            ADMISSIONS.release();
+            try {
+                reject(response, endpoint);
+            } finally {
+                async.complete();
+            }
+            return;
+        }
+        handled.whenComplete((ignored, error) -> {
+            inFlight.decrementAndGet();
+            ADMISSIONS.release();
+            Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+            try {
+                if (cause instanceof QueryTimeoutException) timeOut(response, endpoint, (QueryTimeoutException) cause);
+                else if (cause instanceof BlazegraphUnavailableException) shed(response, endpoint, (BlazegraphUnavailableException) cause);
+                else if (cause instanceof CancellationException) {
+                    CANCELLED.get(endpoint).incrementAndGet();
+                    log.info("Stopped handling a request to {}: {}", endpoint, cause.getMessage());
+                } else if (cause != null) fail(response, endpoint, cause);
+            } finally {
+                async.complete();
+            }
+        });
+    }
+
+    private static void reject(HttpServletResponse response, Endpoint endpoint) {
+        REJECTED.incrementAndGet();
+        log.warn("Too many requests in flight, rejecting a request to {}. Requests in flight: {}", endpoint, MAX_IN_FLIGHT - ADMISSIONS.availablePermits());
+        response.setHeader("Retry-After", "1");
+        try {
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "The service is overloaded, please try again later.");
+        } catch (IOException ioe) {
+            log.error("Failed sending the rejection response for a request to " + endpoint, ioe);
+        }
+    }
+
+    private static void timeOut(HttpServletResponse response, Endpoint endpoint, QueryTimeoutException qte) {
+        TIMEOUTS.get(endpoint).incrementAndGet();
+        log.warn(qte.getMessage());
+        if (response.isCommitted()) return;
+        try {
+            response.sendError(HttpServletResponse.SC_GATEWAY_TIMEOUT, "The query took too long. Please try again later, or narrow it down.");
+        } catch (IOException ioe) {
+            log.error("Failed sending the timeout response for a request to " + endpoint, ioe);
+        }
+    }
+
+    private static void shed(HttpServletResponse response, Endpoint endpoint, BlazegraphUnavailableException bue) {
+        SHED.get(endpoint).incrementAndGet();
+        log.warn("Shed a request to {}: {}", endpoint, bue.getMessage());
+        if (response.isCommitted()) return;
+        response.setHeader("Retry-After", Long.toString(bue.getRetryAfter()));
+        try {
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "The service is overloaded, please try again later.");
+        } catch (IOException ioe) {
+            log.error("Failed sending the overload response for a request to " + endpoint, ioe);
+        }
+    }
+
+    private static void fail(HttpServletResponse response, Endpoint endpoint, Throwable error) {
+        log.error("Failed handling a request to " + endpoint, error);
+        if (response.isCommitted()) return;
+        try {
+            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Something went wrong while handling your request.");
+        } catch (IOException ioe) {
+            log.error("Failed sending the error response for a request to " + endpoint, ioe);
+        }
+    }
+
+    /**
+     * @return the worker pool usage, the requests in flight per Web service, the counters of rejected and synchronously handled requests,
+     * and, per Web service, the counters of requests that exceeded the query deadline, that were cancelled after an async error,
+     * or that were shed to protect Blazegraph, see {@link BlazegraphClient}.
+     */
+    static JSONObject metrics() {
+        JSONObject metrics = new JSONObject();
+        metrics.put("mode", MODE.toString().toLowerCase(Locale.ENGLISH));
+        metrics.put("max_in_flight", MAX_IN_FLIGHT);
+        if (PLATFORM_WORKERS != null) {
+            metrics.put("workers", PLATFORM_WORKERS.getMaximumPoolSize());
+            metrics.put("active", PLATFORM_WORKERS.getActiveCount());
+            metrics.put("queued", PLATFORM_WORKERS.getQueue().size());
+            metrics.put("completed", PLATFORM_WORKERS.getCompletedTaskCount());
+        }
+        metrics.put("rejected", REJECTED.get());
+        metrics.put("synchronous", SYNCHRONOUS.get());
+        JSONObject inFlight = new JSONObject();
+        for (Map.Entry<Endpoint, AtomicInteger> entry : IN_FLIGHT.entrySet()) inFlight.put(entry.getKey().toString(), entry.getValue().get());
+        metrics.put("in_flight", inFlight);
+        metrics.put("timeouts", counters(TIMEOUTS));
+        metrics.put("cancelled", counters(CANCELLED));
+        metrics.put("shed", counters(SHED));
+        return metrics;
+    }
+
+    private static JSONObject counters(Map<Endpoint, AtomicLong> perEndpoint) {
+        JSONObject counters = new JSONObject();
+        for (Map.Entry<Endpoint, AtomicLong> entry : perEndpoint.entrySet()) counters.put(entry.getKey().toString(), entry.getValue().get());
+        return counters;
+    }
+
+    private static ThreadPoolExecutor newPlatformWorkers() {
+        // The queue is bounded by the admissions
+        ThreadPoolExecutor workers = new ThreadPoolExecutor(Config.REQUEST_WORKERS, Config.REQUEST_WORKERS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+            new ThreadFactoryBuilder().setNameFormat("request-worker-%d").setDaemon(true).build());
+        workers.allowCoreThreadTimeOut(true);
+        return workers;
+    }
+
+    /**
+     * Create an executor that starts a new virtual thread for each task.
+     * The code base targets Java 8, so the Java 21 API is looked up via reflection.
+     *
+     * @param namePrefix the thread name prefix, followed by a counter.
+     * @return the executor, or <i>null</i> if virtual threads are not available.
+     */
+    static ExecutorService newVirtualThreadPerTaskExecutor(String namePrefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
+        } catch (ReflectiveOperationException roe) {
+            log.debug("Virtual threads not available: {}", roe.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Cancel the request queries when the container reports an error, i.e., when an I/O operation on the connection fails,
+     * e.g., a response write. It doesn't while the request waits idle, even if the client is gone.
+     */
+    private static final class CancellingListener implements AsyncListener {
+        private final QueryDeadline deadline;
+
+        private CancellingListener(QueryDeadline deadline) {
+            this.deadline = deadline;
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            log.debug("Async error, will cancel the running queries: {}", String.valueOf(event.getThrowable()));
+            deadline.cancel();
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+    }
+
+    /**
+     * Stop accepting requests and interrupt the running ones. Call it when the Web application shuts down.
+     */
+    static void shutdown() {
+        WORKERS.shutdownNow();
+        log.info("Request workers shut down");
+    }
+}
@@ -0,0 +1,120 @@
+package org.wikidata.query.rdf.primarysources.common;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import org.json.simple.parser.ContentHandler;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * An event-based parser of SPARQL query results serialized in JSON, see <a href="https://www.w3.org/TR/sparql11-results-json/">the specification</a>.
+ * <p>
+ * It walks the JSON tokens as they are read and fires a {@link SparqlRowHandler} call for each object in <code>results.bindings</code>,
+ * without building any intermediate JSON or RDF object.
+ *
+ * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
+ * @since 0.2.5 - created on Jun 06, 2018.
+ */
+final class SparqlJsonStreamParser implements ContentHandler {
+
+    /*
+     Nesting levels of the interesting JSON tokens:
+     { "results": { "bindings": [ { "binding name": { "type": "uri", "value": "http://..." } } ] } }
+     1              2             3 4                  5
+      */
+    private static final int RESULTS_LEVEL = 1;
+    private static final int BINDINGS_LEVEL = 2;
+    private static final int ROW_LEVEL = 4;
+    private static final int TERM_LEVEL = 5;
+
+    private final SparqlRowHandler handler;
+    private final SparqlRow row = new SparqlRow();
+    // The current object key at each nesting level
+    private final String[] keys = new String[TERM_LEVEL + 1];
+    private int level;
+    private SparqlRow.Term term;
+    private long rows;
+
+    private SparqlJsonStreamParser(SparqlRowHandler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Parse a SPARQL JSON result and pass each row to the given handler.
+     *
+     * @param reader  the SPARQL JSON result.
+     * @param handler the row handler.
+     * @return the total number of rows.
+     * @throws ParseException if the JSON is malformed.
+     * @throws IOException    if something goes wrong while reading.
+     */
+    static long parse(Reader reader, SparqlRowHandler handler) throws ParseException, IOException {
+        SparqlJsonStreamParser parser = new SparqlJsonStreamParser(handler);
+        new JSONParser().parse(reader, parser);
+        return parser.rows;
+    }
+
+    private boolean inBindings() {
+        return level >= ROW_LEVEL - 1 && "results".equals(keys[RESULTS_LEVEL]) && "bindings".equals(keys[BINDINGS_LEVEL]);
+    }
+
+    @Override
+    public void startJSON() {
+        level = 0;
+    }
+
+    @Override
+    public void endJSON() {
+    }
+
+    @Override
+    public boolean startObject() {
+        level++;
+        if (level <= TERM_LEVEL) keys[level] = null;
+        if (level == ROW_LEVEL && inBindings()) row.clear();
+        else if (level == TERM_LEVEL && inBindings()) term = row.bind(keys[ROW_LEVEL]);
+        return true;
+    }
+
+    @Override
+    public boolean endObject() {
+        if (level == ROW_LEVEL && inBindings()) {
+            handler.handle(row);
+            rows++;
+        } else if (level == TERM_LEVEL) {
+            term = null;
+        }
+        level--;
+        return true;
+    }
+
+    @Override
+    public boolean startObjectEntry(String key) {
+        if (level <= TERM_LEVEL) keys[level] = key;
+        return true;
+    }
+
+    @Override
+    public boolean endObjectEntry() {
+        return true;
+    }
+
+    @Override
+    public boolean startArray() {
+        level++;
+        return true;
+    }
+
+    @Override
+    public boolean endArray() {
+        level--;
+        return true;
+    }
+
+    @Override
+    public boolean primitive(Object value) {
+        if (term != null && level == TERM_LEVEL && value != null) term.set(keys[TERM_LEVEL], value.toString());
+        return true;
+    }
+}
@@ -5,6 +5,7 @@ package org.wikidata.query.rdf.primarysources.common;
  * <p>
  * Fields ending with {@code QUERY} are SPARQL query templates.
  * Fields ending with {@code PLACE_HOLDER} serve as place holders inside queries, and are filled with actual values at run time.
+ * Fields ending with {@code TEMPLATE} are the compiled query templates that fill them, see {@link SparqlTemplate}.
  *
  * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
  * @since 0.2.5 - created on Apr 17, 2018.
@@ -23,6 +24,7 @@ public final class SparqlQueries {
     public static final String OFFSET_PLACE_HOLDER = "${OFFSET}";
     public static final String LIMIT_PLACE_HOLDER = "${LIMIT}";
     public static final String QID_PLACE_HOLDER = "${QID}";
+    public static final String QIDS_PLACE_HOLDER = "${QIDS}";
 
     /* BEGIN: Curation API */
     // Used by /curate
@@ -307,6 +309,34 @@ public final class SparqlQueries {
             "    }" +
             "  }" +
             "}";
+    // Used by POST /suggest
+    static final String SUGGEST_BATCH_ALL_DATASETS_QUERY =
+        "SELECT ?subject ?dataset ?property ?statement_node ?statement_property ?statement_value ?reference_property ?reference_value " +
+            "WHERE {" +
+            "  VALUES ?subject { " + QIDS_PLACE_HOLDER + " }" +
+            "  GRAPH ?dataset {" +
+            "    ?subject a wikibase:Item ;" +
+            "             ?property ?statement_node ." +
+            "    ?statement_node ?statement_property ?statement_value ." +
+            "    OPTIONAL {" +
+            "      ?statement_value ?reference_property ?reference_value ." +
+            "    }" +
+            "  }" +
+            "  FILTER STRENDS(str(?dataset), \"new\") ." +
+            "}";
+    static final String SUGGEST_BATCH_ONE_DATASET_QUERY =
+        "SELECT ?subject ?property ?statement_node ?statement_property ?statement_value ?reference_property ?reference_value " +
+            "WHERE {" +
+            "  VALUES ?subject { " + QIDS_PLACE_HOLDER + " }" +
+            "  GRAPH <" + DATASET_PLACE_HOLDER + "> {" +
+            "    ?subject a wikibase:Item ;" +
+            "             ?property ?statement_node ." +
+            "    ?statement_node ?statement_property ?statement_value ." +
+            "    OPTIONAL {" +
+            "      ?statement_value ?reference_property ?reference_value ." +
+            "    }" +
+            "  }" +
+            "}";
     /* END: Curation API */
 
 
@@ -342,6 +372,10 @@ public final class SparqlQueries {
     /* END: datasets statistics cache */
 
     /* BEGIN: entities cache */
+    /*
+     Paged with a stable ordering, so that no single query exceeds the row budget, see Config.ENTITIES_CACHE_PAGE_SIZE.
+     A single query for subjects, properties, and values is too heavy, so split into 3
+    */
     // Also include qualifier values
     static final String VALUES_ONE_DATASET_QUERY =
         "SELECT DISTINCT ?value " +
@@ -352,7 +386,10 @@ public final class SparqlQueries {
             "    ?st_node ?st_property ?value ." +
             "  }" +
             "  FILTER STRSTARTS(str(?value), \"" + Utils.WIKIBASE_URIS.entity() + "Q\") ." +
-            "}";
+            "}" +
+            "ORDER BY ?value " +
+            "OFFSET " + OFFSET_PLACE_HOLDER + " " +
+            "LIMIT " + LIMIT_PLACE_HOLDER;
     // Only consider main PIDs, not qualifiers or references
     static final String PROPERTIES_ONE_DATASET_QUERY =
         "SELECT DISTINCT ?property " +
@@ -361,47 +398,107 @@ public final class SparqlQueries {
             "    ?subject a wikibase:Item ;" +
             "      ?property ?statement_node ." +
             "  }" +
-            "}";
-    // A single query for subjects, properties, and values is too heavy, so split into 3
+            "}" +
+            "ORDER BY ?property " +
+            "OFFSET " + OFFSET_PLACE_HOLDER + " " +
+            "LIMIT " + LIMIT_PLACE_HOLDER;
+    // The type triple stays when all the subject statements are curated, so it doesn't count as a statement
     static final String SUBJECTS_ONE_DATASET_QUERY =
-        "SELECT ?subject " + // No need for a DISTINCT here, one dataset should not have duplicate subjects
+        "SELECT DISTINCT ?subject " +
             "WHERE {" +
             "  GRAPH <" + DATASET_PLACE_HOLDER + "> {" +
             "    ?subject a wikibase:Item ;" +
             "      ?property ?statement_node ." +
             "  }" +
-            "}";
-    static final String SUBJECTS_ALL_DATASETS_QUERY =
-        "SELECT DISTINCT ?subject ?dataset " +
+            "  FILTER (?property != rdf:type) ." +
+            "}" +
+            "ORDER BY ?subject " +
+            "OFFSET " + OFFSET_PLACE_HOLDER + " " +
+            "LIMIT " + LIMIT_PLACE_HOLDER;
+    // Statements per subject, to weight random subjects. Same pattern as above
+    static final String SUBJECT_WEIGHTS_ONE_DATASET_QUERY =
+        "SELECT ?subject (COUNT(?statement_node) AS ?statements) " +
             "WHERE {" +
-            "  GRAPH ?dataset {" +
+            "  GRAPH <" + DATASET_PLACE_HOLDER + "> {" +
             "    ?subject a wikibase:Item ;" +
             "      ?property ?statement_node ." +
             "  }" +
-            "  FILTER STRENDS(str(?dataset), \"new\") ." +
-            "}";
-    static final String PROPERTIES_ALL_DATASETS_QUERY =
-        "SELECT DISTINCT ?property ?dataset " +
+            "  FILTER (?property != rdf:type) ." +
+            "}" +
+            "GROUP BY ?subject " +
+            "ORDER BY ?subject " +
+            "OFFSET " + OFFSET_PLACE_HOLDER + " " +
+            "LIMIT " + LIMIT_PLACE_HOLDER;
+    // Statements of one subject, to weight it again after a curation. Same pattern as above
+    static final String SUBJECT_WEIGHT_QUERY =
+        "SELECT (COUNT(?statement_node) AS ?statements) " +
             "WHERE {" +
-            "  GRAPH ?dataset {" +
-            "    ?subject a wikibase:Item ;" +
+            "  GRAPH <" + DATASET_PLACE_HOLDER + "> {" +
+            "    wd:" + QID_PLACE_HOLDER + " a wikibase:Item ;" +
             "      ?property ?statement_node ." +
             "  }" +
-            "  FILTER STRENDS(str(?dataset), \"new\") ." +
+            "  FILTER (?property != rdf:type) ." +
             "}";
-    static final String VALUES_ALL_DATASETS_QUERY =
-        "SELECT DISTINCT ?value ?dataset " +
+    // Datasets with suggested statements, as registered at upload time
+    static final String NEW_DATASETS_QUERY =
+        "SELECT DISTINCT ?dataset " +
             "WHERE {" +
-            "  GRAPH ?dataset {" +
+            "  GRAPH <" + RdfVocabulary.METADATA_NAMESPACE + "> {" +
+            "    ?dataset <" + RdfVocabulary.UPLOADED_BY_PREDICATE + "> ?user ." +
+            "  }" +
+            "  FILTER STRENDS(str(?dataset), \"new\") ." +
+            "}";
+    // Whether an entity touched by a change is still in a dataset, with the same patterns as the queries above
+    static final String SUBJECT_IN_DATASET_QUERY =
+        "ASK {" +
+            "  GRAPH <" + DATASET_PLACE_HOLDER + "> {" +
+            "    wd:" + QID_PLACE_HOLDER + " a wikibase:Item ;" +
+            "      ?property ?statement_node ." +
+            "  }" +
+            "  FILTER (?property != rdf:type) ." +
+            "}";
+    static final String PROPERTY_IN_DATASET_QUERY =
+        "ASK {" +
+            "  GRAPH <" + DATASET_PLACE_HOLDER + "> {" +
+            "    ?subject a wikibase:Item ;" +
+            "      p:" + PID_PLACE_HOLDER + " ?statement_node ." +
+            "  }" +
+            "}";
+    static final String VALUE_IN_DATASET_QUERY =
+        "ASK {" +
+            "  GRAPH <" + DATASET_PLACE_HOLDER + "> {" +
             "    ?subject a wikibase:Item ;" +
             "      ?property ?st_node ." +
-            "    ?st_node ?st_property ?value ." +
+            "    ?st_node ?st_property wd:" + ITEM_VALUE_PLACE_HOLDER + " ." +
             "  }" +
-            "  FILTER STRSTARTS(str(?value), \"" + Utils.WIKIBASE_URIS.entity() + "Q\") ." +
-            "  FILTER STRENDS(str(?dataset), \"new\") ." +
             "}";
     /* END: entities cache */
 
+    /* BEGIN: compiled query templates */
+    public static final SparqlTemplate CLAIM_APPROVAL_TEMPLATE = SparqlTemplate.compile(CLAIM_APPROVAL_QUERY);
+    public static final SparqlTemplate CLAIM_REJECTION_TEMPLATE = SparqlTemplate.compile(CLAIM_REJECTION_QUERY);
+    public static final SparqlTemplate REFERENCE_CURATION_TEMPLATE = SparqlTemplate.compile(REFERENCE_CURATION_QUERY);
+    public static final SparqlTemplate QUALIFIER_CURATION_TEMPLATE = SparqlTemplate.compile(QUALIFIER_CURATION_QUERY);
+    public static final SparqlTemplate SEARCH_ONE_DATASET_VALUE_TEMPLATE = SparqlTemplate.compile(SEARCH_ONE_DATASET_VALUE_QUERY);
+    public static final SparqlTemplate SEARCH_ONE_DATASET_TEMPLATE = SparqlTemplate.compile(SEARCH_ONE_DATASET_QUERY);
+    public static final SparqlTemplate SEARCH_ALL_DATASETS_VALUE_TEMPLATE = SparqlTemplate.compile(SEARCH_ALL_DATASETS_VALUE_QUERY);
+    public static final SparqlTemplate SEARCH_ALL_DATASETS_TEMPLATE = SparqlTemplate.compile(SEARCH_ALL_DATASETS_QUERY);
+    public static final SparqlTemplate USER_INFO_TEMPLATE = SparqlTemplate.compile(USER_INFO_QUERY);
+    public static final SparqlTemplate DATASET_INFO_TEMPLATE = SparqlTemplate.compile(DATASET_INFO_QUERY);
+    static final SparqlTemplate SUGGEST_ALL_DATASETS_TEMPLATE = SparqlTemplate.compile(SUGGEST_ALL_DATASETS_QUERY);
+    static final SparqlTemplate SUGGEST_ONE_DATASET_TEMPLATE = SparqlTemplate.compile(SUGGEST_ONE_DATASET_QUERY);
+    static final SparqlTemplate SUGGEST_BATCH_ALL_DATASETS_TEMPLATE = SparqlTemplate.compile(SUGGEST_BATCH_ALL_DATASETS_QUERY);
+    static final SparqlTemplate SUGGEST_BATCH_ONE_DATASET_TEMPLATE = SparqlTemplate.compile(SUGGEST_BATCH_ONE_DATASET_QUERY);
+    static final SparqlTemplate SUBJECTS_ONE_DATASET_TEMPLATE = SparqlTemplate.compile(SUBJECTS_ONE_DATASET_QUERY);
+    static final SparqlTemplate PROPERTIES_ONE_DATASET_TEMPLATE = SparqlTemplate.compile(PROPERTIES_ONE_DATASET_QUERY);
+    static final SparqlTemplate VALUES_ONE_DATASET_TEMPLATE = SparqlTemplate.compile(VALUES_ONE_DATASET_QUERY);
+    static final SparqlTemplate SUBJECT_WEIGHTS_ONE_DATASET_TEMPLATE = SparqlTemplate.compile(SUBJECT_WEIGHTS_ONE_DATASET_QUERY);
+    static final SparqlTemplate SUBJECT_WEIGHT_TEMPLATE = SparqlTemplate.compile(SUBJECT_WEIGHT_QUERY);
+    static final SparqlTemplate SUBJECT_IN_DATASET_TEMPLATE = SparqlTemplate.compile(SUBJECT_IN_DATASET_QUERY);
+    static final SparqlTemplate PROPERTY_IN_DATASET_TEMPLATE = SparqlTemplate.compile(PROPERTY_IN_DATASET_QUERY);
+    static final SparqlTemplate VALUE_IN_DATASET_TEMPLATE = SparqlTemplate.compile(VALUE_IN_DATASET_QUERY);
+    /* END: compiled query templates */
+
     private SparqlQueries() {
     }
 
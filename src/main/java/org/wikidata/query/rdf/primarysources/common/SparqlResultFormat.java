@@ -0,0 +1,173 @@
+package org.wikidata.query.rdf.primarysources.common;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+import org.json.simple.parser.ParseException;
+import org.openrdf.model.Value;
+import org.openrdf.query.Binding;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.QueryResultHandlerException;
+import org.openrdf.query.TupleQueryResultHandlerBase;
+import org.openrdf.query.TupleQueryResultHandlerException;
+import org.openrdf.query.resultio.QueryResultParseException;
+import org.openrdf.query.resultio.TupleQueryResultFormat;
+import org.openrdf.query.resultio.TupleQueryResultParser;
+import org.openrdf.query.resultio.TupleQueryResultParserFactory;
+import org.openrdf.query.resultio.TupleQueryResultParserRegistry;
+
+/**
+ * The SPARQL result formats that the Wikidata primary sources tool can request to Blazegraph and stream to a {@link SparqlRowHandler}.
+ * <ul>
+ * <li>{@link #BINARY}: the Sesame binary format, cheapest to produce on the Blazegraph side. Its parser is looked up
+ * in the Sesame registry, so the format is only available when the <code>sesame-queryresultio-binary</code> module is on the class path;</li>
+ * <li>{@link #TSV}: tab-separated values, best suited for simple queries with few columns of URIs;</li>
+ * <li>{@link #JSON}: the historical one, always available, and the fallback for all the others.</li>
+ * </ul>
+ * The format actually used is the one of the Blazegraph response, see {@link #forContentType(String)}.
+ *
+ * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
+ * @since 0.2.5 - created on Jun 07, 2018.
+ */
+public enum SparqlResultFormat {
+
+    JSON("application/sparql-results+json") {
+        @Override
+        public long parse(InputStream results, SparqlRowHandler handler) throws QueryResultParseException, IOException {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(results, StandardCharsets.UTF_8))) {
+                return SparqlJsonStreamParser.parse(reader, handler);
+            } catch (ParseException pe) {
+                throw new QueryResultParseException("Malformed JSON SPARQL results. Parse error at index " + pe.getPosition());
+            }
+        }
+    },
+
+    TSV("text/tab-separated-values") {
+        @Override
+        public long parse(InputStream results, SparqlRowHandler handler) throws QueryResultParseException, IOException {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(results, StandardCharsets.UTF_8))) {
+                return SparqlTsvStreamParser.parse(reader, handler);
+            }
+        }
+    },
+
+    BINARY("application/x-binary-rdf-results-table") {
+        @Override
+        public boolean isAvailable() {
+            return TupleQueryResultParserRegistry.getInstance().has(TupleQueryResultFormat.BINARY);
+        }
+
+        @Override
+        public long parse(InputStream results, SparqlRowHandler handler) throws QueryResultParseException, IOException {
+            TupleQueryResultParserFactory factory = TupleQueryResultParserRegistry.getInstance().get(TupleQueryResultFormat.BINARY);
+            if (factory == null) throw new QueryResultParseException("No parser available for the binary SPARQL results format");
+            TupleQueryResultParser parser = factory.getParser();
+            RowAdapter adapter = new RowAdapter(handler);
+            parser.setQueryResultHandler(adapter);
+            try {
+                parser.parseQueryResult(results);
+            } catch (QueryResultHandlerException qrhe) {
+                throw new QueryResultParseException(qrhe);
+            }
+            return adapter.rows;
+        }
+    };
+
+    private final String mimeType;
+
+    SparqlResultFormat(String mimeType) {
+        this.mimeType = mimeType;
+    }
+
+    /**
+     * Pick the format of a Blazegraph response.
+     *
+     * @param contentType the response <code>Content-Type</code> header value, may be <i>null</i>.
+     * @return the matching format, or {@link #JSON} if the content type is unknown.
+     */
+    public static SparqlResultFormat forContentType(String contentType) {
+        if (contentType == null) return JSON;
+        String mime = contentType.split(";")[0].trim().toLowerCase(Locale.ENGLISH);
+        for (SparqlResultFormat format : values()) {
+            if (format.mimeType.equals(mime)) return format;
+        }
+        return JSON;
+    }
+
+    /**
+     * Pick a format by name, as set in the configuration.
+     *
+     * @param name the format name, case insensitive, e.g., <i>binary</i>.
+     * @return the format, or {@link #JSON} if the name is unknown or the format is not available.
+     */
+    public static SparqlResultFormat forName(String name) {
+        if (name == null) return JSON;
+        for (SparqlResultFormat format : values()) {
+            if (format.name().equalsIgnoreCase(name.trim())) return format.isAvailable() ? format : JSON;
+        }
+        return JSON;
+    }
+
+    /**
+     * @return the MIME type of the format.
+     */
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    /**
+     * @return whether a parser for the format is available at run time.
+     */
+    public boolean isAvailable() {
+        return true;
+    }
+
+    /**
+     * Build the <code>Accept</code> header value to negotiate this format with Blazegraph, with JSON as the less preferred fallback.
+     *
+     * @return the header value.
+     */
+    public String acceptHeader() {
+        SparqlResultFormat preferred = isAvailable() ? this : JSON;
+        return preferred == JSON ? JSON.mimeType : preferred.mimeType + ", " + JSON.mimeType + ";q=0.5";
+    }
+
+    /**
+     * Parse SPARQL results in this format and pass each row to the given handler.
+     *
+     * @param results the SPARQL results.
+     * @param handler the row handler.
+     * @return the total number of rows.
+     * @throws QueryResultParseException if the results are malformed.
+     * @throws IOException               if something goes wrong while reading.
+     */
+    public abstract long parse(InputStream results, SparqlRowHandler handler) throws QueryResultParseException, IOException;
+
+    /**
+     * Feed the rows built by a Sesame parser to a {@link SparqlRowHandler}.
+     */
+    private static final class RowAdapter extends TupleQueryResultHandlerBase {
+        private final SparqlRowHandler handler;
+        private final SparqlRow row = new SparqlRow();
+        private long rows;
+
+        private RowAdapter(SparqlRowHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void handleSolution(BindingSet bindingSet) throws TupleQueryResultHandlerException {
+            row.clear();
+            for (Binding binding : bindingSet) {
+                Value value = binding.getValue();
+                if (value != null) row.bind(binding.getName(), value);
+            }
+            handler.handle(row);
+            rows++;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package org.wikidata.query.rdf.primarysources.common;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.openrdf.model.BNode;
+import org.openrdf.model.Literal;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+
+/**
+ * A single row of a SPARQL query result, as handed to a {@link SparqlRowHandler} while the result is being parsed.
+ * <p>
+ * Bindings are kept in their <i>lexical</i> form, i.e., the plain strings found in the Blazegraph response,
+ * so that no Sesame {@link Value} gets allocated unless {@link #getValue(String)} is explicitly called.
+ * <p>
+ * The same instance is <b>recycled</b> for every row of a result, hence handlers must copy what they need
+ * and never keep a reference to it.
+ *
+ * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
+ * @since 0.2.5 - created on Jun 06, 2018.
+ */
+public final class SparqlRow {
+
+    private static final ValueFactory VALUE_FACTORY = ValueFactoryImpl.getInstance();
+
+    private final Map<String, Term> terms = new HashMap<>();
+
+    SparqlRow() {
+    }
+
+    /**
+     * @param name the binding name, i.e., the SPARQL variable without the leading <i>?</i>.
+     * @return whether the binding has a value in this row.
+     */
+    public boolean isBound(String name) {
+        Term term = terms.get(name);
+        return term != null && term.bound;
+    }
+
+    /**
+     * Get the lexical form of a binding: the URI string, the literal label, or the blank node identifier.
+     *
+     * @param name the binding name, i.e., the SPARQL variable without the leading <i>?</i>.
+     * @return the lexical value, or <i>null</i> if the binding has no value in this row.
+     */
+    public String get(String name) {
+        Term term = terms.get(name);
+        return term == null || !term.bound ? null : term.value;
+    }
+
+    /**
+     * Build a Sesame value for a binding. Only use it when the term type, language or data type are actually needed.
+     *
+     * @param name the binding name, i.e., the SPARQL variable without the leading <i>?</i>.
+     * @return the RDF value, or <i>null</i> if the binding has no value in this row.
+     */
+    public Value getValue(String name) {
+        Term term = terms.get(name);
+        if (term == null || !term.bound) return null;
+        // Already built by the parser, e.g., the binary one
+        if (term.rdfValue != null) return term.rdfValue;
+        switch (term.type) {
+        case "uri":
+            return VALUE_FACTORY.createURI(term.value);
+        case "bnode":
+            return VALUE_FACTORY.createBNode(term.value);
+        default:
+            if (term.language != null) return VALUE_FACTORY.createLiteral(term.value, term.language);
+            else if (term.datatype != null) return VALUE_FACTORY.createLiteral(term.value, VALUE_FACTORY.createURI(term.datatype));
+            else return VALUE_FACTORY.createLiteral(term.value);
+        }
+    }
+
+    /**
+     * Mark every binding as unbound, before parsing the next row.
+     */
+    void clear() {
+        for (Term term : terms.values()) term.clear();
+    }
+
+    /**
+     * Get the term to be filled for a binding, reusing the one of previous rows if any.
+     */
+    Term bind(String name) {
+        Term term = terms.computeIfAbsent(name, n -> new Term());
+        term.clear();
+        term.bound = true;
+        return term;
+    }
+
+    /**
+     * Bind a ready-made Sesame value, keeping it for {@link #getValue(String)}.
+     */
+    void bind(String name, Value value) {
+        Term term = bind(name);
+        term.rdfValue = value;
+        term.value = value.stringValue();
+        if (value instanceof URI) {
+            term.type = "uri";
+        } else if (value instanceof BNode) {
+            term.type = "bnode";
+        } else {
+            Literal literal = (Literal) value;
+            term.type = "literal";
+            term.language = literal.getLanguage();
+            term.datatype = literal.getDatatype() == null ? null : literal.getDatatype().stringValue();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder row = new StringBuilder("[");
+        for (Map.Entry<String, Term> entry : terms.entrySet()) {
+            if (!entry.getValue().bound) continue;
+            if (row.length() > 1) row.append("; ");
+            row.append(entry.getKey()).append('=').append(entry.getValue().value);
+        }
+        return row.append(']').toString();
+    }
+
+    /**
+     * A mutable RDF term, as serialized in the SPARQL results.
+     */
+    static final class Term {
+        private boolean bound;
+        private String type;
+        private String value;
+        private String datatype;
+        private String language;
+        private Value rdfValue;
+
+        void set(String type, String value, String datatype, String language) {
+            this.type = type;
+            this.value = value;
+            this.datatype = datatype;
+            this.language = language;
+        }
+
+        void set(String attribute, String attributeValue) {
+            switch (attribute) {
+            case "type":
+                type = attributeValue;
+                break;
+            case "value":
+                value = attributeValue;
+                break;
+            case "datatype":
+                datatype = attributeValue;
+                break;
+            case "xml:lang":
+                language = attributeValue;
+                break;
+            default:
+                break;
+            }
+        }
+
+        private void clear() {
+            bound = false;
+            type = null;
+            value = null;
+            datatype = null;
+            language = null;
+            rdfValue = null;
+        }
+    }
+}
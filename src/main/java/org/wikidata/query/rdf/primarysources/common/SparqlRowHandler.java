@@ -0,0 +1,21 @@
+package org.wikidata.query.rdf.primarysources.common;
+
+/**
+ * A callback that receives SPARQL query result rows one at a time, as soon as they are parsed from the Blazegraph response.
+ * <p>
+ * Use it with {@link Utils#runSparqlQuery(String, SparqlRowHandler)} when the result is big,
+ * e.g., the all-datasets entity queries, to avoid materializing the whole result in memory.
+ *
+ * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
+ * @since 0.2.5 - created on Jun 06, 2018.
+ */
+@FunctionalInterface
+public interface SparqlRowHandler {
+
+    /**
+     * Handle a result row.
+     *
+     * @param row the current row, which is recycled for the next one: do not keep a reference to it.
+     */
+    void handle(SparqlRow row);
+}
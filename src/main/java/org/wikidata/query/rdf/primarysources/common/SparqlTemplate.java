@@ -0,0 +1,342 @@
+package org.wikidata.query.rdf.primarysources.common;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.openrdf.model.Literal;
+import org.openrdf.model.Value;
+
+/**
+ * A SPARQL query template from {@link SparqlQueries}, compiled once into literal segments and typed {@link Slot}s.
+ * <p>
+ * Rendering is a single pass into a pre-sized buffer, instead of one full copy of the template per {@link String#replace(CharSequence, CharSequence)}.
+ * Values are escaped according to the type of their slot, so that user input can't break out of an IRI, a prefixed name or a literal:
+ * <pre>
+ * String query = SparqlQueries.USER_INFO_TEMPLATE.bind()
+ *     .set(SparqlTemplate.Slot.USER, user)
+ *     .render();
+ * </pre>
+ *
+ * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
+ * @since 0.2.5 - created on Jun 12, 2018.
+ */
+public final class SparqlTemplate {
+
+    /**
+     * Reserved characters of a prefixed name local part, which can be escaped with a backslash.
+     */
+    private static final String LOCAL_NAME_ESCAPES = "_~.-!$&'()*+,;=/?#@%";
+    /**
+     * Characters not allowed in an IRI reference, besides controls and white spaces.
+     */
+    private static final String IRI_FORBIDDEN = "<>\"{}|^`\\";
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+    // Room for the values on top of the literal segments, to avoid growing the buffer in most cases
+    private static final int VALUE_LENGTH_HINT = 64;
+    // Length of a prefixed item name in a list, e.g., "wd:Q12345678 "
+    private static final int ITEM_LENGTH_HINT = 13;
+
+    private final String[] segments;
+    private final Slot[] slots;
+    private final int literalLength;
+
+    private SparqlTemplate(String[] segments, Slot[] slots) {
+        this.segments = segments;
+        this.slots = slots;
+        int length = 0;
+        for (String segment : segments) length += segment.length();
+        this.literalLength = length;
+    }
+
+    /**
+     * Split a query template into literal segments and slots.
+     * Unknown place holders are kept as literal text.
+     *
+     * @param template the SPARQL query template, with place holders like {@link SparqlQueries#QID_PLACE_HOLDER}.
+     * @return the compiled template.
+     */
+    public static SparqlTemplate compile(String template) {
+        List<String> segments = new ArrayList<>();
+        List<Slot> slots = new ArrayList<>();
+        int segmentStart = 0;
+        int index = template.indexOf("${");
+        while (index >= 0) {
+            Slot slot = Slot.at(template, index);
+            if (slot == null) {
+                index = template.indexOf("${", index + 2);
+                continue;
+            }
+            segments.add(template.substring(segmentStart, index));
+            slots.add(slot);
+            segmentStart = index + slot.placeHolder.length();
+            index = template.indexOf("${", segmentStart);
+        }
+        segments.add(template.substring(segmentStart));
+        return new SparqlTemplate(segments.toArray(new String[0]), slots.toArray(new Slot[0]));
+    }
+
+    /**
+     * Start binding values to the slots of this template.
+     *
+     * @return a fresh set of bindings, not thread-safe.
+     */
+    public Bindings bind() {
+        return new Bindings();
+    }
+
+    /**
+     * The place holders of {@link SparqlQueries}, typed according to where they occur in query templates.
+     */
+    public enum Slot {
+        /**
+         * Wiki user name, inside the user IRI.
+         */
+        USER(SparqlQueries.USER_PLACE_HOLDER, Kind.IRI),
+        /**
+         * Statement state, at the end of the dataset graph IRI.
+         */
+        STATE(SparqlQueries.STATE_PLACE_HOLDER, Kind.IRI),
+        /**
+         * Main property PID, as a prefixed name local part.
+         */
+        MAIN_PID(SparqlQueries.MAIN_PID_PLACE_HOLDER, Kind.LOCAL_NAME),
+        /**
+         * Property PID, as a prefixed name local part.
+         */
+        PID(SparqlQueries.PID_PLACE_HOLDER, Kind.LOCAL_NAME),
+        /**
+         * RDF value, either an IRI or a literal, as an {@link Value}.
+         */
+        VALUE(SparqlQueries.VALUE_PLACE_HOLDER, Kind.TERM),
+        /**
+         * Dataset URI, inside the graph IRI.
+         */
+        DATASET(SparqlQueries.DATASET_PLACE_HOLDER, Kind.IRI),
+        /**
+         * Either a variable, e.g., {@code ?property}, or a prefixed name, e.g., {@code p:P18}.
+         */
+        PROPERTY(SparqlQueries.PROPERTY_PLACE_HOLDER, Kind.PREDICATE),
+        /**
+         * Item value QID, as a prefixed name local part.
+         */
+        ITEM_VALUE(SparqlQueries.ITEM_VALUE_PLACE_HOLDER, Kind.LOCAL_NAME),
+        /**
+         * Result offset, a non-negative integer.
+         */
+        OFFSET(SparqlQueries.OFFSET_PLACE_HOLDER, Kind.INTEGER),
+        /**
+         * Result limit, a non-negative integer.
+         */
+        LIMIT(SparqlQueries.LIMIT_PLACE_HOLDER, Kind.INTEGER),
+        /**
+         * Subject QID, as a prefixed name local part.
+         */
+        QID(SparqlQueries.QID_PLACE_HOLDER, Kind.LOCAL_NAME),
+        /**
+         * Subject QIDs, as a space-separated list of {@code wd:} prefixed names, e.g., in a {@code VALUES} clause.
+         */
+        QIDS(SparqlQueries.QIDS_PLACE_HOLDER, Kind.ITEM_LIST);
+
+        private final String placeHolder;
+        private final Kind kind;
+
+        Slot(String placeHolder, Kind kind) {
+            this.placeHolder = placeHolder;
+            this.kind = kind;
+        }
+
+        private static Slot at(String template, int index) {
+            for (Slot slot : values()) {
+                if (template.startsWith(slot.placeHolder, index)) return slot;
+            }
+            return null;
+        }
+    }
+
+    private enum Kind {
+        IRI, LOCAL_NAME, PREDICATE, TERM, INTEGER, ITEM_LIST
+    }
+
+    /**
+     * Values bound to the slots of a template.
+     * Values of slots that don't occur in the template are ignored.
+     */
+    public final class Bindings {
+
+        private final Object[] values = new Object[Slot.values().length];
+
+        private Bindings() {
+        }
+
+        /**
+         * @param slot  the slot.
+         * @param value a {@link Value} for {@link Slot#VALUE}, a number for {@link Slot#OFFSET} and {@link Slot#LIMIT},
+         *              a collection of strings for {@link Slot#QIDS}, a string otherwise.
+         * @return these bindings.
+         */
+        public Bindings set(Slot slot, Object value) {
+            values[slot.ordinal()] = value;
+            return this;
+        }
+
+        /**
+         * Render the query.
+         *
+         * @return the SPARQL query.
+         * @throws IllegalStateException    if a slot of the template has no value.
+         * @throws IllegalArgumentException if a value can't be rendered in its slot, e.g., a prefixed name local part with white spaces.
+         */
+        public String render() {
+            int length = literalLength;
+            for (Slot slot : slots) {
+                Object value = values[slot.ordinal()];
+                if (value == null) throw new IllegalStateException("No value for the SPARQL query template slot " + slot);
+                if (value instanceof String) length += ((String) value).length();
+                else if (value instanceof Collection) length += ((Collection<?>) value).size() * ITEM_LENGTH_HINT;
+                else length += VALUE_LENGTH_HINT;
+            }
+            StringBuilder query = new StringBuilder(length + VALUE_LENGTH_HINT);
+            for (int i = 0; i < slots.length; i++) {
+                query.append(segments[i]);
+                appendValue(query, slots[i], values[slots[i].ordinal()]);
+            }
+            return query.append(segments[slots.length]).toString();
+        }
+    }
+
+    private static void appendValue(StringBuilder query, Slot slot, Object value) {
+        switch (slot.kind) {
+        case IRI:
+            appendIri(query, value.toString());
+            break;
+        case LOCAL_NAME:
+            appendLocalName(query, slot, value.toString());
+            break;
+        case PREDICATE:
+            appendPredicate(query, slot, value.toString());
+            break;
+        case TERM:
+            if (!(value instanceof Value)) throw new IllegalArgumentException("Expected an RDF value for the slot " + slot + ", got: " + value);
+            appendTerm(query, (Value) value);
+            break;
+        case INTEGER:
+            long number = value instanceof Number ? ((Number) value).longValue() : Long.parseLong(value.toString());
+            if (number < 0) throw new IllegalArgumentException("Expected a non-negative integer for the slot " + slot + ", got: " + value);
+            query.append(number);
+            break;
+        case ITEM_LIST:
+            if (!(value instanceof Collection)) throw new IllegalArgumentException("Expected a collection of QIDs for the slot " + slot + ", got: " + value);
+            appendItemList(query, slot, (Collection<?>) value);
+            break;
+        default:
+            throw new IllegalStateException("Unknown slot kind: " + slot.kind);
+        }
+    }
+
+    /**
+     * Percent-encode the characters that are not allowed in a SPARQL IRI reference.
+     */
+    private static void appendIri(StringBuilder query, String iri) {
+        for (int i = 0; i < iri.length(); i++) {
+            char c = iri.charAt(i);
+            // All of them are ASCII, hence a single byte in UTF-8
+            if (c <= 0x20 || IRI_FORBIDDEN.indexOf(c) >= 0) query.append('%').append(HEX[c >> 4]).append(HEX[c & 0xF]);
+            else query.append(c);
+        }
+    }
+
+    private static void appendLocalName(StringBuilder query, Slot slot, String localName) {
+        if (localName.isEmpty()) throw new IllegalArgumentException("Empty prefixed name local part for the slot " + slot);
+        for (int i = 0; i < localName.length(); i++) {
+            char c = localName.charAt(i);
+            if (Character.isLetterOrDigit(c)) query.append(c);
+            else if (LOCAL_NAME_ESCAPES.indexOf(c) >= 0) query.append('\\').append(c);
+            else throw new IllegalArgumentException("Character '" + c + "' not allowed in a prefixed name local part for the slot " + slot + ": " + localName);
+        }
+    }
+
+    private static void appendItemList(StringBuilder query, Slot slot, Collection<?> qIds) {
+        if (qIds.isEmpty()) throw new IllegalArgumentException("Empty list of QIDs for the slot " + slot);
+        boolean first = true;
+        for (Object qId : qIds) {
+            if (!first) query.append(' ');
+            query.append("wd:");
+            appendLocalName(query, slot, qId.toString());
+            first = false;
+        }
+    }
+
+    private static void appendPredicate(StringBuilder query, Slot slot, String predicate) {
+        if (predicate.startsWith("?")) {
+            for (int i = 1; i < predicate.length(); i++) {
+                char c = predicate.charAt(i);
+                if (!Character.isLetterOrDigit(c) && c != '_') {
+                    throw new IllegalArgumentException("Character '" + c + "' not allowed in a variable for the slot " + slot + ": " + predicate);
+                }
+            }
+            query.append(predicate);
+            return;
+        }
+        int colon = predicate.indexOf(':');
+        if (colon < 0) throw new IllegalArgumentException("Expected a variable or a prefixed name for the slot " + slot + ", got: " + predicate);
+        for (int i = 0; i < colon; i++) {
+            char c = predicate.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '_' && c != '-') {
+                throw new IllegalArgumentException("Character '" + c + "' not allowed in a prefix for the slot " + slot + ": " + predicate);
+            }
+        }
+        query.append(predicate, 0, colon + 1);
+        appendLocalName(query, slot, predicate.substring(colon + 1));
+    }
+
+    private static void appendTerm(StringBuilder query, Value value) {
+        if (value instanceof Literal) {
+            Literal literal = (Literal) value;
+            query.append('"');
+            appendEscapedLabel(query, literal.getLabel());
+            query.append('"');
+            if (literal.getLanguage() != null) query.append('@').append(literal.getLanguage());
+            else if (literal.getDatatype() != null) {
+                query.append("^^<");
+                appendIri(query, literal.getDatatype().stringValue());
+                query.append('>');
+            }
+        } else {
+            query.append('<');
+            appendIri(query, value.stringValue());
+            query.append('>');
+        }
+    }
+
+    private static void appendEscapedLabel(StringBuilder query, String label) {
+        for (int i = 0; i < label.length(); i++) {
+            char c = label.charAt(i);
+            switch (c) {
+            case '"':
+                query.append("\\\"");
+                break;
+            case '\\':
+                query.append("\\\\");
+                break;
+            case '\n':
+                query.append("\\n");
+                break;
+            case '\r':
+                query.append("\\r");
+                break;
+            case '\t':
+                query.append("\\t");
+                break;
+            case '\b':
+                query.append("\\b");
+                break;
+            case '\f':
+                query.append("\\f");
+                break;
+            default:
+                query.append(c);
+            }
+        }
+    }
+}
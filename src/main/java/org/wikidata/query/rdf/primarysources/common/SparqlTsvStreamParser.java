@@ -0,0 +1,130 @@
+package org.wikidata.query.rdf.primarysources.common;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openrdf.model.vocabulary.XMLSchema;
+import org.openrdf.query.resultio.QueryResultParseException;
+
+/**
+ * A line-based parser of SPARQL query results serialized in TSV, see <a href="https://www.w3.org/TR/sparql11-results-csv-tsv/">the specification</a>.
+ * <p>
+ * The format is the cheapest to produce and parse for simple queries with few columns of URIs, like the entity cache ones:
+ * each line is a row, each tab-separated field is an RDF term in Turtle syntax, and an empty field is an unbound variable.
+ *
+ * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
+ * @since 0.2.5 - created on Jun 07, 2018.
+ */
+final class SparqlTsvStreamParser {
+
+    private SparqlTsvStreamParser() {
+    }
+
+    /**
+     * Parse a SPARQL TSV result and pass each row to the given handler.
+     *
+     * @param reader  the SPARQL TSV result.
+     * @param handler the row handler.
+     * @return the total number of rows.
+     * @throws QueryResultParseException if a line is malformed.
+     * @throws IOException               if something goes wrong while reading.
+     */
+    static long parse(Reader reader, SparqlRowHandler handler) throws QueryResultParseException, IOException {
+        BufferedReader lines = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+        String header = lines.readLine();
+        if (header == null) return 0;
+        List<String> variables = new ArrayList<>();
+        for (String variable : split(header)) {
+            variables.add(variable.startsWith("?") || variable.startsWith("$") ? variable.substring(1) : variable);
+        }
+        SparqlRow row = new SparqlRow();
+        long rows = 0;
+        int lineNumber = 1;
+        String line;
+        while ((line = lines.readLine()) != null) {
+            lineNumber++;
+            if (line.isEmpty() && variables.size() > 1) continue;
+            List<String> fields = split(line);
+            if (fields.size() != variables.size()) {
+                throw new QueryResultParseException("Expected " + variables.size() + " fields, got " + fields.size() + ": " + line, lineNumber, -1);
+            }
+            row.clear();
+            for (int i = 0; i < fields.size(); i++) {
+                String field = fields.get(i);
+                if (!field.isEmpty()) parseTerm(field, row.bind(variables.get(i)), lineNumber);
+            }
+            handler.handle(row);
+            rows++;
+        }
+        return rows;
+    }
+
+    private static List<String> split(String line) {
+        List<String> fields = new ArrayList<>();
+        int start = 0;
+        int tab;
+        while ((tab = line.indexOf('\t', start)) != -1) {
+            fields.add(line.substring(start, tab));
+            start = tab + 1;
+        }
+        fields.add(line.substring(start));
+        return fields;
+    }
+
+    private static void parseTerm(String field, SparqlRow.Term term, int lineNumber) throws QueryResultParseException {
+        char first = field.charAt(0);
+        if (first == '<') {
+            if (field.charAt(field.length() - 1) != '>') throw new QueryResultParseException("Unterminated URI: " + field, lineNumber, -1);
+            term.set("uri", field.substring(1, field.length() - 1), null, null);
+        } else if (field.startsWith("_:")) {
+            term.set("bnode", field.substring(2), null, null);
+        } else if (first == '"') {
+            int end = field.lastIndexOf('"');
+            if (end == 0) throw new QueryResultParseException("Unterminated literal: " + field, lineNumber, -1);
+            String label = unescape(field.substring(1, end));
+            String suffix = field.substring(end + 1);
+            if (suffix.startsWith("@")) term.set("literal", label, null, suffix.substring(1));
+            else if (suffix.startsWith("^^<") && suffix.endsWith(">")) term.set("literal", label, suffix.substring(3, suffix.length() - 1), null);
+            else term.set("literal", label, null, null);
+        } else if (field.equals("true") || field.equals("false")) {
+            term.set("literal", field, XMLSchema.BOOLEAN.stringValue(), null);
+        } else if (field.indexOf('e') != -1 || field.indexOf('E') != -1) {
+            term.set("literal", field, XMLSchema.DOUBLE.stringValue(), null);
+        } else if (field.indexOf('.') != -1) {
+            term.set("literal", field, XMLSchema.DECIMAL.stringValue(), null);
+        } else {
+            term.set("literal", field, XMLSchema.INTEGER.stringValue(), null);
+        }
+    }
+
+    private static String unescape(String label) {
+        if (label.indexOf('\\') == -1) return label;
+        StringBuilder unescaped = new StringBuilder(label.length());
+        for (int i = 0; i < label.length(); i++) {
+            char c = label.charAt(i);
+            if (c != '\\' || i == label.length() - 1) {
+                unescaped.append(c);
+                continue;
+            }
+            char escaped = label.charAt(++i);
+            switch (escaped) {
+            case 't':
+                unescaped.append('\t');
+                break;
+            case 'n':
+                unescaped.append('\n');
+                break;
+            case 'r':
+                unescaped.append('\r');
+                break;
+            default:
+                unescaped.append(escaped);
+                break;
+            }
+        }
+        return unescaped.toString();
+    }
+}
@@ -0,0 +1,74 @@
+package org.wikidata.query.rdf.primarysources.common;
+
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Draw random subject items of the entities cache, see {@link EntitiesCache.Snapshot#subjectSampler()}.
+ * <p>
+ * The subjects of each dataset stay in their flat {@link EntityIdSet} array, and prefix sums of the dataset sizes lay them out as one virtual array.
+ * A draw over all datasets is then a single random number, plus a binary search over the handful of datasets: no union and no copy.
+ * Every (dataset, subject) pair is equally likely, so a subject with statements in several datasets is drawn more often.
+ * <p>
+ * It is immutable, and built once per cache snapshot.
+ *
+ * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
+ * @since 0.2.5 - created on Jun 23, 2018.
+ */
+public final class SubjectSampler {
+
+    private final Map<String, EntityIdSet> subjects;
+    private final EntityIdSet[] sets;
+    // ends[i] is the number of subjects in datasets 0 to i
+    private final long[] ends;
+
+    /**
+     * @param subjects the subject item QIDs per dataset.
+     */
+    SubjectSampler(Map<String, EntityIdSet> subjects) {
+        this.subjects = subjects;
+        this.sets = subjects.values().stream().filter(set -> !set.isEmpty()).toArray(EntityIdSet[]::new);
+        this.ends = new long[sets.length];
+        long total = 0;
+        for (int i = 0; i < sets.length; i++) {
+            total += sets[i].size();
+            ends[i] = total;
+        }
+    }
+
+    /**
+     * @return the number of (dataset, subject) pairs to draw from.
+     */
+    public long size() {
+        return ends.length == 0 ? 0 : ends[ends.length - 1];
+    }
+
+    /**
+     * @return a random subject item QID of any dataset, or <i>null</i> if there are none.
+     */
+    public String sample() {
+        long size = size();
+        if (size == 0) return null;
+        long index = ThreadLocalRandom.current().nextLong(size);
+        // First dataset that ends after the index
+        int low = 0;
+        int high = ends.length - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (ends[middle] > index) high = middle;
+            else low = middle + 1;
+        }
+        long start = low == 0 ? 0 : ends[low - 1];
+        return sets[low].get((int) (index - start));
+    }
+
+    /**
+     * @param dataset the dataset URI, including the state, e.g., {@code http://chuck-berry/new}.
+     * @return a random subject item QID of the given dataset, or <i>null</i> if there are none.
+     */
+    public String sample(String dataset) {
+        EntityIdSet set = subjects.get(dataset);
+        if (set == null || set.isEmpty()) return null;
+        return set.get(ThreadLocalRandom.current().nextInt(set.size()));
+    }
+}
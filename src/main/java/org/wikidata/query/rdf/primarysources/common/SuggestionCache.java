@@ -0,0 +1,259 @@
+package org.wikidata.query.rdf.primarysources.common;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongFunction;
+import java.util.function.Supplier;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalNotification;
+
+/**
+ * A bounded in-process cache of formatted suggestions, keyed by subject item QID and dataset, see {@link Utils#getSuggestions(String, String, Endpoint)}.
+ * <p>
+ * Unlike {@link QueryResultCache}, which evicts everything read from a modified graph, the cache follows the scope of each write:
+ * <ul>
+ * <li>a curation only touches statements about a single subject, so it only evicts the suggestions of that subject,
+ * see {@link #invalidateSubject(String)}. Curators typically reload the item they just curated, and the other items stay cached;</li>
+ * <li>an upload or an update may touch any subject of a dataset, so it evicts the suggestions of the whole dataset,
+ * plus the ones looked up in all datasets, see {@link #invalidateDatasets(Collection)}.</li>
+ * </ul>
+ * The bound is the estimated memory taken by the suggestions, so that a few items with thousands of statements can't crowd the heap.
+ * Least recently used subjects are evicted first.
+ * <p>
+ * Suggestions that were being loaded when an invalidation of their subject or dataset happens may be stale, so they are not cached,
+ * and callers that coalesce identical queries must not join one started before it, see {@link #get(String, String, Endpoint, LongFunction)}.
+ * Cached suggestions are shared among callers, so they must not be modified.
+ *
+ * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
+ * @since 0.2.5 - created on Jun 26, 2018.
+ */
+final class SuggestionCache {
+
+    /**
+     * Dataset key of suggestions looked up in all datasets.
+     */
+    static final String ALL_DATASETS = "all";
+
+    private static final Logger log = LoggerFactory.getLogger(SuggestionCache.class);
+    // Invalidations of a subject only hold back the loads of the subjects in the same stripe
+    private static final int STRIPES = 1024;
+    // Rough sizes in bytes on a 64-bit JVM: map entry, key and value array of a subject, and JSON object with its 4 entries of a suggestion
+    private static final int SUBJECT_OVERHEAD = 160;
+    private static final int SUGGESTION_OVERHEAD = 320;
+
+    private final String name;
+    private final long maxBytes;
+    private final Cache<String, Entry> cache;
+    // Bumped by each invalidation, so that suggestions loaded before it are not cached
+    private final AtomicLongArray subjectGenerations = new AtomicLongArray(STRIPES);
+    private final AtomicLong datasetGeneration = new AtomicLong();
+    private final Map<Endpoint, Counters> counters = new EnumMap<>(Endpoint.class);
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * @param name     the cache name, used in logs and metrics.
+     * @param maxBytes the maximum estimated memory taken by the cached suggestions; {@code 0} disables the cache.
+     */
+    SuggestionCache(String name, long maxBytes) {
+        this.name = name;
+        this.maxBytes = maxBytes;
+        this.cache = maxBytes > 0 ? CacheBuilder.newBuilder()
+            .maximumWeight(maxBytes)
+            .weigher((String qId, Entry entry) -> entry.bytes)
+            .removalListener(this::onRemoval)
+            .build() : null;
+        for (Endpoint endpoint : Endpoint.values()) counters.put(endpoint, new Counters());
+    }
+
+    /**
+     * Get the cached suggestions of a subject in a dataset, or run the loader and cache its result.
+     * Failures, i.e., <i>null</i> results, are not cached.
+     *
+     * @param qId      the subject item QID.
+     * @param dataset  the dataset URI, or {@link #ALL_DATASETS}.
+     * @param endpoint the service asking for suggestions, for metrics.
+     * @param loader   the code that actually runs the query.
+     * @return the suggestions.
+     */
+    JSONArray get(String qId, String dataset, Endpoint endpoint, Supplier<JSONArray> loader) {
+        return get(qId, dataset, endpoint, epoch -> loader.get());
+    }
+
+    /**
+     * Same as {@link #get(String, String, Endpoint, Supplier)}, with a loader that gets the epoch of the subject and dataset when it starts,
+     * e.g., to coalesce only queries started after their latest invalidation, see {@link QueryCoalescer#run(String, long, Supplier)}.
+     * Otherwise, a caller that arrives after a curation may join a query started before it, and cache the curated suggestions.
+     *
+     * @param qId      the subject item QID.
+     * @param dataset  the dataset URI, or {@link #ALL_DATASETS}.
+     * @param endpoint the service asking for suggestions, for metrics.
+     * @param loader   the code that actually runs the query, given the epoch.
+     * @return the suggestions.
+     */
+    JSONArray get(String qId, String dataset, Endpoint endpoint, LongFunction<JSONArray> loader) {
+        int stripe = stripe(qId);
+        if (cache == null) return loader.apply(epoch(stripe));
+        Counters endpointCounters = counters.get(endpoint);
+        Entry cached = cache.getIfPresent(qId);
+        JSONArray suggestions = cached == null ? null : cached.suggestions.get(dataset);
+        if (suggestions != null) {
+            endpointCounters.hits.incrementAndGet();
+            log.debug("Cached {} of {} in dataset {}", name, qId, dataset);
+            return suggestions;
+        }
+        endpointCounters.misses.incrementAndGet();
+        long subjectLoadedAt = subjectGenerations.get(stripe);
+        long datasetLoadedAt = datasetGeneration.get();
+        suggestions = loader.apply(subjectLoadedAt + datasetLoadedAt);
+        if (suggestions == null || !isCurrent(stripe, subjectLoadedAt, datasetLoadedAt)) return suggestions;
+        cache.asMap().merge(qId, new Entry(dataset, suggestions), Entry::with);
+        // An invalidation may have slipped in between the check and the merge
+        if (!isCurrent(stripe, subjectLoadedAt, datasetLoadedAt)) cache.invalidate(qId);
+        return suggestions;
+    }
+
+    /**
+     * Evict the suggestions of a subject in all datasets, e.g., after a curation.
+     *
+     * @param qId the subject item QID.
+     * @return <i>true</i> if the subject had cached suggestions.
+     */
+    boolean invalidateSubject(String qId) {
+        if (cache == null) return false;
+        subjectGenerations.incrementAndGet(stripe(qId));
+        boolean evicted = cache.asMap().remove(qId) != null;
+        log.debug("Evicted {} of {} after a curation: {}", name, qId, evicted);
+        return evicted;
+    }
+
+    /**
+     * Evict the suggestions looked up in any of the given datasets, plus the ones looked up in all datasets, e.g., after an upload.
+     *
+     * @param datasets the URIs of the modified datasets.
+     * @return the number of evicted subjects.
+     */
+    int invalidateDatasets(Collection<String> datasets) {
+        if (cache == null) return 0;
+        datasetGeneration.incrementAndGet();
+        int[] evicted = new int[1];
+        cache.asMap().values().removeIf(entry -> {
+            Collection<String> keys = entry.suggestions.keySet();
+            boolean stale = keys.contains(ALL_DATASETS) || !Collections.disjoint(keys, datasets);
+            if (stale) evicted[0]++;
+            return stale;
+        });
+        cache.cleanUp();
+        log.debug("Evicted {} of {} subjects after a write to datasets {}", name, evicted[0], datasets);
+        return evicted[0];
+    }
+
+    /**
+     * Both generations only grow, so their sum changes whenever either does, and equal sums mean equal generations.
+     */
+    private long epoch(int stripe) {
+        return subjectGenerations.get(stripe) + datasetGeneration.get();
+    }
+
+    private boolean isCurrent(int stripe, long subjectLoadedAt, long datasetLoadedAt) {
+        return subjectGenerations.get(stripe) == subjectLoadedAt && datasetGeneration.get() == datasetLoadedAt;
+    }
+
+    private static int stripe(String qId) {
+        return (qId.hashCode() & Integer.MAX_VALUE) % STRIPES;
+    }
+
+    private void onRemoval(RemovalNotification<String, Entry> notification) {
+        if (notification.wasEvicted()) evictions.incrementAndGet();
+        else if (notification.getCause() != RemovalCause.REPLACED) invalidations.incrementAndGet();
+    }
+
+    /**
+     * @return the number of cached subjects and their estimated memory, the evictions due to the size bound and due to writes,
+     * and per endpoint, the hits, misses and hit ratio.
+     */
+    JSONObject metrics() {
+        JSONObject metrics = new JSONObject();
+        long bytes = 0;
+        if (cache != null) {
+            for (Entry entry : cache.asMap().values()) bytes += entry.bytes;
+        }
+        metrics.put("subjects", cache == null ? 0 : cache.size());
+        metrics.put("estimated_bytes", bytes);
+        metrics.put("max_bytes", maxBytes);
+        metrics.put("evictions", evictions.get());
+        metrics.put("invalidations", invalidations.get());
+        for (Map.Entry<Endpoint, Counters> entry : counters.entrySet()) {
+            long hits = entry.getValue().hits.get();
+            long requests = hits + entry.getValue().misses.get();
+            // Skip services that don't use this cache
+            if (requests == 0) continue;
+            JSONObject endpointMetrics = new JSONObject();
+            endpointMetrics.put("hits", hits);
+            endpointMetrics.put("misses", entry.getValue().misses.get());
+            endpointMetrics.put("hit_ratio", (double) hits / requests);
+            metrics.put(entry.getKey().toString(), endpointMetrics);
+        }
+        return metrics;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * The suggestions of a subject, per dataset. Immutable: a new dataset makes a new entry, so that its weight is computed again.
+     */
+    private static final class Entry {
+        private final Map<String, JSONArray> suggestions;
+        private final int bytes;
+
+        private Entry(String dataset, JSONArray suggestions) {
+            this(Collections.singletonMap(dataset, suggestions));
+        }
+
+        private Entry(Map<String, JSONArray> suggestions) {
+            this.suggestions = suggestions;
+            long estimate = SUBJECT_OVERHEAD;
+            for (Map.Entry<String, JSONArray> entry : suggestions.entrySet()) estimate += 2L * entry.getKey().length() + estimate(entry.getValue());
+            this.bytes = (int) Math.min(Integer.MAX_VALUE, estimate);
+        }
+
+        private Entry with(Entry other) {
+            Map<String, JSONArray> merged = new HashMap<>(suggestions);
+            merged.putAll(other.suggestions);
+            return new Entry(merged);
+        }
+
+        private static long estimate(JSONArray suggestions) {
+            long estimate = 0;
+            for (Object suggestion : suggestions) {
+                estimate += SUGGESTION_OVERHEAD;
+                if (!(suggestion instanceof Map)) continue;
+                // Strings take 2 bytes per character
+                for (Object value : ((Map<?, ?>) suggestion).values()) {
+                    if (value instanceof String) estimate += 2L * ((String) value).length();
+                }
+            }
+            return estimate;
+        }
+    }
+
+    private static final class Counters {
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+    }
+}
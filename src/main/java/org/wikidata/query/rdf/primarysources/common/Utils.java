@@ -1,22 +1,44 @@
 package org.wikidata.query.rdf.primarysources.common;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import org.apache.http.client.fluent.Request;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.util.EntityUtils;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
+import org.json.simple.JSONStreamAware;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 import org.openrdf.model.Literal;
@@ -29,9 +51,11 @@ import org.openrdf.model.impl.ValueFactoryImpl;
 import org.openrdf.model.vocabulary.RDF;
 import org.openrdf.model.vocabulary.XMLSchema;
 import org.openrdf.query.BindingSet;
-import org.openrdf.query.QueryEvaluationException;
 import org.openrdf.query.TupleQueryResult;
+import org.openrdf.query.TupleQueryResultHandlerBase;
 import org.openrdf.query.TupleQueryResultHandlerException;
+import org.openrdf.query.impl.TupleQueryResultImpl;
+import org.openrdf.query.resultio.BooleanQueryResultFormat;
 import org.openrdf.query.resultio.QueryResultIO;
 import org.openrdf.query.resultio.QueryResultParseException;
 import org.openrdf.rio.RDFFormat;
@@ -79,56 +103,244 @@ public final class Utils {
 
     private static final Logger log = LoggerFactory.getLogger(Utils.class);
 
+    private static final QueryCoalescer<SharedResult> RESULTS_COALESCER = new QueryCoalescer<>("results");
+    private static final QueryCoalescer<JSONArray> SUGGESTIONS_COALESCER = new QueryCoalescer<>("suggestions");
+
     private Utils() {
     }
 
     /**
      * Run a SPARQL query to the Blazegraph internal endpoint.
+     * The whole result is loaded in memory: for big results, use {@link #runSparqlQuery(String, SparqlRowHandler)} instead.
+     * <p>
+     * If an identical query is already running, wait for its result instead of sending a duplicate, see {@link QueryCoalescer}.
+     * The result is never cached: Web services should use {@link #runSparqlQuery(String, Endpoint)}.
+     * <p>
+     * When run on behalf of a Web service request, the query is bound by the request deadline, see {@link QueryDeadline}.
      *
      * @param query the SPARQL query.
      * @return the query result, or <i>null</i> if something goes wrong.
+     * @throws QueryTimeoutException if the request deadline is exceeded.
      */
     public static TupleQueryResult runSparqlQuery(String query) {
+        return toTupleQueryResult(RESULTS_COALESCER.run(query, () -> fetchSparqlQueryResult(query)));
+    }
+
+    /**
+     * Same as {@link #runSparqlQuery(String)}, but look up the result cache first, see {@link QueryResultCache}.
+     * Cached results stay valid until a write to one of the graphs they read, see {@link #evictCachedResults(String...)}.
+     *
+     * @param query    the SPARQL query.
+     * @param endpoint the Web service running the query, for metrics.
+     * @return the query result, or <i>null</i> if something goes wrong.
+     */
+    public static TupleQueryResult runSparqlQuery(String query, Endpoint endpoint) {
+        return toTupleQueryResult(ResultCaches.RESULTS.get(query, endpoint, generation -> RESULTS_COALESCER.run(query, generation,
+            () -> fetchSparqlQueryResult(query))));
+    }
+
+    private static TupleQueryResult toTupleQueryResult(SharedResult shared) {
+        if (shared == null) return null;
+        // Each caller needs its own iteration over the shared rows
+        return new TupleQueryResultImpl(shared.bindingNames, shared.rows);
+    }
+
+    /**
+     * Evict the cached results of queries that read any of the given named graphs, see {@link QueryResultCache},
+     * and the cached suggestions of the datasets among them, see {@link SuggestionCache}.
+     * Call it after each successful write to Blazegraph, except curations, see {@link #evictCuratedResults(String, String...)}.
+     *
+     * @param graphs the URIs of the modified named graphs.
+     */
+    public static void evictCachedResults(String... graphs) {
+        int evicted = ResultCaches.RESULTS.invalidate(graphs) + ResultCaches.SUGGESTIONS.invalidateDatasets(Arrays.asList(graphs));
+        log.debug("Evicted {} cached results after a write to graphs {}", evicted, graphs);
+    }
+
+    /**
+     * Same as {@link #evictCachedResults(String...)}, after a curation: only the cached suggestions of the curated subject are evicted,
+     * since the curation only touches statements about it.
+     *
+     * @param subjectQid the curated subject QID.
+     * @param graphs     the URIs of the modified named graphs.
+     */
+    public static void evictCuratedResults(String subjectQid, String... graphs) {
+        int evicted = ResultCaches.RESULTS.invalidate(graphs) + (ResultCaches.SUGGESTIONS.invalidateSubject(subjectQid) ? 1 : 0);
+        log.debug("Evicted {} cached results after a curation of {} in graphs {}", evicted, subjectQid, graphs);
+    }
+
+    /**
+     * Get the result cache size, hit ratio and eviction counters per Web service, see {@link QueryResultCache#metrics()},
+     * plus the estimated memory of the suggestions cache, see {@link SuggestionCache#metrics()}.
+     *
+     * @return a JSON object with one key per kind of cached result.
+     */
+    static JSONObject resultCacheMetrics() {
+        JSONObject metrics = new JSONObject();
+        metrics.put(ResultCaches.RESULTS.getName(), ResultCaches.RESULTS.metrics());
+        metrics.put(ResultCaches.SUGGESTIONS.getName(), ResultCaches.SUGGESTIONS.metrics());
+        return metrics;
+    }
+
+    private static SharedResult fetchSparqlQueryResult(String query) {
+        QueryDeadline deadline = QueryDeadline.current();
+        try (QueryDeadline.Guard guard = deadline.guard()) {
+            HttpGet get = buildSparqlQueryRequest(query, ApiParameters.DEFAULT_IO_CONTENT_TYPE, guard);
+            if (get == null) return null;
+            try (CloseableHttpResponse response = BlazegraphClient.read(get)) {
+                HttpEntity entity = checkSparqlQueryResponse(response, query, deadline);
+                if (entity == null) return null;
+                // The whole result is parsed in memory, so the connection can go back to the pool as soon as we are done
+                SharedResult result = new SharedResult();
+                QueryResultIO.parse(entity.getContent(), QueryResultIO.getParserFormatForMIMEType(ApiParameters.DEFAULT_IO_CONTENT_TYPE), result,
+                    ValueFactoryImpl.getInstance());
+                EntityUtils.consume(entity);
+                log.debug("SPARQL query result: {} rows", result.rows.size());
+                return result;
+            } catch (QueryResultParseException qrpe) {
+                deadline.check();
+                log.error("Syntax error at line {}, column {} in the SPARQL query: {}", query, qrpe.getLineNumber(), qrpe.getColumnNumber());
+                return null;
+            } catch (TupleQueryResultHandlerException tqrhe) {
+                deadline.check();
+                log.error("Something went wrong when handling the SPARQL query: " + query, tqrhe);
+                return null;
+            } catch (IOException ioe) {
+                deadline.check();
+                log.error("An I/O error occurred while running the SPARQL query against Blazegraph. Query: " + query, ioe);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Get the counters of SPARQL queries actually sent to Blazegraph versus the coalesced ones, see {@link QueryCoalescer}.
+     *
+     * @return a JSON object with one key per kind of query.
+     */
+    static JSONObject coalescingMetrics() {
+        JSONObject metrics = new JSONObject();
+        metrics.put(RESULTS_COALESCER.getName(), RESULTS_COALESCER.metrics());
+        metrics.put(SUGGESTIONS_COALESCER.getName(), SUGGESTIONS_COALESCER.metrics());
+        return metrics;
+    }
+
+    /**
+     * Run a SPARQL query to the Blazegraph internal endpoint and stream the result rows to the given handler,
+     * as they are read from the connection. Nothing is materialized, so this is the way to go for big results.
+     * The result format is negotiated with Blazegraph, see {@link Config}.
+     * When run on behalf of a Web service request, the query is bound by the request deadline, see {@link QueryDeadline}.
+     *
+     * @param query   the SPARQL query.
+     * @param handler the callback receiving each result row.
+     * @return <i>true</i> if the whole result was handled, <i>false</i> if something went wrong.
+     * @throws QueryTimeoutException if the request deadline is exceeded.
+     */
+    public static boolean runSparqlQuery(String query, SparqlRowHandler handler) {
+        return runSparqlQuery(query, Config.BLAZEGRAPH_RESULT_FORMAT, handler);
+    }
+
+    /**
+     * Same as {@link #runSparqlQuery(String, SparqlRowHandler)}, with an explicit preferred result format,
+     * e.g., {@link SparqlResultFormat#TSV} for simple queries with few columns.
+     * Blazegraph may still answer in JSON, which is then handled transparently.
+     *
+     * @param query     the SPARQL query.
+     * @param preferred the preferred result format.
+     * @param handler   the callback receiving each result row.
+     * @return <i>true</i> if the whole result was handled, <i>false</i> if something went wrong.
+     */
+    public static boolean runSparqlQuery(String query, SparqlResultFormat preferred, SparqlRowHandler handler) {
+        QueryDeadline deadline = QueryDeadline.current();
+        try (QueryDeadline.Guard guard = deadline.guard()) {
+            HttpGet get = buildSparqlQueryRequest(query, preferred.acceptHeader(), guard);
+            if (get == null) return false;
+            try (CloseableHttpResponse response = BlazegraphClient.read(get)) {
+                HttpEntity entity = checkSparqlQueryResponse(response, query, deadline);
+                if (entity == null) return false;
+                SparqlResultFormat format = SparqlResultFormat.forContentType(entity.getContentType() == null ? null : entity.getContentType().getValue());
+                if (format != preferred) log.debug("Blazegraph answered in {} instead of {}", format, preferred);
+                long rows;
+                try (InputStream results = entity.getContent()) {
+                    rows = format.parse(results, handler);
+                }
+                log.debug("Handled {} SPARQL query result rows in {} format", rows, format);
+                return true;
+            } catch (QueryResultParseException qrpe) {
+                deadline.check();
+                log.error("Malformed SPARQL query result at line {}, column {}. Query: {}. Reason: {}", qrpe.getLineNumber(), qrpe.getColumnNumber(), query,
+                    qrpe.getMessage());
+                return false;
+            } catch (IOException ioe) {
+                deadline.check();
+                log.error("An I/O error occurred while running the SPARQL query against Blazegraph. Query: " + query, ioe);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Run a SPARQL ASK query to the Blazegraph internal endpoint.
+     * When run on behalf of a Web service request, the query is bound by the request deadline, see {@link QueryDeadline}.
+     *
+     * @param query the SPARQL ASK query.
+     * @return the boolean result, or <i>null</i> if something went wrong.
+     */
+    public static Boolean runSparqlAskQuery(String query) {
+        QueryDeadline deadline = QueryDeadline.current();
+        try (QueryDeadline.Guard guard = deadline.guard()) {
+            HttpGet get = buildSparqlQueryRequest(query, BooleanQueryResultFormat.JSON.getDefaultMIMEType(), guard);
+            if (get == null) return null;
+            try (CloseableHttpResponse response = BlazegraphClient.read(get)) {
+                HttpEntity entity = checkSparqlQueryResponse(response, query, deadline);
+                if (entity == null) return null;
+                try (InputStream result = entity.getContent()) {
+                    return QueryResultIO.parse(result, BooleanQueryResultFormat.JSON);
+                }
+            } catch (QueryResultParseException qrpe) {
+                deadline.check();
+                log.error("Malformed SPARQL ASK query result at line {}, column {}. Query: {}. Reason: {}", qrpe.getLineNumber(), qrpe.getColumnNumber(),
+                    query, qrpe.getMessage());
+                return null;
+            } catch (IOException ioe) {
+                deadline.check();
+                log.error("An I/O error occurred while running the SPARQL ASK query against Blazegraph. Query: " + query, ioe);
+                return null;
+            }
+        }
+    }
+
+    private static HttpGet buildSparqlQueryRequest(String query, String accept, QueryDeadline.Guard guard) {
         log.debug("SPARQL query to be sent to Blazegraph: {}", query);
-        URIBuilder builder = new URIBuilder();
+        URIBuilder builder = BlazegraphClient.endpoint(Config.BLAZEGRAPH_SPARQL_ENDPOINT)
+            .setParameter("query", query);
+        guard.addParameters(builder);
         URI uri;
         try {
-            uri = builder
-                .setScheme("http")
-                .setHost(Config.HOST)
-                .setPort(Config.PORT)
-                .setPath(Config.CONTEXT + Config.BLAZEGRAPH_SPARQL_ENDPOINT)
-                .setParameter("query", query)
-                .build();
+            uri = builder.build();
         } catch (URISyntaxException use) {
             log.error("Failed building the URI to query Blazegraph: {}. Parse error at index {}", use.getInput(), use.getIndex());
             return null;
         }
         log.debug("URI built for Blazegraph SPARQL endpoint: {}", uri);
-        InputStream results;
-        try {
-            results = Request.Get(uri)
-                .setHeader("Accept", ApiParameters.DEFAULT_IO_CONTENT_TYPE)
-                .execute()
-                .returnContent().asStream();
-        } catch (IOException ioe) {
-            log.error("An I/O error occurred while sending the SPARQL query to Blazegraph. Query: " + query, ioe);
-            return null;
-        }
-        try {
-            TupleQueryResult result = QueryResultIO.parse(results, QueryResultIO.getParserFormatForMIMEType(ApiParameters.DEFAULT_IO_CONTENT_TYPE));
-            log.debug("SPARQL query result: {}", result);
-            return result;
-        } catch (QueryResultParseException qrpe) {
-            log.error("Syntax error at line {}, column {} in the SPARQL query: {}", query, qrpe.getLineNumber(), qrpe.getColumnNumber());
-            return null;
-        } catch (TupleQueryResultHandlerException tqrhe) {
-            log.error("Something went wrong when handling the SPARQL query: " + query, tqrhe);
-            return null;
-        } catch (IOException ioe) {
-            log.error("An I/O error occurred while reading the SPARQL results. Query: " + query, ioe);
+        HttpGet get = new HttpGet(uri);
+        get.setHeader("Accept", accept);
+        guard.watch(get);
+        return get;
+    }
+
+    private static HttpEntity checkSparqlQueryResponse(CloseableHttpResponse response, String query, QueryDeadline deadline) throws IOException {
+        HttpEntity entity = response.getEntity();
+        int status = response.getStatusLine().getStatusCode();
+        if (status != HttpStatus.SC_OK) {
+            // Blazegraph may have stopped the query because of the deadline
+            deadline.check();
+            log.error("Failed running the SPARQL query: {}. Blazegraph responded with HTTP status {}: {}", query, status, entity == null ? "" : EntityUtils
+                .toString(entity));
             return null;
         }
+        if (entity == null) log.error("Empty response from Blazegraph. Query: {}", query);
+        return entity;
     }
 
     /**
@@ -174,70 +386,47 @@ public final class Utils {
 
     /**
      * Convert a SPARQL query result into a JSON with QuickStatement, suitable for the front end.
+     * The result rows are streamed, see {@link QuickStatementsCollector}.
      *
-     * @param queryResult the SPARQL query result.
-     * @param datasetUri  the dataset URI.
-     * @param subjectQid  the subject QID.
+     * @param query      the suggestion SPARQL query.
+     * @param datasetUri the dataset URI.
+     * @param subjectQid the subject QID.
      * @return an array of JSON objects, each representing a statement suggestion to be curated; <i>null</i> if something went wrong.
      */
-    public static JSONArray formatSuggestions(TupleQueryResult queryResult, String datasetUri, String subjectQid) {
+    private static JSONArray formatSuggestions(String query, String datasetUri, String subjectQid) {
         log.debug("Starting conversion of SPARQL results to QuickStatements");
-        JSONArray jsonSuggestions = new JSONArray();
-        String qualifierPrefix = WIKIBASE_URIS.property(WikibaseUris.PropertyType.QUALIFIER);
-        String referencePrefix = Provenance.WAS_DERIVED_FROM;
-        Map<String, StringBuilder> quickStatements = new HashMap<>();
-        try {
-            while (queryResult.hasNext()) {
-                BindingSet suggestion = queryResult.next();
-                Value datasetValue = suggestion.getValue("dataset");
-                String currentDataset = datasetValue == null ? datasetUri : datasetValue.stringValue();
-                String mainProperty = suggestion.getValue("property").stringValue().substring(WIKIBASE_URIS.property(WikibaseUris.PropertyType.CLAIM).length());
-                String statementUuid = suggestion.getValue("statement_node").stringValue().substring(WIKIBASE_URIS.statement().length());
-                String statementProperty = suggestion.getValue("statement_property").stringValue();
-                Value statementValue = suggestion.getValue("statement_value");
-                String qsKey = statementUuid + "|" + currentDataset;
-                log.debug("Current QuickStatement key from RDF statement node and dataset: {}", qsKey);
-                // Check statement, qualifier, reference
-                if (statementProperty.startsWith(WIKIBASE_URIS.property(WikibaseUris.PropertyType.STATEMENT))) {
-                    StringBuilder quickStatement = quickStatements.getOrDefault(qsKey, new StringBuilder());
-                    String statement = subjectQid + "\t" + mainProperty + "\t" + rdfValueToQuickStatement(statementValue);
-                    if (quickStatement.length() == 0)
-                        log.debug("New key. Will start a new QuickStatement with statement: [{}]", statement);
-                    else
-                        log.debug("Existing key. Will update QuickStatement [{}] with statement [{}]", quickStatement, statement);
-                    quickStatements.put(qsKey, quickStatement.insert(0, statement));
-                } else if (statementProperty.startsWith(qualifierPrefix)) {
-                    StringBuilder quickStatement = quickStatements.getOrDefault(qsKey, new StringBuilder());
-                    String qualifier = "\t" + statementProperty.substring(qualifierPrefix.length()) + "\t" + rdfValueToQuickStatement(statementValue);
-                    if (quickStatement.length() == 0)
-                        log.debug("New key. Will start a new QuickStatement with qualifier: [{}]", qualifier);
-                    else
-                        log.debug("Existing key. Will update QuickStatement [{}] with qualifier [{}]", quickStatement, qualifier);
-                    quickStatements.put(qsKey, quickStatement.append(qualifier));
-                } else if (statementProperty.equals(referencePrefix)) {
-                    String referenceProperty = suggestion.getValue("reference_property").stringValue();
-                    Value referenceValue = suggestion.getValue("reference_value");
-                    StringBuilder quickStatement = quickStatements.getOrDefault(qsKey, new StringBuilder());
-                    String reference =
-                        "\t" +
-                            referenceProperty.substring(WIKIBASE_URIS.property(WikibaseUris.PropertyType.REFERENCE).length()).replace("P", "S") +
-                            "\t" +
-                            rdfValueToQuickStatement(referenceValue);
-                    if (quickStatement.length() == 0)
-                        log.debug("New key. Will start a new QuickStatement with reference: [{}]", reference);
-                    else
-                        log.debug("Existing key. Will update QuickStatement [{}] with reference [{}]", quickStatement, reference);
-                    quickStatements.put(qsKey, quickStatement.append(reference));
-                }
-            }
-        } catch (QueryEvaluationException qee) {
-            log.error("Failed evaluating the suggestion query. The stack trace follows.", qee);
+        QuickStatementsCollector collector = new QuickStatementsCollector(datasetUri, subjectQid);
+        if (!runSparqlQuery(query, collector)) {
+            log.error("Failed evaluating the suggestion query: {}", query);
+            return null;
+        }
+        log.debug("Converted QuickStatements: {}", collector.quickStatements);
+        return toJsonSuggestions(collector.quickStatements.getOrDefault(subjectQid, Collections.emptyMap()));
+    }
+
+    /**
+     * Same as {@link #formatSuggestions(String, String, String)}, for a query with many subjects, bound to the {@code ?subject} variable.
+     *
+     * @return the suggestions of each subject that has any, or <i>null</i> if something went wrong.
+     */
+    private static Map<String, JSONArray> formatBatchSuggestions(String query, String datasetUri) {
+        QuickStatementsCollector collector = new QuickStatementsCollector(datasetUri, null);
+        if (!runSparqlQuery(query, collector)) {
+            log.error("Failed evaluating the batch suggestion query: {}", query);
             return null;
         }
-        log.debug("Converted QuickStatements: {}", quickStatements);
-        for (String key : quickStatements.keySet()) {
-            String dataset = key.split("\\|")[1];
-            String qs = quickStatements.get(key).toString();
+        Map<String, JSONArray> suggestions = new HashMap<>();
+        for (Map.Entry<String, Map<String, StringBuilder>> entry : collector.quickStatements.entrySet()) {
+            suggestions.put(entry.getKey(), toJsonSuggestions(entry.getValue()));
+        }
+        return suggestions;
+    }
+
+    private static JSONArray toJsonSuggestions(Map<String, StringBuilder> quickStatements) {
+        JSONArray jsonSuggestions = new JSONArray();
+        for (Map.Entry<String, StringBuilder> entry : quickStatements.entrySet()) {
+            String dataset = entry.getKey().split("\\|")[1];
+            String qs = entry.getValue().toString();
             JSONObject jsonSuggestion = new JSONObject();
             jsonSuggestion.put("dataset", dataset);
             jsonSuggestion.put("format", "QuickStatement");
@@ -304,16 +493,140 @@ public final class Utils {
     }
 
     /**
-     * Run a SPARQL query against the Blazegraph internal endpoint to retrieve all new statements of a subject item that need curation.
+     * Run a SPARQL query against the Blazegraph internal endpoint to retrieve all new statements of a subject item that need curation,
+     * and convert them into QuickStatements.
+     *
+     * Curators hitting the same item at the same time share a single query, see {@link QueryCoalescer},
+     * and suggestions are cached per subject and dataset until either is written, see {@link SuggestionCache}:
+     * the returned array may be shared, so it must not be modified.
+     * <p>
+     * When the entities cache is up to date, it tells which datasets have statements about the subject,
+     * see {@link EntitiesCache.Snapshot#datasetsWithSubject(String)}: if none does, there is no query at all, if one does, only that dataset is queried.
+     * Otherwise, a single query looks into all of them, as if no dataset was given.
+     * A subject added outside the Web services only shows up after the next full refresh of the cache.
      *
      * @param dataset    the dataset URI, or <i>all</i> to look into the whole database.
      * @param subjectQid the subject QID.
-     * @return the query result, or <i>null</i> if something goes wrong.
+     * @param endpoint   the Web service asking for suggestions, for metrics.
+     * @return an array of JSON objects, each representing a statement suggestion to be curated; <i>null</i> if something went wrong.
      */
-    public static TupleQueryResult getSuggestions(String dataset, String subjectQid) {
-        String query = dataset.equals("all") ? SparqlQueries.SUGGEST_ALL_DATASETS_QUERY.replace(SparqlQueries.QID_PLACE_HOLDER, subjectQid) : SparqlQueries
-            .SUGGEST_ONE_DATASET_QUERY.replace(SparqlQueries.QID_PLACE_HOLDER, subjectQid).replace(SparqlQueries.DATASET_PLACE_HOLDER, dataset);
-        return runSparqlQuery(query);
+    public static JSONArray getSuggestions(String dataset, String subjectQid, Endpoint endpoint) {
+        // Most subjects have no suggestions at all: the entities cache knows, so only look into the datasets that hold the subject
+        if (EntitiesCache.isUpToDate()) {
+            List<String> datasets = EntitiesCache.snapshot().datasetsWithSubject(subjectQid);
+            if (!dataset.equals("all")) datasets.retainAll(Collections.singleton(dataset));
+            log.debug("Datasets with statements about {}, as per the entities cache: {}", subjectQid, datasets);
+            if (datasets.isEmpty()) return new JSONArray();
+            if (datasets.size() == 1) return getDatasetSuggestions(datasets.get(0), subjectQid, endpoint);
+        }
+        return getDatasetSuggestions(dataset, subjectQid, endpoint);
+    }
+
+    private static JSONArray getDatasetSuggestions(String dataset, String subjectQid, Endpoint endpoint) {
+        SparqlTemplate template = dataset.equals("all") ? SparqlQueries.SUGGEST_ALL_DATASETS_TEMPLATE : SparqlQueries.SUGGEST_ONE_DATASET_TEMPLATE;
+        String query = template.bind()
+            .set(SparqlTemplate.Slot.QID, subjectQid)
+            .set(SparqlTemplate.Slot.DATASET, dataset)
+            .render();
+        return ResultCaches.SUGGESTIONS.get(subjectQid, dataset, endpoint, epoch -> SUGGESTIONS_COALESCER.run(query, epoch,
+            () -> formatSuggestions(query, dataset, subjectQid)));
+    }
+
+    /**
+     * Run SPARQL queries against the Blazegraph internal endpoint to retrieve all new statements of many subject items at once,
+     * and convert them into QuickStatements, grouped per subject.
+     * <p>
+     * Subjects are bound through a {@code VALUES} clause, in chunks of {@link Config#SUGGEST_BATCH_CHUNK_SIZE}, so that each query URI stays short.
+     * Up to {@link Config#SUGGEST_BATCH_PARALLELISM} chunks run at once: one on the calling thread, and the others on a bounded pool,
+     * under the same deadline and bulkhead of the calling Web service, see {@link QueryDeadline}. The remaining chunks wait for their turn,
+     * so that a single big batch leaves bulkhead permits for the other requests. When the pool is saturated, chunks run on the calling thread.
+     * Results are not cached, since a batch rarely repeats, see {@link #getSuggestions(String, String, Endpoint)} instead.
+     * <p>
+     * When the entities cache is up to date, subjects that no dataset holds are skipped without a query.
+     *
+     * @param dataset     the dataset URI, or <i>all</i> to look into the whole database.
+     * @param subjectQids the subject QIDs, without duplicates.
+     * @param endpoint    the Web service asking for suggestions.
+     * @return the suggestions of each subject that has any, see {@link #getSuggestions(String, String, Endpoint)}; <i>null</i> if something went wrong.
+     * @throws QueryTimeoutException if the request deadline is exceeded.
+     */
+    public static Map<String, JSONArray> getBatchSuggestions(String dataset, Collection<String> subjectQids, Endpoint endpoint) {
+        List<String> subjects = new ArrayList<>(subjectQids);
+        if (EntitiesCache.isUpToDate()) {
+            EntitiesCache.Snapshot snapshot = EntitiesCache.snapshot();
+            subjects.removeIf(qId -> {
+                List<String> datasets = snapshot.datasetsWithSubject(qId);
+                return dataset.equals("all") ? datasets.isEmpty() : !datasets.contains(dataset);
+            });
+            log.debug("{} out of {} subjects have statements, as per the entities cache", subjects.size(), subjectQids.size());
+        }
+        Map<String, JSONArray> suggestions = new HashMap<>();
+        if (subjects.isEmpty()) return suggestions;
+        SparqlTemplate template = dataset.equals("all") ? SparqlQueries.SUGGEST_BATCH_ALL_DATASETS_TEMPLATE : SparqlQueries.SUGGEST_BATCH_ONE_DATASET_TEMPLATE;
+        QueryDeadline deadline = QueryDeadline.current();
+        List<Supplier<Map<String, JSONArray>>> chunks = new ArrayList<>();
+        for (int start = 0; start < subjects.size(); start += Config.SUGGEST_BATCH_CHUNK_SIZE) {
+            List<String> chunk = subjects.subList(start, Math.min(start + Config.SUGGEST_BATCH_CHUNK_SIZE, subjects.size()));
+            String query = template.bind()
+                .set(SparqlTemplate.Slot.QIDS, chunk)
+                .set(SparqlTemplate.Slot.DATASET, dataset)
+                .render();
+            chunks.add(() -> {
+                // Pool threads run on behalf of the request, the calling thread already does
+                boolean pooled = QueryDeadline.current() != deadline;
+                if (pooled) deadline.attach();
+                try {
+                    return formatBatchSuggestions(query, dataset);
+                } finally {
+                    if (pooled) QueryDeadline.detach();
+                }
+            });
+        }
+        // Chunks are dealt to lanes, which run one chunk at a time: a batch holds at most one bulkhead permit per lane
+        int lanes = Math.min(chunks.size(), Config.SUGGEST_BATCH_PARALLELISM);
+        List<Future<Map<String, JSONArray>>> pending = new ArrayList<>(lanes - 1);
+        try {
+            for (int lane = 1; lane < lanes; lane++) {
+                int first = lane;
+                pending.add(BatchWorkers.POOL.submit(() -> runBatchLane(chunks, first, lanes)));
+            }
+            Map<String, JSONArray> own = runBatchLane(chunks, 0, lanes);
+            if (own == null) return null;
+            suggestions.putAll(own);
+            for (Future<Map<String, JSONArray>> lane : pending) {
+                Map<String, JSONArray> laneSuggestions = lane.get();
+                if (laneSuggestions == null) return null;
+                suggestions.putAll(laneSuggestions);
+            }
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof RuntimeException) throw (RuntimeException) ee.getCause();
+            log.error("Something went wrong while fetching a chunk of batch suggestions", ee.getCause());
+            return null;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            log.warn("Interrupted while fetching batch suggestions");
+            return null;
+        } finally {
+            // No-op for the completed chunks, and stop the others when giving up
+            for (Future<Map<String, JSONArray>> chunk : pending) chunk.cancel(true);
+        }
+        suggestions.values().removeIf(JSONArray::isEmpty);
+        return suggestions;
+    }
+
+    /**
+     * Run every {@code step}-th chunk of batch suggestions in sequence, starting from {@code first}.
+     *
+     * @return the merged suggestions of the chunks, or <i>null</i> as soon as one of them fails.
+     */
+    private static Map<String, JSONArray> runBatchLane(List<Supplier<Map<String, JSONArray>>> chunks, int first, int step) {
+        Map<String, JSONArray> suggestions = new HashMap<>();
+        for (int i = first; i < chunks.size(); i += step) {
+            Map<String, JSONArray> chunkSuggestions = chunks.get(i).get();
+            if (chunkSuggestions == null) return null;
+            suggestions.putAll(chunkSuggestions);
+        }
+        return suggestions;
     }
 
     /**
@@ -539,6 +852,59 @@ public final class Utils {
         return datasetURI;
     }
 
+    /**
+     * Write a JSON cache file atomically, see {@link #writeAtomically(Path, FileContent)}.
+     *
+     * @param target the cache file.
+     * @param json   the content to write.
+     * @throws IOException if the temporary file can't be written or renamed.
+     */
+    static void writeJsonAtomically(Path target, JSONStreamAware json) throws IOException {
+        writeAtomically(target, out -> {
+            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            json.writeJSONString(writer);
+            writer.flush();
+        });
+    }
+
+    /**
+     * Write a cache file to a temporary file in the same directory, then rename it to the target.
+     * Readers of the file see either the old content or the new one, never a half-written one.
+     *
+     * @param target  the cache file.
+     * @param content the content to write.
+     * @throws IOException if the temporary file can't be written or renamed.
+     */
+    static void writeAtomically(Path target, FileContent content) throws IOException {
+        Path directory = target.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(directory, target.getFileName().toString(), ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                content.writeTo(out);
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException amnse) {
+                log.warn("The file system does not support atomic renames, readers of '{}' may see it half-written", target);
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * The content of a file, see {@link #writeAtomically(Path, FileContent)}.
+     */
+    @FunctionalInterface
+    interface FileContent {
+        /**
+         * @param out the file stream. Flush any buffer on top of it, but don't close it.
+         * @throws IOException if the content can't be written.
+         */
+        void writeTo(OutputStream out) throws IOException;
+    }
+
     private static double computeCoordinatesPrecision(String latitude, String longitude) {
         return Math.min(Math.pow(10, -numberOfDecimalDigits(latitude)), Math.pow(10, -numberOfDecimalDigits(longitude)));
     }
@@ -598,4 +964,110 @@ public final class Utils {
         jsonSuggestion.put("for_mw_api", forMediaWikiApi);
         return jsonSuggestion;
     }
+
+    /**
+     * Build QuickStatements out of the suggestion query result rows, as they are streamed.
+     * Only the statement and reference values are converted into RDF values, since their data type matters.
+     */
+    private static final class QuickStatementsCollector implements SparqlRowHandler {
+        private static final String MAIN_PROPERTY_PREFIX = WIKIBASE_URIS.property(WikibaseUris.PropertyType.CLAIM);
+        private static final String STATEMENT_PREFIX = WIKIBASE_URIS.property(WikibaseUris.PropertyType.STATEMENT);
+        private static final String QUALIFIER_PREFIX = WIKIBASE_URIS.property(WikibaseUris.PropertyType.QUALIFIER);
+        private static final String REFERENCE_PREFIX = WIKIBASE_URIS.property(WikibaseUris.PropertyType.REFERENCE);
+
+        private final String datasetUri;
+        private final String subjectQid;
+        // Subject QID -> statement node UUID and dataset -> QuickStatement
+        private final Map<String, Map<String, StringBuilder>> quickStatements = new HashMap<>();
+
+        /**
+         * @param datasetUri the dataset URI, used when the result has no {@code ?dataset} variable.
+         * @param subjectQid the subject QID, or <i>null</i> if the result binds the subjects to the {@code ?subject} variable.
+         */
+        private QuickStatementsCollector(String datasetUri, String subjectQid) {
+            this.datasetUri = datasetUri;
+            this.subjectQid = subjectQid;
+        }
+
+        @Override
+        public void handle(SparqlRow suggestion) {
+            String datasetValue = suggestion.get("dataset");
+            String currentDataset = datasetValue == null ? datasetUri : datasetValue;
+            String subject = subjectQid == null ? suggestion.get("subject").substring(WIKIBASE_URIS.entity().length()) : subjectQid;
+            Map<String, StringBuilder> statements = quickStatements.computeIfAbsent(subject, k -> new HashMap<>());
+            String mainProperty = suggestion.get("property").substring(MAIN_PROPERTY_PREFIX.length());
+            String statementUuid = suggestion.get("statement_node").substring(WIKIBASE_URIS.statement().length());
+            String statementProperty = suggestion.get("statement_property");
+            String qsKey = statementUuid + "|" + currentDataset;
+            log.debug("Current QuickStatement key from RDF statement node and dataset: {}", qsKey);
+            // Check statement, qualifier, reference
+            if (statementProperty.startsWith(STATEMENT_PREFIX)) {
+                StringBuilder quickStatement = statements.computeIfAbsent(qsKey, k -> new StringBuilder());
+                String statement = subject + "\t" + mainProperty + "\t" + rdfValueToQuickStatement(suggestion.getValue("statement_value"));
+                if (quickStatement.length() == 0)
+                    log.debug("New key. Will start a new QuickStatement with statement: [{}]", statement);
+                else
+                    log.debug("Existing key. Will update QuickStatement [{}] with statement [{}]", quickStatement, statement);
+                quickStatement.insert(0, statement);
+            } else if (statementProperty.startsWith(QUALIFIER_PREFIX)) {
+                StringBuilder quickStatement = statements.computeIfAbsent(qsKey, k -> new StringBuilder());
+                String qualifier = "\t" + statementProperty.substring(QUALIFIER_PREFIX.length()) + "\t" + rdfValueToQuickStatement(suggestion.getValue
+                    ("statement_value"));
+                if (quickStatement.length() == 0)
+                    log.debug("New key. Will start a new QuickStatement with qualifier: [{}]", qualifier);
+                else
+                    log.debug("Existing key. Will update QuickStatement [{}] with qualifier [{}]", quickStatement, qualifier);
+                quickStatement.append(qualifier);
+            } else if (statementProperty.equals(Provenance.WAS_DERIVED_FROM)) {
+                String referenceProperty = suggestion.get("reference_property");
+                StringBuilder quickStatement = statements.computeIfAbsent(qsKey, k -> new StringBuilder());
+                String reference =
+                    "\t" +
+                        referenceProperty.substring(REFERENCE_PREFIX.length()).replace("P", "S") +
+                        "\t" +
+                        rdfValueToQuickStatement(suggestion.getValue("reference_value"));
+                if (quickStatement.length() == 0)
+                    log.debug("New key. Will start a new QuickStatement with reference: [{}]", reference);
+                else
+                    log.debug("Existing key. Will update QuickStatement [{}] with reference [{}]", quickStatement, reference);
+                quickStatement.append(reference);
+            }
+        }
+    }
+
+    /**
+     * A SPARQL query result fully loaded in memory, which can be iterated by several callers.
+     */
+    private static final class SharedResult extends TupleQueryResultHandlerBase {
+        private List<String> bindingNames = Collections.emptyList();
+        private final List<BindingSet> rows = new ArrayList<>();
+
+        @Override
+        public void startQueryResult(List<String> bindingNames) {
+            this.bindingNames = Collections.unmodifiableList(new ArrayList<>(bindingNames));
+        }
+
+        @Override
+        public void handleSolution(BindingSet bindingSet) {
+            rows.add(bindingSet);
+        }
+    }
+
+    /**
+     * Result caches, lazily initialized on first use: their size comes from {@link Config},
+     * which should not be loaded by the static utility methods that don't need it.
+     */
+    private static final class ResultCaches {
+        private static final QueryResultCache<SharedResult> RESULTS = new QueryResultCache<>("results", Config.RESULT_CACHE_MAX_ENTRIES);
+        private static final SuggestionCache SUGGESTIONS = new SuggestionCache("suggestions", Config.SUGGESTION_CACHE_MAX_BYTES);
+    }
+
+    /**
+     * Threads running the chunks of batch suggestions, see {@link #getBatchSuggestions(String, Collection, Endpoint)}.
+     * Lazily initialized on first use, for the same reason as {@link ResultCaches}.
+     */
+    private static final class BatchWorkers {
+        private static final BackgroundExecutor POOL = new BackgroundExecutor("batch-suggestions", Config.SUGGEST_BATCH_WORKERS,
+            Config.SUGGEST_BATCH_WORKERS, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
 }
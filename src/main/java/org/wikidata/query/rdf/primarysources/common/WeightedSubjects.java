@@ -0,0 +1,147 @@
+package org.wikidata.query.rdf.primarysources.common;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The subject items of a dataset, weighted by their number of statements to be curated, see {@link RandomSubjects}.
+ * <p>
+ * Weights sit in a flat array, aligned with the sorted numeric parts of the QIDs, as in {@link EntityIdSet}.
+ * A Fenwick tree over blocks of {@value #BLOCK_SIZE} subjects holds the running sums: a weighted draw descends the tree to a block,
+ * then scans it, and a weight update climbs the tree. Both are logarithmic in the number of subjects,
+ * and the tree takes next to no memory on top of the weights.
+ * <p>
+ * QIDs that don't fit an int are not weighted, and never drawn. They are rare enough.
+ *
+ * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
+ * @since 0.2.5 - created on Jun 24, 2018.
+ */
+final class WeightedSubjects {
+
+    private static final int BLOCK_SHIFT = 6;
+    private static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+
+    private final int[] ids;
+    // Guarded by this
+    private final int[] weights;
+    // 1-based, tree[b] sums the weights of the blocks (b - lowest bit of b, b]
+    private final long[] tree;
+    private long total;
+
+    private WeightedSubjects(int[] ids, int[] weights) {
+        this.ids = ids;
+        this.weights = weights;
+        int blocks = (ids.length + BLOCK_SIZE - 1) >> BLOCK_SHIFT;
+        this.tree = new long[blocks + 1];
+        for (int i = 0; i < weights.length; i++) {
+            tree[(i >> BLOCK_SHIFT) + 1] += weights[i];
+            total += weights[i];
+        }
+        // Linear construction: push each node into its parent
+        for (int b = 1; b <= blocks; b++) {
+            int parent = b + (b & -b);
+            if (parent <= blocks) tree[parent] += tree[b];
+        }
+    }
+
+    /**
+     * @return the number of weighted subjects, including the ones with no statements left.
+     */
+    int size() {
+        return ids.length;
+    }
+
+    /**
+     * @return the sum of the weights, i.e., the statements to be curated.
+     */
+    synchronized long total() {
+        return total;
+    }
+
+    /**
+     * @return a subject item QID, drawn with a probability proportional to its weight, or <i>null</i> if no subject has statements left.
+     */
+    synchronized String sample() {
+        if (total == 0) return null;
+        long remaining = ThreadLocalRandom.current().nextLong(total);
+        int blocks = tree.length - 1;
+        int block = 0;
+        for (int step = Integer.highestOneBit(blocks); step > 0; step >>= 1) {
+            int next = block + step;
+            if (next <= blocks && tree[next] <= remaining) {
+                block = next;
+                remaining -= tree[next];
+            }
+        }
+        int i = block << BLOCK_SHIFT;
+        while (remaining >= weights[i]) remaining -= weights[i++];
+        return "Q" + ids[i];
+    }
+
+    /**
+     * Update the weight of a subject, e.g., after its statements were counted again.
+     *
+     * @param qId    the subject item QID.
+     * @param weight the number of statements, negative values count as 0.
+     * @return <i>true</i> if the subject is weighted, <i>false</i> if it is unknown.
+     */
+    synchronized boolean set(String qId, int weight) {
+        int index = Arrays.binarySearch(ids, EntityIdSet.parse('Q', qId));
+        if (index < 0) return false;
+        int delta = Math.max(0, weight) - weights[index];
+        if (delta == 0) return true;
+        weights[index] += delta;
+        total += delta;
+        for (int b = (index >> BLOCK_SHIFT) + 1; b < tree.length; b += b & -b) tree[b] += delta;
+        return true;
+    }
+
+    /**
+     * @param qId the subject item QID.
+     * @return the current weight of the subject, 0 if unknown.
+     */
+    synchronized int weight(String qId) {
+        int index = Arrays.binarySearch(ids, EntityIdSet.parse('Q', qId));
+        return index < 0 ? 0 : weights[index];
+    }
+
+    /**
+     * Collect weighted subjects one by one, e.g., while streaming SPARQL query results.
+     */
+    static final class Builder {
+        // Numeric part in the high bits, weight in the low ones, so that sorting orders by QID
+        private long[] packed = new long[1024];
+        private int size;
+
+        /**
+         * @param qId    the subject item QID. Duplicates add up.
+         * @param weight the number of statements, negative values count as 0.
+         * @return this builder.
+         */
+        Builder add(String qId, int weight) {
+            int id = EntityIdSet.parse('Q', qId);
+            if (id < 0) return this;
+            if (size == packed.length) packed = Arrays.copyOf(packed, size + (size >> 1));
+            packed[size++] = ((long) id << 32) | Math.max(0, weight);
+            return this;
+        }
+
+        WeightedSubjects build() {
+            Arrays.sort(packed, 0, size);
+            int[] ids = new int[size];
+            int[] weights = new int[size];
+            int distinct = 0;
+            for (int i = 0; i < size; i++) {
+                int id = (int) (packed[i] >>> 32);
+                int weight = (int) packed[i];
+                if (distinct > 0 && ids[distinct - 1] == id) {
+                    weights[distinct - 1] += weight;
+                } else {
+                    ids[distinct] = id;
+                    weights[distinct++] = weight;
+                }
+            }
+            return new WeightedSubjects(Arrays.copyOf(ids, distinct), Arrays.copyOf(weights, distinct));
+        }
+    }
+}
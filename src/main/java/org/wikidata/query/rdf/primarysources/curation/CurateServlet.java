@@ -8,17 +8,20 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
 
+import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.apache.http.HttpResponse;
-import org.apache.http.client.fluent.Form;
-import org.apache.http.client.fluent.Request;
-import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
@@ -27,8 +30,16 @@ import org.openrdf.model.Value;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.wikidata.query.rdf.primarysources.common.ApiParameters;
+import org.wikidata.query.rdf.primarysources.common.BlazegraphClient;
 import org.wikidata.query.rdf.primarysources.common.Config;
+import org.wikidata.query.rdf.primarysources.common.Endpoint;
+import org.wikidata.query.rdf.primarysources.common.EntitiesCache;
+import org.wikidata.query.rdf.primarysources.common.EntityChange;
+import org.wikidata.query.rdf.primarysources.common.RandomSubjects;
+import org.wikidata.query.rdf.primarysources.common.RdfVocabulary;
+import org.wikidata.query.rdf.primarysources.common.RequestExecutor;
 import org.wikidata.query.rdf.primarysources.common.SparqlQueries;
+import org.wikidata.query.rdf.primarysources.common.SparqlTemplate;
 import org.wikidata.query.rdf.primarysources.common.Utils;
 
 /**
@@ -59,6 +70,7 @@ import org.wikidata.query.rdf.primarysources.common.Utils;
  * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
  * @since 0.2.5 - created on Aug 30, 2017.
  */
+@WebServlet(urlPatterns = "/curate", asyncSupported = true)
 public class CurateServlet extends HttpServlet {
 
     private static final String MW_API_OBJECT = "for_mw_api";
@@ -70,6 +82,10 @@ public class CurateServlet extends HttpServlet {
 
     @Override
     protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        RequestExecutor.execute(request, response, Endpoint.CURATE, () -> handlePost(request, response));
+    }
+
+    private void handlePost(HttpServletRequest request, HttpServletResponse response) throws IOException {
         RequestParameters parameters = new RequestParameters();
         boolean ok = processQuickStatementRequest(request, parameters, response);
         if (!ok) return;
@@ -302,56 +318,31 @@ public class CurateServlet extends HttpServlet {
     }
 
     private JSONObject changeState(RequestParameters parameters) throws IOException {
-        String query = null;
+        SparqlTemplate template = null;
         switch (parameters.type) {
         case "claim":
-            query = parameters.state.equals("approved") ? SparqlQueries.CLAIM_APPROVAL_QUERY : SparqlQueries.CLAIM_REJECTION_QUERY;
-            query = query
-                .replace(SparqlQueries.USER_PLACE_HOLDER, parameters.user)
-                .replace(SparqlQueries.DATASET_PLACE_HOLDER, parameters.dataset)
-                .replace(SparqlQueries.STATE_PLACE_HOLDER, parameters.state)
-                .replace(SparqlQueries.QID_PLACE_HOLDER, parameters.qId)
-                .replace(SparqlQueries.MAIN_PID_PLACE_HOLDER, parameters.mainPId)
-                .replace(SparqlQueries.PID_PLACE_HOLDER, parameters.pId);
-            query = parameters.value instanceof org.openrdf.model.URI
-                ? query.replace(SparqlQueries.VALUE_PLACE_HOLDER, "<" + parameters.value.toString() + ">")
-                : query.replace(SparqlQueries.VALUE_PLACE_HOLDER, parameters.value.toString());
+            template = parameters.state.equals("approved") ? SparqlQueries.CLAIM_APPROVAL_TEMPLATE : SparqlQueries.CLAIM_REJECTION_TEMPLATE;
             break;
         case "qualifier":
-            query = SparqlQueries.QUALIFIER_CURATION_QUERY
-                .replace(SparqlQueries.USER_PLACE_HOLDER, parameters.user)
-                .replace(SparqlQueries.DATASET_PLACE_HOLDER, parameters.dataset)
-                .replace(SparqlQueries.STATE_PLACE_HOLDER, parameters.state)
-                .replace(SparqlQueries.QID_PLACE_HOLDER, parameters.qId)
-                .replace(SparqlQueries.MAIN_PID_PLACE_HOLDER, parameters.mainPId)
-                .replace(SparqlQueries.PID_PLACE_HOLDER, parameters.pId);
-            query = parameters.value instanceof org.openrdf.model.URI
-                ? query.replace(SparqlQueries.VALUE_PLACE_HOLDER, "<" + parameters.value.toString() + ">")
-                : query.replace(SparqlQueries.VALUE_PLACE_HOLDER, parameters.value.toString());
+            template = SparqlQueries.QUALIFIER_CURATION_TEMPLATE;
             break;
         case "reference":
-            query = SparqlQueries.REFERENCE_CURATION_QUERY
-                .replace(SparqlQueries.USER_PLACE_HOLDER, parameters.user)
-                .replace(SparqlQueries.DATASET_PLACE_HOLDER, parameters.dataset)
-                .replace(SparqlQueries.STATE_PLACE_HOLDER, parameters.state)
-                .replace(SparqlQueries.QID_PLACE_HOLDER, parameters.qId)
-                .replace(SparqlQueries.MAIN_PID_PLACE_HOLDER, parameters.mainPId)
-                .replace(SparqlQueries.PID_PLACE_HOLDER, parameters.pId);
-            query = parameters.value instanceof org.openrdf.model.URI
-                ? query.replace(SparqlQueries.VALUE_PLACE_HOLDER, "<" + parameters.value.toString() + ">")
-                : query.replace(SparqlQueries.VALUE_PLACE_HOLDER, parameters.value.toString());
+            template = SparqlQueries.REFERENCE_CURATION_TEMPLATE;
             break;
         }
+        String query = template.bind()
+            .set(SparqlTemplate.Slot.USER, parameters.user)
+            .set(SparqlTemplate.Slot.DATASET, parameters.dataset)
+            .set(SparqlTemplate.Slot.STATE, parameters.state)
+            .set(SparqlTemplate.Slot.QID, parameters.qId)
+            .set(SparqlTemplate.Slot.MAIN_PID, parameters.mainPId)
+            .set(SparqlTemplate.Slot.PID, parameters.pId)
+            .set(SparqlTemplate.Slot.VALUE, parameters.value)
+            .render();
         log.debug("SPARQL update query to be sent to Blazegraph: {}", query);
-        URIBuilder builder = new URIBuilder();
         URI uri;
         try {
-            uri = builder
-                .setScheme("http")
-                .setHost(Config.HOST)
-                .setPort(Config.PORT)
-                .setPath(Config.CONTEXT + Config.BLAZEGRAPH_SPARQL_ENDPOINT)
-                .build();
+            uri = BlazegraphClient.endpoint(Config.BLAZEGRAPH_SPARQL_ENDPOINT).build();
         } catch (URISyntaxException use) {
             log.error("Failed building the URI to query Blazegraph: {}. Parse error at index {}", use.getInput(), use.getIndex());
             JSONObject toBeReturned = new JSONObject();
@@ -359,28 +350,34 @@ public class CurateServlet extends HttpServlet {
             return toBeReturned;
         }
         log.debug("URI built for Blazegraph SPARQL endpoint: {}", uri);
-        HttpResponse response;
-        response = Request.Post(uri)
-            .setHeader("Accept", ApiParameters.DEFAULT_IO_CONTENT_TYPE)
-            .bodyForm(Form.form().add("update", query).build())
-            .execute()
-            .returnResponse();
-        log.debug("Response from Blazegraph SPARQL endpoint: {}", response);
-        int status = response.getStatusLine().getStatusCode();
-        // Get the SPARQL update response only if it went wrong
-        if (status == HttpServletResponse.SC_OK) {
-            log.info("The state change via SPARQL update to Blazegraph went fine");
-            return null;
-        } else {
-            log.error("Failed changing state via SPARQL update to Blazegraph. HTTP error code: {}", status);
-            try (BufferedReader responseReader = new BufferedReader(new InputStreamReader(response.getEntity().getContent(), StandardCharsets.UTF_8))) {
-                JSONParser parser = new JSONParser();
-                return (JSONObject) parser.parse(responseReader);
-            } catch (ParseException pe) {
-                log.error("Malformed JSON response from Blazegraph. Parse error at index {}", pe.getPosition());
-                JSONObject toBeReturned = new JSONObject();
-                toBeReturned.put("error_message", "Malformed JSON response from Blazegraph. Parse error at index: " + pe.getPosition());
-                return toBeReturned;
+        HttpPost post = new HttpPost(uri);
+        post.setHeader("Accept", ApiParameters.DEFAULT_IO_CONTENT_TYPE);
+        post.setEntity(new UrlEncodedFormEntity(Collections.singletonList(new BasicNameValuePair("update", query)), StandardCharsets.UTF_8));
+        try (CloseableHttpResponse response = BlazegraphClient.write(post)) {
+            log.debug("Response from Blazegraph SPARQL endpoint: {}", response);
+            int status = response.getStatusLine().getStatusCode();
+            // Get the SPARQL update response only if it went wrong
+            if (status == HttpServletResponse.SC_OK) {
+                log.info("The state change via SPARQL update to Blazegraph went fine");
+                EntityUtils.consume(response.getEntity());
+                // The statement moved from the "new" graph to the state one, and the user activities changed
+                Utils.evictCuratedResults(parameters.qId, parameters.dataset + "/new", parameters.dataset + "/" + parameters.state,
+                    RdfVocabulary.METADATA_NAMESPACE);
+                EntitiesCache.applyChange(new EntityChange(parameters.dataset + "/new").curated(parameters.qId, parameters.mainPId, parameters.value));
+                // A curated claim may leave the subject with fewer statements to be curated
+                if (parameters.type.equals("claim")) RandomSubjects.curated(parameters.dataset + "/new", parameters.qId);
+                return null;
+            } else {
+                log.error("Failed changing state via SPARQL update to Blazegraph. HTTP error code: {}", status);
+                try (BufferedReader responseReader = new BufferedReader(new InputStreamReader(response.getEntity().getContent(), StandardCharsets.UTF_8))) {
+                    JSONParser parser = new JSONParser();
+                    return (JSONObject) parser.parse(responseReader);
+                } catch (ParseException pe) {
+                    log.error("Malformed JSON response from Blazegraph. Parse error at index {}", pe.getPosition());
+                    JSONObject toBeReturned = new JSONObject();
+                    toBeReturned.put("error_message", "Malformed JSON response from Blazegraph. Parse error at index: " + pe.getPosition());
+                    return toBeReturned;
+                }
             }
         }
     }
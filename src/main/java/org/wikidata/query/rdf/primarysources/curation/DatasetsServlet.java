@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.Map;
 
+import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -16,7 +17,9 @@ import org.openrdf.query.TupleQueryResult;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.wikidata.query.rdf.primarysources.common.ApiParameters;
+import org.wikidata.query.rdf.primarysources.common.Endpoint;
 import org.wikidata.query.rdf.primarysources.common.RdfVocabulary;
+import org.wikidata.query.rdf.primarysources.common.RequestExecutor;
 import org.wikidata.query.rdf.primarysources.common.Utils;
 
 /**
@@ -29,6 +32,7 @@ import org.wikidata.query.rdf.primarysources.common.Utils;
  * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
  * @since 0.2.5 - created on Dec 13, 2017.
  */
+@WebServlet(urlPatterns = "/datasets", asyncSupported = true)
 public class DatasetsServlet extends HttpServlet {
 
     private static final String QUERY = "SELECT ?dataset ?user WHERE { GRAPH <" + RdfVocabulary.METADATA_NAMESPACE + "> { ?dataset <" + RdfVocabulary
@@ -37,13 +41,17 @@ public class DatasetsServlet extends HttpServlet {
 
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        RequestExecutor.execute(request, response, Endpoint.DATASETS, () -> handleGet(request, response));
+    }
+
+    private void handleGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
         Map<String, String[]> parameterMap = request.getParameterMap();
         if (!parameterMap.isEmpty()) {
             log.warn("Request parameters detected: {}. Will fail with a bad request", parameterMap);
             response.sendError(HttpServletResponse.SC_BAD_REQUEST, "No parameters accepted.");
             return;
         }
-        TupleQueryResult datasetsAndUsers = Utils.runSparqlQuery(QUERY);
+        TupleQueryResult datasetsAndUsers = Utils.runSparqlQuery(QUERY, Endpoint.DATASETS);
         sendResponse(response, datasetsAndUsers);
         log.info("GET /datasets successful");
     }
@@ -1,41 +1,36 @@
 package org.wikidata.query.rdf.primarysources.curation;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.nio.file.Files;
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
 import java.util.Locale;
-import java.util.Random;
-import java.util.Set;
 
+import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
 import org.openrdf.model.Value;
-import org.openrdf.query.TupleQueryResult;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.wikidata.query.rdf.primarysources.common.ApiParameters;
-import org.wikidata.query.rdf.primarysources.common.EntitiesCache;
+import org.wikidata.query.rdf.primarysources.common.Endpoint;
+import org.wikidata.query.rdf.primarysources.common.RandomSubjects;
+import org.wikidata.query.rdf.primarysources.common.RandomSuggestions;
+import org.wikidata.query.rdf.primarysources.common.RequestExecutor;
 import org.wikidata.query.rdf.primarysources.common.Utils;
 
 /**
  * Get statements to be curated about a random subject item.
+ * Items with more statements to be curated are more likely, and the optional {@code user} parameter avoids serving the same items again too soon,
+ * see {@link RandomSubjects}. Suggestions are usually fetched ahead of the request, see {@link RandomSuggestions}.
  * <p>
  * The output statements are serialized in <i>QuickStatements</i>.
  * See the <a href="https://www.wikidata.org/wiki/Help:QuickStatements#Command_sequence_syntax">syntax specifications</a>.
  * <p>
- * Support for <i>Wikidata JSON</i> output can be implemented as a method similar to {@link Utils#formatSuggestions(TupleQueryResult, String, String)}
+ * Support for <i>Wikidata JSON</i> output can be implemented as a method similar to {@link Utils#getSuggestions(String, String, Endpoint)}
  * in the private method {@code sendResponse} of this servlet.
  * The conversion logic between Wikidata RDF and Wikidata JSON is already available, see for instance {@link Utils#rdfValueToWikidataJson(Value)}.
  * <p>
@@ -46,60 +41,42 @@ import org.wikidata.query.rdf.primarysources.common.Utils;
  * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
  * @since 0.2.5 - created on Dec 05, 2017.
  */
+@WebServlet(urlPatterns = "/random", asyncSupported = true)
 public class RandomServlet extends HttpServlet {
 
     private static final Logger log = LoggerFactory.getLogger(RandomServlet.class);
 
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        RequestExecutor.execute(request, response, Endpoint.RANDOM, () -> handleGet(request, response));
+    }
+
+    private void handleGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
         RequestParameters parameters = new RequestParameters();
         boolean ok = processRequest(request, response, parameters);
         if (!ok) return;
-        Set<String> items = readCachedSubjectSet(parameters.dataset);
-        if (items == null) {
-            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Something went wrong when retrieving the list of subject items.");
+        RandomSuggestions.Prefetched prefetched = RandomSuggestions.poll(parameters.dataset, parameters.user);
+        if (prefetched != null) {
+            parameters.qId = prefetched.getQId();
+            log.debug("Prefetched suggestions: {}", parameters);
+            sendResponse(response, prefetched.getSuggestions(), parameters);
+            log.info("GET /random successful, served prefetched suggestions");
+            return;
+        }
+        parameters.qId = RandomSubjects.pick(parameters.dataset, parameters.user);
+        if (parameters.qId == null) {
+            log.warn("No subject items available for dataset {}. Will fail with a not found", parameters.dataset);
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "No subject items available for dataset " + parameters.dataset + " .");
             return;
         }
-        log.info("Loaded subject items from cache");
-        parameters.qId = pickRandomItem(new ArrayList<>(items));
+        log.info("Picked a random subject item from cache");
         log.debug("Required parameters stored as fields in private class: {}", parameters);
-        TupleQueryResult suggestions = Utils.getSuggestions(parameters.dataset, parameters.qId);
+        JSONArray suggestions = Utils.getSuggestions(parameters.dataset, parameters.qId, Endpoint.RANDOM);
         sendResponse(response, suggestions, parameters);
         log.info("GET /random successful");
     }
 
-    private Set<String> readCachedSubjectSet(String dataset) {
-        Set<String> subjectSet = new HashSet<>();
-        JSONParser parser = new JSONParser();
-        Object parsed;
-        try (BufferedReader reader = Files.newBufferedReader(EntitiesCache.SUBJECTS_CACHE_FILE)) {
-            try {
-                parsed = parser.parse(reader);
-            } catch (ParseException pe) {
-                log.error("Malformed JSON subject list. Parse error at index {}. Please check {}", pe.getPosition(), EntitiesCache.SUBJECTS_CACHE_FILE);
-                return null;
-            }
-        } catch (IOException ioe) {
-            log.error("Failed to load the subjects cache file: {}. Reason: {}", EntitiesCache.SUBJECTS_CACHE_FILE, ioe.getClass().getSimpleName());
-            return null;
-        }
-        JSONObject subjects = (JSONObject) parsed;
-        if (dataset.equals("all"))
-            for (String ds : (Set<String>) subjects.keySet()) subjectSet.addAll((JSONArray) subjects.get(ds));
-        else subjectSet.addAll((JSONArray) subjects.get(dataset));
-        log.debug("Subject items from cache file '{}:' {}", EntitiesCache.SUBJECTS_CACHE_FILE, subjectSet);
-        return subjectSet;
-    }
-
-    private String pickRandomItem(List<String> items) {
-        Random random = new Random();
-        int randomIndex = random.nextInt(items.size());
-        log.debug("Will pick subject number {}", randomIndex);
-        return items.get(randomIndex);
-    }
-
-    private void sendResponse(HttpServletResponse response, TupleQueryResult suggestions, RequestParameters parameters) throws IOException {
-        JSONArray jsonSuggestions = Utils.formatSuggestions(suggestions, parameters.dataset, parameters.qId);
+    private void sendResponse(HttpServletResponse response, JSONArray jsonSuggestions, RequestParameters parameters) throws IOException {
         if (jsonSuggestions == null) {
             response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Something went wrong when retrieving suggestions.");
         } else if (jsonSuggestions.isEmpty()) {
@@ -129,16 +106,27 @@ public class RandomServlet extends HttpServlet {
                 return false;
             }
         }
+        String userParameter = request.getParameter(ApiParameters.USER_NAME_PARAMETER);
+        if (userParameter != null && !userParameter.isEmpty()) {
+            if (!Utils.validateUserName(userParameter)) {
+                log.warn("Invalid user name. Will fail with a bad request");
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Illegal characters found in the user name: '" + userParameter + "'. The " +
+                    "following characters are not allowed: : / ? # [ ] @ ! $ & ' ( ) * + , ; =");
+                return false;
+            }
+            parameters.user = userParameter;
+        }
         return true;
     }
 
     private class RequestParameters {
         private String dataset;
+        private String user;
         private String qId;
 
         @Override
         public String toString() {
-            return String.format(Locale.ENGLISH, "dataset = %s; QID = %s", dataset, qId);
+            return String.format(Locale.ENGLISH, "dataset = %s; user = %s; QID = %s", dataset, user, qId);
         }
     }
 }
@@ -8,6 +8,7 @@ import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
 
+import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -23,7 +24,10 @@ import org.slf4j.LoggerFactory;
 import org.wikidata.query.rdf.common.uri.Provenance;
 import org.wikidata.query.rdf.common.uri.WikibaseUris;
 import org.wikidata.query.rdf.primarysources.common.ApiParameters;
+import org.wikidata.query.rdf.primarysources.common.Endpoint;
+import org.wikidata.query.rdf.primarysources.common.RequestExecutor;
 import org.wikidata.query.rdf.primarysources.common.SparqlQueries;
+import org.wikidata.query.rdf.primarysources.common.SparqlTemplate;
 import org.wikidata.query.rdf.primarysources.common.Utils;
 import org.wikidata.query.rdf.primarysources.common.WikibaseDataModelValidator;
 
@@ -44,6 +48,7 @@ import org.wikidata.query.rdf.primarysources.common.WikibaseDataModelValidator;
  * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
  * @since 0.2.5 - created on Nov 20, 2017.
  */
+@WebServlet(urlPatterns = "/search", asyncSupported = true)
 public class SearchServlet extends HttpServlet {
 
     private static final int DEFAULT_OFFSET = 0;
@@ -52,6 +57,10 @@ public class SearchServlet extends HttpServlet {
 
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        RequestExecutor.execute(request, response, Endpoint.SEARCH, () -> handleGet(request, response));
+    }
+
+    private void handleGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
         RequestParameters parameters = new RequestParameters();
         boolean ok = processRequest(request, parameters, response);
         if (!ok) return;
@@ -144,23 +153,19 @@ public class SearchServlet extends HttpServlet {
     }
 
     private TupleQueryResult getSearchSuggestions(RequestParameters parameters) {
-        String query;
-        if (parameters.dataset.equals("all")) {
-            if (parameters.value == null) query = SparqlQueries.SEARCH_ALL_DATASETS_QUERY;
-            else
-                query = SparqlQueries.SEARCH_ALL_DATASETS_VALUE_QUERY.replace(SparqlQueries.ITEM_VALUE_PLACE_HOLDER, parameters.value);
-        } else {
-            if (parameters.value == null)
-                query = SparqlQueries.SEARCH_ONE_DATASET_QUERY.replace(SparqlQueries.DATASET_PLACE_HOLDER, parameters.dataset);
-            else
-                query = SparqlQueries.SEARCH_ONE_DATASET_VALUE_QUERY.replace(SparqlQueries.DATASET_PLACE_HOLDER, parameters.dataset).replace(SparqlQueries
-                    .ITEM_VALUE_PLACE_HOLDER, parameters.value);
-        }
-        query = query.replace(SparqlQueries.OFFSET_PLACE_HOLDER, String.valueOf(parameters.offset)).replace(SparqlQueries.LIMIT_PLACE_HOLDER, String.valueOf(
-            parameters.limit));
-        query = parameters.property.equals("all") ? query.replace(SparqlQueries.PROPERTY_PLACE_HOLDER, "?property") : query.replace(SparqlQueries
-            .PROPERTY_PLACE_HOLDER, "p:" + parameters.property);
-        return Utils.runSparqlQuery(query);
+        SparqlTemplate template;
+        if (parameters.dataset.equals("all"))
+            template = parameters.value == null ? SparqlQueries.SEARCH_ALL_DATASETS_TEMPLATE : SparqlQueries.SEARCH_ALL_DATASETS_VALUE_TEMPLATE;
+        else template = parameters.value == null ? SparqlQueries.SEARCH_ONE_DATASET_TEMPLATE : SparqlQueries.SEARCH_ONE_DATASET_VALUE_TEMPLATE;
+        // Slots that don't occur in the chosen template are ignored
+        String query = template.bind()
+            .set(SparqlTemplate.Slot.DATASET, parameters.dataset)
+            .set(SparqlTemplate.Slot.ITEM_VALUE, parameters.value)
+            .set(SparqlTemplate.Slot.OFFSET, parameters.offset)
+            .set(SparqlTemplate.Slot.LIMIT, parameters.limit)
+            .set(SparqlTemplate.Slot.PROPERTY, parameters.property.equals("all") ? "?property" : "p:" + parameters.property)
+            .render();
+        return Utils.runSparqlQuery(query, Endpoint.SEARCH);
     }
 
     private JSONArray formatSearchSuggestions(TupleQueryResult suggestions, RequestParameters parameters) {
@@ -1,31 +1,47 @@
 package org.wikidata.query.rdf.primarysources.curation;
 
+import java.io.BufferedReader;
+import java.io.FilterReader;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.LinkedHashSet;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
+import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.json.simple.JSONArray;
+import org.json.simple.JSONValue;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
 import org.openrdf.model.Value;
-import org.openrdf.query.TupleQueryResult;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.wikidata.query.rdf.primarysources.common.ApiParameters;
+import org.wikidata.query.rdf.primarysources.common.Config;
+import org.wikidata.query.rdf.primarysources.common.Endpoint;
+import org.wikidata.query.rdf.primarysources.common.RequestExecutor;
 import org.wikidata.query.rdf.primarysources.common.Utils;
 import org.wikidata.query.rdf.primarysources.common.WikibaseDataModelValidator;
 
 /**
  * Get statements to be curated about a given subject item.
  * <p>
+ * {@code POST} gets them for many subject items at once: the request body is a JSON array of QIDs, up to {@link Config#SUGGEST_BATCH_MAX_QIDS},
+ * and the response is a JSON object with the suggestions of each QID that has any, see {@link Utils#getBatchSuggestions(String, java.util.Collection, Endpoint)}.
+ * Bodies longer than the maximum QIDs allow are rejected before they are parsed.
+ * The optional dataset is a query parameter, as for {@code GET}.
+ * <p>
  * The output statements are serialized in <i>QuickStatements</i>.
  * See the <a href="https://www.wikidata.org/wiki/Help:QuickStatements#Command_sequence_syntax">syntax specifications</a>.
  * <p>
- * Support for <i>Wikidata JSON</i> output can be implemented as a method similar to {@link Utils#formatSuggestions(TupleQueryResult, String, String)}
+ * Support for <i>Wikidata JSON</i> output can be implemented as a method similar to {@link Utils#getSuggestions(String, String, Endpoint)}
  * in the private method {@code sendResponse} of this servlet.
  * The conversion logic between Wikidata RDF and Wikidata JSON is already available, see for instance {@link Utils#rdfValueToWikidataJson(Value)}.
  * <p>
@@ -36,21 +52,43 @@ import org.wikidata.query.rdf.primarysources.common.WikibaseDataModelValidator;
  * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
  * @since 0.2.5 - created on Aug 04, 2017.
  */
+@WebServlet(urlPatterns = "/suggest", asyncSupported = true)
 public class SuggestServlet extends HttpServlet {
 
     private static final Logger log = LoggerFactory.getLogger(SuggestServlet.class);
+    // Room for a QID in the request body, e.g., "Q123456789", plus the separator and some whitespace
+    private static final long MAX_CHARS_PER_QID = 32;
 
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        RequestExecutor.execute(request, response, Endpoint.SUGGEST, () -> handleGet(request, response));
+    }
+
+    private void handleGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
         RequestParameters parameters = new RequestParameters();
         boolean ok = processRequest(request, parameters, response);
         if (!ok) return;
         log.debug("Required parameters stored as fields in private class: {}", parameters);
-        TupleQueryResult suggestions = Utils.getSuggestions(parameters.dataset, parameters.qId);
+        JSONArray suggestions = Utils.getSuggestions(parameters.dataset, parameters.qId, Endpoint.SUGGEST);
         sendResponse(response, parameters, suggestions);
         log.info("GET /suggest successful");
     }
 
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        RequestExecutor.execute(request, response, Endpoint.SUGGEST, () -> handlePost(request, response));
+    }
+
+    private void handlePost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        RequestParameters parameters = new RequestParameters();
+        boolean ok = processBatchRequest(request, parameters, response) && processDataset(request, parameters, response);
+        if (!ok) return;
+        log.debug("Batch of {} QIDs in dataset {}", parameters.qIds.size(), parameters.dataset);
+        Map<String, JSONArray> suggestions = Utils.getBatchSuggestions(parameters.dataset, parameters.qIds, Endpoint.SUGGEST);
+        sendBatchResponse(response, parameters, suggestions);
+        log.info("POST /suggest successful");
+    }
+
     private boolean processRequest(HttpServletRequest request, RequestParameters parameters, HttpServletResponse response) throws IOException {
         WikibaseDataModelValidator validator = new WikibaseDataModelValidator();
         parameters.qId = request.getParameter(ApiParameters.QID_PARAMETER);
@@ -63,6 +101,62 @@ public class SuggestServlet extends HttpServlet {
             response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid QID: '" + parameters.qId + "'");
             return false;
         }
+        return processDataset(request, parameters, response);
+    }
+
+    private boolean processBatchRequest(HttpServletRequest request, RequestParameters parameters, HttpServletResponse response) throws IOException {
+        long maxLength = Config.SUGGEST_BATCH_MAX_QIDS * MAX_CHARS_PER_QID;
+        if (request.getContentLengthLong() > maxLength) {
+            log.warn("Request body too large: {} bytes. Will fail with a request entity too large.", request.getContentLengthLong());
+            sendTooLarge(response);
+            return false;
+        }
+        Object body;
+        // The content length may be unknown, e.g., with a chunked body
+        try (BoundedReader requestReader = new BoundedReader(request.getReader(), maxLength)) {
+            JSONParser parser = new JSONParser();
+            body = parser.parse(requestReader);
+        } catch (BodyTooLargeException btle) {
+            log.warn("Request body too large: over {} characters. Will fail with a request entity too large.", maxLength);
+            sendTooLarge(response);
+            return false;
+        } catch (ParseException pe) {
+            log.warn("Malformed JSON request body. Parse error at index {}, reason: {}", pe.getPosition(), pe.getUnexpectedObject());
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Malformed JSON request body. Parse error at index " + pe.getPosition() + ".");
+            return false;
+        }
+        if (!(body instanceof JSONArray)) {
+            log.warn("The request body is not a JSON array of QIDs. Will fail with a bad request.");
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "The request body must be a JSON array of QIDs.");
+            return false;
+        }
+        JSONArray qIds = (JSONArray) body;
+        if (qIds.size() > Config.SUGGEST_BATCH_MAX_QIDS) {
+            log.warn("Too many QIDs: {}. Will fail with a request entity too large.", qIds.size());
+            response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "Too many QIDs: " + qIds.size() + ". " +
+                "At most " + Config.SUGGEST_BATCH_MAX_QIDS + " are allowed.");
+            return false;
+        }
+        WikibaseDataModelValidator validator = new WikibaseDataModelValidator();
+        // Drop duplicates, and keep the request order
+        parameters.qIds = new LinkedHashSet<>();
+        for (Object qId : qIds) {
+            if (!(qId instanceof String) || !validator.isValidTerm((String) qId, "item")) {
+                log.warn("Invalid QID: {}. Will fail with a bad request.", qId);
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid QID: '" + qId + "'");
+                return false;
+            }
+            parameters.qIds.add((String) qId);
+        }
+        return true;
+    }
+
+    private void sendTooLarge(HttpServletResponse response) throws IOException {
+        response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "Request body too large. " +
+            "At most " + Config.SUGGEST_BATCH_MAX_QIDS + " QIDs are allowed.");
+    }
+
+    private boolean processDataset(HttpServletRequest request, RequestParameters parameters, HttpServletResponse response) throws IOException {
         String datasetParameter = request.getParameter(ApiParameters.DATASET_PARAMETER);
         if (datasetParameter == null || datasetParameter.isEmpty()) {
             parameters.dataset = "all";
@@ -80,8 +174,7 @@ public class SuggestServlet extends HttpServlet {
         return true;
     }
 
-    private void sendResponse(HttpServletResponse response, RequestParameters parameters, TupleQueryResult suggestions) throws IOException {
-        JSONArray jsonSuggestions = Utils.formatSuggestions(suggestions, parameters.dataset, parameters.qId);
+    private void sendResponse(HttpServletResponse response, RequestParameters parameters, JSONArray jsonSuggestions) throws IOException {
         if (jsonSuggestions == null) {
             response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Something went wrong when retrieving suggestions.");
         } else if (jsonSuggestions.isEmpty()) {
@@ -96,9 +189,75 @@ public class SuggestServlet extends HttpServlet {
         }
     }
 
+    /**
+     * Serialize the suggestions of each QID straight to the response, in the request order, instead of building the whole JSON text in memory.
+     * The suggestions are all fetched beforehand, so that a failure can still be answered with an error status.
+     * QIDs without suggestions are left out: an empty JSON object means that there are none at all.
+     */
+    private void sendBatchResponse(HttpServletResponse response, RequestParameters parameters, Map<String, JSONArray> suggestions) throws IOException {
+        if (suggestions == null) {
+            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Something went wrong when retrieving suggestions.");
+            return;
+        }
+        log.debug("{} out of {} QIDs have suggestions", suggestions.size(), parameters.qIds.size());
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType(ApiParameters.DEFAULT_IO_CONTENT_TYPE);
+        try (PrintWriter pw = response.getWriter()) {
+            pw.write('{');
+            boolean first = true;
+            for (String qId : parameters.qIds) {
+                JSONArray qIdSuggestions = suggestions.get(qId);
+                if (qIdSuggestions == null) continue;
+                if (!first) pw.write(',');
+                pw.write(JSONValue.toJSONString(qId));
+                pw.write(':');
+                qIdSuggestions.writeJSONString(pw);
+                first = false;
+            }
+            pw.write('}');
+        }
+    }
+
+    /**
+     * Fail the parsing of a request body as soon as it exceeds a maximum length, instead of reading it all.
+     */
+    private static final class BoundedReader extends FilterReader {
+        private final long maxLength;
+        private long read;
+
+        private BoundedReader(BufferedReader reader, long maxLength) {
+            super(reader);
+            this.maxLength = maxLength;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int c = super.read();
+            if (c != -1) count(1);
+            return c;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) throws IOException {
+            int n = super.read(buffer, offset, length);
+            if (n > 0) count(n);
+            return n;
+        }
+
+        private void count(int n) throws BodyTooLargeException {
+            read += n;
+            if (read > maxLength) throw new BodyTooLargeException();
+        }
+    }
+
+    private static final class BodyTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+    }
+
     private class RequestParameters {
         private String dataset;
         private String qId;
+        private Set<String> qIds;
 
         @Override
         public String toString() {
@@ -15,6 +15,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
 
+import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -27,11 +28,9 @@ import org.apache.commons.fileupload.util.Streams;
 import org.apache.http.HttpEntity;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.client.utils.URIBuilder;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.mime.MultipartEntityBuilder;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
 import org.openrdf.model.Model;
 import org.openrdf.rio.RDFFormat;
 import org.openrdf.rio.RDFHandlerException;
@@ -40,9 +39,13 @@ import org.openrdf.rio.Rio;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.wikidata.query.rdf.primarysources.common.ApiParameters;
+import org.wikidata.query.rdf.primarysources.common.BlazegraphClient;
 import org.wikidata.query.rdf.primarysources.common.Config;
+import org.wikidata.query.rdf.primarysources.common.Endpoint;
 import org.wikidata.query.rdf.primarysources.common.EntitiesCache;
+import org.wikidata.query.rdf.primarysources.common.EntityChange;
 import org.wikidata.query.rdf.primarysources.common.RdfVocabulary;
+import org.wikidata.query.rdf.primarysources.common.RequestExecutor;
 import org.wikidata.query.rdf.primarysources.common.Utils;
 import org.wikidata.query.rdf.primarysources.common.WikibaseDataModelValidator;
 
@@ -63,6 +66,7 @@ import org.wikidata.query.rdf.primarysources.common.WikibaseDataModelValidator;
  * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
  * @since 0.2.5 - created on Jul 04, 2017.
  */
+@WebServlet(urlPatterns = "/update", asyncSupported = true)
 public class UpdateServlet extends HttpServlet {
     // Temporary file name of the dataset to be removed, which must be stored in the server local file system.
     private static final String TEMP_DATASET_TO_BE_REMOVED_FILE_NAME = "to_be_removed";
@@ -73,6 +77,10 @@ public class UpdateServlet extends HttpServlet {
 
     @Override
     protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        RequestExecutor.execute(request, response, Endpoint.UPDATE, () -> handlePost(request, response));
+    }
+
+    private void handlePost(HttpServletRequest request, HttpServletResponse response) throws IOException {
         RequestParameters parameters = new RequestParameters();
         WikibaseDataModelValidator validator = new WikibaseDataModelValidator();
         boolean isMultipart = ServletFileUpload.isMultipartContent(request);
@@ -151,7 +159,8 @@ public class UpdateServlet extends HttpServlet {
                 "https://www.mediawiki.org/wiki/Wikibase/Indexing/RDF_Dump_Format#Data_model");
             return;
         }
-        EntitiesCache.cacheDatasetEntities(parameters.targetDatasetURI.toString());
+        Utils.evictCachedResults(parameters.targetDatasetURI.toString());
+        EntitiesCache.applyChange(new EntityChange(parameters.targetDatasetURI.toString()).removed(toBeRemoved).added(toBeAdded));
         /*
          * Build the final response
          */
@@ -299,14 +308,8 @@ public class UpdateServlet extends HttpServlet {
         throws URISyntaxException, RDFHandlerException, IOException {
         File tempDatasetToBeRemoved = null;
         File tempDatasetToBeAdded = null;
-        CloseableHttpClient client = HttpClients.createDefault();
-        URIBuilder builder = new URIBuilder();
         URI uri;
-        uri = builder
-            .setScheme("http")
-            .setHost(Config.HOST)
-            .setPort(Config.PORT)
-            .setPath(Config.CONTEXT + Config.BLAZEGRAPH_SPARQL_ENDPOINT)
+        uri = BlazegraphClient.endpoint(Config.BLAZEGRAPH_SPARQL_ENDPOINT)
             .setParameter(ApiParameters.BLAZEGRAPH_UPDATE_PARAMETER, null)
             .setParameter(ApiParameters.BLAZEGRAPH_UPDATE_DELETE_NAMED_GRAPH_PARAMETER, targetDatasetURI.toString())
             .setParameter(ApiParameters.BLAZEGRAPH_UPDATE_INSERT_NAMED_GRAPH_PARAMETER, targetDatasetURI.toString())
@@ -349,7 +352,7 @@ public class UpdateServlet extends HttpServlet {
         HttpEntity entity = meBuilder.build();
         post.setEntity(entity);
         log.debug("Request body that will be sent to the Blazegraph update service: {}", entity);
-        try (CloseableHttpResponse updateResponse = client.execute(post)) {
+        try (CloseableHttpResponse updateResponse = BlazegraphClient.write(post)) {
             if (tempDatasetToBeRemoved != null) {
                 tempDatasetToBeRemoved.delete();
                 log.debug("Deleted temporary file with dataset to be removed");
@@ -379,6 +382,7 @@ public class UpdateServlet extends HttpServlet {
         }
         if (updateResponse.getStatusLine().getStatusCode() == HttpServletResponse.SC_OK) {
             log.info("The dataset update (remove + add) into Blazegraph went fine");
+            EntityUtils.consume(updateResponse.getEntity());
         } else {
             log.error("Failed updating the dataset into Blazegraph, HTTP error code: {}", updateResponse.getStatusLine().getStatusCode());
             updateResponseContent.add("Error response from Blazegraph:");
@@ -19,6 +19,7 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
 
+import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -28,10 +29,12 @@ import org.apache.commons.fileupload.FileItemStream;
 import org.apache.commons.fileupload.FileUploadException;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
 import org.apache.commons.fileupload.util.Streams;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.fluent.Request;
-import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
 import org.openrdf.model.Model;
 import org.openrdf.model.ValueFactory;
 import org.openrdf.model.impl.ValueFactoryImpl;
@@ -42,9 +45,13 @@ import org.openrdf.rio.Rio;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.wikidata.query.rdf.primarysources.common.ApiParameters;
+import org.wikidata.query.rdf.primarysources.common.BlazegraphClient;
 import org.wikidata.query.rdf.primarysources.common.Config;
+import org.wikidata.query.rdf.primarysources.common.Endpoint;
 import org.wikidata.query.rdf.primarysources.common.EntitiesCache;
+import org.wikidata.query.rdf.primarysources.common.EntityChange;
 import org.wikidata.query.rdf.primarysources.common.RdfVocabulary;
+import org.wikidata.query.rdf.primarysources.common.RequestExecutor;
 import org.wikidata.query.rdf.primarysources.common.Utils;
 import org.wikidata.query.rdf.primarysources.common.WikibaseDataModelValidator;
 
@@ -65,6 +72,7 @@ import com.google.common.io.Resources;
  * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
  * @since 0.2.5 - created on Jul 20, 2017.
  */
+@WebServlet(urlPatterns = "/upload", asyncSupported = true)
 public class UploadServlet extends HttpServlet {
 
     /**
@@ -112,6 +120,10 @@ public class UploadServlet extends HttpServlet {
 
     @Override
     protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        RequestExecutor.execute(request, response, Endpoint.UPLOAD, () -> handlePost(request, response));
+    }
+
+    private void handlePost(HttpServletRequest request, HttpServletResponse response) throws IOException {
         RequestParameters parameters = new RequestParameters();
         parameters.dataLoaderProperties = buildDataLoaderProperties();
         log.debug("Initial properties for the Blazegraph data loader: {}. Stored in: {}", parameters.dataLoaderProperties, parameters);
@@ -122,6 +134,7 @@ public class UploadServlet extends HttpServlet {
         List<String> notUploaded = new ArrayList<>();
         boolean ok = processRequest(request, response, validator, validRDFDatasets, parameters);
         if (!ok) return;
+        EntityChange change = new EntityChange(parameters.datasetURI);
         log.debug("RDF files with valid syntax: {}. They will undergo data model validation.", validRDFDatasets);
         for (String dataset : validRDFDatasets.keySet()) {
             AbstractMap.SimpleImmutableEntry<RDFFormat, Model> valid = validRDFDatasets.get(dataset);
@@ -134,6 +147,7 @@ public class UploadServlet extends HttpServlet {
             }
             invalidComponents.put(dataset, validated.getValue());
             Utils.addTypeToSubjectItems(toBeUploaded, parameters.datasetURI);
+            change.added(toBeUploaded);
             File tempDataset = writeTempDataset(response, valid.getKey(), toBeUploaded);
             if (tempDataset == null) return;
             tempDatasets.add(tempDataset);
@@ -149,10 +163,12 @@ public class UploadServlet extends HttpServlet {
         AbstractMap.SimpleImmutableEntry<Integer, List<String>> dataLoaderResponse = sendDatasetsToDataLoader(tempDatasets, parameters, response);
         if (dataLoaderResponse == null) return;
         boolean added = addMetadataQuads(parameters, response);
+        // The dataset is in Blazegraph anyway, even if its metadata failed
+        Utils.evictCachedResults(parameters.datasetURI, RdfVocabulary.METADATA_NAMESPACE);
+        EntitiesCache.applyChange(change);
         if (!added) return;
         for (File tempDataset : tempDatasets) tempDataset.delete();
         log.debug("Temporary dataset files deleted");
-        EntitiesCache.cacheDatasetEntities(parameters.datasetURI);
         sendResponse(response, notUploaded, invalidComponents, dataLoaderResponse);
         log.info("POST /upload successful");
     }
@@ -381,22 +397,15 @@ public class UploadServlet extends HttpServlet {
         parameters.dataLoaderProperties.setProperty(fileOrDirs, datasets.toString());
         log.debug("Dataset files added to the Blazegraph data loader properties: {} = {}", fileOrDirs, parameters.dataLoaderProperties.getProperty(fileOrDirs));
         byte[] props;
-        HttpResponse dataLoaderResponse;
         int status;
         try (ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
             parameters.dataLoaderProperties.store(bos, "Expected properties for the Blazegraph data loader service");
             props = bos.toByteArray();
         }
         log.debug("Final Blazegraph data loader properties: {}", parameters.dataLoaderProperties);
-        URIBuilder builder = new URIBuilder();
         URI uri;
         try {
-            uri = builder
-                .setScheme("http")
-                .setHost(Config.HOST)
-                .setPort(Config.PORT)
-                .setPath(Config.CONTEXT + BLAZEGRAPH_DATA_LOADER_ENDPOINT)
-                .build();
+            uri = BlazegraphClient.endpoint(BLAZEGRAPH_DATA_LOADER_ENDPOINT).build();
         } catch (URISyntaxException use) {
             log.error("Failed building the Blazegraph data loader URI: {}. Parse error at index {}", use.getInput(), use.getIndex());
             response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
@@ -404,22 +413,23 @@ public class UploadServlet extends HttpServlet {
                     "Reason: failed building the Blazegraph data loader URI.");
             return null;
         }
-        dataLoaderResponse = Request.Post(uri)
-            .bodyByteArray(props, ContentType.TEXT_PLAIN)
-            .execute()
-            .returnResponse();
-        log.debug("Response from Blazegraph data loader: {}", dataLoaderResponse);
-        status = dataLoaderResponse.getStatusLine().getStatusCode();
-        // Get the data loader response only if it went wrong
-        if (status == HttpServletResponse.SC_OK) {
-            log.info("The datasets ingestion into Blazegraph went fine");
-        } else {
-            log.error("Failed ingesting one or more datasets into Blazegraph. HTTP error code: {}", status);
-            try (BufferedReader responseReader = new BufferedReader(new InputStreamReader(dataLoaderResponse.getEntity().getContent(), StandardCharsets
-                .UTF_8))) {
-                String line;
-                while ((line = responseReader.readLine()) != null) {
-                    responseContent.add(line);
+        HttpPost post = new HttpPost(uri);
+        post.setEntity(new ByteArrayEntity(props, ContentType.TEXT_PLAIN));
+        try (CloseableHttpResponse dataLoaderResponse = BlazegraphClient.write(post)) {
+            log.debug("Response from Blazegraph data loader: {}", dataLoaderResponse);
+            status = dataLoaderResponse.getStatusLine().getStatusCode();
+            // Get the data loader response only if it went wrong
+            if (status == HttpServletResponse.SC_OK) {
+                log.info("The datasets ingestion into Blazegraph went fine");
+                EntityUtils.consume(dataLoaderResponse.getEntity());
+            } else {
+                log.error("Failed ingesting one or more datasets into Blazegraph. HTTP error code: {}", status);
+                try (BufferedReader responseReader = new BufferedReader(new InputStreamReader(dataLoaderResponse.getEntity().getContent(), StandardCharsets
+                    .UTF_8))) {
+                    String line;
+                    while ((line = responseReader.readLine()) != null) {
+                        responseContent.add(line);
+                    }
                 }
             }
         }
@@ -445,15 +455,9 @@ public class UploadServlet extends HttpServlet {
             toBeAdded.append('\n').append(descriptionStatement);
         }
         // Fire the POST
-        URIBuilder builder = new URIBuilder();
         URI uri;
         try {
-            uri = builder
-                .setScheme("http")
-                .setHost(Config.HOST)
-                .setPort(Config.PORT)
-                .setPath(Config.CONTEXT + Config.BLAZEGRAPH_SPARQL_ENDPOINT)
-                .build();
+            uri = BlazegraphClient.endpoint(Config.BLAZEGRAPH_SPARQL_ENDPOINT).build();
         } catch (URISyntaxException use) {
             log.error("Failed building the Blazegraph SPARQL endpoint URI: {}. Parse error at index {}", use.getInput(), use.getIndex());
             response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
@@ -461,12 +465,14 @@ public class UploadServlet extends HttpServlet {
                     "Reason: failed building the Blazegraph SPARQL endpoint URI.");
             return false;
         }
-        HttpResponse blazegraphResponse = Request.Post(uri)
-            .bodyString(toBeAdded.toString(), ContentType.create("text/x-nquads"))
-            .execute()
-            .returnResponse();
-        log.debug("Response from Blazegraph SPARQL endpoint for metadata quads: {}", blazegraphResponse);
-        int status = blazegraphResponse.getStatusLine().getStatusCode();
+        HttpPost post = new HttpPost(uri);
+        post.setEntity(new StringEntity(toBeAdded.toString(), ContentType.create("text/x-nquads")));
+        int status;
+        try (CloseableHttpResponse blazegraphResponse = BlazegraphClient.write(post)) {
+            log.debug("Response from Blazegraph SPARQL endpoint for metadata quads: {}", blazegraphResponse);
+            status = blazegraphResponse.getStatusLine().getStatusCode();
+            EntityUtils.consume(blazegraphResponse.getEntity());
+        }
         if (status != HttpServletResponse.SC_OK) {
             log.error("Failed sending the metadata quads to Blazegraph, got status code {}", status);
             response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
@@ -1,25 +1,19 @@
 package org.wikidata.query.rdf.primarysources.statistics;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.nio.file.Files;
-import java.nio.file.Path;
 import java.util.Map;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.wikidata.query.rdf.primarysources.common.ApiParameters;
 import org.wikidata.query.rdf.primarysources.common.EntitiesCache;
+import org.wikidata.query.rdf.primarysources.common.EntityIdSet;
 
 /**
  * Shared logic for request and response processing of {@link PropertiesServlet} and {@link ValuesServlet}.
@@ -33,6 +27,8 @@ class SessionHandler {
     private static final Logger log = LoggerFactory.getLogger(SessionHandler.class);
 
     private String dataset;
+    private String cachedType;
+    private EntitiesCache.Snapshot snapshot;
 
     boolean processRequest(HttpServletRequest request, HttpServletResponse response) throws IOException {
         Map<String, String[]> params = request.getParameterMap();
@@ -65,62 +61,48 @@ class SessionHandler {
         return true;
     }
 
-    void sendResponse(HttpServletResponse response, JSONObject entities, String entityType) throws IOException {
+    void sendResponse(HttpServletRequest request, HttpServletResponse response, JSONObject entities, String entityType) throws IOException {
         if (entities == null) {
             response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Something went wrong when getting the list of " + entityType + ".");
         } else if (entities.isEmpty()) {
             log.warn("No {} available. Will fail with a not found", entityType);
             response.sendError(HttpServletResponse.SC_NOT_FOUND, "No " + entityType + " available.");
         } else {
-            response.setStatus(HttpServletResponse.SC_OK);
-            response.setContentType(ApiParameters.DEFAULT_IO_CONTENT_TYPE);
-            try (PrintWriter pw = response.getWriter()) {
-                entities.writeJSONString(pw);
-            }
+            // Serialize once per snapshot of the entities cache, then just write bytes
+            snapshot.response(cachedType, dataset, () -> entities).send(request, response);
         }
     }
 
     JSONObject getEntities(String entityType) {
-        Path cache;
+        snapshot = EntitiesCache.snapshot();
+        Map<String, EntityIdSet> allEntities;
         switch (entityType) {
         case "subjects":
-            cache = EntitiesCache.SUBJECTS_CACHE_FILE;
+            allEntities = snapshot.subjects();
+            cachedType = "subject";
             break;
         case "properties":
-            cache = EntitiesCache.PROPERTIES_CACHE_FILE;
+            allEntities = snapshot.properties();
+            cachedType = "property";
             break;
         case "values":
-            cache = EntitiesCache.VALUES_CACHE_FILE;
+            allEntities = snapshot.values();
+            cachedType = "value";
             break;
         default:
             log.error("Unexpected entity type: {}. The cache for those entities cannot be retrieved", entityType);
             return null;
         }
-        JSONParser parser = new JSONParser();
-        Object parsed;
-        try (BufferedReader reader = Files.newBufferedReader(cache)) {
-            try {
-                parsed = parser.parse(reader);
-            } catch (ParseException pe) {
-                log.error("The {} cache is malformed JSON. Parse error at index {}. Please check {}", entityType, pe.getPosition(), cache);
-                return null;
-            }
-        } catch (IOException ioe) {
-            log.error("Failed to load the {} cache file: {}. Reason: {}", entityType, cache, ioe.getClass().getSimpleName());
-            return null;
-        }
-        JSONObject allEntities = (JSONObject) parsed;
         if (dataset.equals("all")) {
-            log.debug("All {} from cache file '{}:' {}", entityType, cache, allEntities);
-            return allEntities;
+            log.debug("All {} from cache: {} datasets", entityType, allEntities.size());
+            return new JSONObject(allEntities);
         } else {
-            if (allEntities.containsKey(dataset)) {
-                JSONObject datasetEntities = new JSONObject();
-                JSONArray entities = (JSONArray) allEntities.get(dataset);
-                datasetEntities.put(dataset, entities);
-                log.debug("<{}> {} from cache file '{}:' {}", dataset, entityType, cache, datasetEntities);
-                return datasetEntities;
-            } else return new JSONObject(); // Stands for no available entities
+            JSONObject datasetEntities = new JSONObject();
+            EntityIdSet entities = allEntities.get(dataset);
+            // No entry stands for no available entities
+            if (entities != null) datasetEntities.put(dataset, entities);
+            log.debug("<{}> {} from cache: {}", dataset, entityType, entities);
+            return datasetEntities;
         }
     }
 }
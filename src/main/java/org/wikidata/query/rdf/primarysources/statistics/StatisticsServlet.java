@@ -1,29 +1,29 @@
 package org.wikidata.query.rdf.primarysources.statistics;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.nio.file.Files;
 import java.util.Enumeration;
 import java.util.Locale;
 
+import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
 import org.openrdf.model.Value;
 import org.openrdf.query.QueryEvaluationException;
 import org.openrdf.query.TupleQueryResult;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.wikidata.query.rdf.primarysources.common.ApiParameters;
-import org.wikidata.query.rdf.primarysources.common.Config;
+import org.wikidata.query.rdf.primarysources.common.CachedResponse;
+import org.wikidata.query.rdf.primarysources.common.DatasetsStatisticsCache;
+import org.wikidata.query.rdf.primarysources.common.Endpoint;
+import org.wikidata.query.rdf.primarysources.common.RequestExecutor;
 import org.wikidata.query.rdf.primarysources.common.SparqlQueries;
+import org.wikidata.query.rdf.primarysources.common.SparqlTemplate;
 import org.wikidata.query.rdf.primarysources.common.Utils;
 
 /**
@@ -34,12 +34,17 @@ import org.wikidata.query.rdf.primarysources.common.Utils;
  * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
  * @since 0.2.5 - created on Dec 20, 2017.
  */
+@WebServlet(urlPatterns = "/statistics", asyncSupported = true)
 public class StatisticsServlet extends HttpServlet {
 
     private static final Logger log = LoggerFactory.getLogger(StatisticsServlet.class);
 
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        RequestExecutor.execute(request, response, Endpoint.STATISTICS, () -> handleGet(request, response));
+    }
+
+    private void handleGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
         RequestParameters parameters = new RequestParameters();
         boolean ok = processRequest(request, parameters, response);
         if (!ok) return;
@@ -47,17 +52,17 @@ public class StatisticsServlet extends HttpServlet {
         if (parameters.dataset != null) {
             JSONObject datasetStatistics = getDatasetStatistics(parameters.dataset);
             if (datasetStatistics == null) {
-                sendResponse(response, null, ApiParameters.DATASET_PARAMETER, parameters);
+                sendResponse(request, response, null, ApiParameters.DATASET_PARAMETER, parameters);
                 return;
             } else {
                 log.info("Loaded datasets statistics from cache");
-                sendResponse(response, datasetStatistics, ApiParameters.DATASET_PARAMETER, parameters);
+                sendResponse(request, response, datasetStatistics, ApiParameters.DATASET_PARAMETER, parameters);
                 log.info("GET /statistics for datasets successful");
                 return;
             }
         }
         if (parameters.user != null) {
-            sendResponse(response, getUserStatistics(parameters.user), ApiParameters.USER_NAME_PARAMETER, parameters);
+            sendResponse(request, response, getUserStatistics(parameters.user), ApiParameters.USER_NAME_PARAMETER, parameters);
             log.info("GET /statistics for users successful");
         }
     }
@@ -112,7 +117,8 @@ public class StatisticsServlet extends HttpServlet {
         }
     }
 
-    private void sendResponse(HttpServletResponse response, JSONObject output, String datasetOrUser, RequestParameters parameters) throws IOException {
+    private void sendResponse(HttpServletRequest request, HttpServletResponse response, JSONObject output, String datasetOrUser, RequestParameters parameters)
+        throws IOException {
         if (output == null) {
             response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Something went wrong when retrieving " + datasetOrUser + " statistics.");
         } else if (output.isEmpty()) {
@@ -121,37 +127,19 @@ public class StatisticsServlet extends HttpServlet {
             log.warn(errorMessage + " Will fail with a not found");
             response.sendError(HttpServletResponse.SC_NOT_FOUND, errorMessage);
         } else {
-            response.setStatus(HttpServletResponse.SC_OK);
-            response.setContentType(ApiParameters.DEFAULT_IO_CONTENT_TYPE);
-            try (PrintWriter pw = response.getWriter()) {
-                output.writeJSONString(pw);
-            }
+            // Small and partly live, i.e., the dataset uploader and description, so serialized per request: still saves the body on conditional ones
+            CachedResponse.sendOnce(output, request, response);
         }
     }
 
     private JSONObject getDatasetStatistics(String dataset) {
-        JSONParser parser = new JSONParser();
-        Object parsed;
-        try (BufferedReader reader = Files.newBufferedReader(Config.DATASETS_CACHE)) {
-            try {
-                parsed = parser.parse(reader);
-            } catch (ParseException pe) {
-                log.error("Malformed JSON datasets statistics. Parse error at index {}. Please check {}", pe.getPosition(), Config.DATASETS_CACHE);
-                return null;
-            }
-        } catch (IOException ioe) {
-            log.error("Failed to load the datasets cache file: {}. Reason: {}", Config.DATASETS_CACHE, ioe.getClass().getSimpleName());
-            return null;
-        }
-        JSONObject allStats = (JSONObject) parsed;
-        Object datasetStats = allStats.get(dataset);
-        if (datasetStats == null) return new JSONObject();
+        JSONObject stats = DatasetsStatisticsCache.getDatasetStatistics(dataset);
+        if (stats == null || stats.isEmpty()) return stats;
         else {
-            JSONObject stats = (JSONObject) datasetStats;
-            log.debug("Dataset statistics from cache file '{}:' {}", Config.DATASETS_CACHE, stats);
+            log.debug("Dataset statistics from cache: {}", stats);
             // Get dataset description and uploader user name via SPARQL
-            String query = SparqlQueries.DATASET_INFO_QUERY.replace(SparqlQueries.DATASET_PLACE_HOLDER, dataset);
-            TupleQueryResult result = Utils.runSparqlQuery(query);
+            String query = SparqlQueries.DATASET_INFO_TEMPLATE.bind().set(SparqlTemplate.Slot.DATASET, dataset).render();
+            TupleQueryResult result = Utils.runSparqlQuery(query, Endpoint.STATISTICS);
             if (result == null) return null;
             try {
                 while (result.hasNext()) {
@@ -171,8 +159,8 @@ public class StatisticsServlet extends HttpServlet {
 
     private JSONObject getUserStatistics(String user) {
         JSONObject stats = new JSONObject();
-        String query = SparqlQueries.USER_INFO_QUERY.replace(SparqlQueries.USER_PLACE_HOLDER, user);
-        TupleQueryResult result = Utils.runSparqlQuery(query);
+        String query = SparqlQueries.USER_INFO_TEMPLATE.bind().set(SparqlTemplate.Slot.USER, user).render();
+        TupleQueryResult result = Utils.runSparqlQuery(query, Endpoint.STATISTICS);
         if (result == null) return null;
         try {
             if (result.hasNext()) {
@@ -2,6 +2,7 @@ package org.wikidata.query.rdf.primarysources.statistics;
 
 import java.io.IOException;
 
+import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -9,6 +10,8 @@ import javax.servlet.http.HttpServletResponse;
 import org.json.simple.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.wikidata.query.rdf.primarysources.common.Endpoint;
+import org.wikidata.query.rdf.primarysources.common.RequestExecutor;
 
 /**
  * Get the list of available item values, i.e., values that are <i>QID</i>s.
@@ -18,6 +21,7 @@ import org.slf4j.LoggerFactory;
  * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
  * @since 0.2.5 - created on Feb 27, 2018.
  */
+@WebServlet(urlPatterns = "/values", asyncSupported = true)
 public class ValuesServlet extends HttpServlet {
 
     private static final String ENTITY_TYPE = "values";
@@ -25,15 +29,19 @@ public class ValuesServlet extends HttpServlet {
 
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        RequestExecutor.execute(request, response, Endpoint.VALUES, () -> handleGet(request, response));
+    }
+
+    private void handleGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
         SessionHandler sh = new SessionHandler();
         boolean ok = sh.processRequest(request, response);
         if (!ok) return;
         JSONObject entities = sh.getEntities(ENTITY_TYPE);
         if (entities == null) {
-            sh.sendResponse(response, null, ENTITY_TYPE);
+            sh.sendResponse(request, response, null, ENTITY_TYPE);
         } else {
             log.info("Loaded {} from cache", ENTITY_TYPE);
-            sh.sendResponse(response, entities, ENTITY_TYPE);
+            sh.sendResponse(request, response, entities, ENTITY_TYPE);
             log.info("GET /values successful");
         }
     }
@@ -0,0 +1,40 @@
+package org.wikidata.query.rdf.primarysources.common;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import com.carrotsearch.randomizedtesting.RandomizedRunner;
+import com.carrotsearch.randomizedtesting.RandomizedTest;
+
+/**
+ * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
+ * @since 0.2.5
+ * Created on Jun 23, 2018.
+ */
+@RunWith(RandomizedRunner.class)
+public class CachedResponseUnitTest extends RandomizedTest {
+
+    @Test
+    public void testAcceptsGzip() {
+        assertTrue(CachedResponse.acceptsGzip("gzip, deflate, br"));
+        assertTrue(CachedResponse.acceptsGzip("deflate;q=1.0, GZIP;q=0.5"));
+        assertTrue(CachedResponse.acceptsGzip("x-gzip"));
+        assertTrue(CachedResponse.acceptsGzip("*"));
+        assertFalse(CachedResponse.acceptsGzip(null));
+        assertFalse(CachedResponse.acceptsGzip("identity"));
+        assertFalse(CachedResponse.acceptsGzip("gzip;q=0"));
+        assertFalse(CachedResponse.acceptsGzip("gzip;q=0, *"));
+        assertFalse(CachedResponse.acceptsGzip("*;q=0"));
+    }
+
+    @Test
+    public void testSameContentSameTag() {
+        EntityIdSet entities = EntityIdSet.of('Q', Arrays.asList("Q42", "Q5921"));
+        CachedResponse response = CachedResponse.of(entities);
+        assertEquals("[\"Q42\",\"Q5921\"]".length(), response.size());
+        assertEquals(response.tag(), CachedResponse.of(EntityIdSet.of('Q', Arrays.asList("Q5921", "Q42"))).tag());
+        assertNotEquals(response.tag(), CachedResponse.of(EntityIdSet.of('Q', Arrays.asList("Q42"))).tag());
+    }
+}
@@ -0,0 +1,87 @@
+package org.wikidata.query.rdf.primarysources.common;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import com.carrotsearch.randomizedtesting.RandomizedRunner;
+import com.carrotsearch.randomizedtesting.RandomizedTest;
+
+/**
+ * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
+ * @since 0.2.5
+ * Created on Jun 18, 2018.
+ */
+@RunWith(RandomizedRunner.class)
+public class CircuitBreakerUnitTest extends RandomizedTest {
+
+    private final AtomicLong now = new AtomicLong();
+    private final CircuitBreaker breaker = new CircuitBreaker(100, 20, 0.4, 1000, now::get);
+
+    @Test
+    public void testShedLowestPriorityFirst() {
+        // 15% bad calls: shed cache updates only
+        record(85, 15);
+        assertFalse(breaker.allows(CircuitBreaker.Priority.CACHE_UPDATE));
+        assertTrue(breaker.allows(CircuitBreaker.Priority.SEARCH));
+        // 25%: shed search too
+        record(0, 10);
+        assertFalse(breaker.allows(CircuitBreaker.Priority.SEARCH));
+        assertTrue(breaker.allows(CircuitBreaker.Priority.RANDOM));
+        // 35%: shed random too
+        record(0, 10);
+        assertFalse(breaker.allows(CircuitBreaker.Priority.RANDOM));
+        assertTrue(breaker.allows(CircuitBreaker.Priority.REGULAR));
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.state());
+    }
+
+    @Test
+    public void testOpenHalfOpenClose() {
+        record(0, 20);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.state());
+        assertFalse(breaker.allows(CircuitBreaker.Priority.REGULAR));
+        assertTrue(breaker.allows(CircuitBreaker.Priority.CURATION));
+        now.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        assertTrue(breaker.allows(CircuitBreaker.Priority.REGULAR));
+        // Search didn't reach Blazegraph while open: one probe, then shed
+        assertTrue(breaker.allows(CircuitBreaker.Priority.SEARCH));
+        assertFalse(breaker.allows(CircuitBreaker.Priority.SEARCH));
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.state());
+        // A bad probe opens it again
+        breaker.record(false);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.state());
+        now.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        assertTrue(breaker.allows(CircuitBreaker.Priority.REGULAR));
+        record(20, 0);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.state());
+        assertTrue(breaker.allows(CircuitBreaker.Priority.CACHE_UPDATE));
+    }
+
+    @Test
+    public void testProbeShedPriorityOnQuietInstance() {
+        // 20% bad calls: cache updates are shed, and nothing else comes
+        record(80, 20);
+        assertFalse(breaker.allows(CircuitBreaker.Priority.CACHE_UPDATE));
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(999));
+        assertFalse(breaker.allows(CircuitBreaker.Priority.CACHE_UPDATE));
+        // Shed for as long as the breaker stays open: one probe gets through
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(1));
+        assertTrue(breaker.allows(CircuitBreaker.Priority.CACHE_UPDATE));
+        assertFalse(breaker.allows(CircuitBreaker.Priority.CACHE_UPDATE));
+        // Good probes eventually push the bad calls out of the window
+        for (int i = 0; i < 100; i++) {
+            now.addAndGet(TimeUnit.SECONDS.toNanos(1));
+            assertTrue(breaker.allows(CircuitBreaker.Priority.CACHE_UPDATE));
+            breaker.record(true);
+        }
+        assertTrue(breaker.allows(CircuitBreaker.Priority.CACHE_UPDATE));
+        assertTrue(breaker.allows(CircuitBreaker.Priority.CACHE_UPDATE));
+    }
+
+    private void record(int good, int bad) {
+        for (int i = 0; i < good; i++) breaker.record(true);
+        for (int i = 0; i < bad; i++) breaker.record(false);
+    }
+}
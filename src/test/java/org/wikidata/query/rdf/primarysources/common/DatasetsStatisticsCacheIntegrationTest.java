@@ -0,0 +1,35 @@
+package org.wikidata.query.rdf.primarysources.common;
+
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import com.carrotsearch.randomizedtesting.RandomizedRunner;
+
+/**
+ * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
+ * @since 0.2.5
+ * Created on Jun 21, 2018.
+ */
+@RunWith(RandomizedRunner.class)
+public class DatasetsStatisticsCacheIntegrationTest extends AbstractRdfRepositoryIntegrationTestBase {
+
+    @AfterClass
+    public static void deleteCache() throws IOException {
+        Files.deleteIfExists(Config.DATASETS_CACHE);
+    }
+
+    @Test
+    public void testReadyAfterFirstDump() throws IOException {
+        // A fresh installation: no cache file, and nothing loaded yet in this JVM
+        Files.deleteIfExists(Config.DATASETS_CACHE);
+        assumeFalse("The datasets statistics were already loaded by another test", DatasetsStatisticsCache.isReady());
+        assertFalse(DatasetsStatisticsCache.warmUp());
+        DatasetsStatisticsCache.dumpStatistics();
+        assertTrue(Files.exists(Config.DATASETS_CACHE));
+        assertTrue(DatasetsStatisticsCache.isReady());
+    }
+}
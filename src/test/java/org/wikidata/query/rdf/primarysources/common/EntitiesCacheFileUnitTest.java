@@ -0,0 +1,89 @@
+package org.wikidata.query.rdf.primarysources.common;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import com.carrotsearch.randomizedtesting.RandomizedRunner;
+import com.carrotsearch.randomizedtesting.RandomizedTest;
+
+/**
+ * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
+ * @since 0.2.5
+ * Created on Jun 20, 2018.
+ */
+@RunWith(RandomizedRunner.class)
+public class EntitiesCacheFileUnitTest extends RandomizedTest {
+
+    private Path directory;
+    private Path cache;
+
+    @Before
+    public void createCacheDirectory() throws IOException {
+        directory = Files.createTempDirectory("entities-cache");
+        cache = directory.resolve("subjects.bin");
+    }
+
+    @After
+    public void deleteCacheDirectory() throws IOException {
+        Files.deleteIfExists(cache);
+        Files.delete(directory);
+    }
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        Map<String, EntityIdSet> entities = new HashMap<>();
+        entities.put("http://chuck-berry/new", EntityIdSet.of('Q', Arrays.asList("Q5921", "Q1500155", "Q5921", "Q11569986")));
+        // An odd URI length, so that the arrays need padding
+        entities.put("http://b-and-v/new", EntityIdSet.of('Q', Arrays.asList("Q22672029", "L123", "Q21462724")));
+        entities.put("http://empty/new", EntityIdSet.of('Q', Arrays.asList()));
+        EntitiesCacheFile.write(cache, 'Q', entities);
+        Map<String, EntityIdSet> mapped = EntitiesCacheFile.read(cache);
+        assertEquals(entities, mapped);
+        EntityIdSet chuckBerry = mapped.get("http://chuck-berry/new");
+        assertEquals(Arrays.asList("Q5921", "Q1500155", "Q11569986"), chuckBerry);
+        assertTrue(chuckBerry.contains("Q1500155"));
+        assertFalse(chuckBerry.contains("Q1500156"));
+        EntityIdSet bAndV = mapped.get("http://b-and-v/new");
+        assertEquals('Q', bAndV.getPrefix());
+        assertTrue(bAndV.contains("L123"));
+        StringWriter json = new StringWriter();
+        bAndV.writeJSONString(json);
+        assertEquals("[\"Q21462724\",\"Q22672029\",\"L123\"]", json.toString());
+        assertTrue(mapped.get("http://empty/new").isEmpty());
+        EntityIdSet all = EntityIdSet.union('Q', mapped.values());
+        assertEquals(6, all.size());
+    }
+
+    @Test(expected = IOException.class)
+    public void testRejectOtherVersions() throws IOException {
+        EntitiesCacheFile.write(cache, 'Q', new HashMap<>());
+        try (RandomAccessFile file = new RandomAccessFile(cache.toFile(), "rw")) {
+            file.seek(4);
+            file.writeInt(EntitiesCacheFile.VERSION + 1);
+        }
+        EntitiesCacheFile.read(cache);
+    }
+
+    @Test(expected = IOException.class)
+    public void testRejectCorruptedLength() throws IOException {
+        EntitiesCacheFile.write(cache, 'Q', Collections.singletonMap("http://chuck-berry/new", EntityIdSet.of('Q', Arrays.asList("Q5921", "L123"))));
+        // The length of the dataset URI, right after the header
+        try (RandomAccessFile file = new RandomAccessFile(cache.toFile(), "rw")) {
+            file.seek(16);
+            file.writeInt(randomIntBetween((int) file.length(), Integer.MAX_VALUE));
+        }
+        EntitiesCacheFile.read(cache);
+    }
+}
@@ -4,9 +4,11 @@ import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
+import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Map;
 
 import org.apache.http.client.fluent.Request;
 import org.apache.http.entity.ContentType;
@@ -20,6 +22,7 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.openrdf.model.impl.LiteralImpl;
 import org.wikidata.query.rdf.primarysources.curation.CurationAPIIntegrationTest;
 
 import com.carrotsearch.randomizedtesting.RandomizedRunner;
@@ -35,6 +38,8 @@ public class EntitiesCacheIntegrationTest extends AbstractRdfRepositoryIntegrati
 
     private static final String SECOND_TEST_DATASET_FILE_NAME = "pieter.ttl";
     private static final String THIRD_TEST_DATASET_FILE_NAME = "barbara_and_victoria.ttl";
+    private static final URI CURATE_ENDPOINT = URI.create(CurationAPIIntegrationTest.BASE_ENDPOINT + "/curate");
+    private static final String CHUCK_BERRY_IMAGE = "http://commons.wikimedia.org/wiki/Special:FilePath/Chuck-berry-2007-07-18.jpg";
 
     private static File firstDataset;
     private static File secondDataset;
@@ -62,12 +67,19 @@ public class EntitiesCacheIntegrationTest extends AbstractRdfRepositoryIntegrati
         Files.deleteIfExists(EntitiesCache.SUBJECTS_CACHE_FILE);
         Files.deleteIfExists(EntitiesCache.PROPERTIES_CACHE_FILE);
         Files.deleteIfExists(EntitiesCache.VALUES_CACHE_FILE);
+        Files.deleteIfExists(EntitiesCache.SUBJECTS_BINARY_CACHE_FILE);
+        Files.deleteIfExists(EntitiesCache.PROPERTIES_BINARY_CACHE_FILE);
+        Files.deleteIfExists(EntitiesCache.VALUES_BINARY_CACHE_FILE);
     }
 
     private void purgeCache() throws Exception {
         purgeCacheFile(EntitiesCache.SUBJECTS_CACHE_FILE);
         purgeCacheFile(EntitiesCache.PROPERTIES_CACHE_FILE);
         purgeCacheFile(EntitiesCache.VALUES_CACHE_FILE);
+        // Dataset updates merge into the binary cache files
+        Files.deleteIfExists(EntitiesCache.SUBJECTS_BINARY_CACHE_FILE);
+        Files.deleteIfExists(EntitiesCache.PROPERTIES_BINARY_CACHE_FILE);
+        Files.deleteIfExists(EntitiesCache.VALUES_BINARY_CACHE_FILE);
     }
 
     private void purgeCacheFile(Path path) throws IOException {
@@ -81,23 +93,18 @@ public class EntitiesCacheIntegrationTest extends AbstractRdfRepositoryIntegrati
     @Before
     public void prepareDatasetEntitiesCache() throws Exception {
         purgeCache();
-        JSONParser parser = new JSONParser();
         uploadDataset("chuck berry", firstDataset);
-        // The cache updater runs on a separate thread, so wait a bit after the upload
-        sleep(500);
-        firstDatasetSubjectsCache = parseCache(EntitiesCache.SUBJECTS_CACHE_FILE, parser);
-        firstDatasetPropertiesCache = parseCache(EntitiesCache.PROPERTIES_CACHE_FILE, parser);
-        firstDatasetValuesCache = parseCache(EntitiesCache.VALUES_CACHE_FILE, parser);
+        firstDatasetSubjectsCache = awaitCache(EntitiesCache.SUBJECTS_BINARY_CACHE_FILE, "http://chuck-berry/new");
+        firstDatasetPropertiesCache = awaitCache(EntitiesCache.PROPERTIES_BINARY_CACHE_FILE, "http://chuck-berry/new");
+        firstDatasetValuesCache = awaitCache(EntitiesCache.VALUES_BINARY_CACHE_FILE, "http://chuck-berry/new");
         uploadDataset("pieter", secondDataset);
-        sleep(500);
-        secondDatasetSubjectsCache = parseCache(EntitiesCache.SUBJECTS_CACHE_FILE, parser);
-        secondDatasetPropertiesCache = parseCache(EntitiesCache.PROPERTIES_CACHE_FILE, parser);
-        secondDatasetValuesCache = parseCache(EntitiesCache.VALUES_CACHE_FILE, parser);
+        secondDatasetSubjectsCache = awaitCache(EntitiesCache.SUBJECTS_BINARY_CACHE_FILE, "http://pieter/new");
+        secondDatasetPropertiesCache = awaitCache(EntitiesCache.PROPERTIES_BINARY_CACHE_FILE, "http://pieter/new");
+        secondDatasetValuesCache = awaitCache(EntitiesCache.VALUES_BINARY_CACHE_FILE, "http://pieter/new");
         uploadDataset("b and v", thirdDataset);
-        sleep(500);
-        thirdDatasetSubjectsCache = parseCache(EntitiesCache.SUBJECTS_CACHE_FILE, parser);
-        thirdDatasetPropertiesCache = parseCache(EntitiesCache.PROPERTIES_CACHE_FILE, parser);
-        thirdDatasetValuesCache = parseCache(EntitiesCache.VALUES_CACHE_FILE, parser);
+        thirdDatasetSubjectsCache = awaitCache(EntitiesCache.SUBJECTS_BINARY_CACHE_FILE, "http://b-and-v/new");
+        thirdDatasetPropertiesCache = awaitCache(EntitiesCache.PROPERTIES_BINARY_CACHE_FILE, "http://b-and-v/new");
+        thirdDatasetValuesCache = awaitCache(EntitiesCache.VALUES_BINARY_CACHE_FILE, "http://b-and-v/new");
         purgeCache();
     }
 
@@ -109,6 +116,30 @@ public class EntitiesCacheIntegrationTest extends AbstractRdfRepositoryIntegrati
         return (JSONObject) parsed;
     }
 
+    /**
+     * The cache updater runs on a separate thread, and only writes the binary cache files after a delay, see {@link Config#ENTITIES_CACHE_PERSIST_DELAY}.
+     * Changes don't export the JSON ones, so wait for the binary file to include the uploaded dataset.
+     */
+    private JSONObject awaitCache(Path binary, String dataset) throws IOException {
+        for (int i = 0; i < 100; i++) {
+            if (Files.exists(binary)) {
+                Map<String, EntityIdSet> cached = EntitiesCacheFile.read(binary);
+                if (cached.containsKey(dataset)) {
+                    JSONObject cache = new JSONObject();
+                    for (Map.Entry<String, EntityIdSet> entry : cached.entrySet()) {
+                        JSONArray entities = new JSONArray();
+                        entities.addAll(entry.getValue());
+                        cache.put(entry.getKey(), entities);
+                    }
+                    return cache;
+                }
+            }
+            sleep(100);
+        }
+        fail("Dataset <" + dataset + "> not cached in '" + binary + "'");
+        return null;
+    }
+
     private void uploadDataset(String datasetName, File dataset) throws IOException {
         MultipartEntityBuilder multipart = MultipartEntityBuilder.create();
         multipart.addTextBody("name", datasetName, ContentType.TEXT_PLAIN);
@@ -120,6 +151,19 @@ public class EntitiesCacheIntegrationTest extends AbstractRdfRepositoryIntegrati
             .discardContent();
     }
 
+    private void rejectClaim(String quickStatement) throws IOException {
+        JSONObject curated = new JSONObject();
+        curated.put("qs", quickStatement);
+        curated.put("type", "claim");
+        curated.put("dataset", "http://chuck-berry/new");
+        curated.put("state", "rejected");
+        curated.put("user", "IMCurator");
+        Request.Post(CURATE_ENDPOINT)
+            .bodyString(curated.toJSONString(), ContentType.APPLICATION_JSON)
+            .execute()
+            .discardContent();
+    }
+
     @Test
     public void testCacheDatasetEntities() {
         /* Cache after first test dataset upload */
@@ -227,4 +271,23 @@ public class EntitiesCacheIntegrationTest extends AbstractRdfRepositoryIntegrati
         assertTrue(values.contains("Q6581097"));
         assertTrue(values.contains("Q11569986"));
     }
+
+    @Test
+    public void testRemoveFullyCuratedSubject() throws Exception {
+        String dataset = "http://chuck-berry/new";
+        String qId = CurationAPIIntegrationTest.TEST_QID;
+        EntitiesCache.dumpAllEntities();
+        assertTrue(EntitiesCache.snapshot().datasetsWithSubject(qId).contains(dataset));
+        // Reject all the subject statements: only its type triple stays in the dataset
+        rejectClaim(qId + "\tP999\t\"Maybelline\"");
+        rejectClaim(qId + "\tP18\t\"" + CHUCK_BERRY_IMAGE + "\"");
+        EntitiesCache.applyChange(new EntityChange(dataset)
+            .curated(qId, "P999", new LiteralImpl("Maybelline"))
+            .curated(qId, "P18", new LiteralImpl(CHUCK_BERRY_IMAGE)));
+        // The change is applied on the cache writer thread
+        for (int i = 0; i < 100 && !EntitiesCache.isUpToDate(); i++) sleep(100);
+        assertTrue(EntitiesCache.isUpToDate());
+        assertFalse(EntitiesCache.snapshot().datasetsWithSubject(qId).contains(dataset));
+        assertFalse(EntitiesCache.snapshot().subjects().containsKey(dataset));
+    }
 }
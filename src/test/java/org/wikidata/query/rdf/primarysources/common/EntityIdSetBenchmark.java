@@ -0,0 +1,85 @@
+package org.wikidata.query.rdf.primarysources.common;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compare the heap footprint of the subject item QIDs as cached by {@link EntitiesCache}: strings in a {@link HashSet} while fetching,
+ * strings in a JSON array once cached, and a compact {@link EntityIdSet}.
+ * Also time the union of all datasets, as computed for random subjects.
+ * <p>
+ * Run it as a plain Java application, with the test class path and a big enough heap, e.g., {@code -Xmx6g}.
+ * Optional arguments: number of subjects (default 10 million) and of datasets (default 10).
+ * Footprints are heap usage deltas after a full garbage collection, so they are approximate.
+ *
+ * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
+ * @since 0.2.5 - created on Jun 19, 2018.
+ */
+public final class EntityIdSetBenchmark {
+
+    private static final Logger log = LoggerFactory.getLogger(EntityIdSetBenchmark.class);
+    // Roughly the current QID range
+    private static final int MAX_QID = 60_000_000;
+
+    private EntityIdSetBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        int subjects = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        int datasets = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        footprint("HashSet<String>", () -> {
+            Collection<String> set = new HashSet<>();
+            fill(set, subjects);
+            return set;
+        });
+        footprint("JSON array of strings", () -> {
+            Collection<String> list = new ArrayList<>(subjects);
+            fill(list, subjects);
+            return list;
+        });
+        footprint("EntityIdSet", () -> {
+            EntityIdSet.Builder builder = new EntityIdSet.Builder('Q', subjects);
+            Random random = new Random(42);
+            for (int i = 0; i < subjects; i++) builder.add("Q" + (1 + random.nextInt(MAX_QID)));
+            return builder.build();
+        });
+        union(subjects, datasets);
+    }
+
+    private static void fill(Collection<String> collection, int subjects) {
+        Random random = new Random(42);
+        for (int i = 0; i < subjects; i++) collection.add("Q" + (1 + random.nextInt(MAX_QID)));
+    }
+
+    private static void footprint(String name, Supplier<Collection<String>> factory) {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        System.gc();
+        long before = memory.getHeapMemoryUsage().getUsed();
+        Collection<String> entities = factory.get();
+        System.gc();
+        long after = memory.getHeapMemoryUsage().getUsed();
+        log.info("{}: {} entities, {} MB, {} bytes per entity", name, entities.size(), (after - before) >> 20, (after - before) / entities.size());
+    }
+
+    private static void union(int subjects, int datasets) {
+        Random random = new Random(42);
+        Collection<EntityIdSet> sets = new ArrayList<>(datasets);
+        for (int d = 0; d < datasets; d++) {
+            EntityIdSet.Builder builder = new EntityIdSet.Builder('Q', subjects / datasets);
+            for (int i = 0; i < subjects / datasets; i++) builder.add("Q" + (1 + random.nextInt(MAX_QID)));
+            sets.add(builder.build());
+        }
+        for (int warmUp = 0; warmUp < 3; warmUp++) EntityIdSet.union('Q', sets);
+        long start = System.nanoTime();
+        EntityIdSet all = EntityIdSet.union('Q', sets);
+        log.info("Union of {} datasets: {} distinct entities in {} ms", datasets, all.size(), (System.nanoTime() - start) / 1_000_000);
+    }
+}
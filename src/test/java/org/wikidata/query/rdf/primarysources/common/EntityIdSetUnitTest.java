@@ -0,0 +1,77 @@
+package org.wikidata.query.rdf.primarysources.common;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.json.simple.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import com.carrotsearch.randomizedtesting.RandomizedRunner;
+import com.carrotsearch.randomizedtesting.RandomizedTest;
+
+/**
+ * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
+ * @since 0.2.5
+ * Created on Jun 19, 2018.
+ */
+@RunWith(RandomizedRunner.class)
+public class EntityIdSetUnitTest extends RandomizedTest {
+
+    @Test
+    public void testSortedDistinct() {
+        EntityIdSet set = EntityIdSet.of('Q', Arrays.asList("Q42", "Q5921", "Q1", "Q42", "P18", "Q007"));
+        assertEquals(Arrays.asList("Q1", "Q42", "Q5921", "P18", "Q007"), set);
+        assertTrue(set.contains("Q5921"));
+        assertTrue(set.contains("P18"));
+        assertTrue(set.contains("Q007"));
+        assertFalse(set.contains("Q7"));
+        assertFalse(set.contains("Q99999999999"));
+    }
+
+    @Test
+    public void testUnion() {
+        int size = randomIntBetween(1, 1000);
+        EntityIdSet.Builder first = new EntityIdSet.Builder('Q', size);
+        EntityIdSet.Builder second = new EntityIdSet.Builder('Q', size);
+        for (int i = 0; i < size; i++) {
+            first.add("Q" + (2 * i));
+            second.add("Q" + (3 * i));
+        }
+        EntityIdSet union = EntityIdSet.union('Q', Arrays.asList(first.build(), second.build(), EntityIdSet.of('Q', Collections.singleton("L1"))));
+        for (int i = 0; i < size; i++) {
+            assertTrue(union.contains("Q" + (2 * i)));
+            assertTrue(union.contains("Q" + (3 * i)));
+        }
+        assertTrue(union.contains("L1"));
+        assertEquals(size + size - (size + 2) / 3 + 1, union.size());
+    }
+
+    @Test
+    public void testWith() {
+        EntityIdSet set = EntityIdSet.of('Q', Arrays.asList("Q1", "Q42", "Q5921", "L1"));
+        assertSame(set, set.with(Arrays.asList("Q42", "L1"), Arrays.asList("Q2", "L2")));
+        EntityIdSet changed = set.with(Arrays.asList("Q7", "Q42", "L2", "Q8"), Arrays.asList("Q1", "L1", "Q8"));
+        assertEquals(Arrays.asList("Q7", "Q42", "Q5921", "L2"), changed);
+        assertTrue(changed.contains("Q7"));
+        assertFalse(changed.contains("Q1"));
+        assertTrue(set.with(Collections.emptyList(), set).isEmpty());
+    }
+
+    @Test
+    public void testSameAs() {
+        EntityIdSet set = EntityIdSet.of('Q', Arrays.asList("Q1", "Q42", "L1"));
+        assertTrue(set.sameAs(EntityIdSet.of('Q', Arrays.asList("L1", "Q42", "Q1", "Q42"))));
+        assertFalse(set.sameAs(set.with(Collections.singleton("Q7"), Collections.emptyList())));
+        assertFalse(set.sameAs(set.with(Collections.emptyList(), Collections.singleton("L1"))));
+        assertFalse(set.sameAs(EntityIdSet.of('P', Arrays.asList("P1", "P42", "L1"))));
+        assertFalse(set.sameAs(null));
+    }
+
+    @Test
+    public void testJson() {
+        JSONObject json = new JSONObject();
+        json.put("http://chuck-berry/new", EntityIdSet.of('P', Arrays.asList("P18", "P2", "weird\"one")));
+        assertEquals("{\"http:\\/\\/chuck-berry\\/new\":[\"P2\",\"P18\",\"weird\\\"one\"]}", json.toJSONString());
+    }
+}
@@ -0,0 +1,155 @@
+package org.wikidata.query.rdf.primarysources.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.simple.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import com.carrotsearch.randomizedtesting.RandomizedRunner;
+import com.carrotsearch.randomizedtesting.RandomizedTest;
+
+/**
+ * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
+ * @since 0.2.5
+ * Created on Jun 08, 2018.
+ */
+@RunWith(RandomizedRunner.class)
+public class QueryCoalescerUnitTest extends RandomizedTest {
+
+    @Test
+    public void testNormalize() {
+        assertEquals("SELECT ?s WHERE { ?s ?p \"a  b\" }", QueryCoalescer.normalize("  SELECT ?s\n  WHERE {\t?s ?p \"a  b\" }\n"));
+        assertEquals("SELECT ?s WHERE { ?s ?p 'it\\'s  here' }", QueryCoalescer.normalize("SELECT ?s WHERE { ?s ?p 'it\\'s  here' }"));
+    }
+
+    @Test
+    public void testCoalesce() throws Exception {
+        QueryCoalescer<String> coalescer = new QueryCoalescer<>("test");
+        int callers = randomIntBetween(2, 8);
+        CountDownLatch firstStarted = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger loads = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(callers);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            results.add(pool.submit(() -> coalescer.run("SELECT  ?s", () -> {
+                loads.incrementAndGet();
+                firstStarted.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+                return "result";
+            })));
+            firstStarted.await();
+            for (int i = 1; i < callers; i++) {
+                results.add(pool.submit(() -> coalescer.run("SELECT ?s", () -> {
+                    loads.incrementAndGet();
+                    return "duplicate";
+                })));
+            }
+            // Wait for the followers to join the flight before letting the first caller complete
+            while ((long) coalescer.metrics().get("coalesced") < callers - 1) Thread.sleep(1);
+            release.countDown();
+            for (Future<String> result : results) assertEquals("result", result.get(10, TimeUnit.SECONDS));
+        } finally {
+            pool.shutdownNow();
+            pool.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        assertEquals(1, loads.get());
+        JSONObject metrics = coalescer.metrics();
+        assertEquals(1L, metrics.get("issued"));
+        assertEquals((long) callers - 1, metrics.get("coalesced"));
+        assertEquals(0, metrics.get("in_flight"));
+    }
+
+    @Test
+    public void testRunAgainWhenFirstCallerIsCancelled() throws Exception {
+        QueryCoalescer<String> coalescer = new QueryCoalescer<>("test");
+        CountDownLatch firstStarted = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            Future<String> first = pool.submit(() -> coalescer.run("SELECT ?s", () -> {
+                firstStarted.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+                throw new CancellationException("client gone");
+            }));
+            firstStarted.await();
+            Future<String> second = pool.submit(() -> coalescer.run("SELECT ?s", () -> "result"));
+            while ((long) coalescer.metrics().get("coalesced") < 1) Thread.sleep(1);
+            release.countDown();
+            try {
+                first.get(10, TimeUnit.SECONDS);
+                fail("The first caller should have been cancelled");
+            } catch (ExecutionException ee) {
+                assertTrue(ee.getCause() instanceof CancellationException);
+            }
+            assertEquals("result", second.get(10, TimeUnit.SECONDS));
+        } finally {
+            pool.shutdownNow();
+            pool.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        assertEquals(2L, coalescer.metrics().get("issued"));
+    }
+
+    @Test
+    public void testStopWaitingWhenCancelled() throws Exception {
+        QueryCoalescer<String> coalescer = new QueryCoalescer<>("test");
+        CountDownLatch firstStarted = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        // No time limit: only the cancellation can stop the wait
+        QueryDeadline deadline = QueryDeadline.start(Endpoint.SUGGEST, 0);
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            Future<String> first = pool.submit(() -> coalescer.run("SELECT ?s", () -> {
+                firstStarted.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+                return "result";
+            }));
+            firstStarted.await();
+            Future<String> second = pool.submit(() -> {
+                deadline.attach();
+                try {
+                    return coalescer.run("SELECT ?s", () -> "duplicate");
+                } finally {
+                    QueryDeadline.detach();
+                }
+            });
+            while ((long) coalescer.metrics().get("coalesced") < 1) Thread.sleep(1);
+            deadline.cancel();
+            // The waiting caller gives up while the first one is still running
+            try {
+                second.get(10, TimeUnit.SECONDS);
+                fail("The waiting caller should have been cancelled");
+            } catch (ExecutionException ee) {
+                assertTrue(ee.getCause() instanceof CancellationException);
+            }
+            release.countDown();
+            assertEquals("result", first.get(10, TimeUnit.SECONDS));
+        } finally {
+            pool.shutdownNow();
+            pool.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        assertEquals(1L, coalescer.metrics().get("issued"));
+    }
+}
@@ -0,0 +1,119 @@
+package org.wikidata.query.rdf.primarysources.common;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.simple.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import com.carrotsearch.randomizedtesting.RandomizedRunner;
+import com.carrotsearch.randomizedtesting.RandomizedTest;
+
+/**
+ * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
+ * @since 0.2.5
+ * Created on Jun 11, 2018.
+ */
+@RunWith(RandomizedRunner.class)
+public class QueryResultCacheUnitTest extends RandomizedTest {
+
+    private static final String CHUCK_BERRY = "http://chuck-berry/new";
+    private static final String QUERY_ONE_DATASET = SparqlQueries.SUGGEST_ONE_DATASET_TEMPLATE.bind()
+        .set(SparqlTemplate.Slot.DATASET, CHUCK_BERRY)
+        .set(SparqlTemplate.Slot.QID, "Q5921")
+        .render();
+    private static final String QUERY_OTHER_DATASET = SparqlQueries.SUGGEST_ONE_DATASET_TEMPLATE.bind()
+        .set(SparqlTemplate.Slot.DATASET, "http://elvis/new")
+        .set(SparqlTemplate.Slot.QID, "Q5921")
+        .render();
+    private static final String QUERY_ALL_DATASETS = SparqlQueries.SUGGEST_ALL_DATASETS_TEMPLATE.bind().set(SparqlTemplate.Slot.QID, "Q5921").render();
+
+    @Test
+    public void testGraphs() {
+        assertEquals(Collections.singleton(CHUCK_BERRY), QueryResultCache.graphs(QUERY_ONE_DATASET));
+        assertEquals(Collections.singleton(QueryResultCache.ALL_GRAPHS), QueryResultCache.graphs(QUERY_ALL_DATASETS));
+        assertEquals(Collections.singleton(QueryResultCache.ALL_GRAPHS), QueryResultCache.graphs("SELECT * WHERE { ?s ?p ?o }"));
+        assertEquals(new HashSet<>(Arrays.asList("http://a", "http://b")),
+            QueryResultCache.graphs("SELECT * WHERE { graph <http://a> { ?s ?p ?o } GRAPH <http://b> { ?o ?p ?s } }"));
+    }
+
+    @Test
+    public void testInvalidate() {
+        QueryResultCache<String> cache = new QueryResultCache<>("test", 100);
+        AtomicInteger loads = new AtomicInteger();
+        for (String query : Arrays.asList(QUERY_ONE_DATASET, QUERY_OTHER_DATASET, QUERY_ALL_DATASETS)) {
+            cache.get(query, Endpoint.SUGGEST, () -> "loaded " + loads.incrementAndGet());
+        }
+        assertEquals("loaded 1", cache.get(QUERY_ONE_DATASET, Endpoint.RANDOM, () -> "loaded " + loads.incrementAndGet()));
+        assertEquals(3, loads.get());
+        // Only the entries reading the Chuck Berry graph, or any graph, go away
+        assertEquals(2, cache.invalidate(CHUCK_BERRY, RdfVocabulary.METADATA_NAMESPACE));
+        assertEquals("loaded 2", cache.get(QUERY_OTHER_DATASET, Endpoint.SUGGEST, () -> "loaded " + loads.incrementAndGet()));
+        assertEquals("loaded 4", cache.get(QUERY_ONE_DATASET, Endpoint.SUGGEST, () -> "loaded " + loads.incrementAndGet()));
+        JSONObject suggest = (JSONObject) cache.metrics().get("suggest");
+        assertEquals(2L, suggest.get("size"));
+        assertEquals(1L, suggest.get("hits"));
+        assertEquals(4L, suggest.get("misses"));
+        assertEquals(2L, suggest.get("invalidations"));
+        assertEquals(1L, ((JSONObject) cache.metrics().get("random")).get("hits"));
+    }
+
+    @Test
+    public void testFailuresAreNotCached() {
+        QueryResultCache<String> cache = new QueryResultCache<>("test", 100);
+        assertNull(cache.get(QUERY_ONE_DATASET, Endpoint.SEARCH, () -> null));
+        assertEquals("loaded", cache.get(QUERY_ONE_DATASET, Endpoint.SEARCH, () -> "loaded"));
+    }
+
+    @Test
+    public void testStaleLoadIsNotCached() {
+        QueryResultCache<String> cache = new QueryResultCache<>("test", 100);
+        // A write lands while the query is running
+        cache.get(QUERY_ONE_DATASET, Endpoint.SEARCH, () -> {
+            cache.invalidate(CHUCK_BERRY);
+            return "stale";
+        });
+        assertEquals("fresh", cache.get(QUERY_ONE_DATASET, Endpoint.SEARCH, () -> "fresh"));
+    }
+
+    @Test
+    public void testNoJoinAcrossInvalidation() throws Exception {
+        QueryResultCache<String> cache = new QueryResultCache<>("test", 100);
+        QueryCoalescer<String> coalescer = new QueryCoalescer<>("test");
+        CountDownLatch staleStarted = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            // The query starts before a write, and completes after it
+            Future<String> stale = pool.submit(() -> cache.get(QUERY_ONE_DATASET, Endpoint.SEARCH, generation -> coalescer.run(QUERY_ONE_DATASET,
+                generation, () -> {
+                    staleStarted.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return "stale";
+                })));
+            staleStarted.await();
+            cache.invalidate(CHUCK_BERRY);
+            // A caller after the write runs its own query, instead of joining the stale one
+            assertEquals("fresh", cache.get(QUERY_ONE_DATASET, Endpoint.SEARCH, generation -> coalescer.run(QUERY_ONE_DATASET, generation, () -> "fresh")));
+            release.countDown();
+            assertEquals("stale", stale.get(10, TimeUnit.SECONDS));
+        } finally {
+            pool.shutdownNow();
+            pool.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        assertEquals("fresh", cache.get(QUERY_ONE_DATASET, Endpoint.SEARCH, () -> "other"));
+        assertEquals(0L, coalescer.metrics().get("coalesced"));
+    }
+}
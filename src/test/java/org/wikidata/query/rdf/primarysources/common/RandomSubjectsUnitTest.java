@@ -0,0 +1,37 @@
+package org.wikidata.query.rdf.primarysources.common;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import com.carrotsearch.randomizedtesting.RandomizedRunner;
+import com.carrotsearch.randomizedtesting.RandomizedTest;
+
+/**
+ * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
+ * @since 0.2.5
+ * Created on Jun 24, 2018.
+ */
+@RunWith(RandomizedRunner.class)
+public class RandomSubjectsUnitTest extends RandomizedTest {
+
+    @Test
+    public void testDrawDatasetFollowsMasses() {
+        RandomSubjects.DatasetMasses masses = new RandomSubjects.DatasetMasses(Collections.emptyMap(), 0,
+            new String[] {"http://chuck-berry/new", "http://empty/new", "http://pieter/new", "http://barbara/new"},
+            new double[] {1, 0, 9, Double.NaN});
+        Map<String, Integer> drawn = new HashMap<>();
+        for (int i = 0; i < 10000; i++) drawn.merge(masses.draw(), 1, Integer::sum);
+        assertEquals(2, drawn.size());
+        assertTrue(drawn.get("http://pieter/new") > 5 * drawn.get("http://chuck-berry/new"));
+    }
+
+    @Test
+    public void testDrawNoDataset() {
+        assertNull(new RandomSubjects.DatasetMasses(Collections.emptyMap(), 0, new String[] {"http://empty/new"}, new double[] {0}).draw());
+        assertNull(new RandomSubjects.DatasetMasses(Collections.emptyMap(), 0, new String[0], new double[0]).draw());
+    }
+}
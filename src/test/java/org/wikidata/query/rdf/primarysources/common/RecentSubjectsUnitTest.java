@@ -0,0 +1,30 @@
+package org.wikidata.query.rdf.primarysources.common;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import com.carrotsearch.randomizedtesting.RandomizedRunner;
+import com.carrotsearch.randomizedtesting.RandomizedTest;
+
+/**
+ * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
+ * @since 0.2.5
+ * Created on Jun 24, 2018.
+ */
+@RunWith(RandomizedRunner.class)
+public class RecentSubjectsUnitTest extends RandomizedTest {
+
+    @Test
+    public void testWindow() {
+        RecentSubjects recent = new RecentSubjects(3);
+        recent.add("Q1");
+        recent.add("Q2");
+        recent.add("Q3");
+        assertTrue(recent.contains("Q1"));
+        recent.add("Q4");
+        assertFalse(recent.contains("Q1"));
+        assertTrue(recent.contains("Q2"));
+        assertTrue(recent.contains("Q4"));
+        assertFalse(recent.contains("P31"));
+    }
+}
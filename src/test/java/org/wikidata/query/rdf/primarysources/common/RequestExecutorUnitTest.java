@@ -0,0 +1,89 @@
+package org.wikidata.query.rdf.primarysources.common;
+
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.wikidata.query.rdf.primarysources.curation.CurateServlet;
+import org.wikidata.query.rdf.primarysources.curation.DatasetsServlet;
+import org.wikidata.query.rdf.primarysources.curation.RandomServlet;
+import org.wikidata.query.rdf.primarysources.curation.SearchServlet;
+import org.wikidata.query.rdf.primarysources.curation.SuggestServlet;
+import org.wikidata.query.rdf.primarysources.ingestion.UpdateServlet;
+import org.wikidata.query.rdf.primarysources.ingestion.UploadServlet;
+import org.wikidata.query.rdf.primarysources.statistics.PropertiesServlet;
+import org.wikidata.query.rdf.primarysources.statistics.StatisticsServlet;
+import org.wikidata.query.rdf.primarysources.statistics.ValuesServlet;
+
+import com.carrotsearch.randomizedtesting.RandomizedRunner;
+import com.carrotsearch.randomizedtesting.RandomizedTest;
+
+/**
+ * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
+ * @since 0.2.5
+ * Created on Jun 13, 2018.
+ */
+@RunWith(RandomizedRunner.class)
+public class RequestExecutorUnitTest extends RandomizedTest {
+
+    private static final List<Class<? extends HttpServlet>> WEB_SERVICES = Arrays.asList(CurateServlet.class, DatasetsServlet.class,
+        RandomServlet.class, SearchServlet.class, SuggestServlet.class, UpdateServlet.class, UploadServlet.class, PropertiesServlet.class,
+        StatisticsServlet.class, ValuesServlet.class);
+
+    @Test
+    public void testWebServicesSupportAsync() {
+        for (Class<? extends HttpServlet> servlet : WEB_SERVICES) {
+            WebServlet annotation = servlet.getAnnotation(WebServlet.class);
+            assertNotNull(servlet.getSimpleName(), annotation);
+            assertTrue(servlet.getSimpleName(), annotation.asyncSupported());
+        }
+    }
+
+    @Test
+    public void testAsyncStarted() throws Exception {
+        AtomicBoolean started = new AtomicBoolean();
+        CountDownLatch completed = new CountDownLatch(1);
+        AsyncContext async = (AsyncContext) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {AsyncContext.class},
+            (proxy, method, args) -> {
+                if (method.getName().equals("complete")) completed.countDown();
+                return null;
+            });
+        // What the container does for a servlet declared as above
+        boolean asyncSupported = SuggestServlet.class.getAnnotation(WebServlet.class).asyncSupported();
+        HttpServletRequest request = (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {HttpServletRequest.class},
+            (proxy, method, args) -> {
+                switch (method.getName()) {
+                case "isAsyncSupported":
+                    return asyncSupported;
+                case "startAsync":
+                    started.set(true);
+                    return async;
+                case "isAsyncStarted":
+                    return started.get();
+                default:
+                    return null;
+                }
+            });
+        HttpServletResponse response = (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[] {HttpServletResponse.class}, (proxy, method, args) -> method.getReturnType() == boolean.class ? false : null);
+        Thread container = Thread.currentThread();
+        AtomicReference<Thread> worker = new AtomicReference<>();
+        RequestExecutor.execute(request, response, Endpoint.SUGGEST, () -> worker.set(Thread.currentThread()));
+        assertTrue(request.isAsyncStarted());
+        assertTrue(completed.await(10, TimeUnit.SECONDS));
+        assertNotNull(worker.get());
+        assertNotSame(container, worker.get());
+    }
+}
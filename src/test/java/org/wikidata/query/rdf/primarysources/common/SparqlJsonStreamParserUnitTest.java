@@ -0,0 +1,69 @@
+package org.wikidata.query.rdf.primarysources.common;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.simple.parser.ParseException;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.openrdf.model.Literal;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.vocabulary.XMLSchema;
+
+import com.carrotsearch.randomizedtesting.RandomizedRunner;
+import com.carrotsearch.randomizedtesting.RandomizedTest;
+
+/**
+ * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
+ * @since 0.2.5
+ * Created on Jun 06, 2018.
+ */
+@RunWith(RandomizedRunner.class)
+public class SparqlJsonStreamParserUnitTest extends RandomizedTest {
+
+    private static final String RESULT = "{\"head\": {\"vars\": [\"dataset\", \"subject\", \"value\"]}, \"results\": {\"bindings\": [" +
+        "{\"dataset\": {\"type\": \"uri\", \"value\": \"http://chuck\"}, \"subject\": {\"type\": \"uri\", \"value\": \"http://www.wikidata.org/entity/Q5921\"}, " +
+        "\"value\": {\"datatype\": \"http://www.w3.org/2001/XMLSchema#decimal\", \"type\": \"literal\", \"value\": \"1926\"}}, " +
+        "{\"dataset\": {\"type\": \"uri\", \"value\": \"http://berry\"}, \"value\": {\"type\": \"literal\", \"xml:lang\": \"en\", \"value\": \"Chuck\"}}" +
+        "]}}";
+
+    @Test
+    public void testLexicalRows() throws IOException, ParseException {
+        List<String> datasets = new ArrayList<>();
+        List<String> subjects = new ArrayList<>();
+        long rows = SparqlJsonStreamParser.parse(new StringReader(RESULT), row -> {
+            datasets.add(row.get("dataset"));
+            subjects.add(row.get("subject"));
+        });
+        assertEquals(2, rows);
+        assertEquals("http://chuck", datasets.get(0));
+        assertEquals("http://berry", datasets.get(1));
+        assertEquals("http://www.wikidata.org/entity/Q5921", subjects.get(0));
+        // The recycled row must not leak bindings of the previous one
+        assertNull(subjects.get(1));
+    }
+
+    @Test
+    public void testValues() throws IOException, ParseException {
+        List<Value> values = new ArrayList<>();
+        SparqlJsonStreamParser.parse(new StringReader(RESULT), row -> {
+            values.add(row.getValue("value"));
+            if (row.isBound("subject")) assertTrue(row.getValue("subject") instanceof URI);
+        });
+        Literal quantity = (Literal) values.get(0);
+        assertEquals("1926", quantity.getLabel());
+        assertEquals(XMLSchema.DECIMAL, quantity.getDatatype());
+        Literal monolingual = (Literal) values.get(1);
+        assertEquals("Chuck", monolingual.getLabel());
+        assertEquals("en", monolingual.getLanguage());
+    }
+
+    @Test
+    public void testEmptyResult() throws IOException, ParseException {
+        long rows = SparqlJsonStreamParser.parse(new StringReader("{\"head\": {\"vars\": []}, \"results\": {\"bindings\": []}}"), row -> fail());
+        assertEquals(0, rows);
+    }
+}
@@ -0,0 +1,115 @@
+package org.wikidata.query.rdf.primarysources.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.query.QueryResultHandlerException;
+import org.openrdf.query.impl.MapBindingSet;
+import org.openrdf.query.resultio.QueryResultParseException;
+import org.openrdf.query.resultio.TupleQueryResultFormat;
+import org.openrdf.query.resultio.TupleQueryResultWriter;
+import org.openrdf.query.resultio.TupleQueryResultWriterFactory;
+import org.openrdf.query.resultio.TupleQueryResultWriterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compare parse throughput and allocation of the {@link SparqlResultFormat} values,
+ * over a synthetic result shaped like the entity cache queries, i.e., {@code SELECT ?subject ?dataset}.
+ * <p>
+ * Run it as a plain Java application, with the test class path. Optional arguments: number of rows (default 1 million) and measured iterations (default 5).
+ * Allocation figures rely on the HotSpot {@link com.sun.management.ThreadMXBean}.
+ *
+ * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
+ * @since 0.2.5 - created on Jun 07, 2018.
+ */
+public final class SparqlResultFormatBenchmark {
+
+    private static final Logger log = LoggerFactory.getLogger(SparqlResultFormatBenchmark.class);
+    private static final String ENTITY = "http://www.wikidata.org/entity/Q";
+    private static final String DATASET = "http://chuck-berry/dataset-";
+    private static final List<String> VARIABLES = Arrays.asList("subject", "dataset");
+    private static final int WARM_UP_ITERATIONS = 3;
+
+    private SparqlResultFormatBenchmark() {
+    }
+
+    public static void main(String[] args) throws IOException, QueryResultParseException, QueryResultHandlerException {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        Map<SparqlResultFormat, byte[]> serialized = new EnumMap<>(SparqlResultFormat.class);
+        serialized.put(SparqlResultFormat.JSON, json(rows));
+        serialized.put(SparqlResultFormat.TSV, tsv(rows));
+        byte[] binary = binary(rows);
+        if (binary != null) serialized.put(SparqlResultFormat.BINARY, binary);
+        else log.warn("No binary SPARQL results writer on the class path, skipping the binary format");
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        for (Map.Entry<SparqlResultFormat, byte[]> entry : serialized.entrySet()) {
+            SparqlResultFormat format = entry.getKey();
+            byte[] bytes = entry.getValue();
+            for (int i = 0; i < WARM_UP_ITERATIONS; i++) parse(format, bytes);
+            long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            long checksum = 0;
+            for (int i = 0; i < iterations; i++) checksum += parse(format, bytes);
+            long elapsed = System.nanoTime() - start;
+            long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+            long parsedRows = (long) rows * iterations;
+            log.info("{}: {} bytes, {} rows/s, {} bytes allocated per row (checksum {})", format, bytes.length,
+                String.format("%,d", parsedRows * 1_000_000_000L / Math.max(elapsed, 1)), allocated / parsedRows, checksum);
+        }
+    }
+
+    private static long parse(SparqlResultFormat format, byte[] bytes) throws IOException, QueryResultParseException {
+        long[] length = new long[1];
+        // Touch the lexical values, as the entity cache does
+        format.parse(new ByteArrayInputStream(bytes), row -> length[0] += row.get("subject").length() + row.get("dataset").length());
+        return length[0];
+    }
+
+    private static byte[] json(int rows) {
+        StringBuilder json = new StringBuilder("{\"head\": {\"vars\": [\"subject\", \"dataset\"]}, \"results\": {\"bindings\": [");
+        for (int i = 0; i < rows; i++) {
+            if (i > 0) json.append(',');
+            json.append("{\"subject\": {\"type\": \"uri\", \"value\": \"").append(ENTITY).append(i)
+                .append("\"}, \"dataset\": {\"type\": \"uri\", \"value\": \"").append(DATASET).append(i % 10).append("\"}}");
+        }
+        return json.append("]}}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] tsv(int rows) {
+        StringBuilder tsv = new StringBuilder("?subject\t?dataset\n");
+        for (int i = 0; i < rows; i++) {
+            tsv.append('<').append(ENTITY).append(i).append(">\t<").append(DATASET).append(i % 10).append(">\n");
+        }
+        return tsv.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] binary(int rows) throws QueryResultHandlerException {
+        TupleQueryResultWriterFactory factory = TupleQueryResultWriterRegistry.getInstance().get(TupleQueryResultFormat.BINARY);
+        if (factory == null) return null;
+        ValueFactory vf = ValueFactoryImpl.getInstance();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        TupleQueryResultWriter writer = factory.getWriter(bytes);
+        writer.startQueryResult(VARIABLES);
+        for (int i = 0; i < rows; i++) {
+            // The writer compares each row with the previous one, so they can't be recycled
+            MapBindingSet bindings = new MapBindingSet(2);
+            bindings.addBinding("subject", vf.createURI(ENTITY + i));
+            bindings.addBinding("dataset", vf.createURI(DATASET + (i % 10)));
+            writer.handleSolution(bindings);
+        }
+        writer.endQueryResult();
+        return bytes.toByteArray();
+    }
+}
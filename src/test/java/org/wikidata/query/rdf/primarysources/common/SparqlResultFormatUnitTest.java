@@ -0,0 +1,62 @@
+package org.wikidata.query.rdf.primarysources.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.openrdf.model.Literal;
+import org.openrdf.model.Value;
+import org.openrdf.model.vocabulary.XMLSchema;
+import org.openrdf.query.resultio.QueryResultParseException;
+
+import com.carrotsearch.randomizedtesting.RandomizedRunner;
+import com.carrotsearch.randomizedtesting.RandomizedTest;
+
+/**
+ * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
+ * @since 0.2.5
+ * Created on Jun 07, 2018.
+ */
+@RunWith(RandomizedRunner.class)
+public class SparqlResultFormatUnitTest extends RandomizedTest {
+
+    private static final String TSV_RESULT = "?subject\t?value\n" +
+        "<http://www.wikidata.org/entity/Q5921>\t\"Chuck \\\"Berry\\\"\"@en\n" +
+        "<http://www.wikidata.org/entity/Q1>\t1926\n" +
+        "<http://www.wikidata.org/entity/Q2>\t\n";
+
+    @Test
+    public void testTsv() throws IOException, QueryResultParseException {
+        List<String> subjects = new ArrayList<>();
+        List<Value> values = new ArrayList<>();
+        long rows = SparqlResultFormat.TSV.parse(new ByteArrayInputStream(TSV_RESULT.getBytes(StandardCharsets.UTF_8)), row -> {
+            subjects.add(row.get("subject"));
+            values.add(row.getValue("value"));
+        });
+        assertEquals(3, rows);
+        assertEquals("http://www.wikidata.org/entity/Q5921", subjects.get(0));
+        Literal label = (Literal) values.get(0);
+        assertEquals("Chuck \"Berry\"", label.getLabel());
+        assertEquals("en", label.getLanguage());
+        assertEquals(XMLSchema.INTEGER, ((Literal) values.get(1)).getDatatype());
+        assertNull(values.get(2));
+    }
+
+    @Test(expected = QueryResultParseException.class)
+    public void testMalformedTsv() throws IOException, QueryResultParseException {
+        SparqlResultFormat.TSV.parse(new ByteArrayInputStream("?a\t?b\n<http://a>\n".getBytes(StandardCharsets.UTF_8)), row -> { });
+    }
+
+    @Test
+    public void testForContentType() {
+        assertEquals(SparqlResultFormat.TSV, SparqlResultFormat.forContentType("text/tab-separated-values; charset=UTF-8"));
+        assertEquals(SparqlResultFormat.BINARY, SparqlResultFormat.forContentType("application/x-binary-rdf-results-table"));
+        assertEquals(SparqlResultFormat.JSON, SparqlResultFormat.forContentType("application/sparql-results+json"));
+        assertEquals(SparqlResultFormat.JSON, SparqlResultFormat.forContentType(null));
+        assertEquals(SparqlResultFormat.JSON, SparqlResultFormat.forContentType("text/html"));
+    }
+}
@@ -0,0 +1,80 @@
+package org.wikidata.query.rdf.primarysources.common;
+
+import java.lang.management.ManagementFactory;
+import java.util.function.IntFunction;
+
+import org.openrdf.model.Value;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compare the rendering time and allocation of {@link SparqlTemplate} with the chained {@link String#replace(CharSequence, CharSequence)} calls it replaces,
+ * over the claim rejection query, i.e., the biggest curation one.
+ * <p>
+ * Run it as a plain Java application, with the test class path. Optional arguments: renderings per iteration (default 100 thousand) and measured iterations
+ * (default 5).
+ * Allocation figures rely on the HotSpot {@link com.sun.management.ThreadMXBean}.
+ *
+ * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
+ * @since 0.2.5 - created on Jun 12, 2018.
+ */
+public final class SparqlTemplateBenchmark {
+
+    private static final Logger log = LoggerFactory.getLogger(SparqlTemplateBenchmark.class);
+    private static final Value VALUE = ValueFactoryImpl.getInstance().createURI("http://www.wikidata.org/entity/Q5921");
+    private static final int WARM_UP_ITERATIONS = 3;
+
+    private SparqlTemplateBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        int renderings = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        run("replace", SparqlTemplateBenchmark::replace, renderings, iterations);
+        run("template", SparqlTemplateBenchmark::template, renderings, iterations);
+    }
+
+    private static void run(String name, IntFunction<String> renderer, int renderings, int iterations) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        for (int i = 0; i < WARM_UP_ITERATIONS; i++) render(renderer, renderings);
+        long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        long checksum = 0;
+        for (int i = 0; i < iterations; i++) checksum += render(renderer, renderings);
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        long total = (long) renderings * iterations;
+        log.info("{}: {} ns per query, {} bytes allocated per query (checksum {})", name, elapsed / total, allocated / total, checksum);
+    }
+
+    private static long render(IntFunction<String> renderer, int renderings) {
+        long length = 0;
+        for (int i = 0; i < renderings; i++) length += renderer.apply(i).length();
+        return length;
+    }
+
+    private static String replace(int i) {
+        return SparqlQueries.CLAIM_REJECTION_QUERY
+            .replace(SparqlQueries.USER_PLACE_HOLDER, "Hjfocs")
+            .replace(SparqlQueries.DATASET_PLACE_HOLDER, "http://chuck-berry")
+            .replace(SparqlQueries.STATE_PLACE_HOLDER, "rejected")
+            .replace(SparqlQueries.QID_PLACE_HOLDER, "Q" + i)
+            .replace(SparqlQueries.MAIN_PID_PLACE_HOLDER, "P18")
+            .replace(SparqlQueries.PID_PLACE_HOLDER, "P18")
+            .replace(SparqlQueries.VALUE_PLACE_HOLDER, "<" + VALUE + ">");
+    }
+
+    private static String template(int i) {
+        return SparqlQueries.CLAIM_REJECTION_TEMPLATE.bind()
+            .set(SparqlTemplate.Slot.USER, "Hjfocs")
+            .set(SparqlTemplate.Slot.DATASET, "http://chuck-berry")
+            .set(SparqlTemplate.Slot.STATE, "rejected")
+            .set(SparqlTemplate.Slot.QID, "Q" + i)
+            .set(SparqlTemplate.Slot.MAIN_PID, "P18")
+            .set(SparqlTemplate.Slot.PID, "P18")
+            .set(SparqlTemplate.Slot.VALUE, VALUE)
+            .render();
+    }
+}
@@ -0,0 +1,87 @@
+package org.wikidata.query.rdf.primarysources.common;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.model.vocabulary.XMLSchema;
+
+import com.carrotsearch.randomizedtesting.RandomizedRunner;
+import com.carrotsearch.randomizedtesting.RandomizedTest;
+
+/**
+ * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
+ * @since 0.2.5
+ * Created on Jun 12, 2018.
+ */
+@RunWith(RandomizedRunner.class)
+public class SparqlTemplateUnitTest extends RandomizedTest {
+
+    private static final ValueFactory VF = ValueFactoryImpl.getInstance();
+
+    @Test
+    public void testSameAsReplace() {
+        String qid = "Q" + randomIntBetween(1, 100000);
+        String pid = "P" + randomIntBetween(1, 10000);
+        String expected = SparqlQueries.CLAIM_REJECTION_QUERY
+            .replace(SparqlQueries.USER_PLACE_HOLDER, "Hjfocs")
+            .replace(SparqlQueries.DATASET_PLACE_HOLDER, "http://chuck-berry")
+            .replace(SparqlQueries.STATE_PLACE_HOLDER, "rejected")
+            .replace(SparqlQueries.QID_PLACE_HOLDER, qid)
+            .replace(SparqlQueries.MAIN_PID_PLACE_HOLDER, pid)
+            .replace(SparqlQueries.PID_PLACE_HOLDER, pid)
+            .replace(SparqlQueries.VALUE_PLACE_HOLDER, "<http://www.wikidata.org/entity/Q5921>");
+        String rendered = SparqlQueries.CLAIM_REJECTION_TEMPLATE.bind()
+            .set(SparqlTemplate.Slot.USER, "Hjfocs")
+            .set(SparqlTemplate.Slot.DATASET, "http://chuck-berry")
+            .set(SparqlTemplate.Slot.STATE, "rejected")
+            .set(SparqlTemplate.Slot.QID, qid)
+            .set(SparqlTemplate.Slot.MAIN_PID, pid)
+            .set(SparqlTemplate.Slot.PID, pid)
+            .set(SparqlTemplate.Slot.VALUE, VF.createURI("http://www.wikidata.org/entity/Q5921"))
+            .render();
+        assertEquals(expected, rendered);
+    }
+
+    @Test
+    public void testEscaping() {
+        SparqlTemplate template = SparqlTemplate.compile("<" + SparqlQueries.DATASET_PLACE_HOLDER + "> wd:" + SparqlQueries.QID_PLACE_HOLDER + " "
+            + SparqlQueries.VALUE_PLACE_HOLDER + " " + SparqlQueries.PROPERTY_PLACE_HOLDER + " " + SparqlQueries.LIMIT_PLACE_HOLDER);
+        String rendered = template.bind()
+            .set(SparqlTemplate.Slot.DATASET, "http://chuck-berry/> } DROP ALL {")
+            .set(SparqlTemplate.Slot.QID, "Q1.2")
+            .set(SparqlTemplate.Slot.VALUE, VF.createLiteral("Chuck \"Berry\"\n", "en"))
+            .set(SparqlTemplate.Slot.PROPERTY, "p:P18")
+            .set(SparqlTemplate.Slot.LIMIT, 10)
+            .render();
+        assertEquals("<http://chuck-berry/%3E%20%7D%20DROP%20ALL%20%7B> wd:Q1\\.2 \"Chuck \\\"Berry\\\"\\n\"@en p:P18 10", rendered);
+        assertEquals("\"1926\"^^<" + XMLSchema.DECIMAL + ">", SparqlTemplate.compile(SparqlQueries.VALUE_PLACE_HOLDER).bind()
+            .set(SparqlTemplate.Slot.VALUE, VF.createLiteral("1926", XMLSchema.DECIMAL))
+            .render());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidLocalName() {
+        SparqlTemplate.compile("wd:" + SparqlQueries.QID_PLACE_HOLDER).bind().set(SparqlTemplate.Slot.QID, "Q1 } DROP ALL {").render();
+    }
+
+    @Test
+    public void testItemList() {
+        String rendered = SparqlTemplate.compile("VALUES ?subject { " + SparqlQueries.QIDS_PLACE_HOLDER + " }").bind()
+            .set(SparqlTemplate.Slot.QIDS, Arrays.asList("Q1", "Q42", "Q1.2"))
+            .render();
+        assertEquals("VALUES ?subject { wd:Q1 wd:Q42 wd:Q1\\.2 }", rendered);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidItemList() {
+        SparqlTemplate.compile(SparqlQueries.QIDS_PLACE_HOLDER).bind().set(SparqlTemplate.Slot.QIDS, Arrays.asList("Q1", "Q2 } DROP ALL {")).render();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testMissingValue() {
+        SparqlQueries.USER_INFO_TEMPLATE.bind().set(SparqlTemplate.Slot.DATASET, "http://chuck-berry").render();
+    }
+}
@@ -0,0 +1,63 @@
+package org.wikidata.query.rdf.primarysources.common;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Time random subject draws, as done by {@link org.wikidata.query.rdf.primarysources.curation.RandomServlet}, with a growing number of subjects.
+ * The latency of a draw should stay flat, since it does not depend on the number of subjects, only on the logarithm of the number of datasets.
+ * <p>
+ * Run it as a plain Java application, with the test class path and a big enough heap, e.g., {@code -Xmx4g}.
+ * Optional arguments: maximum number of subjects (default 50 million), number of datasets (default 10), and draws per size (default 10 million).
+ *
+ * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
+ * @since 0.2.5 - created on Jun 23, 2018.
+ */
+public final class SubjectSamplerBenchmark {
+
+    private static final Logger log = LoggerFactory.getLogger(SubjectSamplerBenchmark.class);
+    // Roughly the current QID range
+    private static final int MAX_QID = 60_000_000;
+
+    private SubjectSamplerBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        int maxSubjects = args.length > 0 ? Integer.parseInt(args[0]) : 50_000_000;
+        int datasets = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int draws = args.length > 2 ? Integer.parseInt(args[2]) : 10_000_000;
+        // 10 thousand, 100 thousand, and so on up to the maximum
+        for (int subjects = Math.min(10_000, maxSubjects); ; subjects = Math.min(subjects * 10, maxSubjects)) {
+            SubjectSampler sampler = new SubjectSampler(subjects(subjects, datasets));
+            // Warm up, then measure
+            draw(sampler, draws);
+            long start = System.nanoTime();
+            int checksum = draw(sampler, draws);
+            long elapsed = System.nanoTime() - start;
+            log.info("{} subjects in {} datasets: {} ns per draw over all datasets (checksum {})", sampler.size(), datasets, elapsed / draws, checksum);
+            if (subjects == maxSubjects) break;
+        }
+    }
+
+    private static Map<String, EntityIdSet> subjects(int subjects, int datasets) {
+        Random random = new Random(42);
+        Map<String, EntityIdSet> sets = new HashMap<>();
+        for (int d = 0; d < datasets; d++) {
+            EntityIdSet.Builder builder = new EntityIdSet.Builder('Q', subjects / datasets);
+            for (int i = 0; i < subjects / datasets; i++) builder.add("Q" + (1 + random.nextInt(MAX_QID)));
+            sets.put("http://dataset-" + d + "/new", builder.build());
+        }
+        return sets;
+    }
+
+    private static int draw(SubjectSampler sampler, int draws) {
+        // Keep the results alive, so that the JIT can't skip the draws
+        int checksum = 0;
+        for (int i = 0; i < draws; i++) checksum += sampler.sample().length();
+        return checksum;
+    }
+}
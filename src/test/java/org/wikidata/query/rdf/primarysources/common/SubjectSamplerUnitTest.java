@@ -0,0 +1,40 @@
+package org.wikidata.query.rdf.primarysources.common;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import com.carrotsearch.randomizedtesting.RandomizedRunner;
+import com.carrotsearch.randomizedtesting.RandomizedTest;
+
+/**
+ * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
+ * @since 0.2.5
+ * Created on Jun 23, 2018.
+ */
+@RunWith(RandomizedRunner.class)
+public class SubjectSamplerUnitTest extends RandomizedTest {
+
+    @Test
+    public void testSample() {
+        Map<String, EntityIdSet> subjects = new HashMap<>();
+        subjects.put("http://chuck-berry/new", EntityIdSet.of('Q', Arrays.asList("Q1", "Q2")));
+        subjects.put("http://empty/new", EntityIdSet.of('Q', Collections.emptyList()));
+        subjects.put("http://ella-fitzgerald/new", EntityIdSet.of('Q', Arrays.asList("Q3")));
+        SubjectSampler sampler = new SubjectSampler(subjects);
+        assertEquals(3, sampler.size());
+        Set<String> drawn = new HashSet<>();
+        for (int i = 0; i < 1000; i++) drawn.add(sampler.sample());
+        assertEquals(new HashSet<>(Arrays.asList("Q1", "Q2", "Q3")), drawn);
+        assertEquals("Q3", sampler.sample("http://ella-fitzgerald/new"));
+        assertNull(sampler.sample("http://empty/new"));
+        assertNull(sampler.sample("http://nobody/new"));
+        assertNull(new SubjectSampler(Collections.emptyMap()).sample());
+    }
+}
@@ -0,0 +1,157 @@
+package org.wikidata.query.rdf.primarysources.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fire bursts of concurrent {@code /suggest} requests at a running server, to compare the request execution modes, see {@link RequestExecutor}.
+ * <p>
+ * Start the server with {@code REQUEST_EXECUTION_MODE=platform}, run this, then do the same with {@code REQUEST_EXECUTION_MODE=virtual}.
+ * The server mode is read from {@code /metrics} and printed together with throughput, latency percentiles, rejections and failures
+ * for each burst size.
+ * <p>
+ * Run it as a plain Java application, with the test class path, ideally on Java 21 so that the client itself can hold 10 thousand requests
+ * in flight on virtual threads. Optional arguments: service base URL (default {@code http://localhost:9999/bigdata}), QID (default {@code Q5921}),
+ * comma-separated burst sizes (default {@code 1000,5000,10000}).
+ *
+ * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
+ * @since 0.2.5 - created on Jun 14, 2018.
+ */
+public final class SuggestLoadBenchmark {
+
+    private static final Logger log = LoggerFactory.getLogger(SuggestLoadBenchmark.class);
+    private static final int TIMEOUT = (int) TimeUnit.MINUTES.toMillis(2);
+
+    private SuggestLoadBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        String base = args.length > 0 ? args[0] : "http://localhost:9999/bigdata";
+        String qid = args.length > 1 ? args[1] : "Q5921";
+        List<String> bursts = Arrays.asList((args.length > 2 ? args[2] : "1000,5000,10000").split(","));
+        URL suggest = new URL(base + "/suggest?" + ApiParameters.QID_PARAMETER + "=" + qid);
+        String mode = serverMode(new URL(base + "/metrics"));
+        ExecutorService clients = RequestExecutor.newVirtualThreadPerTaskExecutor("load-test-");
+        if (clients == null) {
+            log.warn("Virtual threads not available, the client will use a platform thread per request");
+            clients = Executors.newCachedThreadPool();
+        }
+        try {
+            // Warm up the server, its caches, and the connections
+            burst(clients, suggest, 100);
+            for (String size : bursts) {
+                Result result = burst(clients, suggest, Integer.parseInt(size.trim()));
+                log.info("Server mode {}, {} concurrent requests: {} requests/s, latency p50 {} ms, p99 {} ms, max {} ms; {} OK, {} rejected (503), {} failed",
+                    mode, size, result.throughput(), result.percentile(50), result.percentile(99), result.percentile(100), result.ok.get(),
+                    result.rejected.get(), result.failed.get());
+            }
+        } finally {
+            clients.shutdownNow();
+        }
+    }
+
+    private static Result burst(ExecutorService clients, URL suggest, int size) throws InterruptedException {
+        Result result = new Result();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> requests = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            requests.add(clients.submit(() -> {
+                start.await();
+                long begin = System.nanoTime();
+                int status = get(suggest);
+                result.record(status, System.nanoTime() - begin);
+                return null;
+            }));
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Future<?> request : requests) {
+            try {
+                request.get();
+            } catch (Exception e) {
+                result.failed.incrementAndGet();
+            }
+        }
+        result.elapsed = System.nanoTime() - begin;
+        return result;
+    }
+
+    private static int get(URL url) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            connection.setConnectTimeout(TIMEOUT);
+            connection.setReadTimeout(TIMEOUT);
+            int status = connection.getResponseCode();
+            InputStream body = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            if (body != null) {
+                try (InputStream toBeDrained = body) {
+                    byte[] buffer = new byte[8192];
+                    while (toBeDrained.read(buffer) >= 0) {
+                        // Drain, so that the connection can be reused
+                    }
+                }
+            }
+            return status;
+        } catch (IOException ioe) {
+            return -1;
+        }
+    }
+
+    private static String serverMode(URL metrics) {
+        try (Reader reader = new InputStreamReader(metrics.openStream(), StandardCharsets.UTF_8)) {
+            JSONObject requests = (JSONObject) ((JSONObject) new JSONParser().parse(reader)).get("requests");
+            return requests == null ? "unknown" : String.valueOf(requests.get("mode"));
+        } catch (IOException | ParseException e) {
+            log.warn("Could not read the server execution mode from {}: {}", metrics, e.toString());
+            return "unknown";
+        }
+    }
+
+    private static final class Result {
+        private final List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+        private final AtomicInteger ok = new AtomicInteger();
+        private final AtomicInteger rejected = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        private long elapsed;
+
+        private void record(int status, long latency) {
+            latencies.add(latency);
+            if (status == 200) ok.incrementAndGet();
+            else if (status == 503) rejected.incrementAndGet();
+            else failed.incrementAndGet();
+        }
+
+        private long throughput() {
+            return (ok.get() + rejected.get() + failed.get()) * 1_000_000_000L / Math.max(elapsed, 1);
+        }
+
+        private long percentile(int percentile) {
+            List<Long> sorted = new ArrayList<>(latencies);
+            if (sorted.isEmpty()) return 0;
+            Collections.sort(sorted);
+            int index = Math.min(sorted.size() - 1, (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1);
+            return TimeUnit.NANOSECONDS.toMillis(sorted.get(Math.max(index, 0)));
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package org.wikidata.query.rdf.primarysources.common;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import com.carrotsearch.randomizedtesting.RandomizedRunner;
+import com.carrotsearch.randomizedtesting.RandomizedTest;
+
+/**
+ * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
+ * @since 0.2.5
+ * Created on Jun 26, 2018.
+ */
+@RunWith(RandomizedRunner.class)
+public class SuggestionCacheUnitTest extends RandomizedTest {
+
+    private static final String CHUCK_BERRY = "http://chuck-berry/new";
+    private static final String ELVIS = "http://elvis/new";
+
+    @Test
+    public void testInvalidateSubject() {
+        SuggestionCache cache = new SuggestionCache("test", 1 << 20);
+        AtomicInteger loads = new AtomicInteger();
+        cache.get("Q5921", CHUCK_BERRY, Endpoint.SUGGEST, () -> suggestions(loads));
+        cache.get("Q5921", ELVIS, Endpoint.SUGGEST, () -> suggestions(loads));
+        cache.get("Q303", CHUCK_BERRY, Endpoint.SUGGEST, () -> suggestions(loads));
+        cache.get("Q5921", CHUCK_BERRY, Endpoint.SUGGEST, () -> suggestions(loads));
+        assertEquals(3, loads.get());
+        // The curated subject goes away in all datasets, the others stay
+        assertTrue(cache.invalidateSubject("Q5921"));
+        assertFalse(cache.invalidateSubject("Q5921"));
+        cache.get("Q303", CHUCK_BERRY, Endpoint.SUGGEST, () -> suggestions(loads));
+        assertEquals(3, loads.get());
+        cache.get("Q5921", ELVIS, Endpoint.SUGGEST, () -> suggestions(loads));
+        assertEquals(4, loads.get());
+        JSONObject metrics = cache.metrics();
+        assertEquals(2L, metrics.get("subjects"));
+        assertEquals(1L, metrics.get("invalidations"));
+        assertTrue((long) metrics.get("estimated_bytes") > 0);
+        JSONObject suggest = (JSONObject) metrics.get("suggest");
+        assertEquals(2L, suggest.get("hits"));
+        assertEquals(4L, suggest.get("misses"));
+    }
+
+    @Test
+    public void testInvalidateDatasets() {
+        SuggestionCache cache = new SuggestionCache("test", 1 << 20);
+        AtomicInteger loads = new AtomicInteger();
+        cache.get("Q5921", CHUCK_BERRY, Endpoint.SUGGEST, () -> suggestions(loads));
+        cache.get("Q303", ELVIS, Endpoint.SUGGEST, () -> suggestions(loads));
+        cache.get("Q42", SuggestionCache.ALL_DATASETS, Endpoint.SUGGEST, () -> suggestions(loads));
+        // Only the subjects looked up in the Chuck Berry dataset, or in all datasets, go away
+        assertEquals(2, cache.invalidateDatasets(Collections.singleton(CHUCK_BERRY)));
+        cache.get("Q303", ELVIS, Endpoint.SUGGEST, () -> suggestions(loads));
+        assertEquals(3, loads.get());
+        cache.get("Q42", SuggestionCache.ALL_DATASETS, Endpoint.SUGGEST, () -> suggestions(loads));
+        assertEquals(4, loads.get());
+    }
+
+    @Test
+    public void testStaleLoad() {
+        SuggestionCache cache = new SuggestionCache("test", 1 << 20);
+        AtomicInteger loads = new AtomicInteger();
+        // A curation of the subject while it loads
+        cache.get("Q5921", CHUCK_BERRY, Endpoint.SUGGEST, () -> {
+            cache.invalidateSubject("Q5921");
+            return suggestions(loads);
+        });
+        cache.get("Q5921", CHUCK_BERRY, Endpoint.SUGGEST, () -> suggestions(loads));
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void testNoJoinAcrossCuration() throws Exception {
+        SuggestionCache cache = new SuggestionCache("test", 1 << 20);
+        QueryCoalescer<JSONArray> coalescer = new QueryCoalescer<>("test");
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch staleStarted = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            // The query starts before a curation, and completes after it
+            Future<JSONArray> stale = pool.submit(() -> cache.get("Q5921", CHUCK_BERRY, Endpoint.SUGGEST, epoch -> coalescer.run("Q5921", epoch, () -> {
+                staleStarted.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+                return suggestions(loads);
+            })));
+            staleStarted.await();
+            cache.invalidateSubject("Q5921");
+            // A caller after the curation runs its own query, instead of joining the stale one
+            JSONArray fresh = cache.get("Q5921", CHUCK_BERRY, Endpoint.SUGGEST, epoch -> coalescer.run("Q5921", epoch, () -> suggestions(loads)));
+            release.countDown();
+            stale.get(10, TimeUnit.SECONDS);
+            assertSame(fresh, cache.get("Q5921", CHUCK_BERRY, Endpoint.SUGGEST, () -> suggestions(loads)));
+        } finally {
+            pool.shutdownNow();
+            pool.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        assertEquals(2, loads.get());
+        assertEquals(0L, coalescer.metrics().get("coalesced"));
+    }
+
+    @Test
+    public void testMemoryBound() {
+        SuggestionCache cache = new SuggestionCache("test", 64 << 10);
+        AtomicInteger loads = new AtomicInteger();
+        int subjects = randomIntBetween(1000, 2000);
+        for (int i = 1; i <= subjects; i++) cache.get("Q" + i, CHUCK_BERRY, Endpoint.SUGGEST, () -> suggestions(loads));
+        JSONObject metrics = cache.metrics();
+        assertTrue((long) metrics.get("estimated_bytes") <= 64 << 10);
+        assertTrue((long) metrics.get("evictions") > 0);
+        assertTrue((long) metrics.get("subjects") < subjects);
+    }
+
+    @Test
+    public void testDisabled() {
+        SuggestionCache cache = new SuggestionCache("test", 0);
+        AtomicInteger loads = new AtomicInteger();
+        cache.get("Q5921", CHUCK_BERRY, Endpoint.SUGGEST, () -> suggestions(loads));
+        cache.get("Q5921", CHUCK_BERRY, Endpoint.SUGGEST, () -> suggestions(loads));
+        assertEquals(2, loads.get());
+        assertFalse(cache.invalidateSubject("Q5921"));
+    }
+
+    private static JSONArray suggestions(AtomicInteger loads) {
+        JSONObject suggestion = new JSONObject();
+        suggestion.put("dataset", CHUCK_BERRY);
+        suggestion.put("format", "QuickStatement");
+        suggestion.put("state", "new");
+        suggestion.put("statement", "Q5921\tP18\t\"Chuck Berry " + loads.incrementAndGet() + ".jpg\"");
+        JSONArray suggestions = new JSONArray();
+        suggestions.add(suggestion);
+        return suggestions;
+    }
+}
@@ -0,0 +1,65 @@
+package org.wikidata.query.rdf.primarysources.common;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import com.carrotsearch.randomizedtesting.RandomizedRunner;
+import com.carrotsearch.randomizedtesting.RandomizedTest;
+
+/**
+ * @author Marco Fossati - <a href="https://meta.wikimedia.org/wiki/User:Hjfocs">User:Hjfocs</a>
+ * @since 0.2.5
+ * Created on Jun 24, 2018.
+ */
+@RunWith(RandomizedRunner.class)
+public class WeightedSubjectsUnitTest extends RandomizedTest {
+
+    @Test
+    public void testSampleFollowsWeights() {
+        WeightedSubjects subjects = new WeightedSubjects.Builder()
+            .add("Q1", 1)
+            .add("Q2", 0)
+            .add("Q3", 9)
+            .add("P31", 5)
+            .build();
+        assertEquals(3, subjects.size());
+        assertEquals(10, subjects.total());
+        Map<String, Integer> drawn = new HashMap<>();
+        for (int i = 0; i < 10000; i++) drawn.merge(subjects.sample(), 1, Integer::sum);
+        assertNull(drawn.get("Q2"));
+        assertTrue(drawn.get("Q3") > 5 * drawn.get("Q1"));
+    }
+
+    @Test
+    public void testSet() {
+        int size = randomIntBetween(1, 1000);
+        WeightedSubjects.Builder builder = new WeightedSubjects.Builder();
+        long total = 0;
+        for (int i = 1; i <= size; i++) {
+            builder.add("Q" + i, i % 3);
+            total += i % 3;
+        }
+        WeightedSubjects subjects = builder.build();
+        assertEquals(total, subjects.total());
+        // Exhaust all subjects but the last one, in any order
+        for (int i = 1; i < size; i++) {
+            assertTrue(subjects.set("Q" + i, randomBoolean() ? 0 : -1));
+            total -= i % 3;
+            assertEquals(0, subjects.weight("Q" + i));
+        }
+        assertEquals(total, subjects.total());
+        assertFalse(subjects.set("Q" + (size + 1), 1));
+        for (int i = 0; i < 100; i++) {
+            String drawn = subjects.sample();
+            if (total == 0) assertNull(drawn);
+            else assertEquals("Q" + size, drawn);
+        }
+        // A subject may get more statements again
+        total -= subjects.weight("Q1");
+        assertTrue(subjects.set("Q1", 4));
+        assertEquals(total + 4, subjects.total());
+    }
+}
\ No newline at end of file
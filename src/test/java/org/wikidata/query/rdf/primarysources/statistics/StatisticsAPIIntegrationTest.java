@@ -59,6 +59,9 @@ public class StatisticsAPIIntegrationTest extends AbstractRdfRepositoryIntegrati
         Files.deleteIfExists(EntitiesCache.SUBJECTS_CACHE_FILE);
         Files.deleteIfExists(EntitiesCache.PROPERTIES_CACHE_FILE);
         Files.deleteIfExists(EntitiesCache.VALUES_CACHE_FILE);
+        Files.deleteIfExists(EntitiesCache.SUBJECTS_BINARY_CACHE_FILE);
+        Files.deleteIfExists(EntitiesCache.PROPERTIES_BINARY_CACHE_FILE);
+        Files.deleteIfExists(EntitiesCache.VALUES_BINARY_CACHE_FILE);
     }
 
     @Before